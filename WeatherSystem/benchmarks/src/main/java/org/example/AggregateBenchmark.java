@@ -0,0 +1,81 @@
+package org.example;
+
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// AggregateBenchmark measures GET /aggregate?field=air_temp,wind_spd_kmh&by=state over 1k and 100k stations in
+// 8 states: answered from the maintained aggregates, and by the fork-join scan of every station. updateIndex is
+// what maintaining the aggregates adds to each PUT.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+    @Param({"1000", "100000"})
+    int stations;
+
+    private final WeatherStore store = new MapWeatherStore();
+    private final AggregateIndex index = new AggregateIndex();
+    private AggregateQuery indexed;
+    private AggregateQuery scan;
+    private WeatherData[] replacements;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < stations; i++) {
+            WeatherData data = station("AGG" + i, random);
+            store.compute(data.id, (id, old) -> data);
+            index.update(null, data);
+        }
+        indexed = AggregateQuery.parse(Map.of("fields", "air_temp,wind_spd_kmh", "by", "state"));
+        scan = AggregateQuery.parse(Map.of("fields", "air_temp,wind_spd_kmh", "by", "state", "scan", "true"));
+        replacements = new WeatherData[1024];
+        for (int i = 0; i < replacements.length; i++) {
+            replacements[i] = station("AGG" + random.nextInt(stations), random);
+        }
+    }
+
+    private static WeatherData station(String id, Random random) {
+        WeatherData data = new WeatherData();
+        data.id = id;
+        data.state = "S" + random.nextInt(8);
+        data.air_temp = Math.round(random.nextGaussian() * 80 + 150) / 10.0;
+        data.wind_spd_kmh = random.nextInt(60);
+        return data;
+    }
+
+    @Benchmark
+    public JsonObject fromIndex() {
+        return indexed.execute(store, index);
+    }
+
+    @Benchmark
+    public JsonObject forkJoinScan() {
+        return scan.execute(store, index);
+    }
+
+    @Benchmark
+    public void updateIndex() {
+        WeatherData data = replacements[next++ & (replacements.length - 1)];
+        WeatherData old = store.get(data.id);
+        store.compute(data.id, (id, previous) -> data);
+        index.update(old, data);
+    }
+}
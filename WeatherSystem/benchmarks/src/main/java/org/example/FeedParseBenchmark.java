@@ -0,0 +1,89 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// FeedParseBenchmark measures parsing a feed file of 100k stations (about 40 MB) with FeedParser on 1 and on all
+// cores, against reading it line by line with a BufferedReader and String.split as readFromFile does.
+// The file stays in the page cache, so this is the parsing cost rather than disk throughput.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedParseBenchmark {
+    private static final int STATIONS = 100_000;
+
+    @Param({"1", "0"})
+    int parallelism;
+
+    private Path feed;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        feed = Files.createTempFile("feed", ".txt");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < STATIONS; i++) {
+            text.append("id:IDS").append(60000 + i).append("\nname:Adelaide (West Terrace / ngayirdapira)\nstate:SA\n")
+                    .append("time_zone:CST\nlat:-34.9\nlon:138.6\nlocal_date_time:15/04:00pm\n")
+                    .append("local_date_time_full:20230715160000\nair_temp:").append(10 + i % 200 / 10.0)
+                    .append("\napparent_t:9.5\ncloud:Partly cloudy\ndewpt:5.7\npress:1023.9\nrel_hum:").append(i % 100)
+                    .append("\nwind_dir:S\nwind_spd_kmh:15\nwind_spd_kt:8\n\n");
+        }
+        Files.writeString(feed, text);
+        // 0 stands for every core
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.deleteIfExists(feed);
+    }
+
+    @Benchmark
+    public long parseFeed() throws IOException, InterruptedException {
+        long count = 0;
+        try (FeedParser parser = new FeedParser(feed, 4 << 20, FeedParser.DEFAULT_BATCH_SIZE)) {
+            parser.start(pool);
+            List<WeatherData> batch;
+            while ((batch = parser.next()) != null) {
+                count += batch.size();
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public List<String[]> splitLines() throws IOException {
+        List<String[]> lines = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(feed, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line.split(":", 2));
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,65 @@
+package org.example;
+
+import com.google.gson.Gson;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// GetBenchmark measures GET /weather.json with 10, 1k and 100k stored stations: served from the cached snapshot,
+// served right after a PUT so the snapshot is re-assembled, and, as the baseline, serializing the whole map with
+// Gson as every GET used to.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+    @Param({"10", "1000", "100000"})
+    int stations;
+
+    private final Gson gson = new Gson();
+    private final Map<String, WeatherData> map = new HashMap<>();
+    private final HttpRequest get = new HttpRequest("GET", "/weather.json", null);
+    private HttpRequest put;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < stations; i++) {
+            WeatherData data = gson.fromJson(RequestParseBenchmark.STATION_JSON.replace("IDS60901", "GET" + i), WeatherData.class);
+            AggregationServer.storeWeatherData(data);
+            map.put(data.id, data);
+        }
+        put = new HttpRequest("PUT", "/weather.json", RequestParseBenchmark.STATION_JSON.replace("IDS60901", "GET0")
+                .getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+    }
+
+    @Benchmark
+    public HttpResponse cachedGet() {
+        return AggregationServer.handleRequest(get);
+    }
+
+    @Benchmark
+    public HttpResponse getAfterPut() {
+        AggregationServer.handleRequest(put);
+        return AggregationServer.handleRequest(get);
+    }
+
+    @Benchmark
+    public String serializeMap() {
+        return gson.toJson(map);
+    }
+}
@@ -0,0 +1,74 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// LamportClockBenchmark compares the contended throughput of the lock-free LamportClock with the synchronized
+// clock it replaced. Each operation is what the server does per request: update with the received time, then
+// increment for the response. All threads share one clock, as all requests share the server's clock.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LamportClockBenchmark {
+    private final LamportClock atomic = new LamportClock();
+    private final SynchronizedLamportClock synchronizedClock = new SynchronizedLamportClock();
+
+    @Benchmark
+    @Threads(1)
+    public long atomicUncontended() {
+        atomic.update(42);
+        return atomic.increment();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int synchronizedUncontended() {
+        synchronizedClock.update(42);
+        synchronizedClock.increment();
+        return synchronizedClock.getClock();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long atomicContended() {
+        atomic.update(42);
+        return atomic.increment();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int synchronizedContended() {
+        synchronizedClock.update(42);
+        synchronizedClock.increment();
+        return synchronizedClock.getClock();
+    }
+
+    // The previous LamportClock, kept as the baseline: an int guarded by the instance's monitor
+    static class SynchronizedLamportClock {
+        private int clock;
+
+        synchronized void increment() {
+            clock++;
+        }
+
+        synchronized void update(int receivedClock) {
+            clock = Math.max(clock, receivedClock) + 1;
+        }
+
+        synchronized int getClock() {
+            return clock;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package org.example;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+// LoadGenerator drives an AggregationServer with simulated content servers and GET pollers, using the same
+// requests as ContentServer and GETClient, Lamport-Clock and Source-Id headers included.
+//
+// Every simulated client is closed-loop: it sends one request on its own persistent connection, waits for the
+// response, and then waits for its next turn. With a rate, turns are evenly spaced and latency is measured from
+// the time the request was due, so a slow server is not hidden by clients that fall behind schedule.
+// With a rate of 0 each client sends back to back.
+//
+// Usage: LoadGenerator <server:port> [--writers=4] [--readers=16] [--write-rate=10] [--read-rate=10]
+//                      [--stations=10] [--duration=30] [--warmup=5]
+//        LoadGenerator --embedded=<engine> [...]   starts an AggregationServer in this JVM on a free port
+//        With --embedded, other options are server options, e.g. --source-rate=5 --ingest-concurrency=4
+public class LoadGenerator {
+    private static final Gson gson = new Gson();
+
+    private int writers = 4;
+    private int readers = 16;
+    // Requests per second per simulated client; 0 sends back to back
+    private double writeRate = 10;
+    private double readRate = 10;
+    // Stations pushed by each simulated content server
+    private int stationsPerWriter = 10;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+
+    private String host;
+    private int port;
+    private volatile boolean running = true;
+    private volatile boolean measuring;
+
+    private final Stats puts = new Stats("PUT");
+    private final Stats gets = new Stats("GET");
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        ConnectionEngine embedded = null;
+        String engine = null;
+        List<String> serverArgs = new ArrayList<>(List.of("0", "--wal=false"));
+        String address = null;
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                address = arg;
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String value = arg.substring(eq + 1);
+            switch (arg.substring(2, eq)) {
+                case "writers":
+                    generator.writers = Integer.parseInt(value);
+                    break;
+                case "readers":
+                    generator.readers = Integer.parseInt(value);
+                    break;
+                case "write-rate":
+                    generator.writeRate = Double.parseDouble(value);
+                    break;
+                case "read-rate":
+                    generator.readRate = Double.parseDouble(value);
+                    break;
+                case "stations":
+                    generator.stationsPerWriter = Integer.parseInt(value);
+                    break;
+                case "duration":
+                    generator.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    generator.warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "embedded":
+                    engine = value;
+                    serverArgs.add("--engine=" + value);
+                    break;
+                default:
+                    // An option of the embedded server
+                    serverArgs.add(arg);
+            }
+        }
+        if (engine != null) {
+            ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+            AggregationServer.startIngestLimits(config);
+            embedded = ConnectionEngine.create(config);
+            embedded.start();
+            address = "localhost:" + embedded.getPort();
+        } else if (serverArgs.size() > 2) {
+            throw new IllegalArgumentException("Unknown option " + serverArgs.get(2));
+        }
+        if (address == null) {
+            System.out.println("Usage: java LoadGenerator <server:port> [--writers=N] [--readers=M] [--write-rate=per-second]"
+                    + " [--read-rate=per-second] [--stations=per-writer] [--duration=seconds] [--warmup=seconds]");
+            System.out.println("       java LoadGenerator --embedded=<virtual|pool|nio> [...] [--server-option=value...]");
+            return;
+        }
+        int colon = address.lastIndexOf(':');
+        generator.host = address.substring(0, colon);
+        generator.port = Integer.parseInt(address.substring(colon + 1));
+
+        generator.run();
+        if (embedded != null) {
+            embedded.stop();
+        }
+    }
+
+    /**
+     * Runs the warm-up and the measured period, printing the throughput every second and a summary at the end.
+     */
+    private void run() throws InterruptedException {
+        System.out.printf("Load against %s:%d: %d writers at %s/s, %d readers at %s/s, %d stations per writer%n", host, port,
+                writers, writeRate == 0 ? "max" : writeRate, readers, readRate == 0 ? "max" : readRate, stationsPerWriter);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            int writer = i;
+            threads.add(new Thread(() -> simulate(writeRate, puts, new WriterRequests(writer)), "load-writer-" + i));
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Thread(() -> simulate(readRate, gets, random -> new HttpRequest("GET", "/weather.json", null)),
+                    "load-reader-" + i));
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        puts.reset();
+        gets.reset();
+        measuring = true;
+        long start = System.nanoTime();
+        for (int second = 1; second <= durationSeconds; second++) {
+            Thread.sleep(1000);
+            System.out.printf("%3ds  %s  %s%n", second, puts.interval(), gets.interval());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        measuring = false;
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        System.out.println();
+        puts.summary(seconds);
+        gets.summary(seconds);
+    }
+
+    /**
+     * The loop of one simulated client.
+     *
+     * @param rate     Requests per second, or 0 to send back to back.
+     * @param stats    Where latencies and errors are recorded.
+     * @param requests Builds the next request.
+     */
+    private void simulate(double rate, Stats stats, RequestSource requests) {
+        Random random = new Random();
+        long intervalNanos = rate > 0 ? (long) (1e9 / rate) : 0;
+        // Start at a random point of the interval, so clients do not send in lockstep
+        long due = System.nanoTime() + (intervalNanos > 0 ? (long) (random.nextDouble() * intervalNanos) : 0);
+        try (AggregationClient client = new AggregationClient(host, port, new LamportClock(), 1)) {
+            while (running) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                long start = intervalNanos > 0 ? due : System.nanoTime();
+                try {
+                    HttpResponse response = client.send(requests.next(random));
+                    long latency = System.nanoTime() - start;
+                    if (measuring) {
+                        stats.record(latency, response.status);
+                    }
+                } catch (IOException e) {
+                    if (measuring) {
+                        stats.failed(e);
+                    }
+                }
+                due = intervalNanos > 0 ? due + intervalNanos : System.nanoTime();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // RequestSource interface to build the requests of one simulated client
+    private interface RequestSource {
+        HttpRequest next(Random random);
+    }
+
+    // WriterRequests class to build the PUTs of one simulated content server: randomized readings for its own stations
+    private class WriterRequests implements RequestSource {
+        private final String sourceId;
+        private final String[] ids;
+        private int next;
+
+        WriterRequests(int writer) {
+            this.sourceId = "load-writer-" + writer;
+            this.ids = new String[stationsPerWriter];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = "LOAD" + writer + "-" + i;
+            }
+        }
+
+        @Override
+        public HttpRequest next(Random random) {
+            WeatherData data = new WeatherData();
+            data.id = ids[next++ % ids.length];
+            data.name = "Load station " + data.id;
+            data.state = "S" + random.nextInt(8);
+            data.time_zone = "CST";
+            data.lat = -45 + random.nextDouble() * 35;
+            data.lon = 110 + random.nextDouble() * 45;
+            data.air_temp = Math.round(random.nextGaussian() * 80 + 150) / 10.0;
+            data.apparent_t = data.air_temp - random.nextInt(50) / 10.0;
+            data.cloud = random.nextBoolean() ? "Clear" : "Partly cloudy";
+            data.dewpt = Math.round(random.nextDouble() * 150) / 10.0;
+            data.press = 990 + Math.round(random.nextDouble() * 400) / 10.0;
+            data.rel_hum = random.nextInt(101);
+            data.wind_dir = "S";
+            data.wind_spd_kmh = random.nextInt(60);
+            data.wind_spd_kt = (int) (data.wind_spd_kmh / 1.852);
+
+            HttpRequest request = new HttpRequest("PUT", "/weather.json", gson.toJson(data).getBytes(StandardCharsets.UTF_8));
+            request.headers.put("Content-Type", "application/json");
+            request.headers.put("Source-Id", sourceId);
+            return request;
+        }
+    }
+
+    // Stats class to hold the latencies, status counts and failures of one request type
+    private static class Stats {
+        private final String name;
+        // Latencies in microseconds, up to one minute
+        private final Recorder recorder = new Recorder(TimeUnit.MINUTES.toMicros(1), 3);
+        private final Histogram total = new Histogram(TimeUnit.MINUTES.toMicros(1), 3);
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+        private Histogram interval;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void record(long latencyNanos, int status) {
+            recorder.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(latencyNanos), total.getHighestTrackableValue()));
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+
+        void failed(IOException e) {
+            failures.computeIfAbsent(e.getClass().getSimpleName(), s -> new LongAdder()).increment();
+        }
+
+        void reset() {
+            recorder.reset();
+            statuses.clear();
+            failures.clear();
+        }
+
+        /**
+         * Collects the requests recorded since the last call and describes them in one line.
+         */
+        String interval() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return String.format("%s %7d req/s p50 %7.2f ms p99 %7.2f ms", name, interval.getTotalCount(),
+                    interval.getValueAtPercentile(50) / 1000.0, interval.getValueAtPercentile(99) / 1000.0);
+        }
+
+        void summary(double seconds) {
+            // Include the requests completed since the last interval
+            total.add(recorder.getIntervalHistogram());
+            long errors = failures.values().stream().mapToLong(LongAdder::sum).sum();
+            for (Map.Entry<Integer, LongAdder> entry : statuses.entrySet()) {
+                if (entry.getKey() >= 400) {
+                    errors += entry.getValue().sum();
+                }
+            }
+            System.out.printf("%s: %d requests, %.0f req/s, %d errors%n", name, total.getTotalCount(),
+                    total.getTotalCount() / seconds, errors);
+            System.out.printf("  latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                    total.getValueAtPercentile(50) / 1000.0, total.getValueAtPercentile(90) / 1000.0,
+                    total.getValueAtPercentile(99) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+                    total.getMaxValue() / 1000.0);
+            System.out.println("  statuses: " + statuses + (failures.isEmpty() ? "" : "  failures: " + failures));
+        }
+    }
+}
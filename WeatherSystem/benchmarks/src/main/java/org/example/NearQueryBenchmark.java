@@ -0,0 +1,124 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// NearQueryBenchmark measures finding the 10 stations nearest a point and the stations within 50 km of it, among
+// 100k and 1M stations spread over Australia: with the grid of SpatialIndex, and with a scan computing the haversine
+// distance to every station. updateIndex is what maintaining the grid adds to a PUT that moves a station.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NearQueryBenchmark {
+    private static final int K = 10;
+    private static final double RADIUS_KM = 50;
+
+    @Param({"100000", "1000000"})
+    int stations;
+
+    private final SpatialIndex index = new SpatialIndex();
+    private final List<WeatherData> all = new ArrayList<>();
+    private double[][] points;
+    private WeatherData[] moves;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < stations; i++) {
+            WeatherData data = station("GEO" + i, random);
+            all.add(data);
+            index.update(null, data);
+        }
+        points = new double[1024][];
+        for (int i = 0; i < points.length; i++) {
+            WeatherData point = station("", random);
+            points[i] = new double[] {point.lat, point.lon};
+        }
+        moves = new WeatherData[1024];
+        for (int i = 0; i < moves.length; i++) {
+            moves[i] = station("GEO" + random.nextInt(stations), random);
+        }
+    }
+
+    private static WeatherData station(String id, Random random) {
+        WeatherData data = new WeatherData();
+        data.id = id;
+        data.lat = -44 + random.nextDouble() * 34;
+        data.lon = 113 + random.nextDouble() * 41;
+        return data;
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Hit> nearestFromIndex() {
+        double[] point = points[next++ & (points.length - 1)];
+        return index.search(point[0], point[1], K, Double.POSITIVE_INFINITY);
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Hit> radiusFromIndex() {
+        double[] point = points[next++ & (points.length - 1)];
+        return index.search(point[0], point[1], Integer.MAX_VALUE, RADIUS_KM);
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Hit> nearestByScan() {
+        double[] point = points[next++ & (points.length - 1)];
+        PriorityQueue<SpatialIndex.Hit> best = new PriorityQueue<>(
+                Comparator.comparingDouble((SpatialIndex.Hit hit) -> hit.distanceKm).reversed());
+        for (WeatherData data : all) {
+            double distance = SpatialIndex.distanceKm(point[0], point[1], data.lat, data.lon);
+            if (best.size() < K) {
+                best.add(new SpatialIndex.Hit(data.id, data.lat, data.lon, distance));
+            } else if (distance < best.peek().distanceKm) {
+                best.poll();
+                best.add(new SpatialIndex.Hit(data.id, data.lat, data.lon, distance));
+            }
+        }
+        List<SpatialIndex.Hit> hits = new ArrayList<>(best);
+        hits.sort(Comparator.comparingDouble(hit -> hit.distanceKm));
+        return hits;
+    }
+
+    @Benchmark
+    public List<SpatialIndex.Hit> radiusByScan() {
+        double[] point = points[next++ & (points.length - 1)];
+        List<SpatialIndex.Hit> hits = new ArrayList<>();
+        for (WeatherData data : all) {
+            double distance = SpatialIndex.distanceKm(point[0], point[1], data.lat, data.lon);
+            if (distance <= RADIUS_KM) {
+                hits.add(new SpatialIndex.Hit(data.id, data.lat, data.lon, distance));
+            }
+        }
+        hits.sort(Comparator.comparingDouble(hit -> hit.distanceKm));
+        return hits;
+    }
+
+    @Benchmark
+    public void updateIndex() {
+        int i = next++ & (moves.length - 1);
+        WeatherData data = moves[i];
+        int station = Integer.parseInt(data.id.substring(3));
+        index.update(all.get(station), data);
+        // Swap, so the next move of this entry starts from where the station now is
+        moves[i] = all.set(station, data);
+    }
+}
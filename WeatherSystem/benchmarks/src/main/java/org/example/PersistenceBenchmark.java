@@ -0,0 +1,91 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// PersistenceBenchmark measures PUT throughput with the write-ahead log on and off, and recovery time from the log
+// and from a compacted snapshot. PUTs go straight to AggregationServer.handleRequest, so network cost is excluded.
+//
+// Usage: PersistenceBenchmark [stations] [puts] [threads]
+public class PersistenceBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int puts = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() * 4;
+        Path dataDir = Files.createTempDirectory("wal-bench");
+
+        System.out.printf("stations=%d puts=%d threads=%d%n", stations, puts, threads);
+        System.out.printf("PUT throughput, log off: %,.0f ops/s%n", putThroughput(stations, puts, threads));
+
+        ServerConfig config = new ServerConfig();
+        config.dataDir = dataDir.toString();
+        config.checkpointSeconds = Integer.MAX_VALUE;
+        AggregationServer.startPersistence(config);
+        System.out.printf("PUT throughput, log on:  %,.0f ops/s%n", putThroughput(stations, puts, threads));
+        AggregationServer.stopPersistence();
+
+        // Recovery from the log alone: every PUT above is replayed
+        System.out.printf("Recovery from %,d log records: %d ms%n", puts, recoveryMillis(dataDir, false));
+
+        // Recovery after a checkpoint: one snapshot holding each station once
+        System.out.printf("Recovery from a snapshot of %,d stations: %d ms%n", stations, recoveryMillis(dataDir, true));
+    }
+
+    /**
+     * Sends PUTs for random stations from several threads and returns the rate they were acknowledged at.
+     */
+    private static double putThroughput(int stations, int puts, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            futures.add(pool.submit(() -> {
+                for (int i = first; i < puts; i += threads) {
+                    String json = "{\"id\":\"BENCH" + (i % stations) + "\",\"name\":\"Station " + (i % stations)
+                            + "\",\"state\":\"SA\",\"air_temp\":" + (i % 400) / 10.0 + ",\"rel_hum\":" + (i % 100) + "}";
+                    HttpRequest request = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+                    request.headers.put("Content-Length", String.valueOf(request.body.length));
+                    AggregationServer.handleRequest(request);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        return puts / seconds;
+    }
+
+    /**
+     * Restarts persistence on the data directory and returns how long recovery took.
+     *
+     * @param checkpointFirst Whether to compact the log into a snapshot before measuring.
+     */
+    private static long recoveryMillis(Path dataDir, boolean checkpointFirst) throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.dataDir = dataDir.toString();
+        config.checkpointSeconds = Integer.MAX_VALUE;
+        if (checkpointFirst) {
+            WriteAheadLog log = new WriteAheadLog(dataDir);
+            log.recover(json -> { }, record -> { });
+            log.start();
+            log.checkpoint(AggregationServer::checkpointSnapshot);
+            log.close();
+        }
+        long start = System.nanoTime();
+        AggregationServer.startPersistence(config);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        AggregationServer.stopPersistence();
+        return millis;
+    }
+}
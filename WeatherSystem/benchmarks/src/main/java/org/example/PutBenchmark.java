@@ -0,0 +1,63 @@
+package org.example;
+
+import com.google.gson.Gson;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PutBenchmark measures a PUT without the network: the JSON decode alone, the store into the map, snapshot and
+// indexes alone, and the whole handleRequest path. Requests cycle through a fixed set of stations, so the map
+// stays at that size. The write-ahead log is not started, so no fsync is included.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutBenchmark {
+    @Param({"1000"})
+    int stations;
+
+    private final Gson gson = new Gson();
+    private String[] bodies;
+    private HttpRequest[] requests;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        bodies = new String[stations];
+        requests = new HttpRequest[stations];
+        for (int i = 0; i < stations; i++) {
+            bodies[i] = RequestParseBenchmark.STATION_JSON.replace("IDS60901", "PUT" + i);
+            requests[i] = new HttpRequest("PUT", "/weather.json", bodies[i].getBytes(StandardCharsets.UTF_8));
+            requests[i].headers.put("Content-Length", String.valueOf(requests[i].body.length));
+        }
+    }
+
+    @Benchmark
+    public WeatherData decode() {
+        return gson.fromJson(bodies[next++ % stations], WeatherData.class);
+    }
+
+    @Benchmark
+    public String store() {
+        WeatherData data = gson.fromJson(bodies[next++ % stations], WeatherData.class);
+        data.lamport = next;
+        return AggregationServer.storeWeatherData(data);
+    }
+
+    @Benchmark
+    public HttpResponse handlePut() {
+        return AggregationServer.handleRequest(requests[next++ % stations]);
+    }
+}
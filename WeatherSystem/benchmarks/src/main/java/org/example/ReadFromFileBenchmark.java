@@ -0,0 +1,48 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ReadFromFileBenchmark measures ContentServer.readFromFile on a station file like weather.txt.
+// The file stays in the page cache, so this is the parsing cost rather than disk latency.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadFromFileBenchmark {
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("station", ".txt");
+        Files.writeString(file, "id:IDS60901\nname:Adelaide (West Terrace / ngayirdapira)\nstate:SA\ntime_zone:CST\n"
+                + "lat:-34.9\nlon:138.6\nlocal_date_time:15/04:00pm\nlocal_date_time_full:20230715160000\nair_temp:13.3\n"
+                + "apparent_t:9.5\ncloud:Partly cloudy\ndewpt:5.7\npress:1023.9\nrel_hum:60\nwind_dir:S\n"
+                + "wind_spd_kmh:15\nwind_spd_kt:8\n");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public WeatherData readFromFile() throws IOException {
+        return ContentServer.readFromFile(file.toString());
+    }
+}
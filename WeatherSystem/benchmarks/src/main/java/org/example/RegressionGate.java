@@ -0,0 +1,67 @@
+package org.example;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// RegressionGate compares two JMH result files written with -rf json and fails when a benchmark got slower
+// than the allowed tolerance, so a build can refuse a change that regresses a hot path.
+//
+// Usage: RegressionGate <baseline.json> <current.json> [tolerance percent, default 10]
+public class RegressionGate {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java RegressionGate <baseline.json> <current.json> [tolerance-percent]");
+            System.exit(2);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) / 100 : 0.10;
+        Map<String, JsonObject> baseline = readResults(args[0]);
+        Map<String, JsonObject> current = readResults(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            double old = score(before);
+            double now = score(entry.getValue());
+            // Throughput modes are better when higher; time modes are better when lower
+            boolean higherIsBetter = entry.getValue().get("mode").getAsString().equals("thrpt");
+            double change = higherIsBetter ? (old - now) / old : (now - old) / old;
+            String verdict = change > tolerance ? "REGRESSION" : "ok";
+            if (change > tolerance) {
+                regressions++;
+            }
+            System.out.printf("%-10s %-70s %12.3f -> %12.3f %s (%+.1f%%)%n", verdict, entry.getKey(), old, now,
+                    entry.getValue().getAsJsonObject("primaryMetric").get("scoreUnit").getAsString(), change * 100);
+        }
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * Reads a JMH JSON result file into a map from benchmark name and parameters to its result.
+     */
+    private static Map<String, JsonObject> readResults(String file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        for (JsonElement element : JsonParser.parseString(Files.readString(Paths.get(file))).getAsJsonArray()) {
+            JsonObject result = element.getAsJsonObject();
+            String key = result.get("benchmark").getAsString();
+            if (result.has("params")) {
+                key += " " + result.get("params");
+            }
+            results.put(key, result);
+        }
+        return results;
+    }
+
+    private static double score(JsonObject result) {
+        return result.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+    }
+}
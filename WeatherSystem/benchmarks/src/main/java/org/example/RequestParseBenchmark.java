@@ -0,0 +1,91 @@
+package org.example;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// RequestParseBenchmark measures how long it takes to turn request bytes into an HttpRequest as the engines do: the
+// blocking engines' RequestParser reading from the connection's stream, the nio engine's framing scan over its read
+// buffer, and the RequestParser parsing the request it framed; and how long it takes to decode a PUT body with Gson
+// or with WeatherDataDecoder.
+// Run with -prof gc to compare the bytes allocated per operation (gc.alloc.rate.norm), which for the parser and the
+// decoder stay near zero apart from the body copy.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParseBenchmark {
+    static final String STATION_JSON = "{\"id\":\"IDS60901\",\"name\":\"Adelaide (West Terrace / ngayirdapira)\","
+            + "\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,\"local_date_time\":\"15/04:00pm\","
+            + "\"local_date_time_full\":\"20230715160000\",\"air_temp\":13.3,\"apparent_t\":9.5,\"cloud\":\"Partly cloudy\","
+            + "\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}";
+
+    private final byte[] get = ("GET /weather.json HTTP/1.1\r\nHost: localhost:4567\r\nLamport-Clock: 42\r\n\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+    private final byte[] put = ("PUT /weather.json HTTP/1.1\r\nHost: localhost:4567\r\nContent-Type: application/json\r\n"
+            + "Lamport-Clock: 42\r\nSource-Id: bench\r\nContent-Length: " + STATION_JSON.length() + "\r\n\r\n" + STATION_JSON)
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    // The PUT as the nio engine hands it to the parser once framed: the request line and headers, and the body
+    private final byte[] putHead = Arrays.copyOf(put, put.length - STATION_JSON.length());
+    private final byte[] putBody = STATION_JSON.getBytes(StandardCharsets.ISO_8859_1);
+
+    private final RequestParser parser = new RequestParser();
+    private final byte[] body = STATION_JSON.getBytes(StandardCharsets.UTF_8);
+    private final WeatherData station = new WeatherData();
+    private final Gson gson = new Gson();
+
+    @Benchmark
+    public HttpRequest parseGet() throws IOException {
+        return parser.read(new ByteArrayInputStream(get));
+    }
+
+    @Benchmark
+    public HttpRequest parsePut() throws IOException {
+        return parser.read(new ByteArrayInputStream(put));
+    }
+
+    @Benchmark
+    public long framePut() throws IOException {
+        return HttpRequest.frame(put, 0, put.length);
+    }
+
+    @Benchmark
+    public HttpRequest parseGetInPlace() throws IOException {
+        HttpRequest request = parser.parse(get, null);
+        request.lamportClock();
+        return request;
+    }
+
+    @Benchmark
+    public HttpRequest parsePutInPlace() throws IOException {
+        HttpRequest request = parser.parse(putHead, putBody);
+        request.lamportClock();
+        return request;
+    }
+
+    @Benchmark
+    public WeatherData decodeGson() {
+        return gson.fromJson(new String(body, StandardCharsets.UTF_8), WeatherData.class);
+    }
+
+    @Benchmark
+    public WeatherData decodeInPlace() {
+        WeatherDataDecoder.local().decode(body, 0, body.length, station);
+        return station;
+    }
+}
@@ -0,0 +1,133 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// StartupBenchmark measures a one-shot GETClient run from launch to exit, against an AggregationServer in this JVM:
+// a new JVM as is (plain), a new JVM mapping an AppCDS archive recorded by a first run (cds, as the startup build
+// profile makes), the same with only the C1 compiler (cds-c1), and the same command sent to a running ClientDaemon
+// (daemon). Each run is timed once, as a cron job would start it.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+    @Param({"plain", "cds", "cds-c1", "daemon"})
+    String mode;
+
+    private final String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private final String classPath = System.getProperty("java.class.path");
+    private ConnectionEngine engine;
+    private String server;
+    private Path directory;
+    private Path archive;
+    private Path socket;
+    private Process daemon;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        engine = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0"}));
+        engine.start();
+        server = "localhost:" + engine.getPort();
+        HttpRequest put = new HttpRequest("PUT", "/weather.json",
+                "{\"id\":\"IDS60901\",\"name\":\"Adelaide\",\"air_temp\":13.3}".getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+        AggregationServer.handleRequest(put);
+
+        directory = Files.createTempDirectory("startup");
+        archive = directory.resolve("client.jsa");
+        socket = directory.resolve("client.sock");
+        if (mode.startsWith("cds")) {
+            // The first run records the classes it loads
+            run(List.of("-XX:ArchiveClassesAtExit=" + archive, "-Xlog:cds=error"));
+        } else if (mode.equals("daemon")) {
+            daemon = new ProcessBuilder(java, "-cp", classPath, "org.example.ClientDaemon", server, "--socket=" + socket)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            for (int i = 0; i < 200 && !Files.exists(socket); i++) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        if (daemon != null) {
+            command("stop");
+            daemon.waitFor(5, TimeUnit.SECONDS);
+            daemon.destroy();
+        }
+        engine.stop();
+        Files.deleteIfExists(archive);
+        Files.deleteIfExists(socket);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public int firstRequest() throws IOException, InterruptedException {
+        switch (mode) {
+            case "plain":
+                return run(List.of());
+            case "cds":
+                return run(List.of("-XX:SharedArchiveFile=" + archive));
+            case "cds-c1":
+                return run(List.of("-XX:SharedArchiveFile=" + archive, "-XX:TieredStopAtLevel=1"));
+            default:
+                return command("get");
+        }
+    }
+
+    private int run(List<String> options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(options);
+        command.addAll(List.of("-cp", classPath, "org.example.GETClient", server));
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        int status = process.waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("GETClient exited with " + status);
+        }
+        return status;
+    }
+
+    private int command(String line) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            ByteBuffer reply = ByteBuffer.allocate(8192);
+            int total = 0;
+            int n;
+            while ((n = channel.read(reply)) >= 0) {
+                total += n;
+                reply.clear();
+            }
+            return total;
+        }
+    }
+}
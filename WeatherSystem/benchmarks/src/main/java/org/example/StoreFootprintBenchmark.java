@@ -0,0 +1,74 @@
+package org.example;
+
+import java.util.Random;
+
+// StoreFootprintBenchmark compares the heap used by the map and columnar stores holding the same stations, and how
+// long filling them and reading every station back takes. Stations have realistic fields: unique names, and state,
+// time zone, cloud and wind direction drawn from small vocabularies.
+//
+// Usage: StoreFootprintBenchmark [stations]
+public class StoreFootprintBenchmark {
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+    private static final String[] ZONES = {"CST", "EST", "WST"};
+    private static final String[] CLOUDS = {"Clear", "Partly cloudy", "Mostly cloudy", "Cloudy", "Fog"};
+    private static final String[] WIND = {"N", "NE", "E", "SE", "S", "SW", "W", "NW", "CALM"};
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.printf("stations=%,d%n", stations);
+        for (String kind : new String[] {"map", "columnar"}) {
+            long before = usedHeap();
+            WeatherStore store = WeatherStore.create(kind);
+            long start = System.nanoTime();
+            fill(store, stations);
+            long fillMillis = (System.nanoTime() - start) / 1_000_000;
+            long bytes = usedHeap() - before;
+
+            start = System.nanoTime();
+            double sum = 0;
+            for (String id : store.ids()) {
+                sum += store.get(id).air_temp;
+            }
+            long readMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.printf("%-8s %,6d MB  %,5d bytes/station  fill %,d ms  read all %,d ms  (checksum %.0f)%n", kind,
+                    bytes >> 20, bytes / stations, fillMillis, readMillis, sum);
+        }
+    }
+
+    /**
+     * Stores randomized stations, each decoded separately as a PUT would be, so no strings are shared by accident.
+     */
+    private static void fill(WeatherStore store, int stations) {
+        Random random = new Random(42);
+        for (int i = 0; i < stations; i++) {
+            WeatherData data = new WeatherData();
+            data.id = "STN" + i;
+            data.name = "Station number " + i;
+            data.state = new String(STATES[random.nextInt(STATES.length)]);
+            data.time_zone = new String(ZONES[random.nextInt(ZONES.length)]);
+            data.lat = -45 + random.nextDouble() * 35;
+            data.lon = 110 + random.nextDouble() * 45;
+            data.local_date_time = new String("15/04:00pm");
+            data.local_date_time_full = new String("20230715160000");
+            data.air_temp = random.nextInt(400) / 10.0;
+            data.apparent_t = data.air_temp - 2;
+            data.cloud = new String(CLOUDS[random.nextInt(CLOUDS.length)]);
+            data.dewpt = random.nextInt(150) / 10.0;
+            data.press = 1000 + random.nextInt(300) / 10.0;
+            data.rel_hum = random.nextInt(101);
+            data.wind_dir = new String(WIND[random.nextInt(WIND.length)]);
+            data.wind_spd_kmh = random.nextInt(60);
+            data.wind_spd_kt = data.wind_spd_kmh / 2;
+            data.origin = "source-" + (i % 100);
+            store.compute(data.id, (id, old) -> data);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
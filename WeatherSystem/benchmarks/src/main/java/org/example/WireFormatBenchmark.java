@@ -0,0 +1,128 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// WireFormatBenchmark compares the GET snapshot's wire formats: JSON as Gson writes and reads it, the binary form of
+// WeatherDataCodec, and each compressed with gzip and with the x-weather-deflate dictionary coding of ContentCoding.
+// The size of every representation is printed once per trial, so bytes on the wire can be read off next to the time.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT"};
+    private static final String[] CLOUDS = {"Partly cloudy", "Mostly sunny", "Sunny", "Cloudy", "Clear"};
+    private static final String[] WINDS = {"S", "SSW", "SW", "W", "NW", "N", "NE", "E"};
+
+    @Param({"100", "1000"})
+    int stations;
+
+    private final Gson gson = new Gson();
+    private final Type mapType = new TypeToken<Map<String, WeatherData>>() {}.getType();
+    private List<WeatherData> data;
+    private byte[] json;
+    private byte[] binary;
+    private byte[] jsonGzip;
+    private byte[] jsonDeflate;
+
+    @Setup
+    public void setUp() {
+        data = new ArrayList<>();
+        Map<String, WeatherData> map = new LinkedHashMap<>();
+        for (int i = 0; i < stations; i++) {
+            WeatherData station = new WeatherData();
+            station.id = "IDS" + (60000 + i);
+            station.name = "Station " + i;
+            station.state = STATES[i % STATES.length];
+            station.time_zone = "CST";
+            station.lat = -34.9 + (i % 100) / 10.0;
+            station.lon = 138.6 - (i % 70) / 10.0;
+            station.local_date_time = "15/04:00pm";
+            station.local_date_time_full = "20230715160000";
+            station.air_temp = 13.3 + (i % 20) / 10.0;
+            station.apparent_t = 9.5;
+            station.cloud = CLOUDS[i % CLOUDS.length];
+            station.dewpt = 5.7;
+            station.press = 1023.9 - (i % 30) / 10.0;
+            station.rel_hum = 60 + i % 30;
+            station.wind_dir = WINDS[i % WINDS.length];
+            station.wind_spd_kmh = 15 + i % 10;
+            station.wind_spd_kt = 8 + i % 5;
+            data.add(station);
+            map.put(station.id, station);
+        }
+        json = gson.toJson(map).getBytes(StandardCharsets.UTF_8);
+        binary = WeatherDataCodec.encode(data);
+        jsonGzip = ContentCoding.encode(ContentCoding.GZIP, json);
+        jsonDeflate = ContentCoding.encode(ContentCoding.WEATHER_DEFLATE, json);
+        System.out.printf("%n%d stations: json %d B, json+gzip %d B, json+x-weather-deflate %d B, binary %d B, "
+                        + "binary+gzip %d B%n", stations, json.length, jsonGzip.length, jsonDeflate.length, binary.length,
+                ContentCoding.encode(ContentCoding.GZIP, binary).length);
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        Map<String, WeatherData> map = new LinkedHashMap<>();
+        for (WeatherData station : data) {
+            map.put(station.id, station);
+        }
+        return gson.toJson(map).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Map<String, WeatherData> decodeJson() {
+        return gson.fromJson(new String(json, StandardCharsets.UTF_8), mapType);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return WeatherDataCodec.encode(data);
+    }
+
+    @Benchmark
+    public List<WeatherData> decodeBinary() {
+        return WeatherDataCodec.decode(binary);
+    }
+
+    @Benchmark
+    public byte[] compressGzip() {
+        return ContentCoding.encode(ContentCoding.GZIP, json);
+    }
+
+    @Benchmark
+    public byte[] compressDeflate() {
+        return ContentCoding.encode(ContentCoding.WEATHER_DEFLATE, json);
+    }
+
+    @Benchmark
+    public byte[] decompressGzip() throws IOException {
+        return ContentCoding.decode(ContentCoding.GZIP, jsonGzip, HttpRequest.MAX_BODY_BYTES);
+    }
+
+    @Benchmark
+    public byte[] decompressDeflate() throws IOException {
+        return ContentCoding.decode(ContentCoding.WEATHER_DEFLATE, jsonDeflate, HttpRequest.MAX_BODY_BYTES);
+    }
+}
@@ -0,0 +1,178 @@
+package org.example;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// AggregateIndex holds running aggregates of the weather readings, kept next to weatherStore like StationIndex:
+// for every group of stations (all of them, each state and each time zone) the count, the sum of every field,
+// and every field's values as a sorted multiset, so min and max stay exact when a station's reading is replaced.
+// A PUT subtracts the station's old readings from its groups and adds the new ones, so an aggregate query only
+// reads one entry per group instead of every station. Each group is split into stripes by station id, merged when
+// read, so PUTs of different stations rarely wait on each other even in the group holding every station.
+class AggregateIndex {
+    // The fields aggregated incrementally; other numeric fields are aggregated by scanning (see AggregateQuery)
+    static final String[] FIELDS = {"air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"};
+
+    // The groupings maintained; "all" puts every station in one group
+    static final String[] DIMENSIONS = {"all", "state", "time_zone"};
+
+    private static final int STRIPES = 16;
+
+    private final Map<String, Map<String, Group>> groups = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs an empty index.
+     */
+    AggregateIndex() {
+        for (String dimension : DIMENSIONS) {
+            groups.put(dimension, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Moves a station's readings from its old groups to its new ones.
+     * Must be called while holding the station's map entry, so updates of one station are not interleaved.
+     *
+     * @param old  The previously stored data, or null for a new station.
+     * @param data The newly stored data, or null if the station was removed.
+     */
+    void update(WeatherData old, WeatherData data) {
+        for (String dimension : DIMENSIONS) {
+            Map<String, Group> dimensionGroups = groups.get(dimension);
+            if (old != null) {
+                Group group = dimensionGroups.get(AggregateQuery.groupKey(old, dimension));
+                if (group != null) {
+                    group.remove(old.id, values(old));
+                }
+            }
+            if (data != null) {
+                dimensionGroups.computeIfAbsent(AggregateQuery.groupKey(data, dimension), key -> new Group())
+                        .add(data.id, values(data));
+            }
+        }
+    }
+
+    /**
+     * Tells whether a grouping and a field are maintained by the index.
+     *
+     * @param dimension The grouping, e.g. state.
+     * @param field     The field, e.g. air_temp.
+     * @return true if {@link #aggregate} can answer for them.
+     */
+    static boolean maintains(String dimension, String field) {
+        return indexOf(DIMENSIONS, dimension) >= 0 && indexOf(FIELDS, field) >= 0;
+    }
+
+    /**
+     * Reads the aggregates of every group of a grouping.
+     *
+     * @param dimension A maintained grouping.
+     * @param fields    Maintained fields, in the order of the returned statistics.
+     * @return The statistics of every non-empty group, by group key.
+     */
+    Map<String, AggregateQuery.Stats> aggregate(String dimension, String[] fields) {
+        int[] columns = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            columns[i] = indexOf(FIELDS, fields[i]);
+        }
+        Map<String, AggregateQuery.Stats> result = new TreeMap<>();
+        for (Map.Entry<String, Group> entry : groups.get(dimension).entrySet()) {
+            AggregateQuery.Stats stats = entry.getValue().read(columns);
+            if (stats.count > 0) {
+                result.put(entry.getKey(), stats);
+            }
+        }
+        return result;
+    }
+
+    private static double[] values(WeatherData data) {
+        double[] values = new double[FIELDS.length];
+        for (int f = 0; f < FIELDS.length; f++) {
+            values[f] = AggregateQuery.value(data, FIELDS[f]);
+        }
+        return values;
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Group class to hold the running aggregates of one group of stations, in stripes by station id
+    private static class Group {
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        Group() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        void add(String id, double[] readings) {
+            stripes[Math.floorMod(id.hashCode(), STRIPES)].add(readings);
+        }
+
+        void remove(String id, double[] readings) {
+            stripes[Math.floorMod(id.hashCode(), STRIPES)].remove(readings);
+        }
+
+        AggregateQuery.Stats read(int[] columns) {
+            AggregateQuery.Stats stats = new AggregateQuery.Stats(columns.length);
+            for (Stripe stripe : stripes) {
+                stripe.readInto(columns, stats);
+            }
+            return stats;
+        }
+    }
+
+    // Stripe class to hold the running aggregates of the stations of a group that fall in one stripe
+    private static class Stripe {
+        private long count;
+        private final double[] sum = new double[FIELDS.length];
+        // Every field's values with the number of stations holding each, so the extremes survive removals
+        @SuppressWarnings("unchecked")
+        private final TreeMap<Double, Integer>[] values = new TreeMap[FIELDS.length];
+
+        Stripe() {
+            for (int f = 0; f < FIELDS.length; f++) {
+                values[f] = new TreeMap<>();
+            }
+        }
+
+        synchronized void add(double[] readings) {
+            count++;
+            for (int f = 0; f < FIELDS.length; f++) {
+                sum[f] += readings[f];
+                values[f].merge(readings[f], 1, Integer::sum);
+            }
+        }
+
+        synchronized void remove(double[] readings) {
+            count--;
+            for (int f = 0; f < FIELDS.length; f++) {
+                // An empty stripe restarts from exactly 0 rather than the rounding error left by the subtractions
+                sum[f] = count == 0 ? 0 : sum[f] - readings[f];
+                values[f].computeIfPresent(readings[f], (value, n) -> n == 1 ? null : n - 1);
+            }
+        }
+
+        synchronized void readInto(int[] columns, AggregateQuery.Stats stats) {
+            if (count == 0) {
+                return;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                double min = values[columns[i]].firstKey();
+                double max = values[columns[i]].lastKey();
+                stats.min[i] = stats.count == 0 ? min : Math.min(stats.min[i], min);
+                stats.max[i] = stats.count == 0 ? max : Math.max(stats.max[i], max);
+                stats.sum[i] += sum[columns[i]];
+            }
+            stats.count += count;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package org.example;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// AggregateQuery class to hold a GET /aggregate?... request and compute it.
+// Supported parameters: field or fields (comma separated numeric fields), by (all, state, time_zone, cloud,
+// wind_dir or name; default all), state (only stations in this state) and scan=true (ignore the maintained aggregates).
+// Queries the AggregateIndex maintains are answered from it; the others scan the stations in parallel on the
+// common fork-join pool.
+class AggregateQuery {
+    static final String[] NUMERIC_FIELDS = {"lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum",
+            "wind_spd_kmh", "wind_spd_kt"};
+    static final String[] GROUP_FIELDS = {"all", "state", "time_zone", "cloud", "wind_dir", "name"};
+
+    // Stations scanned by one fork-join leaf task
+    private static final int SCAN_THRESHOLD = 4096;
+
+    // The group key of stations that have no value for the grouping field
+    static final String NO_GROUP = "(none)";
+
+    String[] fields;
+    String by = "all";
+    String state;
+    boolean scan;
+
+    /**
+     * Parses the query parameters of a GET /aggregate request.
+     *
+     * @param params The decoded query parameters.
+     * @return The query.
+     * @throws IllegalArgumentException If a parameter is missing, unknown or malformed.
+     */
+    static AggregateQuery parse(Map<String, String> params) {
+        AggregateQuery query = new AggregateQuery();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String value = param.getValue();
+            switch (param.getKey()) {
+                case "field":
+                case "fields":
+                    List<String> fields = new ArrayList<>();
+                    for (String field : value.split(",")) {
+                        if (!field.trim().isEmpty()) {
+                            fields.add(checkName(NUMERIC_FIELDS, field.trim()));
+                        }
+                    }
+                    query.fields = fields.toArray(new String[0]);
+                    break;
+                case "by":
+                    query.by = checkName(GROUP_FIELDS, value);
+                    break;
+                case "state":
+                    query.state = value;
+                    break;
+                case "scan":
+                    query.scan = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query parameter " + param.getKey());
+            }
+        }
+        if (query.fields == null || query.fields.length == 0) {
+            throw new IllegalArgumentException("field is required");
+        }
+        return query;
+    }
+
+    /**
+     * Computes the query, from the maintained aggregates when they cover it and otherwise by a parallel scan.
+     *
+     * @param weatherStore The stored stations.
+     * @param index        The aggregates kept next to the store.
+     * @return The aggregates of every group, as {"by":...,"source":"index"|"scan","groups":{key:{"count":n,field:{...}}}}
+     */
+    JsonObject execute(WeatherStore weatherStore, AggregateIndex index) {
+        boolean indexed = !scan && state == null;
+        for (String field : fields) {
+            indexed &= AggregateIndex.maintains(by, field);
+        }
+        Map<String, Stats> groups;
+        if (indexed) {
+            groups = index.aggregate(by, fields);
+        } else {
+            String[] ids = weatherStore.ids().toArray(new String[0]);
+            groups = new TreeMap<>(ForkJoinPool.commonPool().invoke(new ScanTask(weatherStore, ids, 0, ids.length)));
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("by", by);
+        result.addProperty("source", indexed ? "index" : "scan");
+        JsonObject groupsJson = new JsonObject();
+        for (Map.Entry<String, Stats> group : groups.entrySet()) {
+            groupsJson.add(group.getKey(), group.getValue().toJson(fields));
+        }
+        result.add("groups", groupsJson);
+        return result;
+    }
+
+    /**
+     * Reads a numeric field of a station.
+     *
+     * @param data  The station.
+     * @param field One of {@link #NUMERIC_FIELDS}.
+     * @return The field's value.
+     */
+    static double value(WeatherData data, String field) {
+        switch (field) {
+            case "lat":
+                return data.lat;
+            case "lon":
+                return data.lon;
+            case "air_temp":
+                return data.air_temp;
+            case "apparent_t":
+                return data.apparent_t;
+            case "dewpt":
+                return data.dewpt;
+            case "press":
+                return data.press;
+            case "rel_hum":
+                return data.rel_hum;
+            case "wind_spd_kmh":
+                return data.wind_spd_kmh;
+            case "wind_spd_kt":
+                return data.wind_spd_kt;
+            default:
+                throw new IllegalArgumentException("Not a numeric field: " + field);
+        }
+    }
+
+    /**
+     * Returns the group a station belongs to.
+     *
+     * @param data      The station.
+     * @param dimension One of {@link #GROUP_FIELDS}.
+     * @return The group key; {@link #NO_GROUP} if the station has no value for the field.
+     */
+    static String groupKey(WeatherData data, String dimension) {
+        String key;
+        switch (dimension) {
+            case "all":
+                return "all";
+            case "state":
+                key = data.state;
+                break;
+            case "time_zone":
+                key = data.time_zone;
+                break;
+            case "cloud":
+                key = data.cloud;
+                break;
+            case "wind_dir":
+                key = data.wind_dir;
+                break;
+            case "name":
+                key = data.name;
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot group by " + dimension);
+        }
+        return key == null ? NO_GROUP : key;
+    }
+
+    private static String checkName(String[] names, String name) {
+        for (String candidate : names) {
+            if (candidate.equals(name)) {
+                return name;
+            }
+        }
+        throw new IllegalArgumentException("Unknown field " + name);
+    }
+
+    // ScanTask class to aggregate a range of stations, split in halves until a range is small enough to scan
+    private class ScanTask extends RecursiveTask<Map<String, Stats>> {
+        private final WeatherStore weatherStore;
+        private final String[] ids;
+        private final int from;
+        private final int to;
+
+        ScanTask(WeatherStore weatherStore, String[] ids, int from, int to) {
+            this.weatherStore = weatherStore;
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<String, Stats> compute() {
+            if (to - from > SCAN_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(weatherStore, ids, from, middle);
+                left.fork();
+                Map<String, Stats> right = new ScanTask(weatherStore, ids, middle, to).compute();
+                Map<String, Stats> merged = left.join();
+                right.forEach((key, stats) -> merged.merge(key, stats, Stats::merge));
+                return merged;
+            }
+            Map<String, Stats> groups = new HashMap<>();
+            double[] values = new double[fields.length];
+            for (int i = from; i < to; i++) {
+                // A station removed since the ids were listed is skipped
+                WeatherData data = weatherStore.get(ids[i]);
+                if (data == null || (state != null && !state.equals(data.state))) {
+                    continue;
+                }
+                for (int f = 0; f < fields.length; f++) {
+                    values[f] = value(data, fields[f]);
+                }
+                groups.computeIfAbsent(groupKey(data, by), key -> new Stats(fields.length)).add(values);
+            }
+            return groups;
+        }
+    }
+
+    // Stats class to hold the count, min, max and sum of some fields over a group of stations
+    static class Stats {
+        long count;
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+
+        Stats(int fields) {
+            min = new double[fields];
+            max = new double[fields];
+            sum = new double[fields];
+        }
+
+        void add(double[] values) {
+            for (int f = 0; f < values.length; f++) {
+                min[f] = count == 0 ? values[f] : Math.min(min[f], values[f]);
+                max[f] = count == 0 ? values[f] : Math.max(max[f], values[f]);
+                sum[f] += values[f];
+            }
+            count++;
+        }
+
+        Stats merge(Stats other) {
+            for (int f = 0; f < sum.length; f++) {
+                min[f] = Math.min(min[f], other.min[f]);
+                max[f] = Math.max(max[f], other.max[f]);
+                sum[f] += other.sum[f];
+            }
+            count += other.count;
+            return this;
+        }
+
+        JsonObject toJson(String[] fields) {
+            JsonObject json = new JsonObject();
+            json.addProperty("count", count);
+            for (int f = 0; f < fields.length; f++) {
+                JsonObject field = new JsonObject();
+                field.addProperty("min", min[f]);
+                field.addProperty("max", max[f]);
+                // Rounded so the mean of readings with one decimal place does not print as 13.299999999999999
+                field.addProperty("mean", Math.round(sum[f] / count * 1000) / 1000.0);
+                json.add(fields[f], field);
+            }
+            return json;
+        }
+    }
+}
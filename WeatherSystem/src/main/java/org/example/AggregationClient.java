@@ -0,0 +1,364 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+// AggregationClient sends requests to an AggregationServer over a small pool of persistent connections.
+// Given the servers of a cluster, it uses one of them until it cannot be reached, then fails over to the next.
+// Every request accepts compressed responses, which are decompressed before they are returned; request bodies are
+// compressed once the server has listed a coding it accepts (see ContentCoding). A large response can be streamed
+// to the caller instead of being buffered whole.
+class AggregationClient implements Closeable {
+    private final String[] hosts;
+    private final int[] ports;
+    // The server requests are sent to, as an index into hosts and ports
+    private volatile int current;
+    private final LamportClock lamportClock;
+    private final int maxIdleConnections;
+    private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+    // How much of a streamed body the reader left unread is skipped to keep the connection
+    private static final long DRAIN_BYTES = 64 << 10;
+    // The coding the current server accepts for request bodies, or null until it says so
+    private volatile String requestCoding;
+
+    /**
+     * Constructs a new client for the given server.
+     *
+     * @param host               The server host name.
+     * @param port               The server port.
+     * @param lamportClock       The caller's Lamport clock, stamped on every request.
+     * @param maxIdleConnections How many idle connections are kept open for reuse.
+     */
+    AggregationClient(String host, int port, LamportClock lamportClock, int maxIdleConnections) {
+        this(new String[] {host}, new int[] {port}, lamportClock, maxIdleConnections);
+    }
+
+    /**
+     * Constructs a new client for the servers of a cluster, used in the given order.
+     *
+     * @param hosts              The server host names.
+     * @param ports              The server ports, in the same order.
+     * @param lamportClock       The caller's Lamport clock, stamped on every request.
+     * @param maxIdleConnections How many idle connections are kept open for reuse.
+     */
+    AggregationClient(String[] hosts, int[] ports, LamportClock lamportClock, int maxIdleConnections) {
+        this.hosts = hosts;
+        this.ports = ports;
+        this.lamportClock = lamportClock;
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    /**
+     * Creates a client from a server address given on the command line.
+     *
+     * @param serverUrl    The address in the form host:port, optionally prefixed with http://, or several such
+     *                     addresses separated by commas to fail over between the servers of a cluster.
+     * @param lamportClock The caller's Lamport clock.
+     * @return A new client.
+     */
+    static AggregationClient forAddress(String serverUrl, LamportClock lamportClock) {
+        String[] addresses = serverUrl.split(",");
+        String[] hosts = new String[addresses.length];
+        int[] ports = new int[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            String address = addresses[i].trim();
+            address = address.startsWith("http://") ? address.substring(7) : address;
+            int slash = address.indexOf('/');
+            if (slash >= 0) {
+                address = address.substring(0, slash);
+            }
+            int colon = address.lastIndexOf(':');
+            hosts[i] = colon < 0 ? address : address.substring(0, colon);
+            ports[i] = colon < 0 ? 80 : Integer.parseInt(address.substring(colon + 1));
+        }
+        return new AggregationClient(hosts, ports, lamportClock, 4);
+    }
+
+    /**
+     * Returns the server requests are currently sent to.
+     *
+     * @return The address as host:port.
+     */
+    String currentAddress() {
+        int server = current;
+        return hosts[server] + ":" + ports[server];
+    }
+
+    /**
+     * Sends one request and waits for its response.
+     * A pooled connection may have been closed by the server while idle, so a failure on a reused
+     * connection is retried once on a new one. If that fails too, each other server is tried in turn.
+     *
+     * @param request The request to send; its Lamport-Clock header is set here.
+     * @return The server's response.
+     * @throws IOException If the server cannot be reached or the exchange fails.
+     */
+    HttpResponse send(HttpRequest request) throws IOException {
+        List<HttpRequest> requests = new ArrayList<>();
+        requests.add(request);
+        return sendAll(requests).get(0);
+    }
+
+    /**
+     * Sends several requests back to back on one connection and then reads their responses in order.
+     *
+     * @param requests The requests to pipeline.
+     * @return The responses, in the same order as the requests.
+     * @throws IOException If no server can be reached or the exchange fails on every server.
+     */
+    List<HttpResponse> sendAll(List<HttpRequest> requests) throws IOException {
+        Connection connection = idle.pollFirst();
+        if (connection != null) {
+            try {
+                return exchange(connection, requests);
+            } catch (IOException e) {
+                // The server may have closed the idle connection; try again on a fresh one
+            }
+        }
+
+        // Try the current server, then fail over to each of the others in turn
+        IOException failure = null;
+        for (int attempt = 0; attempt < hosts.length; attempt++) {
+            int server = current;
+            try {
+                return exchange(new Connection(hosts[server], ports[server]), requests);
+            } catch (IOException e) {
+                failure = e;
+                failOver(server);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Moves on to the next server after the given one failed, unless another request already did.
+     * The pooled connections to the failed server are closed.
+     *
+     * @param failed The index of the server that could not be reached.
+     */
+    private synchronized void failOver(int failed) {
+        if (hosts.length == 1 || current != failed) {
+            return;
+        }
+        current = (failed + 1) % hosts.length;
+        requestCoding = null;
+        close();
+    }
+
+    /**
+     * Sends one request and hands its response body to the reader as it arrives, instead of buffering it, so a
+     * response of any size can be read in constant memory. The body is framed by its Content-Length or chunked
+     * encoding and decompressed as it is read. Failing over works as for {@link #send}, but only until the response
+     * head has arrived; a failure while the body is read is thrown to the caller, which may have used part of it.
+     *
+     * @param request The request to send; its Lamport-Clock header is set here.
+     * @param reader  Called once with the response head and its body stream.
+     * @throws IOException If no server can be reached, or the exchange or the reader fails.
+     */
+    void stream(HttpRequest request, BodyReader reader) throws IOException {
+        Connection connection = idle.pollFirst();
+        HttpResponse response = null;
+        if (connection != null) {
+            try {
+                response = open(connection, request);
+            } catch (IOException e) {
+                // The server may have closed the idle connection; try again on a fresh one
+            }
+        }
+
+        // Try the current server, then fail over to each of the others in turn
+        IOException failure = null;
+        for (int attempt = 0; response == null && attempt < hosts.length; attempt++) {
+            int server = current;
+            try {
+                connection = new Connection(hosts[server], ports[server]);
+                response = open(connection, request);
+            } catch (IOException e) {
+                failure = e;
+                failOver(server);
+            }
+        }
+        if (response == null) {
+            throw failure;
+        }
+
+        boolean reusable = !response.closesConnection();
+        try {
+            InputStream body = HttpResponse.bodyStream(connection.input, response.headers);
+            String coding = response.headers.remove("Content-Encoding");
+            InputStream decoded;
+            try {
+                decoded = coding == null ? body : ContentCoding.decoder(coding, body);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+            reader.read(response, decoded);
+            // The connection can carry the next request once the body is read to its end. A reader may stop at the
+            // end of its data before a decoder has read the coding's trailer; a short tail is skipped, a long one
+            // (the reader gave up early) is cheaper to drop with the connection.
+            reusable &= decoded.skip(DRAIN_BYTES) < DRAIN_BYTES && decoded.read() < 0 && body.read() < 0;
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        if (reusable && idle.size() < maxIdleConnections) {
+            idle.addFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Sends one request and reads the head of its response.
+     *
+     * @param connection The connection to send it on; closed if the exchange fails.
+     * @param request    The request.
+     * @return The response, with its body left in the connection's stream.
+     * @throws IOException If the exchange fails.
+     */
+    private HttpResponse open(Connection connection, HttpRequest request) throws IOException {
+        try {
+            prepare(request);
+            request.writeTo(connection.output);
+            connection.output.flush();
+            HttpResponse response = HttpResponse.readHead(connection.input);
+            lamportClock.update(response.lamportClock());
+            noteAccepted(response);
+            return response;
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Stamps a request with the Lamport clock and the codings this client decodes, and compresses its body if the
+     * server accepts a coding.
+     *
+     * @param request The request, changed in place.
+     */
+    private void prepare(HttpRequest request) {
+        request.headers.put("Lamport-Clock", String.valueOf(lamportClock.increment()));
+        if (!request.headers.containsKey("Accept-Encoding")) {
+            request.headers.put("Accept-Encoding", ContentCoding.SUPPORTED);
+        }
+        ContentCoding.compress(requestCoding, request);
+    }
+
+    private List<HttpResponse> exchange(Connection connection, List<HttpRequest> requests) throws IOException {
+        List<HttpResponse> responses = new ArrayList<>(requests.size());
+        boolean reusable = true;
+        try {
+            // Increment the Lamport clock for each request and send them all before reading
+            for (HttpRequest request : requests) {
+                prepare(request);
+                request.writeTo(connection.output);
+            }
+            connection.output.flush();
+
+            for (int i = 0; i < requests.size(); i++) {
+                HttpResponse response = HttpResponse.read(connection.input);
+                lamportClock.update(response.lamportClock());
+                decompress(response);
+                responses.add(response);
+                if (response.closesConnection()) {
+                    reusable = false;
+                    if (i < requests.size() - 1) {
+                        throw new IOException("Server closed the connection after " + (i + 1) + " responses");
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+
+        // Keep the connection for the next request if the pool has room
+        if (reusable && idle.size() < maxIdleConnections) {
+            idle.addFirst(connection);
+        } else {
+            connection.close();
+        }
+        return responses;
+    }
+
+    /**
+     * Decompresses a response body sent with a Content-Encoding, and notes which coding the server accepts for
+     * request bodies.
+     *
+     * @param response The response, decompressed in place.
+     * @throws IOException If the body is corrupt or in a coding this client does not know.
+     */
+    private void decompress(HttpResponse response) throws IOException {
+        noteAccepted(response);
+        String coding = response.headers.remove("Content-Encoding");
+        if (coding != null) {
+            try {
+                response.body = ContentCoding.decode(coding, response.body, Integer.MAX_VALUE - 8);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
+    private void noteAccepted(HttpResponse response) {
+        String accepted = response.headers.get("Accept-Encoding");
+        if (accepted != null) {
+            requestCoding = ContentCoding.negotiate(accepted);
+        }
+    }
+
+    /**
+     * Closes all pooled connections.
+     */
+    @Override
+    public void close() {
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.close();
+        }
+    }
+
+    // BodyReader interface for a caller of stream to consume a response body as it arrives
+    interface BodyReader {
+        /**
+         * Reads a response body.
+         *
+         * @param response The response head; its body field is empty.
+         * @param body     The decompressed body, which ends where the response does.
+         * @throws IOException If the body cannot be read or used.
+         */
+        void read(HttpResponse response, InputStream body) throws IOException;
+    }
+
+    // Connection class to hold one open socket and its buffered streams
+    private static class Connection {
+        final Socket socket;
+        final InputStream input;
+        final OutputStream output;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            input = new BufferedInputStream(socket.getInputStream());
+            output = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more can be done with a broken connection
+            }
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package org.example;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class AggregationServer {
-    // A ConcurrentHashMap storing weather data with string keys and WeatherData values
-    private static Map<String, WeatherData> weatherDataMap = new ConcurrentHashMap<>();
+    // The stored weather data by station id; a ConcurrentHashMap of WeatherData unless --store=columnar
+    private static WeatherStore weatherStore = new MapWeatherStore();
 
     // The port number the server listens on
     private static int port = 4567;
@@ -19,28 +26,92 @@ public class AggregationServer {
     // A LamportClock instance for generating Lamport timestamps
     private static LamportClock lamportClock = new LamportClock();
 
+    // The pre-serialized GET body, kept in step with weatherStore
+    private static final SnapshotCache snapshotCache = new SnapshotCache();
+
+    // Secondary indexes for filtered GET queries, kept in step with weatherStore
+    private static final StationIndex stationIndex = new StationIndex();
+
+    // The stations' positions for GET /weather/near, kept in step with weatherStore
+    private static final SpatialIndex spatialIndex = new SpatialIndex();
+
+    // Running count/min/max/sum of the readings by state and time zone, kept in step with weatherStore
+    private static final AggregateIndex aggregateIndex = new AggregateIndex();
+
+    // Recent changes of the stations, fanned out to GET /changes and GET /events subscribers
+    private static ChangeLog changeLog = ChangeLog.create(new ServerConfig(), lamportClock);
+
+    // Recent readings of every station for GET /weather/{id}/history, or null when history is disabled
+    private static HistoryStore history = HistoryStore.create(new ServerConfig());
+
+    // Request counters, latency histograms and gauges, served on GET /metrics
+    static final ServerMetrics metrics = new ServerMetrics(() -> weatherStore.size());
+
+    // The longest a GET /changes long poll waits
+    private static final long MAX_POLL_SECONDS = 120;
+
+    // How often the expiry timer runs, and so how late past its TTL a station may be removed
+    private static final long EXPIRY_TICK_MILLIS = 1000;
+
+    // The write-ahead log of accepted PUTs, or null when persistence is disabled
+    private static WriteAheadLog writeAheadLog;
+    private static ScheduledExecutorService checkpointTimer;
+
+    // Decides when stations from silent content servers are dropped, or null when nothing expires
+    private static ExpiryTracker expiryTracker;
+    private static ScheduledExecutorService expiryTimer;
+
+    // Sends accepted writes to the other servers of the cluster, or null when the server runs alone
+    private static Replicator replicator;
+
+    // Routes requests to the node owning each station when the server is one shard of several, or null
+    private static ShardManager shards;
+
+    // Rate limits and the bounded queue that PUTs pass before they are handled, or null when PUTs are not limited
+    private static IngestLimiter ingestLimiter;
 
     /**
      * The entry point of the application.
      * This method starts a server that listens on a specified port and handles client connections.
      *
-     * @param args Command-line arguments, which can be used to specify the server port
+     * @param args Command-line arguments: an optional port, followed by optional --name=value engine settings
      */
     public static void main(String[] args) {
-        // Check command-line arguments and set the server port if provided
-        if (args.length > 0) {
-            port = Integer.parseInt(args[0]);
-        }
+        // Parse the port and engine settings from the command-line arguments
+        ServerConfig config = ServerConfig.fromArgs(args);
+        port = config.port;
+        weatherStore = WeatherStore.create(config.store);
+        history = HistoryStore.create(config);
+
+        try {
+            // Restore the data stored before the last shutdown or crash
+            startPersistence(config);
 
-        try (
-            // Create a server socket and start listening on the specified port
-            ServerSocket serverSocket = new ServerSocket(port)
-        ) {
-            System.out.println("Server is running on port " + port);
-            // Infinite loop to accept client connections
-            while (true) {
-                // When a client connection is accepted, create a ClientHandler object and start it to handle the connection
-                new ClientHandler(serverSocket.accept()).start();
+            // Drop stations whose content server goes silent, including those just recovered
+            startExpiry(config);
+
+            // Log changes from here on; recovered stations are not replayed to subscribers as changes
+            changeLog = ChangeLog.create(config, lamportClock);
+
+            // Throttle content servers that send too fast, and shed PUTs beyond what the server can queue
+            startIngestLimits(config);
+
+            // Send accepted writes to the other servers, and every stored station to each of them once
+            replicator = Replicator.create(config, weatherStore, lamportClock);
+            shards = ShardManager.create(config, weatherStore, lamportClock);
+
+            // Start the selected connection engine; its threads keep the server running
+            ConnectionEngine engine = ConnectionEngine.create(config);
+            engine.start();
+            System.out.println("Server is running on port " + engine.getPort() + " with the " + config.engine + " engine");
+            if (replicator != null) {
+                System.out.println("Replicating to " + String.join(", ", config.peers) + " with a write quorum of "
+                        + config.writeQuorum);
+            }
+            if (shards != null) {
+                // Once this node can answer, agree on the ring with the other nodes
+                shards.join();
+                System.out.println("Shard " + shards.self + " of " + String.join(", ", shards.ring().nodes));
             }
         } catch (IOException e) {
             // Handle IO exception
@@ -48,11 +119,313 @@ public class AggregationServer {
         }
     }
 
+    /**
+     * Sets up the ingest limits that PUTs pass before they are handled.
+     *
+     * @param config The server configuration.
+     * @throws IllegalArgumentException If a limit is negative.
+     */
+    static void startIngestLimits(ServerConfig config) {
+        IngestLimiter limiter = IngestLimiter.create(config);
+        if (limiter != null) {
+            metrics.watchIngestQueue(limiter::waiting);
+        }
+        ingestLimiter = limiter;
+    }
+
+    /**
+     * Recovers the stored weather data from the data directory and starts the write-ahead log.
+     * A compacted snapshot is written every checkpoint interval, and the log is closed on shutdown.
+     *
+     * @param config The server configuration.
+     * @throws IOException If the data directory cannot be read or the log cannot be opened.
+     */
+    static void startPersistence(ServerConfig config) throws IOException {
+        if (!config.wal) {
+            return;
+        }
+        WriteAheadLog log = new WriteAheadLog(Paths.get(config.dataDir));
+        long start = System.nanoTime();
+        int replayed = log.recover(AggregationServer::restoreSnapshot, AggregationServer::replayLogRecord);
+        System.out.printf("Recovered %d stations (%d log records) from %s in %d ms%n", weatherStore.size(),
+                replayed, config.dataDir, (System.nanoTime() - start) / 1_000_000);
+        log.start();
+        writeAheadLog = log;
 
-        static class ClientHandler extends Thread {
+        checkpointTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointTimer.scheduleWithFixedDelay(() -> {
+            try {
+                log.checkpoint(AggregationServer::checkpointSnapshot);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, config.checkpointSeconds, config.checkpointSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(AggregationServer::stopPersistence));
+    }
+
+    /**
+     * Stops checkpointing and closes the write-ahead log once the records already queued are on disk.
+     */
+    static void stopPersistence() {
+        if (checkpointTimer != null) {
+            checkpointTimer.shutdownNow();
+            checkpointTimer = null;
+        }
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+            writeAheadLog = null;
+        }
+    }
+
+    /**
+     * Starts tracking when each content server and station was last heard from, and a timer that removes
+     * the stations that expire. Stations already stored, e.g. recovered from disk, expire unless they are sent again.
+     *
+     * @param config The server configuration.
+     */
+    static void startExpiry(ServerConfig config) {
+        if (config.sourceTtlSeconds <= 0 && config.stationTtlSeconds <= 0 && config.maxStations <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        ExpiryTracker tracker = new ExpiryTracker(config.sourceTtlSeconds * 1000L, config.stationTtlSeconds * 1000L,
+                config.maxStations, EXPIRY_TICK_MILLIS, now);
+        expiryTracker = tracker;
+        for (String id : weatherStore.ids()) {
+            trackStation("recovered", id);
+        }
+
+        expiryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryTimer.scheduleAtFixedRate(() -> {
+            for (String id : tracker.expire(System.currentTimeMillis())) {
+                removeStation(id);
+            }
+        }, EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops expiring stations; stations stored from then on are kept until they are replaced.
+     */
+    static void stopExpiry() {
+        if (expiryTimer != null) {
+            expiryTimer.shutdownNow();
+            expiryTimer = null;
+        }
+        expiryTracker = null;
+    }
+
+    /**
+     * Builds the snapshot written by a checkpoint: one put record per stored station, a line each, carrying the
+     * version of the write that stored it (see {@link #putRecord}). A delayed older PUT arriving after a restart is
+     * then still rejected.
+     *
+     * @return The snapshot as UTF-8 bytes.
+     */
+    static byte[] checkpointSnapshot() {
+        StringBuilder snapshot = new StringBuilder();
+        for (String id : weatherStore.ids()) {
+            WeatherData data = weatherStore.get(id);
+            if (data != null) {
+                snapshot.append(putRecord(data, gson.toJson(data))).append('\n');
+            }
+        }
+        return snapshot.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Loads the stations held by a snapshot file.
+     * A snapshot written before records were versioned is a single JSON map from station id to weather data, as
+     * served by GET; its stations are restored at version 0.
+     *
+     * @param snapshot The snapshot: one put record per line (see {@link #checkpointSnapshot}).
+     */
+    private static void restoreSnapshot(String snapshot) {
+        for (String line : snapshot.split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            JsonObject object = JsonParser.parseString(line).getAsJsonObject();
+            if (object.has("put") && object.has("lamport")) {
+                applyRecord(object);
+            } else {
+                Map<String, WeatherData> stations = gson.fromJson(object, new TypeToken<Map<String, WeatherData>>() {}.getType());
+                for (WeatherData data : stations.values()) {
+                    storeWeatherData(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies one record of the write-ahead log.
+     *
+     * Records are versioned, so a record logged after a newer write of the same station is skipped again.
+     *
+     * @param record A record of the form {"put":{...weather data...},"lamport":7,"origin":"..."} or {"del":"station id"}
+     */
+    private static void replayLogRecord(String record) {
+        applyRecord(JsonParser.parseString(record).getAsJsonObject());
+    }
+
+    /**
+     * Applies one parsed write-ahead log or snapshot record.
+     *
+     * @param object The record, as described for {@link #replayLogRecord}.
+     */
+    private static void applyRecord(JsonObject object) {
+        if (object.has("put")) {
+            WeatherData data = gson.fromJson(object.get("put"), WeatherData.class);
+            if (object.has("lamport")) {
+                data.lamport = object.get("lamport").getAsLong();
+                data.origin = object.get("origin").getAsString();
+            }
+            storeWeatherData(data);
+
+            // Keep the server's clock ahead of every write it has stored
+            lamportClock.update(data.lamport);
+        } else if (object.has("del")) {
+            removeStation(object.get("del").getAsString());
+        }
+    }
+
+    /**
+     * Handles one client request and builds the response.
+     * 1. Extracts "Lamport-Clock" and updates the server's Lamport clock.
+     * 2. Calls the appropriate handler method based on the request type (GET or PUT); GET /metrics returns the
+     *    server's metrics, GET /aggregate aggregates of the readings, GET /weather/near the stations nearest a
+     *    point, GET /weather/{id}/history a station's past readings, and GET /changes and GET /events subscribe to changes instead of returning the current data.
+     *    PUT /replicate carries writes from the other servers of a cluster.
+     *    On a sharded server, requests for stations owned by other nodes are first routed by the {@link ShardManager}.
+     * 3. Advances the clock for the response and returns that time in the response headers.
+     * Each time is taken atomically from the clock, so a response never carries another request's time.
+     *
+     * @param request The parsed client request.
+     * @return The response to send back to the client.
+     */
+    static HttpResponse handleRequest(HttpRequest request) {
+        long start = System.nanoTime();
+        ServerMetrics.RequestEvent event = metrics.requestStarted();
+        HttpResponse response;
+        try {
+            // Update the server's Lamport clock
+            request.receivedClock = lamportClock.update(request.lamportClock());
+
+            ShardManager sharding = shards;
+            HttpResponse routed = decodeBody(request);
+            if (routed == null && sharding != null) {
+                routed = sharding.route(request);
+            }
+            response = routed != null ? routed : dispatch(request);
+        } catch (IllegalArgumentException | JsonSyntaxException e) {
+            // A malformed Lamport-Clock header, query parameter or JSON body
+            response = new HttpResponse(400, "Bad Request");
+        } catch (RuntimeException e) {
+            // A bug in a handler still gets an answer, so the connection is neither dropped nor left waiting
+            e.printStackTrace();
+            response = new HttpResponse(500, "Internal Server Error");
+        }
+
+        // Compress the body if the client accepts it, and tell clients which codings their bodies may use
+        ContentCoding.compress(request, response);
+        response.headers.put("Accept-Encoding", ContentCoding.SUPPORTED);
+
+        // Return the time of the response event in the response
+        response.headers.put("Lamport-Clock", String.valueOf(lamportClock.increment()));
+        ShardManager sharding = shards;
+        if (sharding != null) {
+            // Lets clients routing by the ring notice that it changed
+            response.headers.put(ShardManager.VERSION_HEADER, String.valueOf(sharding.ring().version));
+        }
+        if (!request.keepAlive()) {
+            response.headers.put("Connection", "close");
+        }
+        metrics.requestFinished(event, request, response, System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Decompresses a request body sent with a Content-Encoding, so handlers and other nodes see it as it was written.
+     *
+     * @param request The request.
+     * @return null if the body is ready to be handled; otherwise 415 Unsupported Media Type for a coding this server
+     *         does not know, or 400 Bad Request for a corrupt body or one inflating beyond the largest body accepted.
+     */
+    static HttpResponse decodeBody(HttpRequest request) {
+        String coding = request.headers.get("Content-Encoding");
+        if (coding == null) {
+            return null;
+        }
+        if (!ContentCoding.isSupported(coding)) {
+            return new HttpResponse(415, "Unsupported Media Type");
+        }
+        try {
+            request.body = ContentCoding.decode(coding, request.body, HttpRequest.MAX_BODY_BYTES);
+        } catch (IOException e) {
+            return new HttpResponse(400, "Bad Request");
+        }
+        request.headers.remove("Content-Encoding");
+        return null;
+    }
+
+    /**
+     * Calls the handler for a request that this server answers by itself.
+     *
+     * @param request The request, whose Lamport clock has been applied.
+     * @return The handler's response.
+     * @throws IllegalArgumentException If a query parameter is unknown or malformed.
+     * @throws JsonSyntaxException      If a JSON body is malformed.
+     */
+    static HttpResponse dispatch(HttpRequest request) {
+        HttpResponse response;
+        // Call the appropriate handler method based on the request type
+        if (request.method.equals("GET") && request.route().equals("/metrics")) {
+            response = new HttpResponse(200, "OK");
+            response.headers.put("Content-Type", "text/plain; version=0.0.4");
+            response.body = metrics.render().getBytes(StandardCharsets.UTF_8);
+        } else if (request.method.equals("GET") && request.route().equals("/aggregate")) {
+            JsonObject result = AggregateQuery.parse(request.queryParameters()).execute(weatherStore, aggregateIndex);
+            response = new HttpResponse(200, "OK", gson.toJson(result));
+        } else if (request.method.equals("GET") && request.route().equals("/weather/near")) {
+            JsonObject result = NearQuery.parse(request.queryParameters()).execute(weatherStore, spatialIndex, gson);
+            response = new HttpResponse(200, "OK", gson.toJson(result));
+        } else if (request.method.equals("GET") && request.route().equals("/changes")) {
+            response = handleSubscribe(request, false);
+        } else if (request.method.equals("GET") && request.route().equals("/events")) {
+            response = handleSubscribe(request, true);
+        } else if (request.method.equals("GET") && isHistoryRoute(request.route())) {
+            response = handleHistory(request);
+        } else if (request.route().equals("/shards")) {
+            // Only a sharded server has a ring, see ShardManager
+            response = new HttpResponse(404, "Not Found", "{}");
+        } else if (request.method.equals("GET")) {
+            response = handleGet(request);
+        } else if (request.method.equals("PUT") && request.route().equals("/replicate")) {
+            response = handleReplicate(request);
+        } else if (request.method.equals("PUT")) {
+            response = admitPut(request);
+        } else {
+            response = new HttpResponse(400, "Bad Request");
+        }
+        return response;
+    }
+
+    static class ClientHandler implements Runnable {
         private Socket socket;
-        private BufferedReader input;
-        private PrintWriter output;
+        private InputStream input;
+        private OutputStream output;
+        private final RequestParser parser = new RequestParser();
+        // Tells whether other connections are waiting for this handler's thread
+        private final java.util.function.BooleanSupplier othersWaiting;
+        // Set while the handler waits for a new request with nothing of it read yet
+        private volatile boolean idle;
 
         /**
          * Constructs a new ClientHandler with the specified client socket.
@@ -60,58 +433,127 @@ public class AggregationServer {
          * @param socket The client's socket connection.
          */
         public ClientHandler(Socket socket) {
+            this(socket, () -> false);
+        }
+
+        /**
+         * Constructs a ClientHandler on a bounded pool, which gives up its thread to waiting connections.
+         *
+         * @param socket        The client's socket connection.
+         * @param othersWaiting Tells whether connections are waiting for a thread; while they are, each response
+         *                      closes the connection after it.
+         */
+        ClientHandler(Socket socket, java.util.function.BooleanSupplier othersWaiting) {
             this.socket = socket;
+            this.othersWaiting = othersWaiting;
+        }
+
+        /**
+         * Closes the connection if it is between requests, freeing its thread for a waiting connection.
+         * A client sending its next request at that moment sees the connection closed, as after the idle timeout.
+         *
+         * @return true if the connection was closed.
+         */
+        boolean closeIfIdle() {
+            if (!idle) {
+                return false;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return true;
         }
 
         /**
          * Main method for handling client requests.
          * 1. Initializes input and output streams.
-         * 2. Reads and parses the client request, extracts "Lamport-Clock", and updates the server's Lamport clock.
-         * 3. Calls the appropriate handler method based on the request type (GET or PUT).
-         * 4. Returns the server's Lamport clock to the client.
+         * 2. Reads requests one after another and passes each to handleRequest, until the client closes
+         *    the connection or asks for it to be closed.
+         * 3. Sends each response, which carries the server's Lamport clock, back to the client.
+         * Pipelined requests are answered in order, and the output is only flushed once no further
+         * request is already waiting in the input buffer.
          */
         public void run() {
+            metrics.connectionOpened();
             try {
-                // Initialize input and output streams
-                input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                output = new PrintWriter(socket.getOutputStream(), true);
+                // Initialize input and output streams; the parser buffers the input itself
+                input = socket.getInputStream();
+                output = new BufferedOutputStream(socket.getOutputStream());
 
-                // Read the request line from the client
-                String request = input.readLine();
-
-                // If the request is null, the client may have disconnected
-                if (request == null) {
-                    return;
-                }
-
-                // Read and parse HTTP headers to find "Lamport-Clock"
-                String line;
-                int clientClock = 0;
-                while (!(line = input.readLine()).isEmpty()) {
-                    if (line.startsWith("Lamport-Clock:")) {
-                        clientClock = Integer.parseInt(line.split(":")[1].trim());
+                while (true) {
+                    // Read the next request from the client
+                    HttpRequest request;
+                    idle = parser.buffered() == 0;
+                    if (idle && othersWaiting.getAsBoolean()) {
+                        // A connection accepted while this one was busy finds no idle handler to close, so give
+                        // up the thread here
+                        break;
+                    }
+                    try {
+                        request = parser.read(input);
+                    } catch (SocketTimeoutException e) {
+                        // The connection was idle for too long
+                        break;
+                    } catch (IOException e) {
+                        if (socket.isClosed()) {
+                            // Closed by closeIfIdle to free this thread
+                            break;
+                        }
+                        // The request could not be framed, so the rest of the stream cannot be trusted
+                        metrics.parseFailed();
+                        HttpResponse error = new HttpResponse(400, "Bad Request");
+                        error.headers.put("Connection", "close");
+                        error.writeTo(output);
+                        output.flush();
+                        break;
                     }
-                }
 
-                // Update the server's Lamport clock
-                lamportClock.update(clientClock);
+                    idle = false;
+                    // If the request is null, the client has closed the connection
+                    if (request == null) {
+                        break;
+                    }
+                    request.remoteAddress = socket.getInetAddress().getHostAddress();
 
-                // Call the appropriate handler method based on the request type
-                if (request.startsWith("GET")) {
-                    handleGet(output);
-                } else if (request.startsWith("PUT")) {
-                    handlePut(input, output);
-                } else {
-                    output.println("HTTP/1.1 400 Bad Request");
+                    HttpResponse response = handleRequest(request);
+                    Subscription subscription = response.subscription;
+                    if (subscription != null && !subscription.streaming) {
+                        // A long poll: this connection's thread waits for the changes
+                        try {
+                            subscription.awaitReady();
+                        } catch (InterruptedException e) {
+                            subscription.cancel();
+                            break;
+                        }
+                        subscription.complete(response);
+                    }
+                    if (subscription == null && othersWaiting.getAsBoolean()) {
+                        // Hand this thread to a waiting connection; the client reconnects for its next request
+                        response.headers.put("Connection", "close");
+                    }
+                    response.writeTo(output);
+                    if (subscription != null && subscription.streaming) {
+                        // An event stream keeps the connection until it ends or the client goes away
+                        output.flush();
+                        subscription.stream(output);
+                        break;
+                    }
+                    if (response.closesConnection()) {
+                        break;
+                    }
+                    if (parser.buffered() == 0 && input.available() == 0) {
+                        output.flush();  // Ensure data is sent to the client
+                    }
                 }
-
-                // Return the server's Lamport clock in the response
-                output.println("Lamport-Clock: " + lamportClock.getClock());
-                output.flush();  // Ensure data is sent to the client
+                output.flush();
             } catch (IOException e) {
                 System.out.println("Client disconnected");
             } finally {
                 // Close the socket connection
+                metrics.connectionClosed();
+                parser.release();
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -119,57 +561,578 @@ public class AggregationServer {
                 }
             }
         }
+    }
 
-        /**
-         * Handles GET requests.
-         *
-         * @param output The output stream to send responses to the client.
-         * @throws IOException If an I/O error occurs.
-         */
-        private void handleGet(PrintWriter output) throws IOException {
-            // Send a successful response header
-            output.println("HTTP/1.1 200 OK");
-            output.println("Content-Type: application/json");
-            output.println();
+    /**
+     * Handles GET requests.
+     * The body is the cached snapshot, shared by all readers until the next change. A client that sends
+     * the snapshot's ETag in If-None-Match gets 304 Not Modified without a body.
+     * A client listing application/x-weather-binary in Accept gets the stations in that form (see
+     * {@link WeatherDataCodec}), and one accepting a content coding gets the body compressed. Each representation
+     * is built once per snapshot and has its own ETag.
+     *
+     * @param request The GET request.
+     * @return The response holding all stored weather data.
+     */
+    private static HttpResponse handleGet(HttpRequest request) {
+        // Requests with query parameters are answered from the indexes instead of the snapshot
+        StationQuery query = StationQuery.parse(request.queryParameters());
+        if (query != null) {
+            return handleQuery(query);
+        }
 
+        SnapshotCache.Snapshot snapshot = snapshotCache.get();
+        String contentType = "application/json";
+        String variant = "";
+        byte[] body = snapshot.body;
+        if (WeatherDataCodec.isAccepted(request)) {
+            contentType = WeatherDataCodec.MEDIA_TYPE;
+            variant = "binary";
+            body = snapshot.variant(variant, AggregationServer::encodeStations);
+        }
+        String coding = body.length < ContentCoding.MIN_BYTES ? null
+                : ContentCoding.negotiate(request.headers.get("Accept-Encoding"));
+        if (coding != null) {
+            byte[] plain = body;
+            variant += "+" + coding;
+            body = snapshot.variant(variant, () -> ContentCoding.encode(coding, plain));
+        }
+
+        String etag = snapshot.etag(variant);
+        HttpResponse response;
+        if (etag.equals(request.headers.get("If-None-Match"))) {
+            response = new HttpResponse(304, "Not Modified");
+        } else {
             // Send stored weather data, or an empty JSON object if none exists
-            if (!weatherDataMap.isEmpty()) {
-                output.println(gson.toJson(weatherDataMap));
-            } else {
-                output.println("{}");
+            response = new HttpResponse(200, "OK");
+            response.headers.put("Content-Type", contentType);
+            response.body = body;
+            if (coding != null) {
+                response.headers.put("Content-Encoding", coding);
             }
+        }
+        response.headers.put("ETag", etag);
+        response.headers.put("Vary", "Accept, Accept-Encoding");
+        return response;
+    }
 
-            // Increment the Lamport clock
-            lamportClock.increment();
+    /**
+     * Encodes every stored station in the binary form, for a snapshot's binary representation.
+     * The stations are read after the snapshot was built, so they may include changes made since; they are never
+     * older than the snapshot.
+     *
+     * @return The binary message.
+     */
+    private static byte[] encodeStations() {
+        List<WeatherData> stations = new ArrayList<>(weatherStore.size());
+        for (String id : weatherStore.ids()) {
+            WeatherData data = weatherStore.get(id);
+            if (data != null) {
+                stations.add(data);
+            }
         }
+        return WeatherDataCodec.encode(stations);
+    }
 
-        /**
-         * Handles PUT requests.
-         *
-         * @param input  The input stream to read data from the client.
-         * @param output The output stream to send responses to the client.
-         * @throws IOException If an I/O error occurs.
-         */
-        private void handlePut(BufferedReader input, PrintWriter output) throws IOException {
-            // Read the request body data
-            StringBuilder body = new StringBuilder();
-            String line;
-            while ((line = input.readLine()) != null && !line.isEmpty()) {
-                body.append(line);
-            }
-
-            // Parse JSON data and store it in the map
-            WeatherData newData = gson.fromJson(body.toString(), WeatherData.class);
-            if (newData != null && newData.id != null) {
-                weatherDataMap.put(newData.id, newData);
-                output.println("HTTP/1.1 200 OK");
+    /**
+     * Handles GET requests with query parameters, such as ?id=IDS60901 or ?state=SA&limit=100.
+     * The next page's cursor, if any, is returned in the Next-Cursor header.
+     *
+     * @param query The parsed query.
+     * @return The response holding the matching stations.
+     */
+    private static HttpResponse handleQuery(StationQuery query) {
+        StationQuery.Result result = query.execute(weatherStore, stationIndex, gson);
+        HttpResponse response;
+        if (query.ids != null && query.ids.size() == 1 && result.stations.size() == 0) {
+            // A single requested station that does not exist
+            response = new HttpResponse(404, "Not Found", "{}");
+        } else {
+            response = new HttpResponse(200, "OK", result.json);
+        }
+        if (result.nextCursor != null) {
+            response.headers.put("Next-Cursor", result.nextCursor);
+        }
+        return response;
+    }
+
+    /**
+     * Handles GET /changes (a long poll) and GET /events (a Server-Sent Events stream).
+     * Parameters: since (a clock returned by an earlier poll or event; default now; for a stream also the
+     * Last-Event-ID header), id or ids (comma separated), state, and for a long poll timeout (seconds, default 30).
+     * The returned response carries a {@link Subscription}; the connection engine fills in the long poll's body
+     * once changes arrive or the timeout passes, and writes a stream's events as they arrive.
+     *
+     * @param request   The GET request.
+     * @param streaming true for GET /events.
+     * @return The response to complete.
+     */
+    private static HttpResponse handleSubscribe(HttpRequest request, boolean streaming) {
+        long since = -1;
+        long timeoutSeconds = 30;
+        Set<String> ids = null;
+        String state = null;
+        if (streaming && request.headers.containsKey("Last-Event-ID")) {
+            since = Long.parseLong(request.headers.get("Last-Event-ID").trim());
+        }
+        for (Map.Entry<String, String> param : request.queryParameters().entrySet()) {
+            switch (param.getKey()) {
+                case "since":
+                    since = Long.parseLong(param.getValue());
+                    break;
+                case "id":
+                case "ids":
+                    ids = new HashSet<>(Arrays.asList(param.getValue().split(",")));
+                    break;
+                case "state":
+                    state = param.getValue();
+                    break;
+                case "timeout":
+                    timeoutSeconds = Math.min(Long.parseLong(param.getValue()), MAX_POLL_SECONDS);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query parameter " + param.getKey());
+            }
+        }
+
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.subscription = changeLog.subscribe(since, ids, state, streaming, timeoutSeconds * 1000);
+        if (streaming) {
+            response.headers.put("Content-Type", "text/event-stream");
+            response.headers.put("Cache-Control", "no-cache");
+            // The stream's body ends with the connection
+            response.headers.put("Connection", "close");
+        }
+        return response;
+    }
+
+    static boolean isHistoryRoute(String route) {
+        // At least "/weather/" and "/history" without overlapping
+        return route.length() >= "/weather//history".length() && route.startsWith("/weather/") && route.endsWith("/history");
+    }
+
+    /**
+     * Decodes the station id of a history route.
+     *
+     * @param route A route for which {@link #isHistoryRoute} holds, e.g. /weather/IDS60901/history
+     * @return The station id.
+     */
+    static String historyStationId(String route) {
+        return URLDecoder.decode(route.substring("/weather/".length(), route.length() - "/history".length()),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Handles GET /weather/{id}/history, the past readings of one station (see {@link HistoryStore#query}).
+     *
+     * @param request The GET request, e.g. /weather/IDS60901/history?from=2024-09-01T00:00:00Z&step=1h
+     * @return The history as JSON, or 404 if the station has none.
+     */
+    private static HttpResponse handleHistory(HttpRequest request) {
+        String id = historyStationId(request.route());
+        HistoryStore store = history;
+        JsonObject result = store == null ? null : store.query(id, request.queryParameters(), System.currentTimeMillis());
+        if (result == null) {
+            return new HttpResponse(404, "Not Found", "{}");
+        }
+        return new HttpResponse(200, "OK", gson.toJson(result));
+    }
+
+    /**
+     * Handles PUT /replicate, a batch of writes another server of the cluster accepted or holds.
+     * The body has one write-ahead log record per line (see {@link #putRecord}); each is applied like a replayed
+     * record, keeping its Lamport time and origin, and is not sent on to other servers. Writes already stored, or
+     * superseded by a later one, are skipped. The response carries this server's Instance-Id, so the sender
+     * notices a restart.
+     *
+     * @param request The PUT request from a peer.
+     * @return 200 once every applied write is durable.
+     */
+    private static HttpResponse handleReplicate(HttpRequest request) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        for (String line : request.bodyText().split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            JsonElement element = JsonParser.parseString(line);
+            JsonObject record = element.isJsonObject() ? element.getAsJsonObject() : null;
+            if (record == null || !record.has("put") || !record.has("lamport") || !record.has("origin")
+                    || !record.get("put").isJsonObject() || !record.get("origin").isJsonPrimitive()) {
+                throw new IllegalArgumentException("Not a replicated write: " + line);
+            }
+            WeatherData data = gson.fromJson(record.get("put"), WeatherData.class);
+            if (data.id == null) {
+                throw new IllegalArgumentException("Replicated write without an id: " + line);
+            }
+            data.lamport = record.get("lamport").getAsLong();
+            data.origin = record.get("origin").getAsString();
+            lamportClock.update(data.lamport);
+
+            // A peer sending every station mostly repeats writes already applied; they are not changes
+            WeatherData current = weatherStore.get(data.id);
+            if (current != null && !current.isOlderThan(data)) {
+                continue;
+            }
+            // The station expires when its content server goes silent, as on the server it was sent to
+            trackStation(data.origin, data.id);
+            String json = storeWeatherData(data, true);
+            if (json != null) {
+                durable.add(logPut(data, json));
+            }
+        }
+
+        try {
+            CompletableFuture.allOf(durable.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            e.printStackTrace();
+            return new HttpResponse(500, "Internal Server Error");
+        }
+        HttpResponse response = new HttpResponse(200, "OK");
+        response.headers.put("Instance-Id", Replicator.INSTANCE_ID);
+        return response;
+    }
+
+    /**
+     * Handles PUT requests.
+     * A body that is a JSON array, or is sent as application/x-ndjson, is a batch of stations
+     * handled by {@link BatchIngest}; any other body is a single station. A body sent as
+     * application/x-weather-binary is decoded by {@link WeatherDataCodec}, and is a batch unless it holds one station.
+     * A station already holding data from a later write, by Lamport time, is left unchanged and the
+     * PUT is answered with 409 Conflict; the response's Lamport clock lets the sender retry as a newer write.
+     * In a cluster with a write quorum, a stored write that not enough servers confirm in time is answered with
+     * 503 Service Unavailable; it is kept, and still reaches the other servers once they can be reached.
+     * A station updated faster than the station rate limit allows is answered with 429 Too Many Requests.
+     *
+     * @param request The request whose body holds the weather data.
+     * @return The response telling the client whether the data was stored.
+     */
+    private static HttpResponse handlePut(HttpRequest request) {
+        HttpResponse response;
+        if (!request.headers.containsKey("Content-Length")) {
+            // The body can only be framed by its length
+            response = new HttpResponse(411, "Length Required");
+        } else if (BatchIngest.isBatch(request)) {
+            response = WeatherDataCodec.isBinary(request.headers.get("Content-Type"))
+                    ? BatchIngest.ingest(request, WeatherDataCodec.decode(request.body), gson)
+                    : BatchIngest.ingest(request, gson);
+        } else {
+            // Parse JSON data and store it in the map; the decoder reads the body bytes directly, and anything
+            // it does not handle is left to Gson. A binary body holds exactly one station here.
+            WeatherData newData = new WeatherData();
+            if (WeatherDataCodec.isBinary(request.headers.get("Content-Type"))) {
+                newData = WeatherDataCodec.decode(request.body).get(0);
+            } else if (!WeatherDataDecoder.local().decode(request.body, 0, request.body.length, newData)) {
+                newData = gson.fromJson(request.bodyText(), WeatherData.class);
+            }
+            long wait = newData != null && newData.id != null ? takeStationToken(newData.id) : 0;
+            if (wait > 0) {
+                response = IngestLimiter.tooManyRequests(wait);
+            } else if (newData != null && newData.id != null) {
+                stampWrite(newData, request);
+                trackStation(request.source(), newData.id);
+                String json = storeWeatherData(newData, true);
+                if (json == null) {
+                    response = new HttpResponse(409, "Conflict");
+                } else {
+                    response = new HttpResponse(200, "OK");
+                    CompletableFuture<Void> replicated = replicate(newData, json);
+
+                    // Acknowledge only once the update is durable; concurrent PUTs share one fsync
+                    try {
+                        logPut(newData, json).join();
+                    } catch (CompletionException e) {
+                        e.printStackTrace();
+                        response = new HttpResponse(500, "Internal Server Error");
+                    }
+                    if (response.status == 200 && !awaitQuorum(List.of(replicated))) {
+                        response = new HttpResponse(503, "Service Unavailable");
+                    }
+                }
             } else {
-                output.println("HTTP/1.1 400 Bad Request");
+                response = new HttpResponse(400, "Bad Request");
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Passes a PUT through the ingest limits, then handles it.
+     * A source over its rate is answered with 429 Too Many Requests, and a PUT that finds too many others
+     * queued, or waits too long for its turn, with 503 Service Unavailable; both carry a Retry-After header.
+     * Replication from other servers bypasses the limits, since those writes were already admitted once.
+     *
+     * @param request The PUT request.
+     * @return The response to the PUT.
+     */
+    private static HttpResponse admitPut(HttpRequest request) {
+        IngestLimiter limiter = ingestLimiter;
+        if (limiter == null) {
+            return handlePut(request);
+        }
+        long wait = limiter.takeSourceToken(request.source());
+        if (wait > 0) {
+            metrics.rejected("source");
+            return IngestLimiter.tooManyRequests(wait);
+        }
+        if (!limiter.enter()) {
+            metrics.rejected("overload");
+            return IngestLimiter.overloaded();
+        }
+        try {
+            return handlePut(request);
+        } finally {
+            limiter.exit();
+        }
+    }
+
+    /**
+     * Takes a token from a station's bucket before the station is updated.
+     *
+     * @param id The station id.
+     * @return 0 if the station may be updated now, or the milliseconds until it may.
+     */
+    static long takeStationToken(String id) {
+        IngestLimiter limiter = ingestLimiter;
+        long wait = limiter == null ? 0 : limiter.takeStationToken(id);
+        if (wait > 0) {
+            metrics.rejected("station");
+        }
+        return wait;
+    }
+
+    /**
+     * Marks a station with the Lamport time and origin of the PUT that carries it.
+     * The time is the sender's Lamport-Clock header; a PUT without one is timed by the server's clock
+     * when it received the PUT, which is later than every write received before it.
+     *
+     * @param data    The station decoded from the request.
+     * @param request The PUT request, whose Lamport-Clock the server has already applied.
+     */
+    static void stampWrite(WeatherData data, HttpRequest request) {
+        long sent = request.lamportClock();
+        data.lamport = sent > 0 ? sent : request.receivedClock;
+        data.origin = request.source();
+    }
+
+    /**
+     * Adds the readings of a station accepted from a PUT to its history. Called while holding the station's map
+     * entry, so a removal of the station cannot leave a history behind for a station that no longer exists.
+     *
+     * @param data The stored station.
+     */
+    private static void recordHistory(WeatherData data) {
+        HistoryStore store = history;
+        if (store != null) {
+            store.record(data, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Appends a stored station to the write-ahead log, with the version of its write.
+     *
+     * @param data The stored station.
+     * @param json The station serialized as JSON, as returned by {@link #storeWeatherData}.
+     * @return A future completed once the record is durable, or at once when persistence is disabled.
+     */
+    static CompletableFuture<Void> logPut(WeatherData data, String json) {
+        WriteAheadLog log = writeAheadLog;
+        if (log == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return log.append(putRecord(data, json));
+    }
+
+    /**
+     * Builds the record of a stored station, as written to the write-ahead log and sent to the other servers.
+     *
+     * @param data The stored station.
+     * @param json The station serialized as JSON.
+     * @return The record, {"put":{...weather data...},"lamport":7,"origin":"..."}
+     */
+    static String putRecord(WeatherData data, String json) {
+        return "{\"put\":" + json + ",\"lamport\":" + data.lamport
+                + ",\"origin\":" + gson.toJson(data.origin == null ? "" : data.origin) + "}";
+    }
+
+    /**
+     * Sends a station accepted from a PUT to the other servers of the cluster.
+     *
+     * @param data The stored station.
+     * @param json The station serialized as JSON, as returned by {@link #storeWeatherData}.
+     * @return A future completed once the write quorum has stored it, or at once without a cluster or a quorum.
+     */
+    static CompletableFuture<Void> replicate(WeatherData data, String json) {
+        Replicator cluster = replicator;
+        if (cluster == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return cluster.replicate(putRecord(data, json));
+    }
+
+    /**
+     * Waits until writes sent with {@link #replicate} have reached the write quorum, at most the quorum timeout.
+     *
+     * @param acks The futures returned by {@link #replicate}.
+     * @return true if every write reached the quorum, or the server runs alone.
+     */
+    static boolean awaitQuorum(List<CompletableFuture<Void>> acks) {
+        Replicator cluster = replicator;
+        return cluster == null || cluster.await(acks);
+    }
+
+    /**
+     * Records that a content server sent a station, so the station expires once that server goes silent.
+     * Stations evicted to stay within the station cap are removed at once.
+     * Called before the station is stored, so an expiry racing with the PUT cannot remove the new data.
+     *
+     * @param source The content server, see {@link HttpRequest#source()}.
+     * @param id     The station id.
+     */
+    static void trackStation(String source, String id) {
+        ExpiryTracker tracker = expiryTracker;
+        if (tracker == null) {
+            return;
+        }
+        for (String evicted : tracker.touch(source, id, System.currentTimeMillis())) {
+            removeStation(evicted);
+        }
+    }
+
+    /**
+     * Removes an expired or evicted station from the map, the GET snapshot, the query and aggregate indexes and
+     * the history, and logs the removal.
+     * A station sent again since it expired is kept.
+     *
+     * @param id The station id.
+     */
+    static void removeStation(String id) {
+        weatherStore.computeIfPresent(id, (key, old) -> {
+            ExpiryTracker tracker = expiryTracker;
+            if (tracker != null && tracker.isTracked(key)) {
+                return old;
+            }
+            unindex(key, old);
+            logRemoval(key);
+            return null;
+        });
+        changeLog.publish();
+    }
+
+    /**
+     * Removes a station handed off to the shard that now owns it, once that shard has stored it.
+     * A later write of the station stored here meanwhile is kept, to be handed off in the next pass.
+     *
+     * @param sent The station as it was sent to its new owner.
+     */
+    static void releaseStation(WeatherData sent) {
+        boolean[] removed = new boolean[1];
+        weatherStore.computeIfPresent(sent.id, (key, old) -> {
+            if (sent.isOlderThan(old)) {
+                return old;
             }
+            unindex(key, old);
+            logRemoval(key);
+            removed[0] = true;
+            return null;
+        });
+        changeLog.publish();
+        if (!removed[0]) {
+            return;
+        }
+        ExpiryTracker tracker = expiryTracker;
+        if (tracker != null) {
+            tracker.forget(sent.id);
+        }
+    }
 
-            // Increment the Lamport clock
-            lamportClock.increment();
+    /**
+     * Appends the removal of a station to the write-ahead log. Called while holding the station's map entry, so a
+     * write storing the station again afterwards is logged after the removal, and replay keeps that write.
+     * Appending only queues the record; removals need not wait for the disk, since a lost one only means the
+     * station expires again after a restart.
+     *
+     * @param id The station id.
+     */
+    private static void logRemoval(String id) {
+        WriteAheadLog log = writeAheadLog;
+        if (log != null) {
+            log.append("{\"del\":" + gson.toJson(id) + "}");
         }
     }
 
+    /**
+     * Drops a removed station from the GET snapshot, the query and aggregate indexes and the history, and logs the
+     * removal for subscribers. Called while holding the station's map entry; the caller publishes the removal once
+     * it has released the entry.
+     *
+     * @param id  The station id.
+     * @param old The station's data until now.
+     */
+    private static void unindex(String id, WeatherData old) {
+        snapshotCache.remove(id);
+        stationIndex.update(old, null);
+        spatialIndex.update(old, null);
+        aggregateIndex.update(old, null);
+        changeLog.append(id, old.state, null);
+        HistoryStore store = history;
+        if (store != null) {
+            store.remove(id);
+        }
+    }
+
+    /**
+     * Serializes a station as stored.
+     *
+     * @param data The station.
+     * @return The station as JSON.
+     */
+    static String toJson(WeatherData data) {
+        return gson.toJson(data);
+    }
+
+    /**
+     * Stores weather data for a station, updates the GET snapshot, the query indexes and the running aggregates,
+     * and logs the change for subscribers, to whom it is offered once the map's lock is released.
+     * The station is serialized before taking the map's lock, and the map, snapshot and indexes are updated
+     * together so concurrent PUTs for the same station cannot leave them holding different data.
+     * The write is only applied if it is not older than the stored one (see {@link WeatherData#isOlderThan}),
+     * so the latest write by Lamport time wins whatever order concurrent PUTs are handled in.
+     *
+     * @param data The weather data to store, stamped with the time and origin of its write.
+     * @return The weather data serialized as JSON, or null if a later write was already stored.
+     */
+    static String storeWeatherData(WeatherData data) {
+        return storeWeatherData(data, false);
+    }
+
+    /**
+     * Stores weather data for a station as {@link #storeWeatherData(WeatherData)} does, and adds a write accepted
+     * from a PUT or a peer to the station's history. Writes replayed from disk are not recorded, since the time
+     * they were first accepted is not known.
+     *
+     * @param data     The weather data to store, stamped with the time and origin of its write.
+     * @param accepted Whether the write was just accepted, rather than replayed.
+     * @return The weather data serialized as JSON, or null if a later write was already stored.
+     */
+    static String storeWeatherData(WeatherData data, boolean accepted) {
+        String json = gson.toJson(data);
+        boolean[] applied = new boolean[1];
+        weatherStore.compute(data.id, (id, old) -> {
+            if (old != null && data.isOlderThan(old)) {
+                return old;
+            }
+            snapshotCache.put(id, json);
+            stationIndex.update(old, data);
+            spatialIndex.update(old, data);
+            aggregateIndex.update(old, data);
+            changeLog.append(id, data.state, json);
+            if (accepted) {
+                recordHistory(data);
+            }
+            applied[0] = true;
+            return data;
+        });
+        changeLog.publish();
+        return applied[0] ? json : null;
+    }
 }
@@ -0,0 +1,221 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// BatchIngest handles a PUT carrying many stations, as a JSON array, as NDJSON (one JSON object per line), or in the
+// binary form of WeatherDataCodec.
+// The body is decoded one record at a time with Gson's JsonReader, each record is stored as soon as it is decoded,
+// and all log records are made durable together before the response lists the status of every record.
+// The engines read the whole body before the request is handled, so a batch is one buffered body of at most
+// HttpRequest.MAX_BODY_BYTES (16 MB, after decompression); larger feeds are sent as several batches, as
+// ContentServer --feed does. Decoding record by record saves building a tree of the whole batch, not the buffer.
+// Every record in a batch is a write at the batch's Lamport time, so a later record for the same station wins.
+// In a cluster with a write quorum, the response also waits until enough servers have stored every record.
+// A station updated faster than its rate limit allows is rejected with status 429 for that record only.
+class BatchIngest {
+
+    /**
+     * Tells whether a PUT body is a batch rather than a single station.
+     *
+     * @param request The PUT request.
+     * @return true for application/x-ndjson bodies, bodies that start with a JSON array, and binary bodies
+     *         holding other than one station.
+     */
+    static boolean isBatch(HttpRequest request) {
+        String contentType = request.headers.get("Content-Type");
+        if (WeatherDataCodec.isBinary(contentType)) {
+            return WeatherDataCodec.count(request.body) != 1;
+        }
+        if (contentType != null && contentType.startsWith("application/x-ndjson")) {
+            return true;
+        }
+        for (byte b : request.body) {
+            if (!Character.isWhitespace(b)) {
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decodes and stores every station in a batch.
+     * A record that is not a valid station is rejected on its own; malformed JSON stops the batch, since the
+     * records after it cannot be found. Records stored before that point are kept.
+     *
+     * @param request The PUT request holding the batch.
+     * @param gson    The Gson instance used to decode stations.
+     * @return 200 with a per-record summary, or 400 if the JSON was malformed.
+     */
+    static HttpResponse ingest(HttpRequest request, Gson gson) {
+        Batch batch = new Batch(request);
+        String error = null;
+
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(request.body), StandardCharsets.UTF_8));
+        // Lenient mode accepts the several top-level values of NDJSON
+        reader.setStrictness(Strictness.LENIENT);
+        try {
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
+            }
+            for (int index = 0; array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT; index++) {
+                // Read one record; a record of the wrong shape only rejects that record
+                JsonElement element = JsonParser.parseReader(reader);
+                try {
+                    batch.store(index, gson.fromJson(element, WeatherData.class));
+                } catch (JsonParseException | IllegalArgumentException | IllegalStateException e) {
+                    batch.reject(index, e.getMessage());
+                }
+            }
+            if (array) {
+                reader.endArray();
+            }
+        } catch (IOException | JsonParseException e) {
+            error = "Malformed JSON after " + batch.results.size() + " records: " + e.getMessage();
+        }
+        return batch.respond(error, gson);
+    }
+
+    /**
+     * Stores every station of a batch already decoded from the binary form (see {@link WeatherDataCodec}).
+     *
+     * @param request  The PUT request holding the batch.
+     * @param stations The decoded stations.
+     * @param gson     The Gson instance used to write the summary.
+     * @return 200 with a per-record summary.
+     */
+    static HttpResponse ingest(HttpRequest request, List<WeatherData> stations, Gson gson) {
+        Batch batch = new Batch(request);
+        for (int index = 0; index < stations.size(); index++) {
+            batch.store(index, stations.get(index));
+        }
+        return batch.respond(null, gson);
+    }
+
+    // Batch class to store the records of one batch PUT and collect their statuses for the response
+    private static class Batch {
+        final HttpRequest request;
+        final JsonArray results = new JsonArray();
+        final List<CompletableFuture<Void>> durable = new ArrayList<>();
+        final List<CompletableFuture<Void>> replicated = new ArrayList<>();
+        int accepted;
+        int rejected;
+        // The longest a station over its update rate has to wait, for the response's Retry-After
+        long throttledMillis;
+
+        Batch(HttpRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Stores one record, unless it has no id, its station is over its update rate, or a later write of the
+         * station is already stored.
+         *
+         * @param index The record's position in the batch.
+         * @param data  The decoded record.
+         */
+        void store(int index, WeatherData data) {
+            if (data == null || data.id == null) {
+                reject(index, "missing id");
+                return;
+            }
+            JsonObject result = new JsonObject();
+            result.addProperty("index", index);
+            result.addProperty("id", data.id);
+            try {
+                long wait = AggregationServer.takeStationToken(data.id);
+                String json = null;
+                if (wait == 0) {
+                    AggregationServer.stampWrite(data, request);
+                    AggregationServer.trackStation(request.source(), data.id);
+                    json = AggregationServer.storeWeatherData(data, true);
+                }
+                if (wait > 0) {
+                    // The station is updated faster than its rate limit allows
+                    result.addProperty("status", 429);
+                    result.addProperty("error", "station over its update rate");
+                    throttledMillis = Math.max(throttledMillis, wait);
+                    rejected++;
+                } else if (json == null) {
+                    // A later write of this station is already stored
+                    result.addProperty("status", 409);
+                    result.addProperty("error", "superseded by a later write");
+                    rejected++;
+                } else {
+                    durable.add(AggregationServer.logPut(data, json));
+                    replicated.add(AggregationServer.replicate(data, json));
+                    result.addProperty("status", 200);
+                    accepted++;
+                }
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                result.addProperty("status", 400);
+                result.addProperty("error", e.getMessage());
+                rejected++;
+            }
+            results.add(result);
+        }
+
+        void reject(int index, String error) {
+            JsonObject result = new JsonObject();
+            result.addProperty("index", index);
+            result.addProperty("status", 400);
+            result.addProperty("error", error);
+            results.add(result);
+            rejected++;
+        }
+
+        /**
+         * Waits until every stored record is durable, and on enough servers of a cluster, then sums up the batch.
+         *
+         * @param error Why the batch stopped early, or null if every record was read.
+         * @param gson  The Gson instance used to write the summary.
+         * @return The response listing the status of every record.
+         */
+        HttpResponse respond(String error, Gson gson) {
+            // Acknowledge only once every stored record is durable
+            try {
+                CompletableFuture.allOf(durable.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                e.printStackTrace();
+                return new HttpResponse(500, "Internal Server Error");
+            }
+
+            JsonObject summary = new JsonObject();
+            summary.addProperty("accepted", accepted);
+            summary.addProperty("rejected", rejected);
+            if (error != null) {
+                summary.addProperty("error", error);
+            }
+            summary.add("results", results);
+            if (!AggregationServer.awaitQuorum(replicated)) {
+                // Every record is stored here, but not yet on enough of the other servers
+                summary.addProperty("error", "write quorum not reached");
+                return new HttpResponse(503, "Service Unavailable", gson.toJson(summary));
+            }
+            HttpResponse response = error == null
+                    ? new HttpResponse(200, "OK", gson.toJson(summary))
+                    : new HttpResponse(400, "Bad Request", gson.toJson(summary));
+            if (throttledMillis > 0) {
+                // Tells the sender when the throttled records may be sent again
+                response.headers.put("Retry-After", String.valueOf(IngestLimiter.retryAfterSeconds(throttledMillis)));
+            }
+            return response;
+        }
+    }
+}
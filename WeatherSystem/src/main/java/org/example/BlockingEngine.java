@@ -0,0 +1,157 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// BlockingEngine serves each connection with a blocking ClientHandler on a virtual thread or a bounded pool.
+// On the pool a kept-alive connection holds its thread between requests, so while connections wait for a thread
+// the engine closes one between requests, and each response closes its connection, rather than let the waiting
+// clients sit out the idle timeout.
+class BlockingEngine implements ConnectionEngine {
+    private final ServerConfig config;
+    private final Semaphore connectionPermits;
+    // The pool's handlers that hold a thread, and the connections accepted but not yet running
+    private final Set<AggregationServer.ClientHandler> active = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    /**
+     * Constructs a new BlockingEngine with the specified configuration.
+     *
+     * @param config The server configuration.
+     */
+    BlockingEngine(ServerConfig config) {
+        this.config = config;
+        this.connectionPermits = new Semaphore(config.maxConnections);
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(config.port), config.backlog);
+        executor = createExecutor();
+        running = true;
+
+        acceptor = new Thread(this::acceptLoop, "aggregation-acceptor");
+        acceptor.start();
+    }
+
+    /**
+     * Accepts connections until the engine is stopped.
+     * A permit is taken before each accept, so once maxConnections clients are being served
+     * new clients wait in the accept backlog instead of starting more threads.
+     */
+    private void acceptLoop() {
+        boolean pool = config.engine.equals("pool");
+        while (running) {
+            try {
+                connectionPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                Socket socket = serverSocket.accept();
+                // Responses are flushed whole, so there is nothing for Nagle's algorithm to coalesce
+                socket.setTcpNoDelay(true);
+                if (config.idleTimeoutMillis > 0) {
+                    socket.setSoTimeout(config.idleTimeoutMillis);
+                }
+                if (!pool) {
+                    executor.execute(() -> {
+                        try {
+                            new AggregationServer.ClientHandler(socket).run();
+                        } finally {
+                            connectionPermits.release();
+                        }
+                    });
+                    continue;
+                }
+                AggregationServer.ClientHandler handler = new AggregationServer.ClientHandler(socket, () -> waiting.get() > 0);
+                waiting.incrementAndGet();
+                if (active.size() >= config.workers) {
+                    freeIdleWorker();
+                }
+                executor.execute(() -> {
+                    waiting.decrementAndGet();
+                    active.add(handler);
+                    try {
+                        handler.run();
+                    } finally {
+                        active.remove(handler);
+                        connectionPermits.release();
+                    }
+                });
+            } catch (IOException e) {
+                connectionPermits.release();
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes one pool connection that is waiting between requests, so a newly accepted connection gets its thread.
+     */
+    private void freeIdleWorker() {
+        for (AggregationServer.ClientHandler handler : active) {
+            if (handler.closeIfIdle()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the executor that runs the ClientHandlers.
+     * Virtual threads need Java 21; on older runtimes the "virtual" engine uses one platform thread per
+     * connection instead, still bounded by maxConnections.
+     *
+     * @return The executor for client connections.
+     */
+    private ExecutorService createExecutor() {
+        if (config.engine.equals("pool")) {
+            return Executors.newFixedThreadPool(config.workers);
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        acceptor.interrupt();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+}
@@ -0,0 +1,52 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// BufferPool class to share the read buffers of connections, so that accepting a connection does not allocate one.
+// Buffers are heap buffers, so that parsers can scan their arrays. A buffer grown past the standard size for a large
+// request is not returned; the garbage collector takes it with its connection.
+final class BufferPool {
+    static final int BUFFER_SIZE = 8192;
+    // Buffers kept beyond this are dropped, so a burst of connections does not pin memory forever
+    private static final int MAX_POOLED = 1024;
+
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Takes a cleared buffer of the standard size from the pool, or allocates one if the pool is empty.
+     *
+     * @return The buffer.
+     */
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool once its connection no longer needs it.
+     *
+     * @param buffer The buffer, or null.
+     */
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != BUFFER_SIZE) {
+            return;
+        }
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.add(buffer);
+    }
+}
@@ -0,0 +1,35 @@
+package org.example;
+
+import java.io.IOException;
+
+// CdsTraining pushes a station file with ContentServer and reads it back with GETClient, against an AggregationServer
+// started in this JVM, so the classes a client run loads can be recorded in an AppCDS archive. The startup profile of
+// the build runs it with -XX:ArchiveClassesAtExit; a client started with -XX:SharedArchiveFile then maps those
+// classes from the archive instead of loading and verifying them one by one.
+public class CdsTraining {
+
+    /**
+     * Runs one push and one read, then exits.
+     *
+     * @param args Command line arguments, format: <station_file>
+     * @throws IOException If the server cannot be started.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java CdsTraining <station_file>");
+            return;
+        }
+        // A throwaway server: no write-ahead log in the data directory, and no expiry
+        ConnectionEngine engine = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0", "--wal=false", "--source-ttl=0"}));
+        engine.start();
+        try {
+            String server = "localhost:" + engine.getPort();
+            ContentServer.main(new String[] {server, args[0], "--source-id=cds-training"});
+            GETClient.main(new String[] {server});
+        } finally {
+            engine.stop();
+        }
+        // The archive is written at exit, which the server's timer threads would otherwise hold off
+        System.exit(0);
+    }
+}
@@ -0,0 +1,261 @@
+package org.example;
+
+import com.google.gson.Gson;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+// ChangeLog holds the most recent changes to the stored stations, each stamped with the server's Lamport time when
+// it was applied, and fans every new change out to the subscribers of GET /changes (long poll) and GET /events
+// (Server-Sent Events).
+//
+// Changes are appended while the station's map entry is held, so they are logged in the order they were applied;
+// the lock taken for that covers only the clock tick and the ring write. They are fanned out after the entry is
+// released, in log order, by whichever writer finds the fan-out free, so PUTs never wait on a slow subscriber. A
+// server nobody has subscribed to does not hold changes at all, and appending only ticks the clock.
+//
+// The log is a fixed ring: a subscriber asking for changes older than the ring holds is told to reset, i.e. to fetch
+// the full data again. Fan-out never blocks: each subscriber has a bounded queue, and a subscriber that lets its
+// queue fill up is cut off (see Subscription) rather than slowing down the PUTs.
+class ChangeLog {
+    private static final Gson gson = new Gson();
+
+    // Fires long-poll timeouts and stream heartbeats for every subscription
+    static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "change-log-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LamportClock lamportClock;
+    private final Change[] ring;
+    private final int subscriberQueue;
+    // Set by the first subscription; until then there is nobody to hold changes for
+    private volatile boolean active;
+    // The number of changes appended to the ring, and the number fanned out to the subscribers
+    private volatile long appended;
+    private volatile long delivered;
+    // The time of the newest change, or when the log started if it is empty
+    private long head;
+    // The time of the newest change fanned out; every matching change up to it has been offered to each subscriber
+    private volatile long deliveredHead;
+    // Changes at or before this time are no longer held
+    private long truncatedAt;
+    private final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+    // Held by the thread fanning out changes, and by a subscription while it catches up from the ring
+    private final ReentrantLock fanOut = new ReentrantLock();
+
+    /**
+     * Constructs an empty log. Changes before this point, e.g. recovered from disk, are not held.
+     *
+     * @param lamportClock    The server's clock, ticked once for every change.
+     * @param capacity        The number of recent changes held.
+     * @param subscriberQueue The most changes queued for one subscriber.
+     */
+    ChangeLog(LamportClock lamportClock, int capacity, int subscriberQueue) {
+        this.lamportClock = lamportClock;
+        this.ring = new Change[capacity];
+        this.subscriberQueue = subscriberQueue;
+        this.head = lamportClock.getClock();
+        this.truncatedAt = head;
+        this.deliveredHead = head;
+    }
+
+    /**
+     * Creates the change log configured by the server options.
+     *
+     * @param config       The server configuration.
+     * @param lamportClock The server's clock.
+     * @return A new, empty log.
+     */
+    static ChangeLog create(ServerConfig config, LamportClock lamportClock) {
+        return new ChangeLog(lamportClock, config.changeLogSize, config.subscriberQueue);
+    }
+
+    /**
+     * Appends a change; {@link #publish} then offers it to the subscribers.
+     * Must be called while holding the station's map entry, so changes of one station are logged in order.
+     *
+     * @param id    The station id.
+     * @param state The station's state, for subscribers filtering by state.
+     * @param json  The stored station as JSON, or null if the station was removed.
+     * @return The time of the change.
+     */
+    long append(String id, String state, String json) {
+        if (!active) {
+            long clock = lamportClock.increment();
+            if (!active) {
+                // A first subscription reads the clock after it activates the log, so it starts after this time
+                return clock;
+            }
+            // The log was activated meanwhile, perhaps before this time; log the change at a new one
+        }
+        synchronized (this) {
+            long clock = lamportClock.increment();
+            int slot = (int) (appended % ring.length);
+            if (ring[slot] != null) {
+                truncatedAt = ring[slot].clock;
+            }
+            ring[slot] = new Change(clock, id, state, json);
+            head = clock;
+            appended++;
+            return clock;
+        }
+    }
+
+    /**
+     * Offers the changes appended so far to every subscriber, in log order.
+     * Called after the station's map entry is released. If another thread is fanning out already, it takes these
+     * changes too, so this returns at once.
+     */
+    void publish() {
+        while (delivered < appended && fanOut.tryLock()) {
+            try {
+                deliverPending();
+            } finally {
+                fanOut.unlock();
+            }
+        }
+    }
+
+    /**
+     * Fans out the changes not yet delivered. Called while holding the fan-out lock.
+     */
+    private void deliverPending() {
+        while (true) {
+            Change[] batch;
+            long resetClock = -1;
+            synchronized (this) {
+                if (delivered == appended) {
+                    return;
+                }
+                if (appended - delivered > ring.length) {
+                    // The fan-out fell a whole ring behind, so the subscribers missed changes and must start again
+                    delivered = appended - ring.length;
+                    resetClock = head;
+                }
+                batch = new Change[(int) (appended - delivered)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = ring[(int) ((delivered + i) % ring.length)];
+                }
+            }
+            for (Subscription subscriber : subscribers) {
+                if (resetClock >= 0) {
+                    subscriber.reset(resetClock);
+                }
+            }
+            for (Change change : batch) {
+                for (Subscription subscriber : subscribers) {
+                    subscriber.offer(change);
+                }
+                deliveredHead = change.clock;
+                delivered++;
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the changes after a given time.
+     * The subscription starts with the held changes after that time that match its filters. A time the log no
+     * longer covers (older than the ring, or newer than the log as after a restart) starts it with a reset.
+     *
+     * @param since         Deliver changes after this time; negative for changes from now on.
+     * @param ids           Only these stations, or null for all.
+     * @param state         Only stations in this state, or null for all.
+     * @param streaming     true for a Server-Sent Events stream, false for a long poll.
+     * @param timeoutMillis How long a long poll waits for a change.
+     * @return The subscription.
+     */
+    Subscription subscribe(long since, Set<String> ids, String state, boolean streaming, long timeoutMillis) {
+        Subscription subscription = new Subscription(this, streaming, ids, state, subscriberQueue);
+        fanOut.lock();
+        try {
+            synchronized (this) {
+                if (!active) {
+                    // Nothing was held until now
+                    active = true;
+                    head = lamportClock.getClock();
+                    truncatedAt = head;
+                    deliveredHead = head;
+                }
+                if (since >= 0 && (since < truncatedAt || since > head)) {
+                    subscription.reset(head);
+                    return subscription;
+                }
+                if (since >= 0) {
+                    // The changes fanned out already; the rest reach the subscription once it is added
+                    for (long i = Math.max(appended - ring.length, 0); i < delivered; i++) {
+                        Change change = ring[(int) (i % ring.length)];
+                        if (change.clock > since) {
+                            subscription.offer(change);
+                        }
+                    }
+                }
+                subscribers.add(subscription);
+                subscription.start(timeoutMillis);
+            }
+        } finally {
+            fanOut.unlock();
+        }
+        // Changes appended while the fan-out was held here
+        publish();
+        return subscription;
+    }
+
+    /**
+     * Stops delivering changes to a subscription.
+     *
+     * @param subscription The subscription.
+     * @return The time of the newest change fanned out; every matching change up to it has been offered to the
+     *         subscription.
+     */
+    long unsubscribe(Subscription subscription) {
+        subscribers.remove(subscription);
+        return deliveredHead;
+    }
+
+    int subscriberCount() {
+        return subscribers.size();
+    }
+
+    // Change class to hold one logged change of a station
+    static class Change {
+        final long clock;
+        final String id;
+        final String state;
+        // The stored station as JSON, or null for a removal
+        final String json;
+
+        Change(long clock, String id, String state, String json) {
+            this.clock = clock;
+            this.id = id;
+            this.state = state;
+            this.json = json;
+        }
+
+        /**
+         * Serializes the change as {"clock":7,"id":"IDS60901","op":"put","data":{...}}, or with "op":"delete" and
+         * no data for a removal.
+         */
+        String toJson() {
+            StringBuilder out = new StringBuilder();
+            out.append("{\"clock\":").append(clock).append(",\"id\":").append(gson.toJson(id));
+            if (json == null) {
+                out.append(",\"op\":\"delete\"}");
+            } else {
+                out.append(",\"op\":\"put\",\"data\":").append(json).append('}');
+            }
+            return out.toString();
+        }
+
+        /**
+         * Serializes the change as a Server-Sent Event whose id is the change's time.
+         */
+        String toEvent() {
+            return "id: " + clock + "\nevent: " + (json == null ? "delete" : "put") + "\ndata: " + toJson() + "\n\n";
+        }
+    }
+}
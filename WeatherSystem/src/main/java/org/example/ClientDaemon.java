@@ -0,0 +1,211 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// ClientDaemon keeps a warm ContentServer and GETClient running for scripts that would otherwise start a JVM per
+// push or read, e.g. from cron. It listens on a Unix domain socket and runs one command per connection, writing what
+// the command prints back to the connection before closing it. Its connections to the AggregationServer, its Lamport
+// clock and its source id persist between commands, so later commands skip class loading and connection setup.
+// Commands run one at a time, in the order they connect:
+//   get [station_id]   print the stations, as GETClient does
+//   put <file>...      send station files, as ContentServer does; paths are resolved in the daemon's directory
+//   stop               shut the daemon down
+// e.g. echo "put weather.txt" | nc -U $XDG_RUNTIME_DIR/weather-client.sock
+// Anyone who can connect can make the daemon read files and send them as this user, so the socket must be in a
+// directory that this user owns and only this user can enter, or the daemon refuses to start, and the socket itself
+// is made readable and writable by its owner only.
+public class ClientDaemon {
+    // The user's runtime directory if the session has one, otherwise a directory of this user's in the temp directory
+    static final String DEFAULT_SOCKET = System.getenv("XDG_RUNTIME_DIR") != null
+            ? System.getenv("XDG_RUNTIME_DIR") + "/weather-client.sock"
+            : System.getProperty("java.io.tmpdir") + "/weather-client-" + System.getProperty("user.name") + "/client.sock";
+
+    private final AggregationClient client;
+    private final ShardRouter router;
+    private final Path socket;
+
+    /**
+     * Constructs a daemon for the given servers.
+     *
+     * @param serverUrl The server address, or several separated by commas, as ContentServer and GETClient take it.
+     * @param socket    The path of the Unix domain socket to listen on.
+     * @throws IOException If the server cannot be reached to read its shard ring.
+     */
+    ClientDaemon(String serverUrl, Path socket) throws IOException {
+        LamportClock lamportClock = new LamportClock();
+        this.client = AggregationClient.forAddress(serverUrl, lamportClock);
+        this.router = new ShardRouter(client, lamportClock);
+        this.socket = socket;
+    }
+
+    /**
+     * Main entry point of the daemon.
+     *
+     * @param args Command line arguments, format: <server:port>[,<server:port>...] [--socket=path]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: java ClientDaemon <server:port>[,<server:port>...] [--socket=path]");
+            return;
+        }
+        Path socket = Paths.get(DEFAULT_SOCKET);
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--socket=")) {
+                socket = Paths.get(args[i].substring("--socket=".length()));
+            }
+        }
+        try {
+            new ClientDaemon(args[0], socket).run();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Listens for commands until a stop command arrives.
+     * A socket left behind by a daemon that did not exit cleanly is replaced; anything else at the socket path,
+     * including the socket of a daemon still running, is left alone.
+     *
+     * @throws IOException If the socket path is taken or the socket cannot be bound.
+     */
+    void run() throws IOException {
+        prepareSocketPath();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            restrict(socket, "rw-------");
+            System.out.println("Client daemon listening on " + socket);
+            boolean running = true;
+            while (running) {
+                try (SocketChannel connection = server.accept()) {
+                    running = handle(connection);
+                } catch (IOException | RuntimeException e) {
+                    // The caller went away mid-command; the next one is served as usual
+                    System.out.println("Command failed: " + e.getMessage());
+                }
+            }
+        } finally {
+            router.close();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * Creates the socket's directory, owner-only, if it does not exist, checks that no other user can reach into it,
+     * and removes a stale socket from a daemon that did not exit cleanly.
+     *
+     * @throws IOException If the directory belongs to another user or others can enter it, the path is a regular
+     *                     file, directory or link, or a daemon is listening on it.
+     */
+    private void prepareSocketPath() throws IOException {
+        Path directory = socket.toAbsolutePath().getParent();
+        if (directory != null && !Files.isDirectory(directory)) {
+            Files.createDirectories(directory);
+            restrict(directory, "rwx------");
+        }
+        if (directory != null) {
+            checkPrivate(directory);
+        }
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (Files.isRegularFile(socket, LinkOption.NOFOLLOW_LINKS) || Files.isDirectory(socket, LinkOption.NOFOLLOW_LINKS)
+                || Files.isSymbolicLink(socket)) {
+            throw new IOException(socket + " exists and is not a socket");
+        }
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+        } catch (ConnectException e) {
+            // Nobody is listening: the socket was left behind
+            Files.delete(socket);
+            return;
+        }
+        throw new IOException("A client daemon is already listening on " + socket);
+    }
+
+    /**
+     * Refuses a socket directory that another user owns or can enter, e.g. one another local user created first
+     * under the default name, since whoever can write to it can replace the socket.
+     *
+     * @param directory The socket's directory.
+     * @throws IOException If the directory is not owned by this user with permissions rwx------.
+     */
+    private static void checkPrivate(Path directory) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        Path real = directory.toRealPath();
+        UserPrincipal owner = Files.getOwner(real);
+        UserPrincipal user = real.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        String permissions = PosixFilePermissions.toString(Files.getPosixFilePermissions(real));
+        if (!owner.equals(user) || !permissions.equals("rwx------")) {
+            throw new IOException("The socket directory " + real + " must belong to " + user.getName()
+                    + " with permissions rwx------, but belongs to " + owner.getName() + " with " + permissions);
+        }
+    }
+
+    private static void restrict(Path path, String permissions) throws IOException {
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        }
+    }
+
+    /**
+     * Reads one command from a connection, runs it and writes its output back.
+     *
+     * @param connection The caller's connection.
+     * @return false if the command was stop.
+     * @throws IOException If the connection fails.
+     */
+    private boolean handle(SocketChannel connection) throws IOException {
+        BufferedReader input = new BufferedReader(new InputStreamReader(Channels.newInputStream(connection), StandardCharsets.UTF_8));
+        PrintStream out = new PrintStream(Channels.newOutputStream(connection), false, StandardCharsets.UTF_8);
+        String line = input.readLine();
+        List<String> words = line == null ? List.of() : new ArrayList<>(Arrays.asList(line.trim().split("\\s+")));
+        String command = words.isEmpty() ? "" : words.remove(0);
+        try {
+            switch (command) {
+                case "get":
+                    long count = GETClient.fetch(client, words.isEmpty() ? null : words.get(0), data -> true,
+                            data -> GETClient.displayWeather(out, data));
+                    out.println(count < 0 ? "Server did not return the stations" : "Server response: " + count + " stations");
+                    break;
+                case "put":
+                    ContentServer.pushFiles(router, words, out);
+                    break;
+                case "stop":
+                    out.println("Stopping");
+                    return false;
+                default:
+                    out.println("Unknown command: " + line + " (expected get [station_id], put <file>... or stop)");
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            // Reported to the caller, e.g. a station file with a malformed number; the daemon carries on
+            out.println("Error: " + e);
+        } finally {
+            out.flush();
+        }
+        return true;
+    }
+}
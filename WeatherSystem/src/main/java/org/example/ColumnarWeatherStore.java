@@ -0,0 +1,338 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+// ColumnarWeatherStore keeps stations in primitive columns instead of one WeatherData object each.
+// Every station owns a row; numeric fields live in double[], int[] and long[] columns, and the fields with small
+// fixed vocabularies (state, time zone, cloud, wind direction) are stored as int codes into shared dictionaries, so
+// each distinct string is held once however many stations use it. Dictionaries never free a code, so values that
+// keep changing are stored per row instead: the full local time as a number where it is one, and the local time and
+// the origin (a content server's host and pid, new on every run) as strings.
+//
+// Columns are allocated in chunks of CHUNK_SIZE rows, so growing the store never copies existing rows and a scan
+// of one field walks contiguous memory. Rows of removed stations are reused. Writes to a station are serialized by
+// the row map's compute; readers take an optimistic stamp on the row's lock stripe and retry if a write overlapped,
+// so get() never blocks behind a writer.
+class ColumnarWeatherStore implements WeatherStore {
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int STRIPES = 64;
+
+    // The row of every stored station
+    private final Map<String, Integer> rows = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedDeque<Integer> freeRows = new ConcurrentLinkedDeque<>();
+    private int nextRow;
+    private volatile Chunk[] chunks = new Chunk[0];
+    private final StampedLock[] stripes = new StampedLock[STRIPES];
+
+    private final Dictionary states = new Dictionary();
+    private final Dictionary timeZones = new Dictionary();
+    private final Dictionary clouds = new Dictionary();
+    private final Dictionary windDirs = new Dictionary();
+
+    /**
+     * Constructs an empty store.
+     */
+    ColumnarWeatherStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new StampedLock();
+        }
+    }
+
+    @Override
+    public WeatherData compute(String id, BiFunction<String, WeatherData, WeatherData> remapping) {
+        WeatherData[] result = new WeatherData[1];
+        rows.compute(id, (key, row) -> {
+            WeatherData old = row == null ? null : read(row, key);
+            WeatherData data = remapping.apply(key, old);
+            result[0] = data;
+            return apply(row, old, data);
+        });
+        return result[0];
+    }
+
+    @Override
+    public WeatherData computeIfPresent(String id, BiFunction<String, WeatherData, WeatherData> remapping) {
+        WeatherData[] result = new WeatherData[1];
+        rows.computeIfPresent(id, (key, row) -> {
+            WeatherData old = read(row, key);
+            WeatherData data = remapping.apply(key, old);
+            result[0] = data;
+            return apply(row, old, data);
+        });
+        return result[0];
+    }
+
+    @Override
+    public WeatherData get(String id) {
+        while (true) {
+            Integer row = rows.get(id);
+            if (row == null) {
+                return null;
+            }
+            WeatherData data = read(row, id);
+            // The row may have been freed and given to another station while it was read
+            if (Objects.equals(rows.get(id), row)) {
+                return data;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return rows.size();
+    }
+
+    @Override
+    public Set<String> ids() {
+        return rows.keySet();
+    }
+
+    /**
+     * Writes the outcome of a remapping into the columns. Called inside the row map's compute for the station.
+     *
+     * @param row  The station's row, or null if it is not stored.
+     * @param old  The data read from the row.
+     * @param data The data returned by the remapping.
+     * @return The station's row afterwards, or null to remove it from the row map.
+     */
+    private Integer apply(Integer row, WeatherData old, WeatherData data) {
+        if (data == null) {
+            if (row != null) {
+                write(row, null);
+                freeRows.add(row);
+            }
+            return null;
+        }
+        if (data == old) {
+            return row;
+        }
+        int target = row != null ? row : allocateRow();
+        write(target, data);
+        return target;
+    }
+
+    /**
+     * Takes a free row, adding a chunk of rows if none is left.
+     *
+     * @return The row.
+     */
+    private int allocateRow() {
+        Integer free = freeRows.poll();
+        if (free != null) {
+            return free;
+        }
+        synchronized (this) {
+            int row = nextRow++;
+            if ((row >>> CHUNK_BITS) == chunks.length) {
+                Chunk[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+                grown[chunks.length] = new Chunk();
+                chunks = grown;
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Reads a row into a new WeatherData, retrying if a write to the row's stripe overlapped.
+     *
+     * @param row The row.
+     * @param id  The station id, which is the row map's key rather than a column.
+     * @return The station's data.
+     */
+    private WeatherData read(int row, String id) {
+        StampedLock stripe = stripes[row % STRIPES];
+        long stamp = stripe.tryOptimisticRead();
+        WeatherData data = readUnlocked(row, id);
+        if (!stripe.validate(stamp)) {
+            stamp = stripe.readLock();
+            try {
+                data = readUnlocked(row, id);
+            } finally {
+                stripe.unlockRead(stamp);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Counts the strings held by the dictionaries, which grow with the distinct values of their fields.
+     *
+     * @return The number of dictionary entries.
+     */
+    int dictionaryEntries() {
+        return states.size() + timeZones.size() + clouds.size() + windDirs.size();
+    }
+
+    private WeatherData readUnlocked(int row, String id) {
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        int i = row & (CHUNK_SIZE - 1);
+        WeatherData data = new WeatherData();
+        data.id = id;
+        data.name = chunk.name[i];
+        data.state = states.decode(chunk.state[i]);
+        data.time_zone = timeZones.decode(chunk.timeZone[i]);
+        data.lat = chunk.lat[i];
+        data.lon = chunk.lon[i];
+        data.local_date_time = chunk.localTime[i];
+        data.local_date_time_full = chunk.fullTimeText[i] != null ? chunk.fullTimeText[i]
+                : chunk.fullTime[i] >= 0 ? Long.toString(chunk.fullTime[i]) : null;
+        data.air_temp = chunk.airTemp[i];
+        data.apparent_t = chunk.apparentT[i];
+        data.cloud = clouds.decode(chunk.cloud[i]);
+        data.dewpt = chunk.dewpt[i];
+        data.press = chunk.press[i];
+        data.rel_hum = chunk.relHum[i];
+        data.wind_dir = windDirs.decode(chunk.windDir[i]);
+        data.wind_spd_kmh = chunk.windKmh[i];
+        data.wind_spd_kt = chunk.windKt[i];
+        data.lamport = chunk.lamport[i];
+        data.origin = chunk.origin[i];
+        return data;
+    }
+
+    /**
+     * Writes a station into a row, or clears the row when data is null.
+     *
+     * @param row  The row.
+     * @param data The station's data, or null.
+     */
+    private void write(int row, WeatherData data) {
+        // Encode before locking, so readers are only held off for the stores themselves
+        WeatherData source = data != null ? data : new WeatherData();
+        int state = states.encode(source.state);
+        int timeZone = timeZones.encode(source.time_zone);
+        long fullTime = fullTimeNumber(source.local_date_time_full);
+        String fullTimeText = fullTime == -1 && source.local_date_time_full != null ? source.local_date_time_full : null;
+        int cloud = clouds.encode(source.cloud);
+        int windDir = windDirs.encode(source.wind_dir);
+
+        Chunk chunk = chunks[row >>> CHUNK_BITS];
+        int i = row & (CHUNK_SIZE - 1);
+        StampedLock stripe = stripes[row % STRIPES];
+        long stamp = stripe.writeLock();
+        try {
+            chunk.name[i] = source.name;
+            chunk.state[i] = state;
+            chunk.timeZone[i] = timeZone;
+            chunk.lat[i] = source.lat;
+            chunk.lon[i] = source.lon;
+            chunk.localTime[i] = source.local_date_time;
+            chunk.fullTime[i] = fullTime;
+            chunk.fullTimeText[i] = fullTimeText;
+            chunk.airTemp[i] = source.air_temp;
+            chunk.apparentT[i] = source.apparent_t;
+            chunk.cloud[i] = cloud;
+            chunk.dewpt[i] = source.dewpt;
+            chunk.press[i] = source.press;
+            chunk.relHum[i] = source.rel_hum;
+            chunk.windDir[i] = windDir;
+            chunk.windKmh[i] = source.wind_spd_kmh;
+            chunk.windKt[i] = source.wind_spd_kt;
+            chunk.lamport[i] = source.lamport;
+            chunk.origin[i] = source.origin;
+        } finally {
+            stripe.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reads a full local time such as 20230715160000 as a number, if it turns back into the same text.
+     *
+     * @param value The time, or null.
+     * @return The number, or -1 if the value is null or must be kept as text.
+     */
+    private static long fullTimeNumber(String value) {
+        if (value == null || value.isEmpty() || value.length() > 18 || (value.charAt(0) == '0' && value.length() > 1)) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    // Chunk class to hold the columns of CHUNK_SIZE consecutive rows
+    private static class Chunk {
+        final String[] name = new String[CHUNK_SIZE];
+        final int[] state = new int[CHUNK_SIZE];
+        final int[] timeZone = new int[CHUNK_SIZE];
+        final double[] lat = new double[CHUNK_SIZE];
+        final double[] lon = new double[CHUNK_SIZE];
+        final String[] localTime = new String[CHUNK_SIZE];
+        final long[] fullTime = new long[CHUNK_SIZE];
+        // The full local time when it is not a plain number
+        final String[] fullTimeText = new String[CHUNK_SIZE];
+        final double[] airTemp = new double[CHUNK_SIZE];
+        final double[] apparentT = new double[CHUNK_SIZE];
+        final int[] cloud = new int[CHUNK_SIZE];
+        final double[] dewpt = new double[CHUNK_SIZE];
+        final double[] press = new double[CHUNK_SIZE];
+        final int[] relHum = new int[CHUNK_SIZE];
+        final int[] windDir = new int[CHUNK_SIZE];
+        final int[] windKmh = new int[CHUNK_SIZE];
+        final int[] windKt = new int[CHUNK_SIZE];
+        final long[] lamport = new long[CHUNK_SIZE];
+        final String[] origin = new String[CHUNK_SIZE];
+    }
+
+    // Dictionary class to map the strings of one field to small int codes; -1 stands for null
+    private static class Dictionary {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[16];
+        private int size;
+
+        /**
+         * Returns the code of a string, assigning the next code the first time the string is seen.
+         *
+         * @param value The string, or null.
+         * @return The code.
+         */
+        int encode(String value) {
+            if (value == null) {
+                return -1;
+            }
+            Integer code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            synchronized (this) {
+                code = codes.get(value);
+                if (code != null) {
+                    return code;
+                }
+                String[] current = values;
+                if (size == current.length) {
+                    current = Arrays.copyOf(current, size * 2);
+                }
+                current[size] = value;
+                // Publish the array before the code, so a reader given the code can always decode it
+                values = current;
+                codes.put(value, size);
+                return size++;
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        String decode(int code) {
+            // A code read during an overlapping write may be newer than the array seen; that read is retried
+            String[] current = values;
+            return code < 0 || code >= current.length ? null : current[code];
+        }
+    }
+}
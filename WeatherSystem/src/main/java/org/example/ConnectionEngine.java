@@ -0,0 +1,44 @@
+package org.example;
+
+import java.io.IOException;
+
+// ConnectionEngine interface for the ways the AggregationServer can accept and serve connections
+interface ConnectionEngine {
+
+    /**
+     * Binds the server socket and starts serving connections on background threads.
+     *
+     * @throws IOException If the server socket cannot be opened.
+     */
+    void start() throws IOException;
+
+    /**
+     * Stops accepting connections and closes the server socket.
+     */
+    void stop();
+
+    /**
+     * Returns the port the engine is bound to, which is useful when it was started on port 0.
+     *
+     * @return The local port.
+     */
+    int getPort();
+
+    /**
+     * Creates the engine selected in the configuration.
+     *
+     * @param config The server configuration.
+     * @return A new, not yet started engine.
+     */
+    static ConnectionEngine create(ServerConfig config) {
+        switch (config.engine) {
+            case "virtual":
+            case "pool":
+                return new BlockingEngine(config);
+            case "nio":
+                return new SelectorEngine(config);
+            default:
+                throw new IllegalArgumentException("Unknown engine " + config.engine);
+        }
+    }
+}
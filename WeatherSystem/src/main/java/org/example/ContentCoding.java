@@ -0,0 +1,269 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+// ContentCoding class to negotiate and apply the compression of request and response bodies.
+// Two codings are understood: gzip, which any HTTP client can decode, and x-weather-deflate, a zlib stream primed
+// with a preset dictionary of the station JSON's field names and common values. Station records are short and
+// repetitive, so the dictionary lets even a single PUT compress, where gzip would have nothing to refer back to.
+// Responses are compressed when the request's Accept-Encoding allows it; the server lists the codings it accepts
+// for request bodies in the Accept-Encoding of its responses (RFC 7694), and clients compress once they see it.
+class ContentCoding {
+    static final String GZIP = "gzip";
+    static final String WEATHER_DEFLATE = "x-weather-deflate";
+    // The codings this side decodes, in order of preference
+    static final String SUPPORTED = WEATHER_DEFLATE + ", " + GZIP;
+    // Smaller bodies are sent as they are; compressing them saves less than the header costs
+    static final int MIN_BYTES = 256;
+
+    // Strings that appear in most station records; deflate finds the ones nearest the end most cheaply
+    private static final byte[] DICTIONARY = ("\"cloud\":\"Partly cloudy\"Mostly sunny\"Sunny\"Clear\"Cloudy\""
+            + "\"state\":\"NSW\"VIC\"QLD\"WA\"TAS\"NT\"ACT\"time_zone\":\"EST\"WST\"wind_dir\":\"SSW\"SW\"NW\"NE\"E\"W\""
+            + "{\"id\":\"IDS60901\",\"name\":\"\",\"state\":\"SA\",\"time_zone\":\"CST\",\"lat\":-34.9,\"lon\":138.6,"
+            + "\"local_date_time\":\"15/04:00pm\",\"local_date_time_full\":\"20230715160000\",\"air_temp\":13.3,"
+            + "\"apparent_t\":9.5,\"cloud\":\"Partly cloudy\",\"dewpt\":5.7,\"press\":1023.9,\"rel_hum\":60,"
+            + "\"wind_dir\":\"S\",\"wind_spd_kmh\":15,\"wind_spd_kt\":8}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Picks the coding for a body sent to a peer, from the codings it accepts.
+     * Codings with q=0 are refused; otherwise the highest q wins, and this side's preference breaks ties.
+     *
+     * @param acceptEncoding The peer's Accept-Encoding header, or null.
+     * @return The coding to use, or null to send the body as it is.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String best = null;
+        double bestQuality = 0;
+        for (String option : acceptEncoding.split(",")) {
+            String[] parts = option.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (coding.equals("*")) {
+                // Any coding: only gzip can be assumed to be understood
+                coding = GZIP;
+            }
+            boolean known = coding.equals(WEATHER_DEFLATE) || coding.equals(GZIP);
+            if (known && quality > 0 && (quality > bestQuality || (quality == bestQuality && coding.equals(WEATHER_DEFLATE)))) {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Tells whether a coding can be decoded here.
+     *
+     * @param coding The value of a Content-Encoding header.
+     * @return true for gzip, x-weather-deflate and identity.
+     */
+    static boolean isSupported(String coding) {
+        String name = coding.trim().toLowerCase();
+        return name.equals(GZIP) || name.equals(WEATHER_DEFLATE) || name.equals("identity");
+    }
+
+    /**
+     * Compresses a body.
+     *
+     * @param coding The coding, as returned by {@link #negotiate}.
+     * @param body   The body to compress.
+     * @return The compressed body.
+     * @throws IllegalArgumentException If the coding is unknown.
+     */
+    static byte[] encode(String coding, byte[] body) {
+        switch (coding) {
+            case GZIP:
+                ByteArrayOutputStream gzipped = new ByteArrayOutputStream(body.length / 4 + 64);
+                try (GZIPOutputStream output = new GZIPOutputStream(gzipped)) {
+                    output.write(body);
+                } catch (IOException e) {
+                    // Writing to memory does not fail
+                    throw new IllegalStateException(e);
+                }
+                return gzipped.toByteArray();
+            case WEATHER_DEFLATE:
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    deflater.setDictionary(DICTIONARY);
+                    deflater.setInput(body);
+                    deflater.finish();
+                    ByteArrayOutputStream deflated = new ByteArrayOutputStream(body.length / 4 + 64);
+                    byte[] chunk = new byte[Math.min(Math.max(body.length, 64), 1 << 16)];
+                    while (!deflater.finished()) {
+                        deflated.write(chunk, 0, deflater.deflate(chunk));
+                    }
+                    return deflated.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            default:
+                throw new IllegalArgumentException("Unknown content coding " + coding);
+        }
+    }
+
+    /**
+     * Decompresses a body, refusing to inflate it beyond a limit.
+     *
+     * @param coding   The value of the Content-Encoding header.
+     * @param body     The compressed body.
+     * @param maxBytes The largest decompressed body accepted.
+     * @return The decompressed body.
+     * @throws IOException              If the body is corrupt or decompresses to more than maxBytes.
+     * @throws IllegalArgumentException If the coding is unknown.
+     */
+    static byte[] decode(String coding, byte[] body, int maxBytes) throws IOException {
+        if (coding.trim().equalsIgnoreCase("identity")) {
+            return body;
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(Math.min(maxBytes, body.length * 4 + 64));
+        byte[] chunk = new byte[8192];
+        try (InputStream input = decoder(coding, new ByteArrayInputStream(body))) {
+            int n;
+            while ((n = input.read(chunk)) > 0) {
+                append(decoded, chunk, n, maxBytes);
+            }
+        }
+        return decoded.toByteArray();
+    }
+
+    /**
+     * Wraps a compressed stream in one that decompresses it as it is read, for bodies too large to hold at once.
+     *
+     * @param coding The value of the Content-Encoding header.
+     * @param body   The compressed stream.
+     * @return The decompressed stream; reading it throws IOException if the body is corrupt or truncated.
+     * @throws IOException              If the stream does not start like the coding says.
+     * @throws IllegalArgumentException If the coding is unknown.
+     */
+    static InputStream decoder(String coding, InputStream body) throws IOException {
+        switch (coding.trim().toLowerCase()) {
+            case "identity":
+                return body;
+            case GZIP:
+                return new GZIPInputStream(body, 8192);
+            case WEATHER_DEFLATE:
+                return new DictionaryInflater(body);
+            default:
+                throw new IllegalArgumentException("Unknown content coding " + coding);
+        }
+    }
+
+    /**
+     * Compresses a response for the client that sent the request, if it accepts a coding and the body is worth it.
+     * Responses already encoded by their handler (such as the cached snapshot, see {@link SnapshotCache.Snapshot}),
+     * responses with an ETag, and subscriptions, whose bodies are written later, are left alone.
+     *
+     * @param request  The request being answered.
+     * @param response The response to compress in place.
+     */
+    static void compress(HttpRequest request, HttpResponse response) {
+        if (response.subscription != null || response.body.length < MIN_BYTES
+                || response.headers.containsKey("Content-Encoding") || response.headers.containsKey("ETag")) {
+            return;
+        }
+        String coding = negotiate(request.headers.get("Accept-Encoding"));
+        response.headers.put("Vary", "Accept-Encoding");
+        if (coding != null) {
+            response.body = encode(coding, response.body);
+            response.headers.put("Content-Encoding", coding);
+        }
+    }
+
+    /**
+     * Compresses a request body in the given coding, unless it is small or already encoded.
+     *
+     * @param coding  The coding the server accepts, or null.
+     * @param request The request to compress in place.
+     */
+    static void compress(String coding, HttpRequest request) {
+        if (coding == null || request.body.length < MIN_BYTES || request.headers.containsKey("Content-Encoding")) {
+            return;
+        }
+        request.body = encode(coding, request.body);
+        request.headers.put("Content-Encoding", coding);
+    }
+
+    private static void append(ByteArrayOutputStream decoded, byte[] chunk, int n, int maxBytes) throws IOException {
+        if (decoded.size() + n > maxBytes) {
+            throw new IOException("Body decompresses to more than " + maxBytes + " bytes");
+        }
+        decoded.write(chunk, 0, n);
+    }
+
+    // DictionaryInflater class to inflate an x-weather-deflate stream, supplying the preset dictionary when the
+    // stream asks for it; InflaterInputStream would stop there instead
+    private static class DictionaryInflater extends InputStream {
+        private final InputStream input;
+        private final Inflater inflater = new Inflater();
+        private final byte[] buf = new byte[8192];
+
+        DictionaryInflater(InputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (true) {
+                    int n = inflater.inflate(b, off, len);
+                    if (n > 0) {
+                        return n;
+                    }
+                    if (inflater.finished()) {
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        int read = input.read(buf);
+                        if (read < 0) {
+                            throw new IOException("Truncated " + WEATHER_DEFLATE + " body");
+                        }
+                        inflater.setInput(buf, 0, read);
+                    }
+                }
+            } catch (DataFormatException | IllegalArgumentException e) {
+                // A corrupt stream, or one primed with a different dictionary
+                throw new IOException("Corrupt " + WEATHER_DEFLATE + " body: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            input.close();
+        }
+    }
+}
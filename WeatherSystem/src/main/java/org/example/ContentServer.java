@@ -1,155 +1,508 @@
 package org.example;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import java.io.BufferedReader;
 import java.io.FileReader;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 public class ContentServer {
-    private static final Gson gson = new Gson();
+    // Writes stations without building a Gson, which a one-shot run would spend much of its time on
+    private static final WeatherDataAdapter adapter = new WeatherDataAdapter();
+    // The longest this client waits when the server asks it to retry later
+    private static final long MAX_RETRY_AFTER_SECONDS = 60;
     private static LamportClock lamportClock = new LamportClock();
 
+    // Identifies this content server to the AggregationServer, which drops its stations once it goes silent;
+    // the default is looked up on first use, see sourceId()
+    private static String sourceId;
+    // Whether stations are sent in the binary form of WeatherDataCodec instead of JSON
+    private static boolean binary;
+
     /**
      * The main entry point of the program.
-     * Reads weather data from a file, converts it to JSON format, and sends it to the specified server.
+     * Reads weather data from one or more files, converts it to JSON format, and sends it to the specified server.
+     * All files are sent back to back on one persistent connection. With --interval the files are re-read and
+     * pushed again every given number of seconds over the same connection. With --watch the files of a
+     * directory are sent, and then every new or changed file, in batches over the same connection.
+     * Every request carries a Source-Id header, the host name and process id unless --source-id is given.
+     * Several servers of a cluster can be given, separated by commas; the next one is used when one fails.
+     * If the servers are sharded, each station is sent straight to the node owning it.
+     * With --feed a large file of many stations is parsed in parallel and sent in batches while it is parsed.
+     * With --binary stations are sent as application/x-weather-binary; bodies are compressed once the server says
+     * which codings it accepts.
      *
-     * @param args Command line arguments, format: <server:port> <file_path>
+     * @param args Command line arguments, format: <server:port>[,<server:port>...] <file_path>... [--interval=seconds]
+     *             or <server:port> --watch=<directory> or <server:port> --feed=<file>, each followed by an optional --source-id=<name> and --binary
      */
     public static void main(String[] args) {
         // Check if the number of command line arguments is sufficient
         if (args.length < 2) {
-            System.out.println("Usage: java ContentServer <server:port> <file_path>");
+            System.out.println("Usage: java ContentServer <server:port> <file_path>... [--interval=seconds]");
+            System.out.println("       java ContentServer <server:port> --watch=<directory>");
+            System.out.println("       java ContentServer <server:port> --feed=<file>");
             return;
         }
 
-        // Extract server address and file path from command line arguments
+        // Extract server address, file paths and push interval from command line arguments
         String serverUrl = args[0];
-        String filePath = args[1];
+        List<String> filePaths = new ArrayList<>();
+        long intervalSeconds = 0;
+        String watchDirectory = null;
+        String feed = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--interval=")) {
+                intervalSeconds = Long.parseLong(args[i].substring("--interval=".length()));
+            } else if (args[i].startsWith("--watch=")) {
+                watchDirectory = args[i].substring("--watch=".length());
+            } else if (args[i].startsWith("--source-id=")) {
+                sourceId = args[i].substring("--source-id=".length());
+            } else if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].startsWith("--feed=")) {
+                feed = args[i].substring("--feed=".length());
+            } else {
+                filePaths.add(args[i]);
+            }
+        }
 
-        try {
+        try (ShardRouter router = new ShardRouter(AggregationClient.forAddress(serverUrl, lamportClock), lamportClock)) {
+            if (watchDirectory != null) {
+                watchDirectory(router, Paths.get(watchDirectory));
+                return;
+            }
+            if (feed != null) {
+                pushFeed(router, Paths.get(feed));
+                return;
+            }
+            do {
+                pushFiles(router, filePaths, System.out);
+                if (intervalSeconds > 0) {
+                    Thread.sleep(intervalSeconds * 1000);
+                }
+            } while (intervalSeconds > 0);
+        } catch (Exception e) {
+            // Print exception information in case of error
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads each file and sends its weather data as a PUT request, pipelining all requests on one connection.
+     * A 409 Conflict is final: the server holds a later write of that station. Files the server throttles with 429
+     * or sheds with 503 are sent once more after the Retry-After it asked for.
+     *
+     * @param router    Sends each station to the AggregationServer owning it.
+     * @param filePaths The files holding the weather data.
+     * @param out       Where the stations sent and the server's responses are reported.
+     * @throws IOException If a file cannot be read or the server cannot be reached.
+     */
+    static void pushFiles(ShardRouter router, List<String> filePaths, PrintStream out) throws IOException {
+        List<HttpRequest> requests = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (String filePath : filePaths) {
             // Read weather data from the file
             WeatherData data = readFromFile(filePath);
             // Check if the read data is valid
-            if (data == null) {
-                System.out.println("Invalid file data");
-                return;
+            if (data == null || data.id == null) {
+                out.println("Invalid file data: " + filePath);
+                continue;
             }
 
             // Convert WeatherData to JSON
-            String jsonData = gson.toJson(data);
+            String jsonData = adapter.serialize(data);
             // Output the JSON data to be sent
-            System.out.println("Sending JSON: " + jsonData);
-
-            // Connect to the server
-            Socket socket = new Socket(serverUrl.split(":")[0], Integer.parseInt(serverUrl.split(":")[1]));
-            // Create a writer for sending data
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-
-            // Increment Lamport clock before sending request
-            lamportClock.increment();
-
-            // Prepare and send HTTP PUT request
-            out.println("PUT /weather.json HTTP/1.1");
-            out.println("Content-Type: application/json");
-            out.println("Content-Length: " + jsonData.length());
-            out.println("Lamport-Clock: " + lamportClock.getClock());
-            out.println();
-            out.println(jsonData);
-
-            // Close the connection
-            socket.close();
-        } catch (Exception e) {
-            // Print exception information in case of error
-            e.printStackTrace();
+            out.println("Sending JSON: " + jsonData);
+
+            // Prepare the HTTP PUT request; the client adds Content-Length and Lamport-Clock
+            HttpRequest request;
+            if (binary) {
+                request = new HttpRequest("PUT", "/weather.json", WeatherDataCodec.encode(List.of(data)));
+                request.headers.put("Content-Type", WeatherDataCodec.MEDIA_TYPE);
+            } else {
+                request = new HttpRequest("PUT", "/weather.json", jsonData.getBytes(StandardCharsets.UTF_8));
+                request.headers.put("Content-Type", "application/json");
+            }
+            request.headers.put("Source-Id", sourceId());
+            requests.add(request);
+            ids.add(data.id);
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        List<HttpResponse> responses = router.sendAll(requests, ids);
+        List<HttpRequest> throttled = new ArrayList<>();
+        List<String> throttledIds = new ArrayList<>();
+        long retryAfterMillis = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            HttpResponse response = responses.get(i);
+            out.println("Server response: " + response.status + " " + response.reason);
+            long wait = retryAfterMillis(response);
+            if ((response.status == 429 || response.status == 503) && wait >= 0) {
+                throttled.add(requests.get(i));
+                throttledIds.add(ids.get(i));
+                retryAfterMillis = Math.max(retryAfterMillis, wait);
+            }
+        }
+
+        // Files the server was too busy for are sent again once it said to retry. A file answered with 409 is not:
+        // sending it again with a later Lamport time would let a stale write win over the one the server holds.
+        // Our clock already caught up with the server's on the GET /shards that opened the router.
+        if (!throttled.isEmpty()) {
+            backOff(retryAfterMillis, out);
+            for (HttpResponse response : router.sendAll(throttled, throttledIds)) {
+                out.println("Server response: " + response.status + " " + response.reason);
+            }
+        }
+    }
+
+
+    /**
+     * Sends every station file in a directory, then keeps watching it and sends new or changed files.
+     * Files that change close together are collected and sent as one batch.
+     *
+     * @param router    Sends each station to the AggregationServer owning it.
+     * @param directory The directory holding one station file per station.
+     * @throws IOException          If the directory cannot be watched or the server cannot be reached.
+     * @throws InterruptedException If the thread is interrupted while waiting for changes.
+     */
+    static void watchDirectory(ShardRouter router, Path directory) throws IOException, InterruptedException {
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            // Start with every file already in the directory
+            Set<Path> changed = new TreeSet<>();
+            addAllFiles(directory, changed);
+            while (true) {
+                if (!changed.isEmpty()) {
+                    pushBatch(router, changed);
+                    changed.clear();
+                }
+
+                // Wait for a change, then gather the rest of the burst
+                WatchKey key = watcher.take();
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            addAllFiles(directory, changed);
+                        } else {
+                            changed.add(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                } while ((key = watcher.poll(200, TimeUnit.MILLISECONDS)) != null);
+            }
+        }
+    }
+
+    /**
+     * Sends the stations in the given files as NDJSON (or binary) batch PUTs, one to each AggregationServer owning
+     * some of them.
+     *
+     * @param router Sends each station to the AggregationServer owning it.
+     * @param files  The station files.
+     * @throws IOException If the server cannot be reached.
+     */
+    static void pushBatch(ShardRouter router, Collection<Path> files) throws IOException {
+        List<WeatherData> stations = new ArrayList<>();
+        for (Path file : files) {
+            try {
+                WeatherData data = readFromFile(file.toString());
+                if (data.id == null) {
+                    System.out.println("Invalid file data: " + file);
+                    continue;
+                }
+                stations.add(data);
+            } catch (IOException e) {
+                // The file may have been removed or renamed since the change was seen
+                System.out.println("Could not read " + file + ": " + e.getMessage());
+            }
+        }
+        pushRecords(router, stations, true);
+    }
+
+    /**
+     * Sends the stations of a feed file as they are parsed, in NDJSON (or binary) batch PUTs.
+     * The file is parsed in parallel by a {@link FeedParser} on the common fork-join pool while this thread sends
+     * the batches parsed so far.
+     *
+     * @param router Sends each station to the AggregationServer owning it.
+     * @param feed   The feed file, one record block per station.
+     * @throws IOException          If the file cannot be read or the server cannot be reached.
+     * @throws InterruptedException If the thread is interrupted while waiting for the parser.
+     */
+    static void pushFeed(ShardRouter router, Path feed) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try (FeedParser parser = new FeedParser(feed, FeedParser.DEFAULT_CHUNK_BYTES, FeedParser.DEFAULT_BATCH_SIZE)) {
+            parser.start(ForkJoinPool.commonPool());
+            List<WeatherData> batch;
+            while ((batch = parser.next()) != null) {
+                pushRecords(router, batch, true);
+            }
+            System.out.println("Sent " + parser.records() + " stations from " + feed + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, skipped "
+                    + parser.malformed() + " malformed records");
+        }
+    }
+
+    /**
+     * Sends stations as NDJSON (or binary) batch PUTs, one to each AggregationServer owning some of them.
+     *
+     * @param router         Sends each station to the AggregationServer owning it.
+     * @param stations       The stations.
+     * @param retryThrottled Whether to send again, once, the stations the server throttled or shed. Stations it held
+     *                       a later write for (409) are never sent again.
+     * @throws IOException If the server cannot be reached.
+     */
+    private static void pushRecords(ShardRouter router, List<WeatherData> stations, boolean retryThrottled) throws IOException {
+        // Group the stations by the server that owns them
+        Map<AggregationClient, List<WeatherData>> batches = new LinkedHashMap<>();
+        for (WeatherData data : stations) {
+            batches.computeIfAbsent(router.clientFor(data.id), owner -> new ArrayList<>()).add(data);
+        }
+
+        List<WeatherData> throttled = new ArrayList<>();
+        long retryAfterMillis = 0;
+        for (Map.Entry<AggregationClient, List<WeatherData>> batch : batches.entrySet()) {
+            HttpRequest request;
+            if (binary) {
+                request = new HttpRequest("PUT", "/weather.json", WeatherDataCodec.encode(batch.getValue()));
+                request.headers.put("Content-Type", WeatherDataCodec.MEDIA_TYPE);
+            } else {
+                StringBuilder body = new StringBuilder();
+                for (WeatherData data : batch.getValue()) {
+                    body.append(adapter.serialize(data)).append('\n');
+                }
+                request = new HttpRequest("PUT", "/weather.json", body.toString().getBytes(StandardCharsets.UTF_8));
+                request.headers.put("Content-Type", "application/x-ndjson");
+            }
+            request.headers.put("Source-Id", sourceId());
+            HttpResponse response = batch.getKey().send(request);
+            router.observe(response);
+            JsonObject summary = null;
+            if ((response.status == 200 || response.status == 503) && response.body.length > 0) {
+                summary = JsonParser.parseString(response.bodyText()).getAsJsonObject();
+            }
+            System.out.println("Server response: " + response.status + " " + response.reason + (summary == null
+                    ? "" : ", " + summary.get("accepted") + " accepted, " + summary.get("rejected") + " rejected"));
+
+            // Send the stations the server throttled or shed again once it said to retry; those rejected as older
+            // than the stored data (409) stay rejected
+            long wait = retryAfterMillis(response);
+            if (!retryThrottled || wait < 0) {
+                continue;
+            }
+            if (response.status == 503 || response.status == 429) {
+                // A binary batch of one station is answered like a single PUT
+                throttled.addAll(batch.getValue());
+                retryAfterMillis = Math.max(retryAfterMillis, wait);
+            } else if (response.status == 200 && summary != null) {
+                for (JsonElement result : summary.getAsJsonArray("results")) {
+                    JsonObject record = result.getAsJsonObject();
+                    if (record.get("status").getAsInt() == 429) {
+                        throttled.add(batch.getValue().get(record.get("index").getAsInt()));
+                        retryAfterMillis = Math.max(retryAfterMillis, wait);
+                    }
+                }
+            }
+        }
+        if (!throttled.isEmpty()) {
+            backOff(retryAfterMillis, System.out);
+            pushRecords(router, throttled, false);
+        }
+    }
+
+    /**
+     * Reads how long the server asked the client to wait before sending a throttled or shed PUT again.
+     *
+     * @param response The server's response.
+     * @return The wait in milliseconds, or -1 if the response has no Retry-After.
+     */
+    private static long retryAfterMillis(HttpResponse response) {
+        String value = response.headers.get("Retry-After");
+        if (value == null || (response.status != 429 && response.status != 503 && response.status != 200)) {
+            return -1;
+        }
+        try {
+            return Math.min(MAX_RETRY_AFTER_SECONDS, Long.parseLong(value.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Waits before sending throttled stations again.
+     *
+     * @param millis How long the server asked to wait.
+     * @param out    Where the wait is reported.
+     * @throws IOException If the thread is interrupted while waiting.
+     */
+    private static void backOff(long millis, PrintStream out) throws IOException {
+        if (millis <= 0) {
+            return;
         }
+        out.println("Server is busy, sending again in " + millis / 1000 + " s");
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Returns this content server's source id, building the default on first use. The host name lookup behind it
+     * can take a while on a badly configured network, so it is not done at startup when --source-id is given.
+     *
+     * @return The source id.
+     */
+    private static synchronized String sourceId() {
+        if (sourceId == null) {
+            sourceId = defaultSourceId();
+        }
+        return sourceId;
+    }
+
+    /**
+     * Builds the default source id from the host name and process id, so restarts count as a new source.
+     *
+     * @return The source id, e.g. weather-host-4242
+     */
+    private static String defaultSourceId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return host + "-" + ProcessHandle.current().pid();
     }
 
+    private static void addAllFiles(Path directory, Set<Path> files) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
+            }
+        }
+    }
 
     /**
      * Reads weather data from a file and returns a WeatherData object.
+     * Each line is split at its first colon only, so values holding colons, like 15/04:00pm, are kept whole.
      * @param filePath The path to the file containing weather data.
      * @return A WeatherData object populated with the data from the file.
      * @throws IOException If there is an issue reading or processing the file.
      */
-    private static WeatherData readFromFile(String filePath) throws IOException {
-        // Create a BufferedReader to read the file
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
-
+    static WeatherData readFromFile(String filePath) throws IOException {
         // Create a WeatherData object to store the read data
         WeatherData data = new WeatherData();
 
-        // Read each line of the file
-        String line;
-        while ((line = reader.readLine()) != null) {
-            // Split each line into parts
-            String[] parts = line.split(":");
-
-            // Ensure there are at least two parts after splitting
-            if (parts.length < 2) continue;
-
-            // Process the data based on its type
-            switch (parts[0].trim()) {
-                case "id":
-                    data.id = parts[1].trim();
-                    break;
-                case "name":
-                    data.name = parts[1].trim();
-                    break;
-                case "state":
-                    data.state = parts[1].trim();
-                    break;
-                case "time_zone":
-                    data.time_zone = parts[1].trim();
-                    break;
-                case "lat":
-                    data.lat = Double.parseDouble(parts[1].trim());
-                    break;
-                case "lon":
-                    data.lon = Double.parseDouble(parts[1].trim());
-                    break;
-                case "local_date_time":
-                    data.local_date_time = parts[1].trim();
-                    break;
-                case "local_date_time_full":
-                    data.local_date_time_full = parts[1].trim();
-                    break;
-                case "air_temp":
-                    data.air_temp = Double.parseDouble(parts[1].trim());
-                    break;
-                case "apparent_t":
-                    data.apparent_t = Double.parseDouble(parts[1].trim());
-                    break;
-                case "cloud":
-                    data.cloud = parts[1].trim();
-                    break;
-                case "dewpt":
-                    data.dewpt = Double.parseDouble(parts[1].trim());
-                    break;
-                case "press":
-                    data.press = Double.parseDouble(parts[1].trim());
-                    break;
-                case "rel_hum":
-                    data.rel_hum = Integer.parseInt(parts[1].trim());
-                    break;
-                case "wind_dir":
-                    data.wind_dir = parts[1].trim();
-                    break;
-                case "wind_spd_kmh":
-                    data.wind_spd_kmh = Integer.parseInt(parts[1].trim());
-                    break;
-                case "wind_spd_kt":
-                    data.wind_spd_kt = Integer.parseInt(parts[1].trim());
-                    break;
-            }
-        }
-
-        // Close the BufferedReader
-        reader.close();
+        // Create a BufferedReader to read the file, closed however reading ends
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            // Read each line of the file
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readLine(data, line);
+            }
+        }
 
         // Return the WeatherData object filled with data
         return data;
     }
 
+    /**
+     * Reads one key:value line of a station file into a WeatherData object.
+     * @param data The object to fill in.
+     * @param line The line.
+     * @throws NumberFormatException If a numeric field does not hold a number.
+     */
+    private static void readLine(WeatherData data, String line) {
+        // Split the line into key and value, at the first colon
+        String[] parts = line.split(":", 2);
+
+        // Ensure there is a value after the key
+        if (parts.length < 2 || parts[1].trim().isEmpty()) return;
+
+        // Process the data based on its type
+        switch (parts[0].trim()) {
+            case "id":
+                data.id = parts[1].trim();
+                break;
+            case "name":
+                data.name = parts[1].trim();
+                break;
+            case "state":
+                data.state = parts[1].trim();
+                break;
+            case "time_zone":
+                data.time_zone = parts[1].trim();
+                break;
+            case "lat":
+                data.lat = Double.parseDouble(parts[1].trim());
+                break;
+            case "lon":
+                data.lon = Double.parseDouble(parts[1].trim());
+                break;
+            case "local_date_time":
+                data.local_date_time = parts[1].trim();
+                break;
+            case "local_date_time_full":
+                data.local_date_time_full = parts[1].trim();
+                break;
+            case "air_temp":
+                data.air_temp = Double.parseDouble(parts[1].trim());
+                break;
+            case "apparent_t":
+                data.apparent_t = Double.parseDouble(parts[1].trim());
+                break;
+            case "cloud":
+                data.cloud = parts[1].trim();
+                break;
+            case "dewpt":
+                data.dewpt = Double.parseDouble(parts[1].trim());
+                break;
+            case "press":
+                data.press = Double.parseDouble(parts[1].trim());
+                break;
+            case "rel_hum":
+                data.rel_hum = Integer.parseInt(parts[1].trim());
+                break;
+            case "wind_dir":
+                data.wind_dir = parts[1].trim();
+                break;
+            case "wind_spd_kmh":
+                data.wind_spd_kmh = Integer.parseInt(parts[1].trim());
+                break;
+            case "wind_spd_kt":
+                data.wind_spd_kt = Integer.parseInt(parts[1].trim());
+                break;
+        }
+    }
+
 }
@@ -0,0 +1,218 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ExpiryTracker decides when stored stations are dropped:
+// - when the content server that last sent a station has been silent for the source TTL,
+// - optionally, when the station itself has not been updated for the station TTL,
+// - and, when a station cap is set, the least recently updated station is evicted to make room.
+//
+// Each source and station has at most one entry in a timer wheel. When an entry comes due its last-seen time is
+// checked again; if it was refreshed meanwhile the entry is simply rescheduled, so expiry never scans all stations.
+// The last-seen times are kept in concurrent maps, so the usual PUT, a station sent again by the source that sent it
+// before, only updates them and takes no lock. Tracking a new station or source, moving a station to another source,
+// keeping the cap's order and expiring happen under the tracker's lock.
+class ExpiryTracker {
+    private static final int WHEEL_SLOTS = 512;
+
+    private final long sourceTtlMillis;
+    private final long stationTtlMillis;
+    private final int maxStations;
+
+    private final Map<String, Long> sourceLastSeen = new ConcurrentHashMap<>();
+    private final Map<String, Long> stationLastSeen = new ConcurrentHashMap<>();
+    private final Map<String, String> stationSource = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> sourceStations = new HashMap<>();
+    // Stations in the order they were last updated, kept only when there is a cap
+    private final LinkedHashMap<String, Boolean> recency = new LinkedHashMap<>(16, 0.75f, true);
+    // Keys that currently have an entry in their wheel
+    private final Set<String> scheduledSources = new HashSet<>();
+    private final Set<String> scheduledStations = new HashSet<>();
+    private final TimerWheel<String> sourceWheel;
+    private final TimerWheel<String> stationWheel;
+
+    /**
+     * Constructs a tracker.
+     *
+     * @param sourceTtlMillis  How long a silent source keeps its stations (0 keeps them forever).
+     * @param stationTtlMillis How long a station is kept without being updated (0 disables this check).
+     * @param maxStations      The most stations kept; the least recently updated is evicted beyond it (0 for no cap).
+     * @param tickMillis       The resolution of expiry.
+     * @param now              The current time in milliseconds.
+     */
+    ExpiryTracker(long sourceTtlMillis, long stationTtlMillis, int maxStations, long tickMillis, long now) {
+        this.sourceTtlMillis = sourceTtlMillis;
+        this.stationTtlMillis = stationTtlMillis;
+        this.maxStations = maxStations;
+        this.sourceWheel = new TimerWheel<>(WHEEL_SLOTS, tickMillis, now);
+        this.stationWheel = new TimerWheel<>(WHEEL_SLOTS, tickMillis, now);
+    }
+
+    /**
+     * Records that a source sent a station. Call before storing the station, so a concurrent expiry
+     * that re-checks {@link #isTracked} keeps the new data.
+     *
+     * @param source The content server that sent the station.
+     * @param id     The station id.
+     * @param now    The current time in milliseconds.
+     * @return The ids of stations evicted to stay within the station cap; usually empty.
+     */
+    List<String> touch(String source, String id, long now) {
+        // A station already tracked for this source: refresh both times in place. Each refresh is atomic with the
+        // expiry's check of the same entry, so either the expiry sees the new time or the refresh finds the entry
+        // gone and the station is tracked again below.
+        if (maxStations == 0 && source.equals(stationSource.get(id))
+                && sourceLastSeen.computeIfPresent(source, (key, seen) -> Math.max(seen, now)) != null
+                && stationLastSeen.computeIfPresent(id, (key, seen) -> Math.max(seen, now)) != null) {
+            return List.of();
+        }
+        return track(source, id, now);
+    }
+
+    /**
+     * Starts tracking a station or its source, or moves the station to a new source, and applies the cap.
+     */
+    private synchronized List<String> track(String source, String id, long now) {
+        sourceLastSeen.merge(source, now, Math::max);
+        if (sourceTtlMillis > 0 && scheduledSources.add(source)) {
+            sourceWheel.schedule(source, now + sourceTtlMillis);
+        }
+        stationLastSeen.merge(id, now, Math::max);
+        if (stationTtlMillis > 0 && scheduledStations.add(id)) {
+            stationWheel.schedule(id, now + stationTtlMillis);
+        }
+
+        // Move the station to the source that sent it last
+        String previous = stationSource.put(id, source);
+        if (previous != null && !previous.equals(source)) {
+            Set<String> stations = sourceStations.get(previous);
+            if (stations != null) {
+                stations.remove(id);
+            }
+        }
+        sourceStations.computeIfAbsent(source, s -> new HashSet<>()).add(id);
+
+        // Evict the least recently updated stations beyond the cap
+        List<String> evicted = new ArrayList<>();
+        if (maxStations > 0) {
+            recency.put(id, Boolean.TRUE);
+            Iterator<String> eldest = recency.keySet().iterator();
+            while (recency.size() > maxStations) {
+                String victim = eldest.next();
+                eldest.remove();
+                stationLastSeen.remove(victim);
+                detach(victim);
+                evicted.add(victim);
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Advances the timer wheels and returns every station that has expired.
+     *
+     * @param now The current time in milliseconds.
+     * @return The ids of the expired stations.
+     */
+    synchronized List<String> expire(long now) {
+        List<String> expired = new ArrayList<>();
+        for (String source : sourceWheel.advance(now)) {
+            Long lastSeen = removeIfOlder(sourceLastSeen, source, now - sourceTtlMillis);
+            if (lastSeen != null) {
+                // The source was heard from again; check back at its new deadline
+                sourceWheel.schedule(source, lastSeen + sourceTtlMillis);
+                continue;
+            }
+            scheduledSources.remove(source);
+            Set<String> stations = sourceStations.remove(source);
+            if (stations != null) {
+                for (String id : stations) {
+                    stationSource.remove(id);
+                    stationLastSeen.remove(id);
+                    recency.remove(id);
+                    expired.add(id);
+                }
+            }
+        }
+
+        for (String id : stationWheel.advance(now)) {
+            boolean tracked = stationLastSeen.containsKey(id);
+            Long lastSeen = removeIfOlder(stationLastSeen, id, now - stationTtlMillis);
+            if (lastSeen != null) {
+                stationWheel.schedule(id, lastSeen + stationTtlMillis);
+                continue;
+            }
+            scheduledStations.remove(id);
+            if (tracked) {
+                recency.remove(id);
+                detach(id);
+                expired.add(id);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Removes a last-seen time unless it is after the cutoff, atomically with a concurrent refresh.
+     *
+     * @return The time kept, or null if it was removed or missing.
+     */
+    private static Long removeIfOlder(Map<String, Long> lastSeen, String key, long cutoff) {
+        return lastSeen.computeIfPresent(key, (k, seen) -> seen > cutoff ? seen : null);
+    }
+
+    /**
+     * Tells whether a station is still tracked, i.e. it was touched after it last expired or was evicted.
+     *
+     * @param id The station id.
+     * @return true if the station should be kept.
+     */
+    boolean isTracked(String id) {
+        return stationLastSeen.containsKey(id);
+    }
+
+    /**
+     * Stops tracking a station that was moved to another server; its pending expiry is ignored when it comes due.
+     *
+     * @param id The station id.
+     */
+    synchronized void forget(String id) {
+        if (stationLastSeen.remove(id) != null) {
+            recency.remove(id);
+            detach(id);
+        }
+    }
+
+    /**
+     * Returns when a source was last heard from.
+     *
+     * @param source The content server.
+     * @return The time in milliseconds, or null if the source is unknown or expired.
+     */
+    Long sourceLastSeen(String source) {
+        return sourceLastSeen.get(source);
+    }
+
+    /**
+     * Removes a station from its source's set of stations.
+     *
+     * @param id The station id.
+     */
+    private void detach(String id) {
+        String source = stationSource.remove(id);
+        if (source != null) {
+            Set<String> stations = sourceStations.get(source);
+            if (stations != null) {
+                stations.remove(id);
+            }
+        }
+    }
+}
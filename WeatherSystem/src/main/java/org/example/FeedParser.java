@@ -0,0 +1,481 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// FeedParser class to read a large feed file of stations, in the key: value format of a station file, in parallel.
+// A feed holds one record block per station; blocks are separated by blank lines, and an id line in a block that
+// already has an id also starts a new one. The file is split into chunks at blank lines, each chunk is memory-mapped
+// and scanned by a task on a fork-join pool, and the records are handed over in batches through a bounded queue, so
+// the caller can send the first batches while the rest of the file is still being parsed, and a multi-gigabyte feed
+// never has to fit in the heap.
+// Values are taken from after the first colon of a line, so times like 15/04:00pm are kept whole, and keys with an
+// empty value are ignored. A record without an id, or with a number that does not parse, is dropped and counted in
+// malformed().
+// The order of records is kept within a chunk but not across chunks.
+class FeedParser implements Closeable {
+    static final int DEFAULT_CHUNK_BYTES = 64 << 20;
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    // How many parsed batches may wait for the caller before the parsing tasks block
+    private static final int QUEUED_BATCHES = 16;
+    // The window mapped at a time while looking for the blank line that ends a chunk
+    private static final int BOUNDARY_WINDOW = 64 << 10;
+    // Marks the end of the feed in the queue
+    private static final List<WeatherData> END = new ArrayList<>();
+
+    private final Path file;
+    private final int chunkBytes;
+    private final int batchSize;
+    private final BlockingQueue<List<WeatherData>> batches = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private FileChannel channel;
+    private List<long[]> chunks;
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    /**
+     * Constructs a parser for a feed file.
+     *
+     * @param file       The feed file.
+     * @param chunkBytes About how many bytes each parsing task takes; a chunk ends at the first blank line after this.
+     * @param batchSize  How many records are handed over at a time.
+     */
+    FeedParser(Path file, int chunkBytes, int batchSize) {
+        this.file = file;
+        this.chunkBytes = chunkBytes;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Splits the file into chunks and starts parsing them on the given pool. Returns at once; the records are
+     * taken with {@link #next}.
+     *
+     * @param pool The pool to parse on.
+     * @throws IOException If the file cannot be opened, or has a block of records with no blank line in 2 GiB.
+     */
+    void start(ForkJoinPool pool) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        chunks = split();
+        pool.execute(new ParseTask(0, chunks.size(), true));
+    }
+
+    /**
+     * Waits for the next batch of parsed records.
+     *
+     * @return The records, or null once the whole feed has been handed over.
+     * @throws IOException          If the file could not be read.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    List<WeatherData> next() throws IOException, InterruptedException {
+        List<WeatherData> batch = batches.take();
+        if (batch != END) {
+            return batch;
+        }
+        // Leave the marker for any later call
+        batches.offer(END);
+        if (failure != null) {
+            throw new IOException("Could not parse " + file + ": " + failure.getMessage(), failure);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the chunks the file was split into.
+     *
+     * @return The start and end offset of each chunk.
+     */
+    List<long[]> chunks() {
+        return chunks;
+    }
+
+    /**
+     * Returns how many records were parsed so far.
+     *
+     * @return The number of records handed over or waiting to be.
+     */
+    long records() {
+        return records.get();
+    }
+
+    /**
+     * Returns how many records were dropped so far.
+     *
+     * @return The number of records without an id or with a malformed number.
+     */
+    long malformed() {
+        return malformed.get();
+    }
+
+    /**
+     * Stops the parsing tasks, if still running, and closes the file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Unblock tasks waiting for room in the queue; they see closed and stop
+        batches.clear();
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Nothing more to read from it anyway
+        }
+    }
+
+    /**
+     * Splits the file at blank lines into chunks of about chunkBytes each.
+     *
+     * @return The start and end offset of each chunk.
+     * @throws IOException If the file cannot be read, or a chunk would be larger than a mapping can be.
+     */
+    private List<long[]> split() throws IOException {
+        List<long[]> split = new ArrayList<>();
+        long size = channel.size();
+        long start = 0;
+        while (start < size) {
+            long end = size - start <= chunkBytes ? size : boundaryAfter(start + chunkBytes, size);
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("No blank line between records from offset " + start);
+            }
+            split.add(new long[] {start, end});
+            start = end;
+        }
+        return split;
+    }
+
+    /**
+     * Finds the end of the first blank line at or after an offset.
+     *
+     * @param from The offset to search from.
+     * @param size The size of the file.
+     * @return The offset just after the blank line, or the size of the file if there is none.
+     * @throws IOException If the file cannot be read.
+     */
+    private long boundaryAfter(long from, long size) throws IOException {
+        boolean newLine = false;
+        boolean blank = false;
+        for (long window = from; window < size; window += BOUNDARY_WINDOW) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, window, Math.min(BOUNDARY_WINDOW, size - window));
+            for (int i = 0; i < buffer.limit(); i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    if (newLine && blank) {
+                        return window + i + 1;
+                    }
+                    newLine = true;
+                    blank = true;
+                } else if ((b & 0xff) > ' ') {
+                    blank = false;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Hands a batch to the caller, waiting while the queue is full without starving the pool of workers.
+     *
+     * @param batch The records, or END.
+     */
+    private void publish(List<WeatherData> batch) {
+        ForkJoinPool.ManagedBlocker blocker = new ForkJoinPool.ManagedBlocker() {
+            @Override
+            public boolean block() throws InterruptedException {
+                while (!closed && !batches.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    // Look at closed again
+                }
+                return true;
+            }
+
+            @Override
+            public boolean isReleasable() {
+                return closed || batches.offer(batch);
+            }
+        };
+        try {
+            ForkJoinPool.managedBlock(blocker);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    // ParseTask class to parse a range of chunks, splitting it in halves until each task has one chunk
+    private class ParseTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final boolean root;
+
+        ParseTask(int from, int to, boolean root) {
+            this.from = from;
+            this.to = to;
+            this.root = root;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (to - from == 1) {
+                    parseChunk(chunks.get(from));
+                } else if (to - from > 1) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new ParseTask(from, middle, false), new ParseTask(middle, to, false));
+                }
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                closed = true;
+            } finally {
+                if (root && closed) {
+                    // The parse failed or the caller gave up: the batches still queued are of no use
+                    batches.clear();
+                    batches.offer(END);
+                } else if (root) {
+                    // Every chunk is done; the end follows the last batch
+                    publish(END);
+                }
+            }
+        }
+
+        private void parseChunk(long[] chunk) throws IOException {
+            if (closed) {
+                return;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+            new Scanner(buffer).scan();
+        }
+    }
+
+    // Scanner class to read the records of one chunk, allocating little beyond the records themselves
+    private class Scanner {
+        private static final int CACHE_SIZE = 256;
+        private static final int MAX_CACHED_LENGTH = 64;
+
+        private final ByteBuffer buf;
+        // Repeated values (states, time zones, cloud descriptions...) are taken from a cache of the Strings read before
+        private final String[] cache = new String[CACHE_SIZE];
+        private final byte[][] cacheBytes = new byte[CACHE_SIZE][];
+        private List<WeatherData> batch = new ArrayList<>(batchSize);
+        private WeatherData record;
+        private boolean valid = true;
+
+        Scanner(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void scan() {
+            int end = buf.limit();
+            int pos = 0;
+            while (pos < end && !closed) {
+                int lineEnd = pos;
+                while (lineEnd < end && buf.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                line(pos, lineEnd);
+                pos = lineEnd + 1;
+            }
+            finishRecord();
+            if (!batch.isEmpty() && !closed) {
+                publish(batch);
+            }
+        }
+
+        /**
+         * Reads one key: value line into the current record; a blank line ends the record.
+         */
+        private void line(int from, int to) {
+            int keyStart = skipSpaces(from, to);
+            if (keyStart == to) {
+                finishRecord();
+                return;
+            }
+            int colon = keyStart;
+            while (colon < to && buf.get(colon) != ':') {
+                colon++;
+            }
+            if (colon == to) {
+                return;
+            }
+            int field = field(keyStart, trimSpaces(keyStart, colon));
+            if (field < 0) {
+                return;
+            }
+            int valueStart = skipSpaces(colon + 1, to);
+            int valueEnd = trimSpaces(valueStart, to);
+            if (valueStart == valueEnd) {
+                return;
+            }
+            if (field == 0 && record != null && record.id != null) {
+                // An id in a record that has one starts the next record
+                finishRecord();
+            }
+            if (record == null) {
+                record = new WeatherData();
+                valid = true;
+            }
+            if (WeatherDataDecoder.TEXT_FIELDS[field]) {
+                WeatherDataDecoder.setText(record, field, text(valueStart, valueEnd));
+            } else {
+                double number = number(valueStart, valueEnd, WeatherDataDecoder.INT_FIELDS[field]);
+                if (Double.isNaN(number)) {
+                    valid = false;
+                } else {
+                    WeatherDataDecoder.setNumber(record, field, number);
+                }
+            }
+        }
+
+        private void finishRecord() {
+            if (record == null) {
+                return;
+            }
+            if (valid && record.id != null) {
+                records.incrementAndGet();
+                batch.add(record);
+                if (batch.size() == batchSize) {
+                    publish(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            } else {
+                malformed.incrementAndGet();
+            }
+            record = null;
+        }
+
+        /**
+         * Finds the WeatherData field a key names.
+         *
+         * @return The field's index in WeatherDataDecoder.FIELDS, or -1 for any other key.
+         */
+        private int field(int from, int to) {
+            byte[][] names = WeatherDataDecoder.FIELD_BYTES;
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].length == to - from && spells(from, names[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private String text(int from, int to) {
+            int length = to - from;
+            if (length > MAX_CACHED_LENGTH) {
+                return decode(from, length);
+            }
+            int hash = 0x811c9dc5;
+            for (int i = from; i < to; i++) {
+                hash = (hash ^ buf.get(i)) * 0x01000193;
+            }
+            int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+            byte[] cached = cacheBytes[slot];
+            if (cached != null && cached.length == length && spells(from, cached)) {
+                return cache[slot];
+            }
+            byte[] bytes = new byte[length];
+            buf.get(from, bytes);
+            cacheBytes[slot] = bytes;
+            cache[slot] = new String(bytes, StandardCharsets.UTF_8);
+            return cache[slot];
+        }
+
+        private String decode(int from, int length) {
+            byte[] bytes = new byte[length];
+            buf.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Parses a decimal number, as Double.parseDouble or, for whole-number fields, Integer.parseInt would.
+         *
+         * @return The number, or NaN if the value is not one.
+         */
+        private double number(int from, int to, boolean integer) {
+            int pos = from;
+            boolean negative = pos < to && (buf.get(pos) == '-' || buf.get(pos) == '+');
+            if (negative) {
+                negative = buf.get(pos) == '-';
+                pos++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int fraction = 0;
+            boolean point = false;
+            boolean any = false;
+            for (; pos < to; pos++) {
+                int b = buf.get(pos);
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    any = true;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (point) {
+                        fraction++;
+                    }
+                } else if (b == '.' && !point && !integer) {
+                    point = true;
+                } else {
+                    break;
+                }
+            }
+            if (!any) {
+                return Double.NaN;
+            }
+            if (pos == to && digits <= WeatherDataDecoder.MAX_FAST_DIGITS && fraction < WeatherDataDecoder.POWERS_OF_TEN.length) {
+                double value = mantissa / WeatherDataDecoder.POWERS_OF_TEN[fraction];
+                if (integer && (negative ? -mantissa < Integer.MIN_VALUE : mantissa > Integer.MAX_VALUE)) {
+                    return Double.NaN;
+                }
+                return negative ? -value : value;
+            }
+            // Exponents, long mantissas and the like are rare; let the JDK decide
+            String text = decode(from, to - from);
+            try {
+                return integer ? Integer.parseInt(text) : Double.parseDouble(text);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        private boolean spells(int from, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (buf.get(from + i) != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Spaces, tabs and the \r of CRLF line ends are trimmed, as String.trim does
+        private int skipSpaces(int from, int to) {
+            while (from < to && (buf.get(from) & 0xff) <= ' ') {
+                from++;
+            }
+            return from;
+        }
+
+        private int trimSpaces(int from, int to) {
+            while (to > from && (buf.get(to - 1) & 0xff) <= ' ') {
+                to--;
+            }
+            return to;
+        }
+    }
+}
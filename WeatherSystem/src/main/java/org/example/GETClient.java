@@ -1,100 +1,190 @@
 package org.example;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
-import java.io.*;
-import java.lang.reflect.Type;
-import java.net.Socket;
-import java.util.Map;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class GETClient {
-    private static final Gson gson = new Gson();
+    // Reads stations without building a Gson, which a one-shot run would spend much of its time on
+    private static final WeatherDataAdapter adapter = new WeatherDataAdapter();
     private static LamportClock lamportClock = new LamportClock();
+    // Whether the full data is asked for in the binary form of WeatherDataCodec instead of JSON
+    private static boolean binary;
 
         /**
      * Main entry point for the application
      * Connects to the server using command line arguments and sends a GET request,
      * then receives and processes the server's response.
+     * With --follow the client keeps running and prints every change the server reports, by long-polling
+     * GET /changes instead of downloading the full data again.
+     * With --binary the full data is downloaded as application/x-weather-binary. Either way the client accepts
+     * compressed responses, and prints each station as soon as it is decoded rather than after the whole response.
      *
-     * @param args Command line arguments, expected format is <server:port>
+     * @param args Command line arguments, expected format is <server:port>[,<server:port>...] [station_id] [--follow] [--binary]
      */
     public static void main(String[] args) {
         // Check if command line arguments are provided
         if (args.length < 1) {
-            System.out.println("Usage: java GETclient <server:port>");
+            System.out.println("Usage: java GETclient <server:port>[,<server:port>...] [station_id] [--follow] [--binary]");
             return;
         }
 
         // Get the server address and port number
         String serverUrl = args[0];
+        String stationId = null;
+        boolean follow = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--follow")) {
+                follow = true;
+            } else if (args[i].equals("--binary")) {
+                binary = true;
+            } else {
+                stationId = args[i];
+            }
+        }
 
-        try {
-            // Connect to the server
-            Socket socket = new Socket(serverUrl.split(":")[0], Integer.parseInt(serverUrl.split(":")[1]));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        try (AggregationClient client = AggregationClient.forAddress(serverUrl, lamportClock)) {
+            if (follow) {
+                follow(client, stationId);
+                return;
+            }
+            long count = fetch(client, stationId, data -> true, data -> displayWeather(System.out, data));
+            if (count >= 0) {
+                System.out.println("Server response: " + count + " stations");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            // Increment the Lamport clock to ensure correct ordering of events in a distributed system
-            lamportClock.increment();
+    /**
+     * Fetches the stored weather data, handing each station to the output as soon as it is decoded.
+     * The response is streamed rather than read whole, so the client needs the same memory for a million stations as
+     * for one, and prints the first before the rest have arrived.
+     *
+     * @param client    The client connected to the server.
+     * @param stationId Only this station, or null for all of them.
+     * @param filter    Which stations to pass on.
+     * @param output    Called with each station the filter accepts, in the order the server sent them.
+     * @return The number of stations passed to the output, or -1 if the server did not answer 200.
+     * @throws IOException If the server cannot be reached or the response is malformed.
+     */
+    static long fetch(AggregationClient client, String stationId, Predicate<WeatherData> filter,
+                      Consumer<WeatherData> output) throws IOException {
+        // Ask only for one station if an id is given, instead of downloading all of them
+        String path = "/weather.json";
+        if (stationId != null) {
+            path += "?id=" + URLEncoder.encode(stationId, StandardCharsets.UTF_8);
+        }
 
-            // Send a GET request with the Lamport clock
-            out.println("GET /weather.json HTTP/1.1");
-            out.println("Lamport-Clock: " + lamportClock.getClock());
-            out.println(); // Empty line to indicate end of headers
+        // Send a GET request; the client stamps it with the Lamport clock
+        HttpRequest request = new HttpRequest("GET", path, null);
+        if (binary) {
+            request.headers.put("Accept", WeatherDataCodec.MEDIA_TYPE + ", application/json;q=0.5");
+        }
+        long[] count = {-1};
+        client.stream(request, (response, body) -> {
+            if (response.status != 200) {
+                System.out.println("Server responded: " + response.status + " " + response.reason);
+                return;
+            }
+            // The server may answer in JSON anyway, e.g. for a query
+            count[0] = StationStream.read(body, response.headers.get("Content-Type"), filter, output);
+        });
+        return count[0];
+    }
 
-            // Read the server's response
-            String responseLine;
-            StringBuilder response = new StringBuilder();
-            boolean isBody = false;
+    /**
+     * Displays the current data, then every change reported by the server until the process is stopped.
+     * Each long poll asks for the changes after the clock returned by the previous one. If the server no longer
+     * holds changes that far back (e.g. after a restart), the full data is fetched and displayed again.
+     * So it is when the client fails over to another server of a cluster, whose clock counts other changes.
+     *
+     * @param client    The client connected to the server.
+     * @param stationId Only this station, or null for all of them.
+     * @throws InterruptedException If the thread is interrupted while waiting to retry.
+     */
+    private static void follow(AggregationClient client, String stationId) throws InterruptedException {
+        String filter = stationId == null ? "" : "&id=" + URLEncoder.encode(stationId, StandardCharsets.UTF_8);
+        long since = -1;
+        String server = client.currentAddress();
+        while (true) {
+            try {
+                if (since < 0) {
+                    server = client.currentAddress();
+                    // Take the current clock first, so no change between it and the full fetch is missed
+                    JsonObject now = poll(client, "/changes?timeout=0" + filter);
+                    fetch(client, stationId, data -> true, data -> displayWeather(System.out, data));
+                    since = now.get("clock").getAsLong();
+                }
 
-            while ((responseLine = in.readLine()) != null) {
-                if (responseLine.isEmpty()) {
-                    isBody = true;
+                JsonObject changes = poll(client, "/changes?since=" + since + "&timeout=30" + filter);
+                if (!client.currentAddress().equals(server)) {
+                    System.out.println("Switched to " + client.currentAddress() + ", fetching the full data again");
+                    since = -1;
+                    continue;
+                }
+                if (changes.get("reset").getAsBoolean()) {
+                    System.out.println("Missed some changes, fetching the full data again");
+                    since = -1;
                     continue;
                 }
-                if (isBody) {
-                    response.append(responseLine);
+                for (JsonElement element : changes.getAsJsonArray("changes")) {
+                    JsonObject change = element.getAsJsonObject();
+                    if (change.get("op").getAsString().equals("delete")) {
+                        System.out.println("Removed: " + change.get("id").getAsString());
+                    } else {
+                        WeatherData weather = adapter.fromJsonTree(change.get("data"));
+                        displayWeather(System.out, weather);
+                    }
                 }
+                since = changes.get("clock").getAsLong();
+            } catch (IOException e) {
+                // The server may be restarting; the next poll starts with a full fetch
+                System.out.println("Lost the server (" + e.getMessage() + "), retrying");
+                since = -1;
+                Thread.sleep(1000);
             }
-
-            // Print the server's response
-            System.out.println("Server response body: " + response.toString());
-
-            // Process the response, removing the Lamport-Clock part
-            String jsonResponse = response.toString().split("Lamport-Clock")[0].trim();
-
-            // Use TypeToken to specify the type Map<String, WeatherData>
-            Type weatherDataType = new TypeToken<Map<String, WeatherData>>() {}.getType();
-            Map<String, WeatherData> weatherDataMap = gson.fromJson(jsonResponse, weatherDataType);
-            displayWeather(weatherDataMap);
-
-            // Close the connection
-            socket.close();
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 
     /**
-     * Displays the weather information stored in the given map.
-     * Iterates through the map containing weather data, retrieving and displaying the weather information for each location.
+     * Sends one long poll of GET /changes.
      *
-     * @param dataMap A map where the key is a string representing the location identifier, and the value is a WeatherData object containing the weather data.
+     * @param client The client connected to the server.
+     * @param path   The request path and query.
+     * @return The response body.
+     * @throws IOException If the server cannot be reached or does not answer 200.
      */
-    private static void displayWeather(Map<String, WeatherData> dataMap) {
-        // Iterates through the keys in the map, i.e., the location identifiers
-        for (String id : dataMap.keySet()) {
-            // Retrieves the WeatherData object corresponding to the current location identifier from the map
-            WeatherData weather = dataMap.get(id);
-            // Displays the name of the location
-            System.out.println("Weather for: " + weather.name);
-            // Displays the air temperature for the location
-            System.out.println("Temperature: " + weather.air_temp + "°C");
-            // Displays the cloud cover percentage for the location
-            System.out.println("Cloud: " + weather.cloud);
-            // Displays the wind speed for the location in km/h
-            System.out.println("Wind Speed: " + weather.wind_spd_kmh + " km/h");
+    private static JsonObject poll(AggregationClient client, String path) throws IOException {
+        HttpResponse response = client.send(new HttpRequest("GET", path, null));
+        if (response.status != 200) {
+            throw new IOException("Server responded " + response.status + " " + response.reason);
         }
+        return JsonParser.parseString(response.bodyText()).getAsJsonObject();
+    }
+
+    /**
+     * Displays the weather information of one station.
+     *
+     * @param out     Where to print it.
+     * @param weather The station's weather data.
+     */
+    static void displayWeather(PrintStream out, WeatherData weather) {
+        // Displays the name of the location
+        out.println("Weather for: " + weather.name);
+        // Displays the air temperature for the location
+        out.println("Temperature: " + weather.air_temp + "°C");
+        // Displays the cloud cover percentage for the location
+        out.println("Cloud: " + weather.cloud);
+        // Displays the wind speed for the location in km/h
+        out.println("Wind Speed: " + weather.wind_spd_kmh + " km/h");
     }
 }
@@ -0,0 +1,276 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// HeaderMap class to hold the headers of a request without a String or map entry per header. Headers parsed by
+// RequestParser stay in the buffer they were read into, as offsets, and are matched against the names asked for byte
+// by byte; a value only becomes a String when it is read. Headers added by code are kept as Strings.
+// Names are matched case-insensitively, as HTTP requires. Small enough that a linear scan beats hashing.
+class HeaderMap extends AbstractMap<String, String> {
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    // For a header still in the buffer, where its name and value are; names[i] and values[i] are then null
+    private int[] nameOffsets = new int[16];
+    private int[] nameLengths = new int[16];
+    private int[] valueOffsets = new int[16];
+    private int[] valueLengths = new int[16];
+    private byte[] buf;
+    private int size;
+
+    /**
+     * Adds a header as it lies in the parser's buffer; the buffer must stay unchanged while the headers are in use.
+     *
+     * @param buf         The buffer the request was read into.
+     * @param nameOffset  The offset of the header name.
+     * @param nameLength  The length of the name.
+     * @param valueOffset The offset of the value, without surrounding spaces.
+     * @param valueLength The length of the value.
+     */
+    void add(byte[] buf, int nameOffset, int nameLength, int valueOffset, int valueLength) {
+        int i = find(buf, nameOffset, nameLength);
+        if (i < 0) {
+            i = size++;
+            grow();
+        }
+        // A repeated header replaces the earlier one, as it did in the TreeMap this replaces
+        this.buf = buf;
+        names[i] = null;
+        values[i] = null;
+        nameOffsets[i] = nameOffset;
+        nameLengths[i] = nameLength;
+        valueOffsets[i] = valueOffset;
+        valueLengths[i] = valueLength;
+    }
+
+    /**
+     * Parses a header's value as a non-negative decimal number, straight from the buffer.
+     *
+     * @param name The header name.
+     * @return The value, -1 if the header is missing, or -2 if it is not a number.
+     */
+    long number(String name) {
+        int i = indexOf(name);
+        if (i < 0) {
+            return -1;
+        }
+        if (values[i] != null) {
+            return parseNumber(values[i]);
+        }
+        return parseDigits(buf, valueOffsets[i], valueLengths[i]);
+    }
+
+    /**
+     * Parses bytes as a non-negative decimal number without making a String of them.
+     *
+     * @param buf    The buffer.
+     * @param off    The offset of the first digit.
+     * @param length The number of bytes.
+     * @return The value, or -2 if the bytes are not 1 to 18 decimal digits.
+     */
+    static long parseDigits(byte[] buf, int off, int length) {
+        if (length == 0 || length > 18) {
+            return -2;
+        }
+        long value = 0;
+        for (int j = off; j < off + length; j++) {
+            int digit = buf[j] - '0';
+            if (digit < 0 || digit > 9) {
+                return -2;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = key instanceof String ? indexOf((String) key) : -1;
+        return i < 0 ? null : value(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        int i = indexOf(key);
+        if (i >= 0) {
+            String previous = value(i);
+            values[i] = value;
+            return previous;
+        }
+        i = size++;
+        grow();
+        names[i] = key;
+        values[i] = value;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        int i = key instanceof String ? indexOf((String) key) : -1;
+        if (i < 0) {
+            return null;
+        }
+        String previous = value(i);
+        int moved = size - i - 1;
+        System.arraycopy(names, i + 1, names, i, moved);
+        System.arraycopy(values, i + 1, values, i, moved);
+        System.arraycopy(nameOffsets, i + 1, nameOffsets, i, moved);
+        System.arraycopy(nameLengths, i + 1, nameLengths, i, moved);
+        System.arraycopy(valueOffsets, i + 1, valueOffsets, i, moved);
+        System.arraycopy(valueLengths, i + 1, valueLengths, i, moved);
+        size--;
+        names[size] = null;
+        values[size] = null;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        buf = null;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(name(i), value(i));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Finds a header by name.
+     *
+     * @param name The header name, in any case.
+     * @return Its index, or -1 if there is no such header.
+     */
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] != null) {
+                if (names[i].equalsIgnoreCase(name)) {
+                    return i;
+                }
+            } else if (nameLengths[i] == name.length() && matches(buf, nameOffsets[i], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a header by a name in the buffer, for a header repeated in one request.
+     */
+    private int find(byte[] buf, int nameOffset, int nameLength) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] != null) {
+                if (names[i].length() == nameLength && matches(buf, nameOffset, names[i])) {
+                    return i;
+                }
+            } else if (nameLengths[i] == nameLength && regionMatches(buf, nameOffsets[i], nameOffset, nameLength)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String name(int i) {
+        if (names[i] == null) {
+            names[i] = new String(buf, nameOffsets[i], nameLengths[i], StandardCharsets.ISO_8859_1);
+        }
+        return names[i];
+    }
+
+    private String value(int i) {
+        if (values[i] == null) {
+            values[i] = new String(buf, valueOffsets[i], valueLengths[i], StandardCharsets.ISO_8859_1);
+        }
+        return values[i];
+    }
+
+    private void grow() {
+        if (size > names.length) {
+            int capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            nameLengths = Arrays.copyOf(nameLengths, capacity);
+            valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+            valueLengths = Arrays.copyOf(valueLengths, capacity);
+        }
+    }
+
+    private static long parseNumber(String value) {
+        try {
+            long number = Long.parseLong(value.trim());
+            return number < 0 ? -2 : number;
+        } catch (NumberFormatException e) {
+            return -2;
+        }
+    }
+
+    /**
+     * Compares bytes in a buffer with a name, ignoring ASCII case; the lengths must already be equal.
+     */
+    private static boolean matches(byte[] buf, int off, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (lower(buf[off + i]) != lower(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] buf, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (lower(buf[a + i]) != lower(buf[b + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lower(int c) {
+        c &= 0xff;
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+}
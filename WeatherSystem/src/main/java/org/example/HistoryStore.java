@@ -0,0 +1,214 @@
+package org.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// HistoryStore keeps a StationHistory for every station and answers GET /weather/{id}/history.
+// Readings are timed by the server's wall clock when their PUT is accepted, since the stations' own
+// local_date_time strings are in many time zones. History is held in memory only; it starts again after a restart.
+class HistoryStore {
+    // The window returned when a query gives no from
+    private static final long DEFAULT_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final Map<String, StationHistory> stations = new ConcurrentHashMap<>();
+    private final int rawSamples;
+    private final long rollupMillis;
+    private final int rollupCapacity;
+
+    /**
+     * Constructs an empty store.
+     *
+     * @param rawSamples     About how many recent samples of each station to keep exactly.
+     * @param rollupMillis   The width of a rollup bucket.
+     * @param rollupCapacity The number of rollup buckets kept per station.
+     */
+    HistoryStore(int rawSamples, long rollupMillis, int rollupCapacity) {
+        this.rawSamples = rawSamples;
+        this.rollupMillis = rollupMillis;
+        this.rollupCapacity = rollupCapacity;
+    }
+
+    /**
+     * Creates the history store configured by the server options.
+     *
+     * @param config The server configuration.
+     * @return The store, or null if history is disabled with --history-samples=0.
+     */
+    static HistoryStore create(ServerConfig config) {
+        if (config.historySamples <= 0) {
+            return null;
+        }
+        return new HistoryStore(config.historySamples, config.historyRollupSeconds * 1000L, config.historyRollups);
+    }
+
+    /**
+     * Records the readings of a stored station.
+     *
+     * @param data The station, as stored.
+     * @param now  The time the PUT was accepted, in milliseconds.
+     */
+    void record(WeatherData data, long now) {
+        double[] values = {data.air_temp, data.apparent_t, data.dewpt, data.press, data.rel_hum, data.wind_spd_kmh};
+        stations.computeIfAbsent(data.id, id -> new StationHistory(rawSamples, rollupMillis, rollupCapacity))
+                .record(now, values);
+    }
+
+    /**
+     * Drops the history of a removed station.
+     *
+     * @param id The station id.
+     */
+    void remove(String id) {
+        stations.remove(id);
+    }
+
+    /**
+     * Answers a history query.
+     * Without step, every raw sample between from and to is returned. With step, samples are grouped into buckets
+     * of that width, each with the count and the min, max and mean of every field; older data that only survives as
+     * rollups is included at the rollups' width.
+     *
+     * @param id     The station id.
+     * @param params The query parameters: from and to (epoch milliseconds or ISO-8601 instants, default the last
+     *               24 hours) and step (a duration such as 30s, 5m, 1h or 1d, or milliseconds).
+     * @param now    The current time in milliseconds.
+     * @return The history as JSON, or null if the station has no history.
+     * @throws IllegalArgumentException If a parameter is malformed.
+     */
+    JsonObject query(String id, Map<String, String> params, long now) {
+        StationHistory history = stations.get(id);
+        if (history == null) {
+            return null;
+        }
+        long to = params.containsKey("to") ? parseTime(params.get("to")) : now;
+        long from = params.containsKey("from") ? parseTime(params.get("from")) : to - DEFAULT_WINDOW_MILLIS;
+        long step = params.containsKey("step") ? parseDuration(params.get("step")) : 0;
+        if (from > to) {
+            throw new IllegalArgumentException("from is after to");
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("id", id);
+        result.addProperty("from", from);
+        result.addProperty("to", to);
+        JsonArray points = new JsonArray();
+        if (step == 0) {
+            history.rawSamples(from, to, (time, values) -> {
+                JsonObject point = new JsonObject();
+                point.addProperty("t", time);
+                for (int f = 0; f < values.length; f++) {
+                    point.addProperty(StationHistory.FIELDS[f], values[f]);
+                }
+                points.add(point);
+            });
+        } else {
+            result.addProperty("step", step);
+            TreeMap<Long, Bucket> buckets = new TreeMap<>();
+            history.rawSamples(from, to, (time, values) ->
+                    buckets.computeIfAbsent(Math.floorDiv(time, step) * step, t -> new Bucket())
+                            .add(1, values, values, values));
+            history.rollups(from, to, (start, count, min, max, mean) ->
+                    buckets.computeIfAbsent(Math.floorDiv(start, step) * step, t -> new Bucket())
+                            .add(count, min, max, mean));
+            for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+                points.add(entry.getValue().toJson(entry.getKey()));
+            }
+        }
+        result.add("points", points);
+        return result;
+    }
+
+    /**
+     * Parses a time given as epoch milliseconds or as an ISO-8601 instant such as 2024-09-01T10:00:00Z.
+     */
+    static long parseTime(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (DateTimeParseException e2) {
+                throw new IllegalArgumentException("Invalid time " + value);
+            }
+        }
+    }
+
+    /**
+     * Parses a duration such as 500ms, 30s, 5m, 1h or 1d; a bare number is milliseconds.
+     */
+    static long parseDuration(String value) {
+        int digits = 0;
+        while (digits < value.length() && Character.isDigit(value.charAt(digits))) {
+            digits++;
+        }
+        if (digits == 0) {
+            throw new IllegalArgumentException("Invalid duration " + value);
+        }
+        long amount = Long.parseLong(value.substring(0, digits));
+        long unit;
+        switch (value.substring(digits)) {
+            case "":
+            case "ms":
+                unit = 1;
+                break;
+            case "s":
+                unit = 1000;
+                break;
+            case "m":
+                unit = 60_000;
+                break;
+            case "h":
+                unit = 3_600_000;
+                break;
+            case "d":
+                unit = 86_400_000;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid duration " + value);
+        }
+        if (amount <= 0 || amount > Long.MAX_VALUE / unit) {
+            throw new IllegalArgumentException("Duration out of range: " + value);
+        }
+        return amount * unit;
+    }
+
+    // Bucket class to accumulate the samples and rollups that fall into one step of a query
+    private static class Bucket {
+        private int count;
+        private final double[] min = new double[StationHistory.FIELDS.length];
+        private final double[] max = new double[StationHistory.FIELDS.length];
+        private final double[] sum = new double[StationHistory.FIELDS.length];
+
+        /**
+         * Adds count readings summarized by their min, max and mean; a single sample passes its values for all three.
+         */
+        void add(int n, double[] bucketMin, double[] bucketMax, double[] bucketMean) {
+            for (int f = 0; f < sum.length; f++) {
+                min[f] = count == 0 ? bucketMin[f] : Math.min(min[f], bucketMin[f]);
+                max[f] = count == 0 ? bucketMax[f] : Math.max(max[f], bucketMax[f]);
+                sum[f] += bucketMean[f] * n;
+            }
+            count += n;
+        }
+
+        JsonObject toJson(long start) {
+            JsonObject point = new JsonObject();
+            point.addProperty("t", start);
+            point.addProperty("count", count);
+            for (int f = 0; f < sum.length; f++) {
+                JsonObject field = new JsonObject();
+                field.addProperty("min", min[f]);
+                field.addProperty("max", max[f]);
+                // Rounded so the mean of readings with one decimal place does not print as 13.299999999999999
+                field.addProperty("avg", Math.round(sum[f] / count * 1000) / 1000.0);
+                point.add(StationHistory.FIELDS[f], field);
+            }
+            return point;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// HttpRequest class to hold one request exchanged between the clients and the AggregationServer
+class HttpRequest {
+    // Bodies larger than this are refused rather than buffered
+    static final int MAX_BODY_BYTES = 16 << 20;
+
+    String method;
+    String path;
+    String version = "HTTP/1.1";
+    // Header names are matched case-insensitively, as HTTP requires
+    final HeaderMap headers = new HeaderMap();
+    byte[] body = new byte[0];
+    // The address of the client that sent the request, set by the connection engine
+    String remoteAddress;
+    // The server's Lamport time when it received the request, set by AggregationServer.handleRequest
+    long receivedClock;
+
+    /**
+     * Constructs an empty request, to be filled in by the parser.
+     */
+    HttpRequest() {
+    }
+
+    /**
+     * Constructs a request to send to the server.
+     *
+     * @param method The request method, e.g. GET or PUT.
+     * @param path   The request path.
+     * @param body   The request body, or null for none.
+     */
+    HttpRequest(String method, String path, byte[] body) {
+        this.method = method;
+        this.path = path;
+        if (body != null) {
+            this.body = body;
+        }
+    }
+
+    /**
+     * Writes this request, with a Content-Length header matching the body.
+     *
+     * @param output The stream connected to the server.
+     * @throws IOException If an I/O error occurs.
+     */
+    void writeTo(OutputStream output) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(' ').append(version).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!header.getKey().equalsIgnoreCase("Content-Length")) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        output.write(head.toString().getBytes(StandardCharsets.UTF_8));
+        output.write(body);
+    }
+
+    /**
+     * Finds the end of the first complete request in a buffer, as {@link #frame} does, for callers that do not need
+     * to know where its body starts.
+     *
+     * @param buf The buffered bytes received from the client.
+     * @param off The offset of the first unconsumed byte.
+     * @param len The end of the valid bytes in buf.
+     * @return The offset just past the request, or -1 if more input is needed.
+     * @throws IOException If the headers declare an invalid or oversized body.
+     */
+    static int frameEnd(byte[] buf, int off, int len) throws IOException {
+        long frame = frame(buf, off, len);
+        return frame < 0 ? -1 : (int) frame;
+    }
+
+    /**
+     * Frames the first complete request in a buffer, finding where its body starts and where it ends, so the body
+     * can be copied out once as the array the request will hold. The request line and headers end at the first
+     * empty line, and the body is exactly Content-Length bytes, as {@link RequestParser#read} reads them.
+     * Used by the non-blocking engine, which has to know a request is complete before parsing it.
+     *
+     * @param buf The buffered bytes received from the client.
+     * @param off The offset of the first unconsumed byte.
+     * @param len The end of the valid bytes in buf.
+     * @return The offset of the body in the high 32 bits and the offset just past the request in the low 32 bits,
+     *         or -1 if more input is needed.
+     * @throws IOException If the headers declare an invalid or oversized body.
+     */
+    static long frame(byte[] buf, int off, int len) throws IOException {
+        int pos = off;
+        int contentLength = 0;
+        boolean requestLine = true;
+        while (true) {
+            // Locate the end of the next line
+            int end = pos;
+            while (end < len && buf[end] != '\n') {
+                end++;
+            }
+            if (end == len) {
+                return -1;
+            }
+            int lineEnd = end > pos && buf[end - 1] == '\r' ? end - 1 : end;
+            if (lineEnd == pos && requestLine) {
+                // Skip empty lines left between requests
+                pos = end + 1;
+                continue;
+            }
+            if (lineEnd == pos) {
+                // An empty line ends the headers; the body follows
+                long bodyEnd = (long) end + 1 + contentLength;
+                return bodyEnd <= len ? (long) (end + 1) << 32 | bodyEnd : -1;
+            }
+            if (!requestLine && startsWithIgnoreCase(buf, pos, lineEnd, "Content-Length:")) {
+                contentLength = contentLength(buf, pos + 15, lineEnd);
+            }
+            requestLine = false;
+            pos = end + 1;
+        }
+    }
+
+    /**
+     * Returns the value of the Lamport-Clock header, or 0 if the client did not send one.
+     *
+     * @return The client's Lamport clock.
+     * @throws NumberFormatException If the header is not a number.
+     */
+    long lamportClock() {
+        long clock = headers.number("Lamport-Clock");
+        if (clock >= 0) {
+            return clock;
+        }
+        // Missing, or not a plain number: parse it as text, which rejects anything but a signed number
+        String value = headers.get("Lamport-Clock");
+        return value == null ? 0 : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Identifies the content server that sent the request, for expiring its data once it goes silent.
+     *
+     * @return The Source-Id header, or the client's address if the client did not send one.
+     */
+    String source() {
+        String source = headers.get("Source-Id");
+        if (source != null) {
+            return source;
+        }
+        return remoteAddress != null ? remoteAddress : "unknown";
+    }
+
+    /**
+     * Returns the request path without its query string.
+     *
+     * @return The path, e.g. /weather.json
+     */
+    String route() {
+        int question = path.indexOf('?');
+        return question < 0 ? path : path.substring(0, question);
+    }
+
+    /**
+     * Decodes the query string of the request path.
+     *
+     * @return The query parameters in the order given; empty if there is no query string.
+     */
+    Map<String, String> queryParameters() {
+        Map<String, String> params = new LinkedHashMap<>();
+        int question = path.indexOf('?');
+        if (question < 0) {
+            return params;
+        }
+        for (String pair : path.substring(question + 1).split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    /**
+     * Decodes the body as UTF-8 text.
+     *
+     * @return The body text.
+     */
+    String bodyText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decides whether the connection stays open after this request.
+     * HTTP/1.1 connections are persistent unless the client asks to close; HTTP/1.0 ones are the opposite.
+     *
+     * @return true if the server should keep the connection open.
+     */
+    boolean keepAlive() {
+        String connection = headers.get("Connection");
+        if (version.equals("HTTP/1.0")) {
+            return "keep-alive".equalsIgnoreCase(connection);
+        }
+        return !"close".equalsIgnoreCase(connection);
+    }
+
+    /**
+     * Reads one line terminated by LF (with an optional CR before it).
+     *
+     * @param input The stream to read from.
+     * @return The line without its terminator, or null at the end of the stream.
+     * @throws IOException If an I/O error occurs.
+     */
+    static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b < 0) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads header lines until the empty line that ends them.
+     *
+     * @param input   The stream to read from.
+     * @param headers The map to fill in.
+     * @throws IOException If an I/O error occurs.
+     */
+    static void readHeaders(InputStream input, Map<String, String> headers) throws IOException {
+        String line;
+        while ((line = readLine(input)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+    }
+
+    /**
+     * Reads exactly Content-Length body bytes; a message without the header has an empty body.
+     *
+     * @param input   The stream to read from.
+     * @param headers The headers of the message.
+     * @return The body bytes.
+     * @throws IOException If an I/O error occurs or the stream ends early.
+     */
+    static byte[] readBody(InputStream input, Map<String, String> headers) throws IOException {
+        String value = headers.get("Content-Length");
+        if (value == null) {
+            return new byte[0];
+        }
+        byte[] body = new byte[parseContentLength(value)];
+        int read = 0;
+        while (read < body.length) {
+            int n = input.read(body, read, body.length - read);
+            if (n < 0) {
+                throw new IOException("Connection closed after " + read + " of " + body.length + " body bytes");
+            }
+            read += n;
+        }
+        return body;
+    }
+
+    /**
+     * Parses a Content-Length value, rejecting negative and oversized lengths.
+     *
+     * @param value The header value.
+     * @return The body length in bytes.
+     * @throws IOException If the value is not a valid length.
+     */
+    static int parseContentLength(String value) throws IOException {
+        int length;
+        try {
+            length = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value);
+        }
+        if (length < 0 || length > MAX_BODY_BYTES) {
+            throw new IOException("Unsupported Content-Length: " + value);
+        }
+        return length;
+    }
+
+    /**
+     * Reads a Content-Length value straight from the bytes, as HeaderMap reads numbers.
+     * Only a value that is not plain digits is made into a String, to be judged by {@link #parseContentLength}.
+     *
+     * @param buf  The buffer.
+     * @param from The offset just past "Content-Length:".
+     * @param to   The end of the header line.
+     * @return The body length in bytes.
+     * @throws IOException If the value is not a valid length.
+     */
+    private static int contentLength(byte[] buf, int from, int to) throws IOException {
+        int start = from;
+        int end = to;
+        // Spaces are trimmed as String.trim does
+        while (start < end && (buf[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (buf[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        long length = HeaderMap.parseDigits(buf, start, end - start);
+        if (length >= 0 && length <= MAX_BODY_BYTES) {
+            return (int) length;
+        }
+        return parseContentLength(new String(buf, from, to - from, StandardCharsets.ISO_8859_1));
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buf, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase((char) buf[from + i]) != Character.toLowerCase(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,302 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+// HttpResponse class to hold one response exchanged between the AggregationServer and its clients
+class HttpResponse {
+    int status;
+    String reason;
+    // Header names are matched case-insensitively, as HTTP requires
+    Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    byte[] body = new byte[0];
+    // Set for GET /changes and GET /events: the body is filled in or streamed by the connection engine later
+    Subscription subscription;
+
+    /**
+     * Constructs an empty response, to be filled in by the parser.
+     */
+    HttpResponse() {
+    }
+
+    /**
+     * Constructs a response without a body.
+     *
+     * @param status The status code.
+     * @param reason The reason phrase.
+     */
+    HttpResponse(int status, String reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    /**
+     * Constructs a response with a JSON body.
+     *
+     * @param status The status code.
+     * @param reason The reason phrase.
+     * @param json   The JSON body.
+     */
+    HttpResponse(int status, String reason, String json) {
+        this(status, reason);
+        headers.put("Content-Type", "application/json");
+        body = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serializes the status line and headers, with a Content-Length header matching the body.
+     * The body is kept separate so cached bodies can be written without copying them.
+     * An event stream has no Content-Length; its body ends when the connection is closed.
+     *
+     * @return The bytes of the response head, up to and including the empty line.
+     */
+    byte[] headBytes() {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!header.getKey().equalsIgnoreCase("Content-Length")) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (subscription == null || !subscription.streaming) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the response to the given stream.
+     *
+     * @param output The stream connected to the client.
+     * @throws IOException If an I/O error occurs.
+     */
+    void writeTo(OutputStream output) throws IOException {
+        output.write(headBytes());
+        output.write(body);
+    }
+
+    /**
+     * Reads one response from the given stream, consuming its whole body: exactly Content-Length bytes, or every
+     * chunk of a chunked body.
+     *
+     * @param input The buffered stream connected to the server.
+     * @return The parsed response.
+     * @throws IOException If an I/O error occurs, the server closed the connection, or the body is too large.
+     */
+    static HttpResponse read(InputStream input) throws IOException {
+        HttpResponse response = readHead(input);
+        if (isChunked(response.headers)) {
+            InputStream body = bodyStream(input, response.headers);
+            response.body = body.readNBytes(HttpRequest.MAX_BODY_BYTES);
+            if (body.read() >= 0) {
+                throw new IOException("Chunked body exceeds " + HttpRequest.MAX_BODY_BYTES + " bytes");
+            }
+        } else {
+            response.body = HttpRequest.readBody(input, response.headers);
+        }
+        return response;
+    }
+
+    /**
+     * Reads the status line and headers of one response, leaving its body in the stream.
+     *
+     * @param input The buffered stream connected to the server.
+     * @return The response, with an empty body.
+     * @throws IOException If an I/O error occurs or the server closed the connection.
+     */
+    static HttpResponse readHead(InputStream input) throws IOException {
+        String statusLine = HttpRequest.readLine(input);
+        if (statusLine == null) {
+            throw new IOException("Server closed the connection");
+        }
+
+        // The status line has the form "HTTP/1.1 200 OK"
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        HttpResponse response = new HttpResponse();
+        try {
+            response.status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+        response.reason = parts.length > 2 ? parts[2] : "";
+        HttpRequest.readHeaders(input, response.headers);
+        return response;
+    }
+
+    /**
+     * Frames the body that follows a response head, so it can be read as it arrives instead of buffered whole.
+     * The returned stream ends with the body: after Content-Length bytes, or after the last chunk of a chunked body,
+     * leaving the connection at the next response. Unlike {@link #read}, the length is not capped.
+     *
+     * @param input   The buffered stream connected to the server, positioned after the head.
+     * @param headers The response headers.
+     * @return The body stream; closing it does not close the connection.
+     * @throws IOException If the Content-Length is invalid.
+     */
+    static InputStream bodyStream(InputStream input, Map<String, String> headers) throws IOException {
+        if (isChunked(headers)) {
+            return new ChunkedBody(input);
+        }
+        String value = headers.get("Content-Length");
+        long length;
+        try {
+            length = value == null ? 0 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value);
+        }
+        if (length < 0) {
+            throw new IOException("Invalid Content-Length: " + value);
+        }
+        return new LengthBody(input, length);
+    }
+
+    /**
+     * Returns the value of the Lamport-Clock header, or 0 if the server did not send one.
+     *
+     * @return The server's Lamport clock.
+     * @throws NumberFormatException If the header is not a number.
+     */
+    long lamportClock() {
+        String value = headers.get("Lamport-Clock");
+        return value == null ? 0 : Long.parseLong(value.trim());
+    }
+
+    /**
+     * Decodes the body as UTF-8 text.
+     *
+     * @return The body text.
+     */
+    String bodyText() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tells whether the server will close the connection after this response.
+     *
+     * @return true if the response carries "Connection: close".
+     */
+    boolean closesConnection() {
+        return "close".equalsIgnoreCase(headers.get("Connection"));
+    }
+
+    private static boolean isChunked(Map<String, String> headers) {
+        String encoding = headers.get("Transfer-Encoding");
+        return encoding != null && encoding.trim().equalsIgnoreCase("chunked");
+    }
+
+    // LengthBody class to read a body of a known length, then report its end
+    private static class LengthBody extends InputStream {
+        private final InputStream input;
+        private long remaining;
+
+        LengthBody(InputStream input, long length) {
+            this.input = input;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = input.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("Connection closed with " + remaining + " body bytes to go");
+            }
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(input.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+            // The connection stays open for the next response
+        }
+    }
+
+    // ChunkedBody class to read a chunked body: each chunk is its size in hex on a line, the bytes and a CRLF, and a
+    // chunk of size 0 followed by optional trailer lines and an empty line ends the body
+    private static class ChunkedBody extends InputStream {
+        private final InputStream input;
+        // Bytes left in the current chunk; 0 between chunks, -1 once the last chunk was read
+        private long remaining;
+
+        ChunkedBody(InputStream input) {
+            this.input = input;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                nextChunk();
+            }
+            if (remaining < 0) {
+                return -1;
+            }
+            int n = input.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new IOException("Connection closed inside a chunk");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                // The CRLF after the chunk's bytes
+                HttpRequest.readLine(input);
+            }
+            return n;
+        }
+
+        private void nextChunk() throws IOException {
+            String line = HttpRequest.readLine(input);
+            if (line == null) {
+                throw new IOException("Connection closed before the last chunk");
+            }
+            // Chunk extensions after a semicolon are ignored
+            int semicolon = line.indexOf(';');
+            String size = (semicolon < 0 ? line : line.substring(0, semicolon)).trim();
+            try {
+                remaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + line);
+            }
+            if (remaining < 0) {
+                throw new IOException("Malformed chunk size: " + line);
+            }
+            if (remaining == 0) {
+                // Skip the trailer up to the empty line that ends the body
+                while ((line = HttpRequest.readLine(input)) != null && !line.isEmpty()) {
+                    continue;
+                }
+                remaining = -1;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The connection stays open for the next response
+        }
+    }
+}
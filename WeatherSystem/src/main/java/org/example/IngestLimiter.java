@@ -0,0 +1,210 @@
+package org.example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// IngestLimiter class to keep a flood of PUTs from starving GET readers and growing the heap.
+// Each content source, and each station, has a token bucket refilled at a fixed rate: a PUT beyond its source's
+// or station's rate is answered with 429 Too Many Requests and a Retry-After telling when a token is available.
+// Admitted PUTs then pass a global gate: only so many are handled at once, a bounded queue of others waits for a
+// turn, and a PUT finding the queue full, or still waiting at the timeout, is answered with 503 Service Unavailable.
+// GETs never pass through the limiter.
+class IngestLimiter {
+    // Buckets untouched for this long are full again, and are dropped so that departed sources do not pile up
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final double sourceRate;
+    private final double sourceBurst;
+    private final double stationRate;
+    private final double stationBurst;
+    private final Map<String, TokenBucket> sources = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> stations = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    // The global gate: permits for the PUTs being handled, and the count of those waiting for one
+    private final Semaphore slots;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final int queueLimit;
+    private final long queueTimeoutMillis;
+
+    /**
+     * Constructs the limiter from the server configuration.
+     *
+     * @param config The server configuration.
+     */
+    IngestLimiter(ServerConfig config) {
+        this.sourceRate = config.sourceRate;
+        this.sourceBurst = config.sourceBurst > 0 ? config.sourceBurst : Math.max(1, config.sourceRate);
+        this.stationRate = config.stationRate;
+        this.stationBurst = config.stationBurst > 0 ? config.stationBurst : Math.max(1, config.stationRate);
+        // Without a concurrency limit, only the rate limits apply and the gate never closes
+        this.slots = new Semaphore(config.ingestConcurrency > 0 ? config.ingestConcurrency : Integer.MAX_VALUE);
+        this.queueLimit = config.ingestQueue;
+        this.queueTimeoutMillis = config.ingestTimeoutMillis;
+    }
+
+    /**
+     * Creates the limiter for the server configuration.
+     *
+     * @param config The server configuration.
+     * @return The limiter, or null if PUTs are not limited at all.
+     * @throws IllegalArgumentException If a limit is negative.
+     */
+    static IngestLimiter create(ServerConfig config) {
+        if (config.sourceRate < 0 || config.stationRate < 0 || config.ingestConcurrency < 0 || config.ingestQueue < 0) {
+            throw new IllegalArgumentException("Ingest limits cannot be negative");
+        }
+        if (config.sourceRate == 0 && config.stationRate == 0 && config.ingestConcurrency == 0) {
+            return null;
+        }
+        return new IngestLimiter(config);
+    }
+
+    /**
+     * Takes a token from a content source's bucket.
+     *
+     * @param source The source, as identified by {@link HttpRequest#source}.
+     * @return 0 if the PUT may go ahead, or the milliseconds until the source has a token again.
+     */
+    long takeSourceToken(String source) {
+        return sourceRate == 0 ? 0 : take(sources, source, sourceRate, sourceBurst);
+    }
+
+    /**
+     * Takes a token from a station's bucket.
+     *
+     * @param id The station id.
+     * @return 0 if the station may be updated, or the milliseconds until it has a token again.
+     */
+    long takeStationToken(String id) {
+        return stationRate == 0 ? 0 : take(stations, id, stationRate, stationBurst);
+    }
+
+    /**
+     * Waits for a turn to handle a PUT, unless too many PUTs are waiting already.
+     * Every successful call must be followed by {@link #exit}.
+     *
+     * @return true if the PUT may be handled now; false if it must be shed.
+     */
+    boolean enter() {
+        if (slots.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > queueLimit) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            return slots.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Ends the turn of a PUT admitted by {@link #enter}.
+     */
+    void exit() {
+        slots.release();
+    }
+
+    /**
+     * Returns the number of PUTs waiting for a turn.
+     *
+     * @return The queue length.
+     */
+    int waiting() {
+        return waiting.get();
+    }
+
+    /**
+     * Builds the answer to a PUT over its rate.
+     *
+     * @param waitMillis How long until the PUT would be admitted.
+     * @return A 429 response whose Retry-After is in whole seconds, at least one.
+     */
+    static HttpResponse tooManyRequests(long waitMillis) {
+        HttpResponse response = new HttpResponse(429, "Too Many Requests");
+        response.headers.put("Retry-After", String.valueOf(retryAfterSeconds(waitMillis)));
+        return response;
+    }
+
+    /**
+     * Builds the answer to a PUT shed because the server is busy ingesting others.
+     *
+     * @return A 503 response asking the client to retry in a second.
+     */
+    static HttpResponse overloaded() {
+        HttpResponse response = new HttpResponse(503, "Service Unavailable");
+        response.headers.put("Retry-After", "1");
+        return response;
+    }
+
+    /**
+     * Rounds a wait up to the whole seconds of a Retry-After header.
+     *
+     * @param waitMillis The wait in milliseconds.
+     * @return The wait in seconds, at least one.
+     */
+    static long retryAfterSeconds(long waitMillis) {
+        return Math.max(1, (waitMillis + 999) / 1000);
+    }
+
+    private long take(Map<String, TokenBucket> buckets, String key, double rate, double burst) {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last > SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+            sources.values().removeIf(bucket -> bucket.isFull(now));
+            stations.values().removeIf(bucket -> bucket.isFull(now));
+        }
+        return buckets.computeIfAbsent(key, k -> new TokenBucket(rate, burst, now)).take(now);
+    }
+
+    // TokenBucket class to hold the tokens of one source or station, refilled continuously at the rate
+    private static class TokenBucket {
+        private final double tokensPerNano;
+        private final double burst;
+        private double tokens;
+        private long updated;
+
+        TokenBucket(double ratePerSecond, double burst, long now) {
+            this.tokensPerNano = ratePerSecond / 1e9;
+            this.burst = burst;
+            this.tokens = burst;
+            this.updated = now;
+        }
+
+        /**
+         * Takes one token if there is one.
+         *
+         * @return 0 if a token was taken, or the milliseconds until one is available.
+         */
+        synchronized long take(long now) {
+            refill(now);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano / 1e6));
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            if (now > updated) {
+                tokens = Math.min(burst, tokens + (now - updated) * tokensPerNano);
+                updated = now;
+            }
+        }
+    }
+}
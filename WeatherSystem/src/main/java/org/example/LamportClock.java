@@ -1,22 +1,52 @@
 package org.example;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+// LamportClock class to hold a process's logical time.
+// The counter is an AtomicLong updated by compare-and-set, so concurrent requests never block each other,
+// and every operation returns the exact value it produced rather than whatever another thread stored since.
 class LamportClock {
-    private int clock;
+    private final AtomicLong clock = new AtomicLong();
 
     public LamportClock() {
-        this.clock = 0;
     }
 
-    public synchronized void increment() {
-        clock++;
+    /**
+     * Advances the clock for a local event.
+     *
+     * @return The time of the event.
+     * @throws ArithmeticException If the clock would overflow.
+     */
+    public long increment() {
+        return clock.updateAndGet(Math::incrementExact);
     }
 
-    public synchronized void update(int receivedClock) {
-        clock = Math.max(clock, receivedClock) + 1;
+    /**
+     * Advances the clock for the receipt of a message, past the sender's time and the local time.
+     *
+     * @param receivedClock The time carried by the message.
+     * @return The time of the receive event.
+     * @throws IllegalArgumentException If the received time is negative or would overflow the clock.
+     */
+    public long update(long receivedClock) {
+        if (receivedClock < 0 || receivedClock == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("Lamport clock out of range: " + receivedClock);
+        }
+        return updateAndGet(receivedClock);
     }
 
-    public synchronized int getClock() {
-        return clock;
+    /**
+     * Atomically sets the clock to one past the larger of its value and the given time, and returns the result.
+     *
+     * @param time The time to move past.
+     * @return The new value of the clock.
+     * @throws ArithmeticException If the clock would overflow.
+     */
+    public long updateAndGet(long time) {
+        return clock.updateAndGet(current -> Math.incrementExact(Math.max(current, time)));
     }
-}
 
+    public long getClock() {
+        return clock.get();
+    }
+}
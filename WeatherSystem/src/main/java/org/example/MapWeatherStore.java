@@ -0,0 +1,37 @@
+package org.example;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+// MapWeatherStore keeps each station as a WeatherData object in a ConcurrentHashMap; the default store
+class MapWeatherStore implements WeatherStore {
+    // A ConcurrentHashMap storing weather data with string keys and WeatherData values
+    private final Map<String, WeatherData> weatherDataMap = new ConcurrentHashMap<>();
+
+    @Override
+    public WeatherData compute(String id, BiFunction<String, WeatherData, WeatherData> remapping) {
+        return weatherDataMap.compute(id, remapping);
+    }
+
+    @Override
+    public WeatherData computeIfPresent(String id, BiFunction<String, WeatherData, WeatherData> remapping) {
+        return weatherDataMap.computeIfPresent(id, remapping);
+    }
+
+    @Override
+    public WeatherData get(String id) {
+        return weatherDataMap.get(id);
+    }
+
+    @Override
+    public int size() {
+        return weatherDataMap.size();
+    }
+
+    @Override
+    public Set<String> ids() {
+        return weatherDataMap.keySet();
+    }
+}
@@ -0,0 +1,97 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Map;
+
+// NearQuery class to hold a GET /weather/near?... request and run it against the SpatialIndex.
+// Supported parameters: lat and lon (required, in degrees), k (the number of nearest stations, default 10 without a
+// radius) and radius (in km). With both, the k nearest within the radius are returned; with only a radius, all of them.
+// The response lists the stations nearest first:
+// {"lat":..,"lon":..,"stations":[{"id":"IDS60901","distance_km":1.2,"data":{...}},...]}
+class NearQuery {
+    static final int DEFAULT_K = 10;
+    // The most stations one query returns, so a radius query cannot ask for the whole map at once
+    static final int MAX_RESULTS = 10_000;
+
+    double lat = Double.NaN;
+    double lon = Double.NaN;
+    int k;
+    double radiusKm = Double.POSITIVE_INFINITY;
+
+    /**
+     * Parses the query parameters of a GET /weather/near request.
+     *
+     * @param params The decoded query parameters.
+     * @return The query.
+     * @throws IllegalArgumentException If a parameter is missing, unknown or malformed.
+     */
+    static NearQuery parse(Map<String, String> params) {
+        NearQuery query = new NearQuery();
+        boolean hasK = false;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String value = param.getValue();
+            switch (param.getKey()) {
+                case "lat":
+                    query.lat = Double.parseDouble(value);
+                    break;
+                case "lon":
+                    query.lon = Double.parseDouble(value);
+                    break;
+                case "k":
+                    query.k = Integer.parseInt(value);
+                    if (query.k <= 0 || query.k > MAX_RESULTS) {
+                        throw new IllegalArgumentException("k must be between 1 and " + MAX_RESULTS);
+                    }
+                    hasK = true;
+                    break;
+                case "radius":
+                    query.radiusKm = Double.parseDouble(value);
+                    if (!(query.radiusKm > 0) || Double.isInfinite(query.radiusKm)) {
+                        throw new IllegalArgumentException("radius must be a positive number of km");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query parameter " + param.getKey());
+            }
+        }
+        if (!(Math.abs(query.lat) <= 90) || !(Math.abs(query.lon) <= 180)) {
+            throw new IllegalArgumentException("lat and lon are required, within [-90, 90] and [-180, 180]");
+        }
+        if (!hasK) {
+            query.k = Double.isInfinite(query.radiusKm) ? DEFAULT_K : MAX_RESULTS;
+        }
+        return query;
+    }
+
+    /**
+     * Runs the query. The index gives the nearest ids; each station is then read from the map, so the data returned
+     * is what is stored now, and a station removed since it was found is skipped.
+     *
+     * @param weatherStore The stored stations.
+     * @param index        The spatial index kept next to the map.
+     * @param gson         The Gson instance used to serialize stations.
+     * @return The response body.
+     */
+    JsonObject execute(WeatherStore weatherStore, SpatialIndex index, Gson gson) {
+        JsonArray stations = new JsonArray();
+        for (SpatialIndex.Hit hit : index.search(lat, lon, k, radiusKm)) {
+            WeatherData data = weatherStore.get(hit.id);
+            if (data == null) {
+                continue;
+            }
+            JsonObject station = new JsonObject();
+            station.addProperty("id", hit.id);
+            // Metres are as fine as the positions given
+            station.addProperty("distance_km", Math.round(hit.distanceKm * 1000) / 1000.0);
+            station.add("data", gson.toJsonTree(data));
+            stations.add(station);
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("lat", lat);
+        result.addProperty("lon", lon);
+        result.add("stations", stations);
+        return result;
+    }
+}
@@ -0,0 +1,273 @@
+package org.example;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Replicator sends the writes this server accepts to the other servers of a cluster (its peers), so every server
+// holds every station and any of them can serve reads and take writes. Each peer has a sender thread and a bounded
+// queue of writes, sent in batches as PUT /replicate with one write-ahead log record per line. The receiving server
+// applies them like a replay, so the latest write by Lamport time wins on every server whatever order writes arrive in.
+//
+// A peer that is down for longer than its queue lasts has the queue dropped and is sent every stored station once it
+// can be reached again. So is a peer that restarted (it answers with a new Instance-Id), and every peer when this
+// server starts. Writes received from peers are not forwarded again: every server sends its own writes to all others.
+//
+// With a write quorum of W, a PUT is acknowledged once W servers, counting this one, have stored it.
+class Replicator {
+    // A random id for this run of the server, so peers notice when it restarted and may have lost writes
+    static final String INSTANCE_ID = UUID.randomUUID().toString();
+
+    // The most records sent in one PUT /replicate
+    private static final int BATCH_SIZE = 512;
+
+    // The longest wait between attempts to reach a peer that is down
+    private static final long MAX_RETRY_MILLIS = 5000;
+
+    private static final Gson gson = new Gson();
+
+    private final WeatherStore weatherStore;
+    private final List<Peer> peers = new ArrayList<>();
+    private final int writeQuorum;
+    private final long quorumTimeoutMillis;
+
+    /**
+     * Constructs a replicator and starts a sender thread for every peer.
+     *
+     * @param config       The server configuration, listing the peers.
+     * @param weatherStore The stored stations, sent in full to peers that missed writes.
+     * @param lamportClock The server's clock, stamped on every request to a peer.
+     */
+    private Replicator(ServerConfig config, WeatherStore weatherStore, LamportClock lamportClock) {
+        this.weatherStore = weatherStore;
+        this.writeQuorum = config.writeQuorum;
+        this.quorumTimeoutMillis = config.quorumTimeoutMillis;
+        for (String address : config.peers) {
+            Peer peer = new Peer(address, AggregationClient.forAddress(address, lamportClock), config.replicationQueue);
+            peers.add(peer);
+            Thread thread = new Thread(peer, "replicate-" + address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates the replicator configured by the server options.
+     *
+     * @param config       The server configuration.
+     * @param weatherStore The stored stations.
+     * @param lamportClock The server's clock.
+     * @return A running replicator, or null if the server has no peers.
+     * @throws IllegalArgumentException If the write quorum is larger than the cluster.
+     */
+    static Replicator create(ServerConfig config, WeatherStore weatherStore, LamportClock lamportClock) {
+        if (config.writeQuorum < 1 || config.writeQuorum > config.peers.size() + 1) {
+            throw new IllegalArgumentException("The write quorum must be between 1 and " + (config.peers.size() + 1));
+        }
+        if (config.peers.isEmpty()) {
+            return null;
+        }
+        return new Replicator(config, weatherStore, lamportClock);
+    }
+
+    /**
+     * Queues a stored station for every peer.
+     *
+     * @param record The station's write-ahead log record, see {@link AggregationServer#putRecord}.
+     * @return A future completed once enough peers stored it to make up the write quorum; at once without a quorum.
+     */
+    CompletableFuture<Void> replicate(String record) {
+        Write write = writeQuorum > 1 ? new Write(writeQuorum - 1) : null;
+        for (Peer peer : peers) {
+            peer.offer(record, write);
+        }
+        return write == null ? CompletableFuture.completedFuture(null) : write.done;
+    }
+
+    /**
+     * Waits until writes have reached the write quorum.
+     *
+     * @param acks The futures returned by {@link #replicate}.
+     * @return true if all of them did within the quorum timeout.
+     */
+    boolean await(List<CompletableFuture<Void>> acks) {
+        try {
+            CompletableFuture.allOf(acks.toArray(new CompletableFuture[0])).get(quorumTimeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Write class to count the peers that still have to store a write before it reaches the quorum
+    private static class Write {
+        final AtomicInteger needed;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(int needed) {
+            this.needed = new AtomicInteger(needed);
+        }
+
+        void ack() {
+            if (needed.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    // Pending class to hold one record queued for a peer, and the write it counts towards
+    private static class Pending {
+        final String record;
+        final Write write;
+
+        Pending(String record, Write write) {
+            this.record = record;
+            this.write = write;
+        }
+    }
+
+    // Peer class to hold one other server of the cluster and send it the queued writes
+    private class Peer implements Runnable {
+        final String address;
+        private final AggregationClient client;
+        private final int capacity;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        // Every station is sent next; set at first so a peer that missed writes while this server was down catches up
+        private boolean resync = true;
+        // The peer's Instance-Id when it last answered
+        private String instance;
+
+        Peer(String address, AggregationClient client, int capacity) {
+            this.address = address;
+            this.client = client;
+            this.capacity = capacity;
+        }
+
+        synchronized void offer(String record, Write write) {
+            if (queue.size() >= capacity) {
+                // The peer has been unreachable for too long; it is sent every station instead.
+                // The dropped writes are not acknowledged by this peer.
+                queue.clear();
+                resync = true;
+            }
+            queue.add(new Pending(record, write));
+            notifyAll();
+        }
+
+        /**
+         * Sends the queued writes, or every station after a resync, retrying with a growing delay while the peer
+         * cannot be reached.
+         */
+        @Override
+        public void run() {
+            long retryMillis = 100;
+            while (true) {
+                boolean dump;
+                List<Pending> batch = new ArrayList<>();
+                try {
+                    synchronized (this) {
+                        while (!resync && queue.isEmpty()) {
+                            wait();
+                        }
+                        dump = resync;
+                        resync = false;
+                        while (batch.size() < BATCH_SIZE && !queue.isEmpty()) {
+                            batch.add(queue.poll());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    if (dump) {
+                        sendAll();
+                    }
+                    if (!batch.isEmpty()) {
+                        StringBuilder body = new StringBuilder();
+                        for (Pending pending : batch) {
+                            body.append(pending.record).append('\n');
+                        }
+                        send(body);
+                    }
+                    for (Pending pending : batch) {
+                        if (pending.write != null) {
+                            pending.write.ack();
+                        }
+                    }
+                    retryMillis = 100;
+                } catch (IOException e) {
+                    synchronized (this) {
+                        // Send the same records again, unless everything is sent again anyway
+                        resync |= dump;
+                        if (!resync) {
+                            for (int i = batch.size() - 1; i >= 0; i--) {
+                                queue.addFirst(batch.get(i));
+                            }
+                        }
+                    }
+                    try {
+                        Thread.sleep(retryMillis);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                }
+            }
+        }
+
+        /**
+         * Sends every stored station, in batches. Writes stored meanwhile are queued as well, so none is missed.
+         * The last batch is sent even if it is empty, so the peer's Instance-Id is known from then on.
+         *
+         * @throws IOException If the peer cannot be reached or does not accept the records.
+         */
+        private void sendAll() throws IOException {
+            StringBuilder body = new StringBuilder();
+            int records = 0;
+            for (String id : weatherStore.ids()) {
+                WeatherData data = weatherStore.get(id);
+                if (data == null) {
+                    continue;
+                }
+                body.append(AggregationServer.putRecord(data, gson.toJson(data))).append('\n');
+                if (++records == BATCH_SIZE) {
+                    send(body);
+                    body.setLength(0);
+                    records = 0;
+                }
+            }
+            send(body);
+        }
+
+        private void send(StringBuilder body) throws IOException {
+            HttpRequest request = new HttpRequest("PUT", "/replicate", body.toString().getBytes(StandardCharsets.UTF_8));
+            request.headers.put("Content-Type", "application/x-ndjson");
+            HttpResponse response = client.send(request);
+            if (response.status != 200) {
+                throw new IOException(address + " answered " + response.status + " " + response.reason);
+            }
+
+            // A peer that restarted may have lost the writes it stored before, so it is sent every station
+            String answered = response.headers.get("Instance-Id");
+            synchronized (this) {
+                if (instance != null && answered != null && !answered.equals(instance)) {
+                    resync = true;
+                }
+                instance = answered;
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// RequestParser class to parse the requests of one connection in place, allocating next to nothing per request.
+// The request line and headers are located by scanning the bytes; the usual methods, paths and versions resolve to
+// shared Strings, the headers stay in the buffer (see HeaderMap), and Content-Length and Lamport-Clock are read as
+// numbers straight from it. Only the body is copied out, as exactly Content-Length bytes.
+// Each connection has its own parser, and the parser returns the same HttpRequest every time: a request must not be
+// kept once it has been answered.
+class RequestParser {
+    // Request lines and headers larger than this are refused rather than buffered
+    static final int MAX_HEAD_BYTES = 1 << 20;
+
+    private static final byte[] NO_BODY = new byte[0];
+    private static final String[] METHODS = {"GET", "PUT", "POST", "DELETE", "HEAD"};
+    private static final String[] PATHS = {"/weather.json", "/changes", "/events", "/aggregate", "/metrics", "/shards", "/replicate"};
+    private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+
+    private final HttpRequest request = new HttpRequest();
+    // The blocking engines' read buffer, taken from the pool on the first read; bytes start..end are unconsumed
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    /**
+     * Reads the next request from a connection's stream, leaving any pipelined request after it in this parser's
+     * buffer. The request line and headers end at the first empty line; the body is exactly Content-Length bytes.
+     *
+     * @param input The unbuffered stream connected to the client.
+     * @return The parsed request, or null if the client closed the connection between requests.
+     * @throws IOException If an I/O error occurs or the request is malformed.
+     */
+    HttpRequest read(InputStream input) throws IOException {
+        if (buffer == null) {
+            buffer = BufferPool.acquire();
+        }
+        while (true) {
+            byte[] buf = buffer.array();
+            int headEnd = end > start ? parseHead(buf, start, end) : -1;
+            if (headEnd >= 0) {
+                int length = contentLength();
+                byte[] body = NO_BODY;
+                start = headEnd;
+                if (length > 0) {
+                    // Take what was buffered with the head, then read the rest of the body straight into it
+                    body = new byte[length];
+                    int buffered = Math.min(length, end - start);
+                    System.arraycopy(buf, start, body, 0, buffered);
+                    start += buffered;
+                    for (int read = buffered; read < length; ) {
+                        int n = input.read(body, read, length - read);
+                        if (n < 0) {
+                            throw new IOException("Connection closed after " + read + " of " + length + " body bytes");
+                        }
+                        read += n;
+                    }
+                }
+                request.body = body;
+                return request;
+            }
+
+            // Make room for more of the request: move it to the front, then grow the buffer if it fills it
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buf.length) {
+                if (buf.length >= MAX_HEAD_BYTES) {
+                    throw new IOException("Request head larger than " + MAX_HEAD_BYTES + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(buf.length * 2);
+                larger.put(buf, 0, end);
+                BufferPool.release(buffer);
+                buffer = larger;
+                buf = larger.array();
+            }
+            int n = input.read(buf, end, buf.length - end);
+            if (n < 0) {
+                if (isBlank(buf, start, end)) {
+                    return null;
+                }
+                throw new IOException("Connection closed in the middle of a request");
+            }
+            end += n;
+        }
+    }
+
+    /**
+     * Parses one request whose body the non-blocking engine already copied out on its own when framing it
+     * (see {@link HttpRequest#frame}), so the body is not copied again.
+     *
+     * @param head The request line and headers.
+     * @param body The body, or null if the request has none.
+     * @return The parsed request, holding the given body.
+     * @throws IOException If the request is malformed or its Content-Length does not match the body.
+     */
+    HttpRequest parse(byte[] head, byte[] body) throws IOException {
+        if (parseHead(head, 0, head.length) < 0) {
+            throw new IOException("Malformed request");
+        }
+        int length = contentLength();
+        if (length != (body == null ? 0 : body.length)) {
+            throw new IOException("Request body does not match its Content-Length");
+        }
+        request.body = body == null ? NO_BODY : body;
+        return request;
+    }
+
+    /**
+     * Tells how many bytes of the next pipelined requests are already buffered.
+     *
+     * @return The number of unconsumed bytes.
+     */
+    int buffered() {
+        return end - start;
+    }
+
+    /**
+     * Returns the read buffer to the pool once the connection is closed.
+     */
+    void release() {
+        BufferPool.release(buffer);
+        buffer = null;
+        start = 0;
+        end = 0;
+    }
+
+    /**
+     * Parses the request line and headers into the request, skipping empty lines left between requests.
+     *
+     * @param buf The buffered bytes.
+     * @param off The offset of the first unconsumed byte.
+     * @param len The end of the valid bytes in buf.
+     * @return The offset just past the empty line ending the headers, or -1 if more input is needed.
+     */
+    private int parseHead(byte[] buf, int off, int len) {
+        request.headers.clear();
+        request.method = null;
+        request.version = VERSIONS[0];
+        request.remoteAddress = null;
+        request.receivedClock = 0;
+        int pos = off;
+        boolean requestLine = true;
+        while (true) {
+            // Locate the end of the next line
+            int lineFeed = pos;
+            while (lineFeed < len && buf[lineFeed] != '\n') {
+                lineFeed++;
+            }
+            if (lineFeed == len) {
+                return -1;
+            }
+            int lineEnd = lineFeed > pos && buf[lineFeed - 1] == '\r' ? lineFeed - 1 : lineFeed;
+            if (lineEnd == pos && !requestLine) {
+                return lineFeed + 1;
+            }
+            if (requestLine && lineEnd > pos) {
+                parseRequestLine(buf, pos, lineEnd);
+                requestLine = false;
+            } else if (!requestLine) {
+                int colon = pos;
+                while (colon < lineEnd && buf[colon] != ':') {
+                    colon++;
+                }
+                if (colon > pos && colon < lineEnd) {
+                    int nameStart = skipSpaces(buf, pos, colon);
+                    int nameEnd = trimSpaces(buf, nameStart, colon);
+                    int valueStart = skipSpaces(buf, colon + 1, lineEnd);
+                    int valueEnd = trimSpaces(buf, valueStart, lineEnd);
+                    request.headers.add(buf, nameStart, nameEnd - nameStart, valueStart, valueEnd - valueStart);
+                }
+            }
+            pos = lineFeed + 1;
+        }
+    }
+
+    /**
+     * Splits the request line at its spaces into method, path and version.
+     */
+    private void parseRequestLine(byte[] buf, int from, int to) {
+        int methodEnd = indexOf(buf, from, to, (byte) ' ');
+        request.method = string(buf, from, methodEnd, METHODS);
+        if (methodEnd == to) {
+            request.path = "/";
+            return;
+        }
+        int pathEnd = indexOf(buf, methodEnd + 1, to, (byte) ' ');
+        request.path = string(buf, methodEnd + 1, pathEnd, PATHS);
+        if (pathEnd < to) {
+            request.version = string(buf, pathEnd + 1, indexOf(buf, pathEnd + 1, to, (byte) ' '), VERSIONS);
+        }
+    }
+
+    /**
+     * Reads the Content-Length header, rejecting negative and oversized lengths.
+     *
+     * @return The body length in bytes; 0 if the header is missing.
+     * @throws IOException If the value is not a valid length.
+     */
+    private int contentLength() throws IOException {
+        long length = request.headers.number("Content-Length");
+        if (length == -1) {
+            return 0;
+        }
+        if (length < 0 || length > HttpRequest.MAX_BODY_BYTES) {
+            // Not a plain number; let the stream parser's rules decide
+            return HttpRequest.parseContentLength(request.headers.get("Content-Length"));
+        }
+        return (int) length;
+    }
+
+    /**
+     * Turns bytes into a String, reusing one of the known Strings if the bytes spell it.
+     */
+    private static String string(byte[] buf, int from, int to, String[] known) {
+        for (String candidate : known) {
+            if (candidate.length() == to - from && spells(buf, from, candidate)) {
+                return candidate;
+            }
+        }
+        return new String(buf, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean spells(byte[] buf, int from, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (buf[from + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte b) {
+        while (from < to && buf[from] != b) {
+            from++;
+        }
+        return from;
+    }
+
+    // Spaces are trimmed as String.trim does, so values read the same as with the stream parser
+    private static int skipSpaces(byte[] buf, int from, int to) {
+        while (from < to && (buf[from] & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimSpaces(byte[] buf, int from, int to) {
+        while (to > from && (buf[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private static boolean isBlank(byte[] buf, int from, int to) {
+        return skipSpaces(buf, from, to) == to;
+    }
+}
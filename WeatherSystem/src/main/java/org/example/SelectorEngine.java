@@ -0,0 +1,532 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// SelectorEngine serves all connections from one java.nio Selector thread and hands parsed requests to a worker pool.
+// Connections are persistent; pipelined requests on one connection are processed and answered in order.
+class SelectorEngine implements ConnectionEngine {
+    // Requests larger than this are rejected by closing the connection
+    private static final int MAX_REQUEST_BYTES = HttpRequest.MAX_BODY_BYTES + (64 << 10);
+    // The most queued buffers written by one gathering write
+    private static final int MAX_GATHER = 64;
+
+    private final ServerConfig config;
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    private ExecutorService workers;
+    private Thread eventLoop;
+    private volatile boolean running;
+    // Orders the worker tasks of the same priority by submission
+    private final AtomicLong taskSequence = new AtomicLong();
+    private int openConnections;
+
+    /**
+     * Constructs a new SelectorEngine with the specified configuration.
+     *
+     * @param config The server configuration.
+     */
+    SelectorEngine(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(config.port), config.backlog);
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        // Workers take connections with a read waiting before those with a write, so a storm of PUTs queues
+        // behind the GETs instead of in front of them
+        workers = new ThreadPoolExecutor(config.workers, config.workers, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>());
+        running = true;
+
+        eventLoop = new Thread(this::eventLoop, "aggregation-selector");
+        eventLoop.start();
+    }
+
+    /**
+     * The selector loop: accepts connections, reads requests, writes finished responses and closes idle connections.
+     */
+    private void eventLoop() {
+        long idleCheckMillis = config.idleTimeoutMillis > 0 ? Math.min(config.idleTimeoutMillis, 1000) : 1000;
+        while (running) {
+            try {
+                selector.select(idleCheckMillis);
+
+                // Start writing the responses that workers have finished since the last pass
+                Connection finished;
+                while ((finished = pendingWrites.poll()) != null) {
+                    if (finished.key.isValid()) {
+                        fillFromStream(finished);
+                        updateInterest(finished);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                }
+
+                closeIdleConnections();
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection.
+     * At maxConnections the accept interest is dropped, so new clients wait in the backlog until one closes.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        openConnections++;
+        AggregationServer.metrics.connectionOpened();
+        if (openConnections >= config.maxConnections) {
+            acceptKey.interestOps(0);
+        }
+    }
+
+    /**
+     * Reads available bytes and hands every complete request to the connection's worker, in arrival order.
+     *
+     * @param connection The readable connection.
+     */
+    private void read(Connection connection) {
+        boolean eof;
+        try {
+            connection.ensureCapacity();
+            eof = connection.channel.read(connection.readBuffer) < 0;
+        } catch (IOException e) {
+            System.out.println("Client disconnected");
+            close(connection);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        if (connection.stream != null) {
+            // An event stream takes no further requests; only the client closing it matters
+            connection.readBuffer.clear();
+            if (eof) {
+                close(connection);
+            }
+            return;
+        }
+
+        // Split off every complete request that has arrived
+        byte[] buf = connection.readBuffer.array();
+        int len = connection.readBuffer.position();
+        int consumed = 0;
+        boolean queued = false;
+        try {
+            long frame;
+            while ((frame = HttpRequest.frame(buf, consumed, len)) >= 0) {
+                int bodyStart = (int) (frame >>> 32);
+                int end = (int) frame;
+                // The only copy of the request: the body is copied out as the array the parsed request holds
+                connection.requests.add(new FramedRequest(Arrays.copyOfRange(buf, consumed, bodyStart),
+                        end > bodyStart ? Arrays.copyOfRange(buf, bodyStart, end) : null));
+                consumed = end;
+                queued = true;
+            }
+        } catch (IOException e) {
+            // The request cannot be framed: answer the requests before it, then close
+            connection.requests.add(new FramedRequest(new byte[0], null));
+            consumed = len;
+            queued = true;
+        }
+        connection.readBuffer.flip();
+        connection.readBuffer.position(consumed);
+        connection.readBuffer.compact();
+
+        if (queued && connection.busy.compareAndSet(false, true)) {
+            workers.execute(new Task(() -> process(connection), isWrite(connection.requests.peek())));
+        }
+        if (eof) {
+            // The client will send no more requests; close once the queued ones have been answered
+            connection.inputClosed = true;
+            if (!connection.busy.get() && connection.requests.isEmpty() && connection.responses.isEmpty()) {
+                close(connection);
+                return;
+            }
+            updateInterest(connection);
+        } else if (len - consumed >= MAX_REQUEST_BYTES) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Handles the queued requests of one connection on a worker thread, one at a time and in order,
+     * then queues their responses for the selector thread.
+     *
+     * @param connection The connection whose requests are waiting.
+     */
+    private void process(Connection connection) {
+        while (true) {
+            FramedRequest framed;
+            while ((framed = connection.requests.poll()) != null) {
+                HttpResponse response;
+                try {
+                    HttpRequest request = connection.parser.parse(framed.head, framed.body);
+                    request.remoteAddress = connection.remoteAddress;
+                    response = AggregationServer.handleRequest(request);
+                } catch (IOException e) {
+                    AggregationServer.metrics.parseFailed();
+                    response = new HttpResponse(400, "Bad Request");
+                    response.headers.put("Connection", "close");
+                } catch (RuntimeException e) {
+                    // Never leave the connection busy with no response queued, or it is never answered or closed
+                    e.printStackTrace();
+                    response = new HttpResponse(500, "Internal Server Error");
+                    response.headers.put("Connection", "close");
+                }
+                Subscription subscription = response.subscription;
+                if (subscription != null && !subscription.streaming) {
+                    // A long poll: answer it when it completes, and only then go on with the requests after it.
+                    // The connection stays busy meanwhile, so no other worker picks up its requests; the responses
+                    // before it are written now.
+                    HttpResponse pending = response;
+                    pendingWrites.add(connection);
+                    selector.wakeup();
+                    subscription.setListener(() -> resume(connection, pending));
+                    return;
+                }
+                if (subscription != null) {
+                    // An event stream: the selector thread writes its events whenever the socket can take them
+                    connection.requests.clear();
+                    connection.responses.add(ByteBuffer.wrap(response.headBytes()));
+                    connection.stream = subscription;
+                    subscription.setListener(() -> {
+                        pendingWrites.add(connection);
+                        selector.wakeup();
+                    });
+                    break;
+                }
+                if (response.closesConnection()) {
+                    // Anything pipelined after this request is discarded
+                    connection.requests.clear();
+                    connection.closeAfterWrite = true;
+                }
+                connection.responses.add(ByteBuffer.wrap(response.headBytes()));
+                if (response.body.length > 0) {
+                    connection.responses.add(ByteBuffer.wrap(response.body));
+                }
+            }
+            connection.busy.set(false);
+
+            // A request may have been queued after the last poll but before busy was cleared
+            if (connection.requests.isEmpty() || !connection.busy.compareAndSet(false, true)) {
+                break;
+            }
+        }
+        pendingWrites.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Answers a completed long poll and goes on with the connection's remaining requests.
+     * Called by the subscription when it becomes ready, on the thread that made it ready, so the work is handed
+     * to a worker.
+     *
+     * @param connection The connection waiting for the long poll.
+     * @param response   The long poll's response, to be completed.
+     */
+    private void resume(Connection connection, HttpResponse response) {
+        try {
+            // The answer to a long poll is a read
+            workers.execute(new Task(() -> {
+                response.subscription.complete(response);
+                connection.responses.add(ByteBuffer.wrap(response.headBytes()));
+                connection.responses.add(ByteBuffer.wrap(response.body));
+                process(connection);
+            }, false));
+        } catch (RejectedExecutionException e) {
+            // The engine is stopping
+            response.subscription.cancel();
+        }
+    }
+
+    /**
+     * Queues the pending events of an event stream once the earlier ones have been written, so a slow client
+     * holds back events in its bounded subscription queue rather than in the connection's buffers.
+     *
+     * @param connection The connection.
+     */
+    private void fillFromStream(Connection connection) {
+        Subscription stream = connection.stream;
+        if (stream == null || !connection.responses.isEmpty()) {
+            return;
+        }
+        byte[] events = stream.takeEvents();
+        if (events != null) {
+            connection.responses.add(ByteBuffer.wrap(events));
+        }
+        if (stream.isFinished()) {
+            connection.closeAfterWrite = true;
+        }
+    }
+
+    /**
+     * Writes as many queued responses as the socket accepts.
+     * The queued buffers are written together with one gathering write, so a response's head and body
+     * leave in the same segment instead of the body waiting for the client to acknowledge the head.
+     *
+     * @param connection The writable connection.
+     */
+    private void write(Connection connection) {
+        try {
+            while (!connection.responses.isEmpty()) {
+                ByteBuffer[] batch = new ByteBuffer[Math.min(connection.responses.size(), MAX_GATHER)];
+                Iterator<ByteBuffer> queued = connection.responses.iterator();
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = queued.next();
+                }
+                connection.channel.write(batch);
+                while (!connection.responses.isEmpty() && !connection.responses.peek().hasRemaining()) {
+                    connection.responses.poll();
+                }
+                if (batch[batch.length - 1].hasRemaining()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Client disconnected");
+            close(connection);
+            return;
+        }
+        connection.lastActive = System.currentTimeMillis();
+        fillFromStream(connection);
+        updateInterest(connection);
+    }
+
+    /**
+     * Chooses the events the selector waits for on a connection, closing it once it has nothing left to do.
+     * Reading stops after the client closed its side or asked for the connection to be closed.
+     *
+     * @param connection The connection to update.
+     */
+    private void updateInterest(Connection connection) {
+        boolean pending = !connection.responses.isEmpty();
+        boolean finished = connection.closeAfterWrite || connection.inputClosed;
+        if (finished && !pending && !connection.busy.get() && connection.requests.isEmpty()) {
+            close(connection);
+            return;
+        }
+        int ops = finished ? 0 : SelectionKey.OP_READ;
+        if (pending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        connection.key.interestOps(ops);
+    }
+
+    /**
+     * Closes connections that have been idle longer than the configured timeout.
+     * Connections with a request being processed by a worker, and event streams, are left alone.
+     */
+    private void closeIdleConnections() {
+        if (config.idleTimeoutMillis <= 0) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() - config.idleTimeoutMillis;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection && key.isValid()) {
+                Connection connection = (Connection) attachment;
+                if (connection.lastActive < deadline && !connection.busy.get() && connection.stream == null) {
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a connection and resumes accepting if the engine was at its connection limit.
+     *
+     * @param connection The connection to close.
+     */
+    private void close(Connection connection) {
+        connection.key.cancel();
+        if (connection.stream != null) {
+            connection.stream.cancel();
+        }
+        BufferPool.release(connection.readBuffer);
+        connection.readBuffer = null;
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        openConnections--;
+        AggregationServer.metrics.connectionClosed();
+        if (acceptKey.isValid() && openConnections < config.maxConnections) {
+            acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoop.join(5000);
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Tells whether a framed request is a PUT, which workers take after the reads.
+     *
+     * @param framed The framed request, or null.
+     * @return true if the request line starts with PUT.
+     */
+    private static boolean isWrite(FramedRequest framed) {
+        if (framed == null) {
+            return false;
+        }
+        byte[] request = framed.head;
+        int i = 0;
+        while (i < request.length && (request[i] == '\r' || request[i] == '\n')) {
+            i++;
+        }
+        return request.length - i > 3 && request[i] == 'P' && request[i + 1] == 'U' && request[i + 2] == 'T'
+                && request[i + 3] == ' ';
+    }
+
+    @Override
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // Task class to run a connection's requests on a worker, ordered by priority in the workers' queue: reads first,
+    // then in the order submitted
+    private class Task implements Runnable, Comparable<Task> {
+        private final Runnable work;
+        private final boolean write;
+        private final long sequence = taskSequence.getAndIncrement();
+
+        Task(Runnable work, boolean write) {
+            this.work = work;
+            this.write = write;
+        }
+
+        @Override
+        public void run() {
+            work.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (write != other.write) {
+                return write ? 1 : -1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // FramedRequest class to hold a request framed on the selector thread until a worker parses it
+    private static class FramedRequest {
+        final byte[] head;
+        // Null if the request has no body
+        final byte[] body;
+
+        FramedRequest(byte[] head, byte[] body) {
+            this.head = head;
+            this.body = body;
+        }
+    }
+
+    // Connection class to hold the per-connection state owned by the selector thread
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer readBuffer = BufferPool.acquire();
+        // Parses the requests on the worker handling them, reusing one HttpRequest
+        final RequestParser parser = new RequestParser();
+        // Complete requests waiting for the worker, and responses waiting to be written, both in order
+        final Queue<FramedRequest> requests = new ConcurrentLinkedQueue<>();
+        final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        // Set while a worker is processing this connection's requests
+        final AtomicBoolean busy = new AtomicBoolean();
+        volatile boolean closeAfterWrite;
+        // The event stream this connection has become, if any
+        volatile Subscription stream;
+        boolean inputClosed;
+        long lastActive = System.currentTimeMillis();
+        final String remoteAddress;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.remoteAddress = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        /**
+         * Doubles the read buffer when it is full, up to the request size limit.
+         */
+        void ensureCapacity() {
+            if (!readBuffer.hasRemaining() && readBuffer.capacity() < MAX_REQUEST_BYTES) {
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                BufferPool.release(readBuffer);
+                readBuffer = larger;
+            }
+        }
+    }
+}
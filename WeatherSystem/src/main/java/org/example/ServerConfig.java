@@ -0,0 +1,231 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// ServerConfig class to hold the AggregationServer's command-line options
+class ServerConfig {
+    // The port number the server listens on
+    int port = 4567;
+
+    // The connection engine: "virtual" (thread per connection), "pool" (bounded thread pool) or "nio" (selector)
+    String engine = "virtual";
+
+    // The maximum number of pending connections the operating system queues before accepting them
+    int backlog = 1024;
+
+    // The maximum number of connections served at the same time; further clients wait in the backlog
+    int maxConnections = 10000;
+
+    // Idle connections are closed after this many milliseconds without input (0 disables the timeout)
+    int idleTimeoutMillis = 30000;
+
+    // The number of worker threads for the "pool" and "nio" engines
+    int workers = Runtime.getRuntime().availableProcessors();
+
+    // How stations are held in memory: "map" (a WeatherData object each) or "columnar" (primitive columns)
+    String store = "map";
+
+    // Whether accepted PUTs are written to the write-ahead log before they are acknowledged
+    boolean wal = true;
+
+    // The directory holding the write-ahead log and the snapshot
+    String dataDir = "data";
+
+    // Seconds between compacted snapshots of the write-ahead log
+    int checkpointSeconds = 60;
+
+    // Stations are removed once the content server that sent them has been silent this many seconds (0 keeps them)
+    int sourceTtlSeconds = 30;
+
+    // Stations are removed once they have not been updated for this many seconds (0 disables this check)
+    int stationTtlSeconds = 0;
+
+    // The most stations kept; beyond it the least recently updated station is evicted (0 for no limit)
+    int maxStations = 0;
+
+    // About how many recent readings of each station are kept exactly for GET /weather/{id}/history (0 disables history)
+    int historySamples = 1024;
+
+    // Older readings are kept as min/max/mean buckets of this many seconds, this many buckets per station
+    int historyRollupSeconds = 3600;
+    int historyRollups = 168;
+
+    // The number of recent changes held for GET /changes and GET /events, and the most queued for one subscriber
+    int changeLogSize = 10000;
+    int subscriberQueue = 1024;
+
+    // The other servers of a replicated cluster, as host:port; every accepted write is sent to each of them
+    List<String> peers = new ArrayList<>();
+
+    // The number of servers, counting this one, that must store a PUT before it is acknowledged (1 replicates in the background)
+    int writeQuorum = 1;
+
+    // How long a PUT waits for the write quorum before it is answered with 503
+    int quorumTimeoutMillis = 2000;
+
+    // The most writes queued for a peer that cannot be reached; beyond it the peer is later sent every station instead
+    int replicationQueue = 10000;
+
+    // The nodes of a sharded cluster, as host:port including this one; each station is stored by one of them only
+    List<String> shards = new ArrayList<>();
+
+    // This node's address as listed in shards; localhost:port by default
+    String node;
+
+    // PUTs per second accepted from each content source, and updates per second of each station (0 for no limit);
+    // a burst of up to this many more is accepted after a quiet period (0 allows one second's worth, at least one)
+    double sourceRate = 0;
+    double sourceBurst = 0;
+    double stationRate = 0;
+    double stationBurst = 0;
+
+    // The most PUTs handled at once (0 for no limit), and the most waiting for a turn beyond them for up to the
+    // timeout; any further PUT is answered with 503
+    int ingestConcurrency = 64;
+    int ingestQueue = 1024;
+    int ingestTimeoutMillis = 1000;
+
+    /**
+     * Parses the server's command-line arguments.
+     * A bare number is the port, as before; the other options use the form --name=value.
+     *
+     * @param args Command-line arguments, e.g. 4567 --engine=nio --workers=8
+     * @return The parsed configuration.
+     * @throws IllegalArgumentException If an option is unknown, or its value is out of range.
+     */
+    static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                config.port = Integer.parseInt(arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "engine":
+                    config.engine = value;
+                    break;
+                case "backlog":
+                    config.backlog = Integer.parseInt(value);
+                    break;
+                case "max-connections":
+                    config.maxConnections = Integer.parseInt(value);
+                    break;
+                case "idle-timeout":
+                    config.idleTimeoutMillis = Integer.parseInt(value);
+                    break;
+                case "workers":
+                    config.workers = Integer.parseInt(value);
+                    break;
+                case "store":
+                    config.store = value;
+                    break;
+                case "wal":
+                    config.wal = Boolean.parseBoolean(value);
+                    break;
+                case "data-dir":
+                    config.dataDir = value;
+                    break;
+                case "checkpoint-interval":
+                    config.checkpointSeconds = Integer.parseInt(value);
+                    break;
+                case "source-ttl":
+                    config.sourceTtlSeconds = Integer.parseInt(value);
+                    break;
+                case "station-ttl":
+                    config.stationTtlSeconds = Integer.parseInt(value);
+                    break;
+                case "max-stations":
+                    config.maxStations = Integer.parseInt(value);
+                    break;
+                case "history-samples":
+                    config.historySamples = Integer.parseInt(value);
+                    break;
+                case "history-rollup":
+                    config.historyRollupSeconds = Integer.parseInt(value);
+                    break;
+                case "history-rollups":
+                    config.historyRollups = Integer.parseInt(value);
+                    break;
+                case "change-log":
+                    config.changeLogSize = positive(name, value);
+                    break;
+                case "subscriber-queue":
+                    config.subscriberQueue = positive(name, value);
+                    break;
+                case "peers":
+                    for (String peer : value.split(",")) {
+                        if (!peer.trim().isEmpty()) {
+                            config.peers.add(peer.trim());
+                        }
+                    }
+                    break;
+                case "write-quorum":
+                    config.writeQuorum = Integer.parseInt(value);
+                    break;
+                case "quorum-timeout":
+                    config.quorumTimeoutMillis = Integer.parseInt(value);
+                    break;
+                case "replication-queue":
+                    config.replicationQueue = Integer.parseInt(value);
+                    break;
+                case "shards":
+                    for (String shard : value.split(",")) {
+                        if (!shard.trim().isEmpty()) {
+                            config.shards.add(shard.trim());
+                        }
+                    }
+                    break;
+                case "node":
+                    config.node = value;
+                    break;
+                case "source-rate":
+                    config.sourceRate = Double.parseDouble(value);
+                    break;
+                case "source-burst":
+                    config.sourceBurst = Double.parseDouble(value);
+                    break;
+                case "station-rate":
+                    config.stationRate = Double.parseDouble(value);
+                    break;
+                case "station-burst":
+                    config.stationBurst = Double.parseDouble(value);
+                    break;
+                case "ingest-concurrency":
+                    config.ingestConcurrency = Integer.parseInt(value);
+                    break;
+                case "ingest-queue":
+                    config.ingestQueue = Integer.parseInt(value);
+                    break;
+                case "ingest-timeout":
+                    config.ingestTimeoutMillis = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Parses the value of an option that must be at least 1.
+     *
+     * @param name  The option's name, for the error message.
+     * @param value The option's value.
+     * @return The value.
+     * @throws IllegalArgumentException If the value is not a number of at least 1.
+     */
+    private static int positive(String name, String value) {
+        int number = Integer.parseInt(value);
+        if (number < 1) {
+            throw new IllegalArgumentException("--" + name + " must be at least 1 but got " + value);
+        }
+        return number;
+    }
+}
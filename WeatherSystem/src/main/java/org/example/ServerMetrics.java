@@ -0,0 +1,246 @@
+package org.example;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+// ServerMetrics holds the AggregationServer's counters, latency histograms and gauges.
+// Everything recorded on the request path is a striped LongAdder, so threads handling requests never contend on
+// one shared counter; the values are only summed when /metrics is read. The same data is available as JFR events:
+// one org.example.Request event per request and a periodic org.example.ServerStats event.
+class ServerMetrics {
+    // Upper bounds of the latency histogram buckets, in microseconds
+    private static final long[] BUCKET_MICROS = {50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000};
+
+    // Requests by type and status, e.g. "GET 200"
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder activeRequests = new LongAdder();
+    // PUTs refused by the ingest limits, by reason: "source", "station" or "overload"
+    private final Map<String, LongAdder> rejections = new ConcurrentHashMap<>();
+    private final LongSupplier stations;
+    // Returns the number of PUTs waiting for a turn at the ingest gate, once the limits are set up
+    private volatile LongSupplier ingestWaiting = () -> 0;
+
+    /**
+     * Constructs the metrics of one server.
+     *
+     * @param stations Returns the number of stored stations when the metrics are read.
+     */
+    ServerMetrics(LongSupplier stations) {
+        this.stations = stations;
+        FlightRecorder.addPeriodicEvent(ServerStatsEvent.class, () -> {
+            ServerStatsEvent event = new ServerStatsEvent();
+            event.stations = stations.getAsLong();
+            event.openConnections = connectionsOpened.sum() - connectionsClosed.sum();
+            event.activeRequests = activeRequests.sum();
+            event.commit();
+        });
+    }
+
+    /**
+     * Marks the start of a request, for the active request gauge and the JFR request event.
+     *
+     * @return The JFR event to pass to {@link #requestFinished}.
+     */
+    RequestEvent requestStarted() {
+        activeRequests.increment();
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Records a handled request.
+     *
+     * @param event    The event returned by {@link #requestStarted}.
+     * @param request  The request.
+     * @param response The response sent back.
+     * @param nanos    How long the request took to handle.
+     */
+    void requestFinished(RequestEvent event, HttpRequest request, HttpResponse response, long nanos) {
+        activeRequests.decrement();
+        String type = request.method.equals("GET") || request.method.equals("PUT") ? request.method : "OTHER";
+        requests.computeIfAbsent(type + " " + response.status, key -> new LongAdder()).increment();
+        latencies.computeIfAbsent(type, key -> new Histogram()).record(nanos / 1000);
+        bytesReceived.add(request.body.length);
+        bytesSent.add(response.body.length);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = request.method;
+            event.path = request.path;
+            event.status = response.status;
+            event.requestBytes = request.body.length;
+            event.responseBytes = response.body.length;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a request that could not be parsed or framed.
+     */
+    void parseFailed() {
+        parseFailures.increment();
+    }
+
+    /**
+     * Records a PUT, or a station in a batch, refused by the ingest limits.
+     *
+     * @param reason Which limit refused it: "source", "station" or "overload".
+     */
+    void rejected(String reason) {
+        rejections.computeIfAbsent(reason, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Reports the length of the ingest queue as a gauge from now on.
+     *
+     * @param waiting Returns the number of PUTs waiting for a turn.
+     */
+    void watchIngestQueue(LongSupplier waiting) {
+        ingestWaiting = waiting;
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text format.
+     *
+     * @return The body of GET /metrics.
+     */
+    String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE weather_requests_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(requests).entrySet()) {
+            String[] typeAndStatus = entry.getKey().split(" ");
+            out.append("weather_requests_total{type=\"").append(typeAndStatus[0]).append("\",status=\"")
+                    .append(typeAndStatus[1]).append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+
+        out.append("# TYPE weather_request_duration_seconds histogram\n");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(latencies).entrySet()) {
+            entry.getValue().render(out, "weather_request_duration_seconds", entry.getKey());
+        }
+
+        out.append("# TYPE weather_rejected_puts_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(rejections).entrySet()) {
+            out.append("weather_rejected_puts_total{reason=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        gauge(out, "weather_ingest_waiting", ingestWaiting.getAsLong());
+
+        counter(out, "weather_request_body_bytes_total", bytesReceived.sum());
+        counter(out, "weather_response_body_bytes_total", bytesSent.sum());
+        counter(out, "weather_parse_failures_total", parseFailures.sum());
+        counter(out, "weather_connections_opened_total", connectionsOpened.sum());
+        gauge(out, "weather_open_connections", connectionsOpened.sum() - connectionsClosed.sum());
+        gauge(out, "weather_active_requests", activeRequests.sum());
+        gauge(out, "weather_stations", stations.getAsLong());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    // Histogram class to hold the latencies of one request type in fixed buckets
+    private static class Histogram {
+        // One count per bucket, and a last one for latencies above every bound
+        private final LongAdder[] counts = new LongAdder[BUCKET_MICROS.length + 1];
+        private final LongAdder sumMicros = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void record(long micros) {
+            int bucket = 0;
+            while (bucket < BUCKET_MICROS.length && micros > BUCKET_MICROS[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sumMicros.add(micros);
+        }
+
+        void render(StringBuilder out, String name, String type) {
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i].sum();
+                String bound = i < BUCKET_MICROS.length ? String.valueOf(BUCKET_MICROS[i] / 1e6) : "+Inf";
+                out.append(name).append("_bucket{type=\"").append(type).append("\",le=\"").append(bound).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            out.append(name).append("_sum{type=\"").append(type).append("\"} ").append(sumMicros.sum() / 1e6).append('\n');
+            out.append(name).append("_count{type=\"").append(type).append("\"} ").append(cumulative).append('\n');
+        }
+    }
+
+    // RequestEvent class to record one handled request in a JFR recording
+    @Name("org.example.Request")
+    @Label("Weather Request")
+    @Category("WeatherSystem")
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Request Body Bytes")
+        long requestBytes;
+
+        @Label("Response Body Bytes")
+        long responseBytes;
+    }
+
+    // ServerStatsEvent class to record the server's gauges periodically in a JFR recording
+    @Name("org.example.ServerStats")
+    @Label("Weather Server Stats")
+    @Category("WeatherSystem")
+    @Description("Stored stations, open connections and requests in progress")
+    @Period("1 s")
+    @StackTrace(false)
+    static class ServerStatsEvent extends Event {
+        @Label("Stations")
+        long stations;
+
+        @Label("Open Connections")
+        long openConnections;
+
+        @Label("Active Requests")
+        long activeRequests;
+    }
+}
@@ -0,0 +1,602 @@
+package org.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// ShardManager runs the sharded mode of an AggregationServer (--shards). Every station belongs to one node of the
+// ShardRing and is stored only there, so the cluster holds N times the stations one node can. A write for a station
+// another node owns is forwarded to it, a batch is split by owner, and a GET of all stations, of a query or of the
+// stations near a point is sent to every node in parallel and the results merged.
+//
+// When the membership changes (PUT /shards, or a node starting with a different list), every node adopts the ring
+// with the highest version and streams the stations it no longer owns to their new owners as PUT /replicate, keeping
+// their Lamport time and origin, then drops them.
+class ShardManager {
+    // Marks a request sent by another node: a forwarded write is stored where it arrives rather than forwarded again
+    static final String HOP_HEADER = "Shard-Hop";
+
+    // "local" asks a node for its own stations only, as part of a GET sent to every node
+    static final String SCOPE_HEADER = "Shard-Scope";
+
+    // The version of the sender's ring, on every response of a sharded node and every request between nodes
+    static final String VERSION_HEADER = "Shard-Version";
+
+    // The most stations sent to a new owner in one request
+    private static final int HANDOFF_BATCH = 512;
+
+    final String self;
+    private volatile ShardRing ring;
+    private final WeatherStore weatherStore;
+    private final LamportClock lamportClock;
+    private final Map<String, AggregationClient> clients = new ConcurrentHashMap<>();
+
+    // Sends requests to the other nodes in parallel
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "shard-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Moves stations to their owners, one pass at a time
+    private final ScheduledExecutorService handOffTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-handoff");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean handOffScheduled = new AtomicBoolean();
+
+    private ShardManager(String self, ShardRing ring, WeatherStore weatherStore, LamportClock lamportClock) {
+        this.self = self;
+        this.ring = ring;
+        this.weatherStore = weatherStore;
+        this.lamportClock = lamportClock;
+    }
+
+    /**
+     * Creates the shard manager configured by the server options.
+     *
+     * @param config       The server configuration.
+     * @param weatherStore The stored stations.
+     * @param lamportClock The server's clock, stamped on every request to another node.
+     * @return The manager, or null if the server is not sharded.
+     * @throws IllegalArgumentException If the shard list does not include this node, or replication is enabled too.
+     */
+    static ShardManager create(ServerConfig config, WeatherStore weatherStore, LamportClock lamportClock) {
+        if (config.shards.isEmpty()) {
+            return null;
+        }
+        if (!config.peers.isEmpty()) {
+            throw new IllegalArgumentException("--shards and --peers cannot be combined");
+        }
+        String self = config.node != null ? config.node : "localhost:" + config.port;
+        if (!config.shards.contains(self)) {
+            throw new IllegalArgumentException("--shards must include this node, " + self + " (see --node)");
+        }
+        return new ShardManager(self, new ShardRing(1, config.shards), weatherStore, lamportClock);
+    }
+
+    ShardRing ring() {
+        return ring;
+    }
+
+    /**
+     * Brings this node into the cluster: it asks the other nodes for their ring, and proposes its own list of nodes
+     * as the next version if the newest ring differs, e.g. when this node is being added. Stations recovered from
+     * disk that belong elsewhere are handed off.
+     */
+    void join() {
+        ShardRing current = ring;
+        ShardRing newest = null;
+        for (String node : current.nodes) {
+            if (node.equals(self)) {
+                continue;
+            }
+            try {
+                HttpResponse response = client(node).send(new HttpRequest("GET", "/shards", null));
+                if (response.status == 200) {
+                    ShardRing theirs = ShardRing.fromJson(response.bodyText(), 1);
+                    if (newest == null || theirs.version > newest.version) {
+                        newest = theirs;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // The node is not up yet; it asks for the ring itself when it starts
+            }
+        }
+        if (newest != null) {
+            adopt(new HashSet<>(newest.nodes).equals(new HashSet<>(current.nodes))
+                    ? newest : new ShardRing(newest.version + 1, current.nodes));
+        }
+        scheduleHandOff(0);
+    }
+
+    /**
+     * Handles the requests a sharded node answers differently: GET and PUT /shards, writes and reads of stations
+     * owned by other nodes, and GETs spanning every node. Requests from other nodes are answered locally.
+     *
+     * @param request The client request.
+     * @return The response, or null if the request is answered by this node alone.
+     */
+    HttpResponse route(HttpRequest request) {
+        String route = request.route();
+        if (route.equals("/shards")) {
+            if (request.method.equals("PUT")) {
+                return updateRing(request);
+            }
+            return new HttpResponse(200, "OK", ring.toJson());
+        }
+        if (request.headers.containsKey(HOP_HEADER) || "local".equals(request.headers.get(SCOPE_HEADER))) {
+            staleSender(request);
+            return null;
+        }
+
+        if (request.method.equals("PUT") && !route.equals("/replicate")) {
+            if (BatchIngest.isBatch(request)) {
+                return routeBatch(request);
+            }
+            String owner = ownerOfBody(request);
+            return owner == null || owner.equals(self) ? null : forward(owner, request);
+        }
+        if (request.method.equals("GET") && AggregationServer.isHistoryRoute(route)) {
+            String owner = ring.owner(AggregationServer.historyStationId(route));
+            return owner.equals(self) ? null : forward(owner, request);
+        }
+        if (request.method.equals("GET") && route.equals("/weather/near")) {
+            return gatherNear(request, NearQuery.parse(request.queryParameters()));
+        }
+        if (request.method.equals("GET") && route.equals("/weather.json")) {
+            // Stations named by id are all asked of their one owner when they share it
+            StationQuery query = StationQuery.parse(request.queryParameters());
+            if (query != null && query.ids != null) {
+                Set<String> owners = new HashSet<>();
+                for (String id : query.ids) {
+                    owners.add(ring.owner(id));
+                }
+                if (owners.size() == 1) {
+                    String owner = owners.iterator().next();
+                    return owner.equals(self) ? null : forward(owner, request);
+                }
+            }
+            return gather(request, query);
+        }
+        return null;
+    }
+
+    /**
+     * Sends a request to another node and returns its response.
+     *
+     * @param node    The node's address.
+     * @param request The request; it keeps its content server's Source-Id.
+     * @return The node's response, or 502 if it cannot be reached.
+     */
+    HttpResponse forward(String node, HttpRequest request) {
+        try {
+            HttpResponse response = client(node).send(copy(request, request.body));
+            // The connection to the client is kept whatever the node did with ours
+            response.headers.remove("Connection");
+            return response;
+        } catch (IOException e) {
+            return new HttpResponse(502, "Bad Gateway");
+        }
+    }
+
+    /**
+     * Handles PUT /shards, a new list of nodes: {"nodes":["host:port",...]}, with an optional "version".
+     * Without a version, the ring after this node's current one is proposed.
+     *
+     * @param request The PUT request.
+     * @return The ring this node holds afterwards.
+     */
+    private HttpResponse updateRing(HttpRequest request) {
+        adopt(ShardRing.fromJson(request.bodyText(), ring.version + 1));
+        return new HttpResponse(200, "OK", ring.toJson());
+    }
+
+    /**
+     * Adopts a ring if it is newer than the current one, tells every node of the old and new rings, and starts
+     * handing off the stations this node no longer owns.
+     *
+     * @param proposed The new ring.
+     */
+    private synchronized void adopt(ShardRing proposed) {
+        ShardRing current = ring;
+        if (proposed.version <= current.version) {
+            return;
+        }
+        ring = proposed;
+        System.out.println("Adopted shard ring version " + proposed.version + ": " + String.join(", ", proposed.nodes));
+
+        // Nodes that already have this ring ignore it, so the announcements stop after one round
+        Set<String> nodes = new TreeSet<>(current.nodes);
+        nodes.addAll(proposed.nodes);
+        nodes.remove(self);
+        String json = proposed.toJson();
+        for (String node : nodes) {
+            executor.execute(() -> {
+                HttpRequest announce = new HttpRequest("PUT", "/shards", json.getBytes(StandardCharsets.UTF_8));
+                announce.headers.put(HOP_HEADER, self);
+                try {
+                    client(node).send(announce);
+                } catch (IOException e) {
+                    // A node that is down asks for the ring when it starts
+                }
+            });
+        }
+        scheduleHandOff(0);
+    }
+
+    /**
+     * Hands off the stations written here by a node whose ring was older than this one's: they may belong elsewhere.
+     */
+    private void staleSender(HttpRequest request) {
+        String version = request.headers.get(VERSION_HEADER);
+        if (request.method.equals("PUT") && version != null && Long.parseLong(version) < ring.version) {
+            scheduleHandOff(1000);
+        }
+    }
+
+    /**
+     * Starts a pass moving the stations this node does not own to their owners, unless one is already waiting.
+     *
+     * @param delayMillis How long to wait first.
+     */
+    private void scheduleHandOff(long delayMillis) {
+        if (handOffScheduled.compareAndSet(false, true)) {
+            handOffTimer.schedule(this::handOff, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends every station this node does not own to its owner, in batches, and drops each once its owner has it.
+     * A station written here again meanwhile is kept until the next pass. Batches an owner does not accept are
+     * retried a second later.
+     */
+    private void handOff() {
+        handOffScheduled.set(false);
+        ShardRing current = ring;
+        Map<String, List<WeatherData>> moving = new TreeMap<>();
+        for (String id : weatherStore.ids()) {
+            WeatherData data = weatherStore.get(id);
+            String owner = current.owner(id);
+            if (data != null && !owner.equals(self)) {
+                moving.computeIfAbsent(owner, node -> new ArrayList<>()).add(data);
+            }
+        }
+
+        int moved = 0;
+        boolean failed = false;
+        for (Map.Entry<String, List<WeatherData>> entry : moving.entrySet()) {
+            List<WeatherData> stations = entry.getValue();
+            for (int from = 0; from < stations.size() && !failed; from += HANDOFF_BATCH) {
+                List<WeatherData> batch = stations.subList(from, Math.min(from + HANDOFF_BATCH, stations.size()));
+                StringBuilder body = new StringBuilder();
+                for (WeatherData data : batch) {
+                    body.append(AggregationServer.putRecord(data, AggregationServer.toJson(data))).append('\n');
+                }
+                HttpRequest request = new HttpRequest("PUT", "/replicate", body.toString().getBytes(StandardCharsets.UTF_8));
+                request.headers.put("Content-Type", "application/x-ndjson");
+                request.headers.put(HOP_HEADER, self);
+                try {
+                    failed = client(entry.getKey()).send(request).status != 200;
+                } catch (IOException e) {
+                    failed = true;
+                }
+                if (!failed) {
+                    for (WeatherData data : batch) {
+                        AggregationServer.releaseStation(data);
+                    }
+                    moved += batch.size();
+                }
+            }
+        }
+        if (moved > 0) {
+            System.out.println("Handed off " + moved + " stations for shard ring version " + current.version);
+        }
+        if (failed) {
+            scheduleHandOff(1000);
+        }
+    }
+
+    /**
+     * Splits a batch PUT by the owner of each record, sends the parts to their owners in parallel and merges the
+     * per-record results, keeping every record's index in the original batch.
+     *
+     * @param request The batch PUT.
+     * @return The merged response, or null if every record belongs here or the batch is malformed
+     *         (it is then ingested, or rejected, here as usual).
+     */
+    private HttpResponse routeBatch(HttpRequest request) {
+        List<JsonElement> records = new ArrayList<>();
+        try {
+            if (WeatherDataCodec.isBinary(request.headers.get("Content-Type"))) {
+                // Binary stations are passed on as NDJSON like the rest
+                for (WeatherData data : WeatherDataCodec.decode(request.body)) {
+                    records.add(JsonParser.parseString(AggregationServer.toJson(data)));
+                }
+                return splitBatch(request, records);
+            }
+            JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(request.body), StandardCharsets.UTF_8));
+            reader.setStrictness(Strictness.LENIENT);
+            boolean array = reader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                reader.beginArray();
+            }
+            while (array ? reader.hasNext() : reader.peek() != JsonToken.END_DOCUMENT) {
+                records.add(JsonParser.parseReader(reader));
+            }
+        } catch (IOException | JsonParseException | IllegalArgumentException e) {
+            return null;
+        }
+        return splitBatch(request, records);
+    }
+
+    /**
+     * Sends each owner its records of a batch, and merges the responses.
+     *
+     * @param request The batch PUT.
+     * @param records The records of the batch.
+     * @return The merged response, or null if every record belongs here.
+     */
+    private HttpResponse splitBatch(HttpRequest request, List<JsonElement> records) {
+        // Records without an id stay here, to be rejected with the others
+        Map<String, List<Integer>> byOwner = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            String id = idOf(records.get(i));
+            byOwner.computeIfAbsent(id == null ? self : ring.owner(id), node -> new ArrayList<>()).add(i);
+        }
+        if (byOwner.size() == 1 && byOwner.containsKey(self)) {
+            return null;
+        }
+
+        Map<String, CompletableFuture<HttpResponse>> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : byOwner.entrySet()) {
+            StringBuilder body = new StringBuilder();
+            for (int index : entry.getValue()) {
+                body.append(records.get(index)).append('\n');
+            }
+            HttpRequest part = copy(request, body.toString().getBytes(StandardCharsets.UTF_8));
+            part.headers.put("Content-Type", "application/x-ndjson");
+            String node = entry.getKey();
+            responses.put(node, node.equals(self)
+                    ? CompletableFuture.supplyAsync(() -> AggregationServer.dispatch(part), executor)
+                    : CompletableFuture.supplyAsync(() -> forward(node, part), executor));
+        }
+
+        JsonObject[] results = new JsonObject[records.size()];
+        int accepted = 0;
+        int rejected = 0;
+        boolean quorumMissed = false;
+        for (Map.Entry<String, CompletableFuture<HttpResponse>> entry : responses.entrySet()) {
+            List<Integer> indexes = byOwner.get(entry.getKey());
+            HttpResponse response = entry.getValue().join();
+            JsonObject summary = null;
+            if (response.status == 200 || response.status == 503) {
+                try {
+                    summary = JsonParser.parseString(response.bodyText()).getAsJsonObject();
+                } catch (JsonParseException | IllegalStateException e) {
+                    // Reported below like an unreachable node
+                }
+            }
+            if (summary == null || !summary.has("results")) {
+                for (int index : indexes) {
+                    JsonObject result = new JsonObject();
+                    result.addProperty("index", index);
+                    result.addProperty("status", response.status);
+                    result.addProperty("error", "node " + entry.getKey() + " answered " + response.status);
+                    results[index] = result;
+                }
+                rejected += indexes.size();
+                continue;
+            }
+            quorumMissed |= response.status == 503;
+            accepted += summary.get("accepted").getAsInt();
+            rejected += summary.get("rejected").getAsInt();
+            for (JsonElement element : summary.getAsJsonArray("results")) {
+                JsonObject result = element.getAsJsonObject();
+                int index = indexes.get(result.get("index").getAsInt());
+                result.addProperty("index", index);
+                results[index] = result;
+            }
+        }
+
+        JsonObject merged = new JsonObject();
+        merged.addProperty("accepted", accepted);
+        merged.addProperty("rejected", rejected);
+        JsonArray array = new JsonArray();
+        for (JsonObject result : results) {
+            if (result != null) {
+                array.add(result);
+            }
+        }
+        merged.add("results", array);
+        return quorumMissed
+                ? new HttpResponse(503, "Service Unavailable", merged.toString())
+                : new HttpResponse(200, "OK", merged.toString());
+    }
+
+    /**
+     * Sends a GET /weather.json to every node in parallel, each answering for its own stations, and merges the
+     * results. Without a query the JSON objects are concatenated; a query's results are merged in id order and
+     * cut to its limit, with the cursor of the next page.
+     *
+     * @param request The GET request.
+     * @param query   The parsed query, or null for every station.
+     * @return The merged response, or the first failed node's response.
+     */
+    private HttpResponse gather(HttpRequest request, StationQuery query) {
+        List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+        for (String node : ring.nodes) {
+            HttpRequest part = copy(request, request.body);
+            part.headers.put(SCOPE_HEADER, "local");
+            part.headers.remove("If-None-Match");
+            // The parts are merged as uncompressed JSON, whatever form the client asked for
+            part.headers.remove("Accept");
+            part.headers.remove("Accept-Encoding");
+            responses.add(node.equals(self)
+                    ? CompletableFuture.supplyAsync(() -> AggregationServer.dispatch(part), executor)
+                    : CompletableFuture.supplyAsync(() -> forward(node, part), executor));
+        }
+
+        StringBuilder all = new StringBuilder("{");
+        TreeMap<String, JsonElement> matches = new TreeMap<>();
+        boolean more = false;
+        for (CompletableFuture<HttpResponse> future : responses) {
+            HttpResponse response = future.join();
+            if (response.status != 200) {
+                return response;
+            }
+            if (query == null) {
+                // Each node's snapshot is a JSON object of disjoint stations
+                String body = response.bodyText().trim();
+                String members = body.substring(1, body.length() - 1).trim();
+                if (!members.isEmpty()) {
+                    all.append(all.length() > 1 ? "," : "").append(members);
+                }
+            } else {
+                for (Map.Entry<String, JsonElement> station : JsonParser.parseString(response.bodyText()).getAsJsonObject().entrySet()) {
+                    matches.put(station.getKey(), station.getValue());
+                }
+                more |= response.headers.containsKey("Next-Cursor");
+            }
+        }
+        if (query == null) {
+            return new HttpResponse(200, "OK", all.append('}').toString());
+        }
+
+        JsonObject page = new JsonObject();
+        String lastId = null;
+        for (Map.Entry<String, JsonElement> station : matches.entrySet()) {
+            if (page.size() == query.limit) {
+                more = true;
+                break;
+            }
+            page.add(station.getKey(), station.getValue());
+            lastId = station.getKey();
+        }
+        HttpResponse response = new HttpResponse(200, "OK", page.toString());
+        if (more && lastId != null) {
+            response.headers.put("Next-Cursor", lastId);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a GET /weather/near to every node in parallel, each answering from its own spatial index, and merges
+     * the nearest of all: each node's list is the nearest of its stations, so the overall nearest are among them.
+     *
+     * @param request The GET request.
+     * @param query   The parsed query.
+     * @return The merged response, or the first failed node's response.
+     */
+    private HttpResponse gatherNear(HttpRequest request, NearQuery query) {
+        List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+        for (String node : ring.nodes) {
+            HttpRequest part = copy(request, request.body);
+            part.headers.put(SCOPE_HEADER, "local");
+            part.headers.remove("Accept-Encoding");
+            responses.add(node.equals(self)
+                    ? CompletableFuture.supplyAsync(() -> AggregationServer.dispatch(part), executor)
+                    : CompletableFuture.supplyAsync(() -> forward(node, part), executor));
+        }
+
+        List<JsonObject> stations = new ArrayList<>();
+        for (CompletableFuture<HttpResponse> future : responses) {
+            HttpResponse response = future.join();
+            if (response.status != 200) {
+                return response;
+            }
+            for (JsonElement station : JsonParser.parseString(response.bodyText()).getAsJsonObject().getAsJsonArray("stations")) {
+                stations.add(station.getAsJsonObject());
+            }
+        }
+        stations.sort(Comparator.comparingDouble((JsonObject station) -> station.get("distance_km").getAsDouble())
+                .thenComparing(station -> station.get("id").getAsString()));
+
+        JsonArray nearest = new JsonArray();
+        for (JsonObject station : stations.subList(0, Math.min(query.k, stations.size()))) {
+            nearest.add(station);
+        }
+        JsonObject merged = new JsonObject();
+        merged.addProperty("lat", query.lat);
+        merged.addProperty("lon", query.lon);
+        merged.add("stations", nearest);
+        return new HttpResponse(200, "OK", merged.toString());
+    }
+
+    /**
+     * Copies a request to send on to another node, or to answer here as part of a split request.
+     * The copy keeps the content server's Source-Id and is marked as coming from this node.
+     */
+    private HttpRequest copy(HttpRequest request, byte[] body) {
+        HttpRequest copy = new HttpRequest(request.method, request.path, body);
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            String name = header.getKey();
+            if (!name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Lamport-Clock")
+                    && !name.equalsIgnoreCase("Content-Length")) {
+                copy.headers.put(name, header.getValue());
+            }
+        }
+        copy.headers.put("Source-Id", request.source());
+        copy.headers.put(HOP_HEADER, self);
+        copy.headers.put(VERSION_HEADER, String.valueOf(ring.version));
+        copy.remoteAddress = request.remoteAddress;
+        copy.receivedClock = request.receivedClock;
+        return copy;
+    }
+
+    private String ownerOfBody(HttpRequest request) {
+        if (WeatherDataCodec.isBinary(request.headers.get("Content-Type"))) {
+            try {
+                String id = WeatherDataCodec.decode(request.body).get(0).id;
+                return id == null ? null : ring.owner(id);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        try {
+            String id = idOf(JsonParser.parseString(request.bodyText()));
+            return id == null ? null : ring.owner(id);
+        } catch (JsonParseException e) {
+            // Rejected here as usual
+            return null;
+        }
+    }
+
+    private static String idOf(JsonElement record) {
+        if (!record.isJsonObject()) {
+            return null;
+        }
+        JsonElement id = record.getAsJsonObject().get("id");
+        return id != null && id.isJsonPrimitive() ? id.getAsString() : null;
+    }
+
+    private AggregationClient client(String node) {
+        return clients.computeIfAbsent(node, address -> AggregationClient.forAddress(address, lamportClock));
+    }
+}
@@ -0,0 +1,133 @@
+package org.example;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// ShardRing class to hold the nodes of a sharded cluster and map each station id to the node owning it, by consistent
+// hashing. Every node is placed at VIRTUAL_NODES points of a 64-bit ring, and a station belongs to the node of the
+// first point at or after the hash of its id. Adding or removing one of N nodes therefore moves about 1/N of the
+// stations, and the virtual nodes spread every node's share evenly around the ring.
+// Rings are immutable; a change of membership makes a new ring with a higher version.
+class ShardRing {
+    static final int VIRTUAL_NODES = 128;
+
+    final long version;
+    final List<String> nodes;
+    // The ring's points in ascending order, and the node at each point
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * Constructs the ring of the given nodes.
+     *
+     * @param version The ring's version; nodes adopt a ring only if its version is higher than theirs.
+     * @param nodes   The nodes' addresses, as host:port.
+     * @throws IllegalArgumentException If there are no nodes.
+     */
+    ShardRing(long version, List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        this.version = version;
+        List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+
+        // Sort the points with their owners, by packing each point's index next to it
+        long[][] placed = new long[sorted.size() * VIRTUAL_NODES][];
+        for (int n = 0; n < sorted.size(); n++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                placed[n * VIRTUAL_NODES + v] = new long[] {hash(sorted.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = sorted.get((int) placed[i][1]);
+        }
+    }
+
+    /**
+     * Finds the node owning a station.
+     *
+     * @param id The station id.
+     * @return The node's address.
+     */
+    String owner(String id) {
+        int i = Arrays.binarySearch(points, hash(id));
+        if (i < 0) {
+            // The first point after the hash, wrapping around past the last one
+            i = -i - 1;
+            if (i == points.length) {
+                i = 0;
+            }
+        }
+        return owners[i];
+    }
+
+    /**
+     * Hashes a key to a point of the ring: 64-bit FNV-1a over its characters, then MurmurHash3's finalizer so that
+     * keys differing only in their last characters, like node#1 and node#2, land far apart.
+     *
+     * @param key The station id or virtual node name.
+     * @return The point.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Serializes the ring as served by GET /shards: {"version":3,"nodes":["host:port",...],"vnodes":128}
+     */
+    String toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("version", version);
+        JsonArray array = new JsonArray();
+        for (String node : nodes) {
+            array.add(node);
+        }
+        json.add("nodes", array);
+        json.addProperty("vnodes", VIRTUAL_NODES);
+        return json.toString();
+    }
+
+    /**
+     * Parses a ring from its JSON form.
+     *
+     * @param json           The ring, as written by {@link #toJson}; the version may be missing.
+     * @param defaultVersion The version to use when the JSON has none.
+     * @return The ring.
+     * @throws IllegalArgumentException If the JSON does not list any nodes.
+     */
+    static ShardRing fromJson(String json, long defaultVersion) {
+        JsonElement element = JsonParser.parseString(json);
+        if (!element.isJsonObject() || !element.getAsJsonObject().has("nodes")) {
+            throw new IllegalArgumentException("A ring needs a list of nodes");
+        }
+        JsonObject object = element.getAsJsonObject();
+        List<String> nodes = new ArrayList<>();
+        for (JsonElement node : object.getAsJsonArray("nodes")) {
+            nodes.add(node.getAsString());
+        }
+        long version = object.has("version") ? object.get("version").getAsLong() : defaultVersion;
+        return new ShardRing(version, nodes);
+    }
+}
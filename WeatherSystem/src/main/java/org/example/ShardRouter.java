@@ -0,0 +1,112 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// ShardRouter class to send each station straight to the node owning it when the AggregationServers are sharded,
+// instead of having the first node forward it. The ring is read from GET /shards, and read again whenever a response
+// carries a newer Shard-Version. Against a server that is not sharded, every request goes to the given client.
+class ShardRouter implements Closeable {
+    private final AggregationClient seed;
+    private final LamportClock lamportClock;
+    // The cluster's ring, or null if the server is not sharded
+    private volatile ShardRing ring;
+    private final Map<String, AggregationClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a router and reads the ring from the server.
+     *
+     * @param seed         The client of the server given on the command line; closed with the router.
+     * @param lamportClock The caller's Lamport clock, for the clients of the other nodes.
+     * @throws IOException If the server cannot be reached.
+     */
+    ShardRouter(AggregationClient seed, LamportClock lamportClock) throws IOException {
+        this.seed = seed;
+        this.lamportClock = lamportClock;
+        refresh();
+    }
+
+    /**
+     * Reads the ring from the server.
+     *
+     * @throws IOException If the server cannot be reached.
+     */
+    void refresh() throws IOException {
+        HttpResponse response = seed.send(new HttpRequest("GET", "/shards", null));
+        ring = response.status == 200 ? ShardRing.fromJson(response.bodyText(), 1) : null;
+    }
+
+    /**
+     * Picks the client of the node owning a station.
+     *
+     * @param id The station id.
+     * @return The owner's client, or the given client if the server is not sharded.
+     */
+    AggregationClient clientFor(String id) {
+        ShardRing current = ring;
+        if (current == null) {
+            return seed;
+        }
+        return clients.computeIfAbsent(current.owner(id), node -> AggregationClient.forAddress(node, lamportClock));
+    }
+
+    /**
+     * Sends requests for stations to their owners, pipelined per owner.
+     *
+     * @param requests The requests.
+     * @param ids      The station of each request.
+     * @return The responses, in the same order as the requests.
+     * @throws IOException If an owner cannot be reached.
+     */
+    List<HttpResponse> sendAll(List<HttpRequest> requests, List<String> ids) throws IOException {
+        Map<AggregationClient, List<Integer>> byOwner = new LinkedHashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            byOwner.computeIfAbsent(clientFor(ids.get(i)), client -> new ArrayList<>()).add(i);
+        }
+        HttpResponse[] responses = new HttpResponse[requests.size()];
+        for (Map.Entry<AggregationClient, List<Integer>> entry : byOwner.entrySet()) {
+            List<HttpRequest> part = new ArrayList<>();
+            for (int index : entry.getValue()) {
+                part.add(requests.get(index));
+            }
+            List<HttpResponse> answered = entry.getKey().sendAll(part);
+            for (int i = 0; i < answered.size(); i++) {
+                responses[entry.getValue().get(i)] = answered.get(i);
+            }
+        }
+        for (HttpResponse response : responses) {
+            observe(response);
+        }
+        return List.of(responses);
+    }
+
+    /**
+     * Reads the ring again if a response came from a node with a newer one.
+     *
+     * @param response A response from a node.
+     * @throws IOException If the server cannot be reached.
+     */
+    void observe(HttpResponse response) throws IOException {
+        String version = response.headers.get(ShardManager.VERSION_HEADER);
+        ShardRing current = ring;
+        if (version != null && (current == null || Long.parseLong(version) > current.version)) {
+            refresh();
+        }
+    }
+
+    /**
+     * Closes the clients of every node.
+     */
+    @Override
+    public void close() {
+        seed.close();
+        for (AggregationClient client : clients.values()) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// SnapshotCache keeps the GET /weather.json body pre-serialized, so readers do not re-run Gson over the whole map.
+// Each station's JSON is serialized once when it is stored; the full body is re-assembled from those fragments
+// only after a change, and is then shared by every GET until the next change.
+class SnapshotCache {
+    private static final byte[] OPEN = "{".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLOSE = "}".getBytes(StandardCharsets.UTF_8);
+
+    // The serialized "id":{...} member of each station
+    private final Map<String, byte[]> fragments = new ConcurrentHashMap<>();
+    // Bumped after every change, so a snapshot built at version v holds at least the changes up to v
+    private final AtomicLong version = new AtomicLong();
+    // Distinguishes ETags of different server runs, whose versions both start at 0
+    private final String epoch = Long.toHexString(System.currentTimeMillis());
+    private volatile Snapshot current;
+
+    /**
+     * Records the serialized JSON of a stored station.
+     *
+     * @param id   The station id.
+     * @param json The station serialized as a JSON object.
+     */
+    void put(String id, String json) {
+        String member = "\"" + escape(id) + "\":" + json;
+        fragments.put(id, member.getBytes(StandardCharsets.UTF_8));
+        version.incrementAndGet();
+    }
+
+    /**
+     * Removes a station from the snapshot.
+     *
+     * @param id The station id.
+     */
+    void remove(String id) {
+        if (fragments.remove(id) != null) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the current snapshot, re-assembling it only if a station changed since it was built.
+     *
+     * @return The snapshot of all stored stations.
+     */
+    Snapshot get() {
+        Snapshot snapshot = current;
+        if (snapshot != null && snapshot.version == version.get()) {
+            return snapshot;
+        }
+        synchronized (this) {
+            // Another reader may have rebuilt it while this one waited
+            long v = version.get();
+            snapshot = current;
+            if (snapshot != null && snapshot.version == v) {
+                return snapshot;
+            }
+            snapshot = new Snapshot(v, "\"" + epoch + "-" + v + "\"", assemble());
+            current = snapshot;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Concatenates the station fragments into one JSON object.
+     *
+     * @return The UTF-8 bytes of the whole map.
+     */
+    private byte[] assemble() {
+        byte[][] parts = fragments.values().toArray(new byte[0][]);
+        int length = OPEN.length + CLOSE.length + Math.max(parts.length - 1, 0);
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+
+        byte[] bytes = new byte[length];
+        int pos = 0;
+        System.arraycopy(OPEN, 0, bytes, pos, OPEN.length);
+        pos += OPEN.length;
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                bytes[pos++] = ',';
+            }
+            System.arraycopy(parts[i], 0, bytes, pos, parts[i].length);
+            pos += parts[i].length;
+        }
+        System.arraycopy(CLOSE, 0, bytes, pos, CLOSE.length);
+        return bytes;
+    }
+
+    /**
+     * Escapes a station id for use as a JSON object key.
+     *
+     * @param id The station id.
+     * @return The escaped id, without quotes.
+     */
+    private static String escape(String id) {
+        StringBuilder escaped = new StringBuilder(id.length());
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    // Snapshot class to hold one immutable, pre-serialized GET body and its ETag, and its other representations
+    static class Snapshot {
+        final long version;
+        final String etag;
+        final byte[] body;
+        // The binary and compressed bodies, built by the first reader asking for each and shared with later ones
+        private final Map<String, byte[]> variants = new ConcurrentHashMap<>();
+
+        Snapshot(long version, String etag, byte[] body) {
+            this.version = version;
+            this.etag = etag;
+            this.body = body;
+        }
+
+        /**
+         * Returns another representation of this snapshot, building it if no reader has asked for it yet.
+         * Readers asking for the same representation at once wait for the first one to build it.
+         *
+         * @param name  The representation, e.g. "binary" or "+gzip".
+         * @param build Builds the body of the representation.
+         * @return The body.
+         */
+        byte[] variant(String name, Supplier<byte[]> build) {
+            return variants.computeIfAbsent(name, key -> build.get());
+        }
+
+        /**
+         * Returns the ETag of a representation of this snapshot.
+         *
+         * @param name The representation, or "" for the JSON body.
+         * @return The ETag, quoted.
+         */
+        String etag(String name) {
+            return name.isEmpty() ? etag : etag.substring(0, etag.length() - 1) + "-" + name + "\"";
+        }
+    }
+}
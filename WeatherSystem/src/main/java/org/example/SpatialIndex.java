@@ -0,0 +1,209 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+// SpatialIndex holds the stations' positions in a grid of cells CELL_DEGREES on a side, kept next to weatherDataMap
+// for GET /weather/near. A search starts at the cell of the query point and visits rings of cells around it,
+// stopping once no unvisited cell can hold a station nearer than the k-th found or within the radius. That lower
+// bound is exact on the sphere: it takes the latitude gap to the rows not yet visited, and the distance to the
+// nearest meridian not yet visited, so searches near the poles and across the antimeridian are correct too.
+// Stations without a position (lat and lon both 0, as a record without them decodes) are left out.
+class SpatialIndex {
+    static final double EARTH_RADIUS_KM = 6371.0088;
+    static final double CELL_DEGREES = 0.5;
+    private static final int ROWS = (int) (180 / CELL_DEGREES);
+    private static final int COLUMNS = (int) (360 / CELL_DEGREES);
+
+    // Stations by cell (row * COLUMNS + column), each cell by id; a cell is dropped when its last station leaves
+    private final Map<Integer, Map<String, Entry>> cells = new ConcurrentHashMap<>();
+
+    /**
+     * Moves a station from its old cell to its new one.
+     * Must be called while holding the station's map entry, so updates of one station are not interleaved.
+     *
+     * @param old  The previously stored data, or null for a new station.
+     * @param data The newly stored data, or null if the station was removed.
+     */
+    void update(WeatherData old, WeatherData data) {
+        boolean moved = old == null || data == null || old.lat != data.lat || old.lon != data.lon;
+        if (!moved) {
+            return;
+        }
+        if (old != null && hasPosition(old)) {
+            String id = old.id;
+            cells.computeIfPresent(cell(old.lat, old.lon), (key, stations) -> {
+                stations.remove(id);
+                return stations.isEmpty() ? null : stations;
+            });
+        }
+        if (data != null && hasPosition(data)) {
+            Entry entry = new Entry(data.id, data.lat, data.lon);
+            cells.compute(cell(data.lat, data.lon), (key, stations) -> {
+                if (stations == null) {
+                    stations = new ConcurrentHashMap<>();
+                }
+                stations.put(entry.id, entry);
+                return stations;
+            });
+        }
+    }
+
+    /**
+     * Finds the stations nearest a point, nearest first.
+     *
+     * @param lat      The latitude of the point, in degrees.
+     * @param lon      The longitude of the point, in degrees.
+     * @param k        The most stations to return.
+     * @param radiusKm The farthest a station may be, in km; infinite for no limit.
+     * @return Up to k stations within the radius, ordered by distance.
+     */
+    List<Hit> search(double lat, double lon, int k, double radiusKm) {
+        // The k nearest so far, farthest on top
+        PriorityQueue<Hit> best = new PriorityQueue<>(Comparator.comparingDouble((Hit hit) -> hit.distanceKm).reversed());
+        // 180 is the same meridian as -180, where the columns start
+        lon = lon >= 180 ? lon - 360 : lon;
+        int row0 = row(lat);
+        int column0 = column(lon);
+        for (int r = 0; ; r++) {
+            int span = Math.min(2 * r + 1, COLUMNS);
+            int previousSpan = r == 0 ? 0 : Math.min(2 * r - 1, COLUMNS);
+            for (int row = Math.max(row0 - r, 0); row <= Math.min(row0 + r, ROWS - 1); row++) {
+                if (row == row0 - r || row == row0 + r) {
+                    // A new row: every column of the ring's span
+                    for (int i = 0; i < span; i++) {
+                        visit(row, column0 - r + i, lat, lon, k, radiusKm, best);
+                    }
+                } else if (span > previousSpan) {
+                    // A row already visited: the ring's new edge columns, one if they meet around the globe
+                    visit(row, column0 - r, lat, lon, k, radiusKm, best);
+                    if (span - previousSpan == 2) {
+                        visit(row, column0 + r, lat, lon, k, radiusKm, best);
+                    }
+                }
+            }
+
+            double bound = unvisitedBound(lat, lon, row0, column0, r, span);
+            double cutoff = best.size() == k ? Math.min(radiusKm, best.peek().distanceKm) : radiusKm;
+            if (bound == Double.POSITIVE_INFINITY || bound > cutoff) {
+                break;
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(Comparator.comparingDouble((Hit hit) -> hit.distanceKm).thenComparing(hit -> hit.id));
+        return hits;
+    }
+
+    /**
+     * Returns the great-circle distance between two points, by the haversine formula.
+     *
+     * @param lat1 The latitude of the first point, in degrees.
+     * @param lon1 The longitude of the first point, in degrees.
+     * @param lat2 The latitude of the second point, in degrees.
+     * @param lon2 The longitude of the second point, in degrees.
+     * @return The distance in km.
+     */
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double sinLat = Math.sin(Math.toRadians(lat2 - lat1) / 2);
+        double sinLon = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinLat * sinLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Tells whether a station has a position to index.
+     *
+     * @param data The station.
+     * @return false if its latitude and longitude are both 0 or either is not a valid coordinate.
+     */
+    static boolean hasPosition(WeatherData data) {
+        return (data.lat != 0 || data.lon != 0) && Math.abs(data.lat) <= 90 && Math.abs(data.lon) <= 180;
+    }
+
+    private void visit(int row, int column, double lat, double lon, int k, double radiusKm, PriorityQueue<Hit> best) {
+        Map<String, Entry> stations = cells.get(row * COLUMNS + Math.floorMod(column, COLUMNS));
+        if (stations == null) {
+            return;
+        }
+        for (Entry entry : stations.values()) {
+            double distance = distanceKm(lat, lon, entry.lat, entry.lon);
+            if (distance > radiusKm) {
+                continue;
+            }
+            if (best.size() < k) {
+                best.add(new Hit(entry.id, entry.lat, entry.lon, distance));
+            } else if (distance < best.peek().distanceKm) {
+                best.poll();
+                best.add(new Hit(entry.id, entry.lat, entry.lon, distance));
+            }
+        }
+    }
+
+    /**
+     * Returns a lower bound on the distance from the point to any cell outside the rings visited so far.
+     *
+     * @return The bound in km, or infinity once every cell has been visited.
+     */
+    private static double unvisitedBound(double lat, double lon, int row0, int column0, int r, int span) {
+        // Rows beyond the ring are at least this far in latitude, which no path can shorten
+        double south = row0 - r > 0 ? lat - (row0 - r) * CELL_DEGREES + 90 : Double.POSITIVE_INFINITY;
+        double north = row0 + r < ROWS - 1 ? (row0 + r + 1) * CELL_DEGREES - 90 - lat : Double.POSITIVE_INFINITY;
+        double bound = Math.toRadians(Math.min(south, north)) * EARTH_RADIUS_KM;
+
+        // Columns beyond the ring lie past a meridian this far east or west; the nearest point of a meridian dLon
+        // away is asin(cos(lat) * sin(dLon)) along the sphere, or the nearer pole once dLon passes 90 degrees
+        if (span < COLUMNS) {
+            double west = lon + 180 - (column0 - r) * CELL_DEGREES;
+            double east = (column0 + r + 1) * CELL_DEGREES - 180 - lon;
+            double gap = Math.toRadians(Math.min(Math.min(west, east), 90));
+            double meridian = Math.asin(Math.min(1, Math.cos(Math.toRadians(lat)) * Math.sin(gap))) * EARTH_RADIUS_KM;
+            bound = Math.min(bound, meridian);
+        }
+        return bound;
+    }
+
+    private static int cell(double lat, double lon) {
+        return row(lat) * COLUMNS + column(lon);
+    }
+
+    private static int row(double lat) {
+        return Math.min((int) Math.floor((lat + 90) / CELL_DEGREES), ROWS - 1);
+    }
+
+    private static int column(double lon) {
+        return Math.floorMod((int) Math.floor((lon + 180) / CELL_DEGREES), COLUMNS);
+    }
+
+    // Entry class to hold one station's position in its cell
+    private static class Entry {
+        final String id;
+        final double lat;
+        final double lon;
+
+        Entry(String id, double lat, double lon) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+        }
+    }
+
+    // Hit class to hold a station found by a search and its distance from the query point
+    static class Hit {
+        final String id;
+        final double lat;
+        final double lon;
+        final double distanceKm;
+
+        Hit(String id, double lat, double lon, double distanceKm) {
+            this.id = id;
+            this.lat = lat;
+            this.lon = lon;
+            this.distanceKm = distanceKm;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.example;
+
+import java.util.ArrayDeque;
+
+// StationHistory holds the recent readings of one station in two tiers, both of bounded size.
+// Recent samples are kept exactly, in Gorilla-compressed blocks (see TimeSeriesBlock). When the raw tier is full its
+// oldest block is folded into rollups: fixed-width time buckets holding the min, max and mean of every field,
+// kept in a ring so the oldest buckets are overwritten. A station's history therefore never grows past its limits,
+// however long it keeps reporting.
+class StationHistory {
+    // The numeric fields of WeatherData that are recorded
+    static final String[] FIELDS = {"air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh"};
+
+    // Samples per compressed block; the raw tier grows and shrinks a block at a time
+    static final int BLOCK_SAMPLES = 120;
+
+    private final int maxBlocks;
+    private final long rollupMillis;
+    private final int rollupCapacity;
+
+    // The raw tier, oldest block first; the last block is the one being appended to
+    private final ArrayDeque<TimeSeriesBlock> blocks = new ArrayDeque<>();
+    private long lastTime = Long.MIN_VALUE;
+
+    // The rollup ring, allocated when the first block is rolled up. Bucket i holds field f at i * FIELDS.length + f
+    private long[] bucketStart;
+    private int[] bucketCount;
+    private float[] min;
+    private float[] max;
+    private float[] mean;
+
+    /**
+     * Constructs an empty history.
+     *
+     * @param rawSamples     About how many recent samples to keep exactly.
+     * @param rollupMillis   The width of a rollup bucket.
+     * @param rollupCapacity The number of rollup buckets kept.
+     */
+    StationHistory(int rawSamples, long rollupMillis, int rollupCapacity) {
+        this.maxBlocks = Math.max(1, (rawSamples + BLOCK_SAMPLES - 1) / BLOCK_SAMPLES);
+        this.rollupMillis = rollupMillis;
+        this.rollupCapacity = rollupCapacity;
+    }
+
+    /**
+     * Appends a reading.
+     * Samples are kept in time order; a reading timed before the previous one (concurrent PUTs of the same
+     * station) is recorded at the previous one's time.
+     *
+     * @param time   The time of the reading in milliseconds.
+     * @param values One value per entry of {@link #FIELDS}.
+     */
+    synchronized void record(long time, double[] values) {
+        time = Math.max(time, lastTime);
+        lastTime = time;
+        TimeSeriesBlock current = blocks.peekLast();
+        if (current == null || current.isFull()) {
+            if (current != null) {
+                current.seal();
+            }
+            current = new TimeSeriesBlock(FIELDS.length, BLOCK_SAMPLES);
+            blocks.addLast(current);
+            if (blocks.size() > maxBlocks) {
+                rollUp(blocks.removeFirst());
+            }
+        }
+        current.append(time, values);
+    }
+
+    /**
+     * Calls the visitor with every raw sample between from and to, oldest first.
+     *
+     * @param from    The earliest time, inclusive.
+     * @param to      The latest time, inclusive.
+     * @param visitor Receives each sample; the values array is reused between calls.
+     */
+    synchronized void rawSamples(long from, long to, TimeSeriesBlock.SampleVisitor visitor) {
+        for (TimeSeriesBlock block : blocks) {
+            if (block.lastTime() < from || block.firstTime() > to) {
+                continue;
+            }
+            block.forEach((time, values) -> {
+                if (time >= from && time <= to) {
+                    visitor.visit(time, values);
+                }
+            });
+        }
+    }
+
+    /**
+     * Calls the visitor with every rollup bucket that starts between from and to, in no particular order.
+     *
+     * @param from    The earliest bucket start, inclusive.
+     * @param to      The latest bucket start, inclusive.
+     * @param visitor Receives each bucket; the arrays are reused between calls.
+     */
+    synchronized void rollups(long from, long to, RollupVisitor visitor) {
+        if (bucketStart == null) {
+            return;
+        }
+        int fields = FIELDS.length;
+        double[] bucketMin = new double[fields];
+        double[] bucketMax = new double[fields];
+        double[] bucketMean = new double[fields];
+        for (int i = 0; i < rollupCapacity; i++) {
+            long start = bucketStart[i];
+            if (bucketCount[i] == 0 || start < from || start > to) {
+                continue;
+            }
+            for (int f = 0; f < fields; f++) {
+                bucketMin[f] = widen(min[i * fields + f]);
+                bucketMax[f] = widen(max[i * fields + f]);
+                bucketMean[f] = widen(mean[i * fields + f]);
+            }
+            visitor.visit(start, bucketCount[i], bucketMin, bucketMax, bucketMean);
+        }
+    }
+
+    /**
+     * Converts a rolled-up float to the double with the same shortest decimal form, so 13.3f reads back as 13.3.
+     */
+    private static double widen(float value) {
+        return Double.parseDouble(Float.toString(value));
+    }
+
+    long rollupMillis() {
+        return rollupMillis;
+    }
+
+    /**
+     * Returns the memory held by the compressed samples and the rollups, for comparing encodings.
+     *
+     * @return The approximate size in bytes.
+     */
+    synchronized long footprintBytes() {
+        long bytes = 0;
+        for (TimeSeriesBlock block : blocks) {
+            bytes += block.compressedBytes();
+        }
+        if (bucketStart != null) {
+            bytes += (long) rollupCapacity * (8 + 4 + 3L * 4 * FIELDS.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Folds the samples of a block evicted from the raw tier into the rollup buckets covering them.
+     */
+    private void rollUp(TimeSeriesBlock block) {
+        int fields = FIELDS.length;
+        if (bucketStart == null) {
+            bucketStart = new long[rollupCapacity];
+            bucketCount = new int[rollupCapacity];
+            min = new float[rollupCapacity * fields];
+            max = new float[rollupCapacity * fields];
+            mean = new float[rollupCapacity * fields];
+        }
+        block.forEach((time, values) -> {
+            long bucket = Math.floorDiv(time, rollupMillis);
+            int i = (int) Math.floorMod(bucket, (long) rollupCapacity);
+            long start = bucket * rollupMillis;
+            if (bucketCount[i] > 0 && bucketStart[i] != start) {
+                // The slot holds a bucket one lap of the ring older, which this one replaces
+                bucketCount[i] = 0;
+            }
+            bucketStart[i] = start;
+            int count = ++bucketCount[i];
+            for (int f = 0; f < fields; f++) {
+                int slot = i * fields + f;
+                float value = (float) values[f];
+                if (count == 1) {
+                    min[slot] = value;
+                    max[slot] = value;
+                    mean[slot] = value;
+                } else {
+                    min[slot] = Math.min(min[slot], value);
+                    max[slot] = Math.max(max[slot], value);
+                    mean[slot] += (value - mean[slot]) / count;
+                }
+            }
+        });
+    }
+
+    // RollupVisitor interface to receive the rollup buckets of a query
+    interface RollupVisitor {
+        void visit(long start, int count, double[] min, double[] max, double[] mean);
+    }
+}
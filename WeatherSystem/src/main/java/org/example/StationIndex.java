@@ -0,0 +1,90 @@
+package org.example;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.NavigableSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// StationIndex holds the secondary indexes kept next to weatherDataMap for filtered GET queries:
+// all ids in sorted order (for cursor pagination), ids by state, and stations ordered by latitude (for bounding boxes)
+class StationIndex {
+    private final NavigableSet<String> ids = new ConcurrentSkipListSet<>();
+    private final Map<String, NavigableSet<String>> byState = new ConcurrentHashMap<>();
+    private final NavigableSet<LatEntry> byLat = new ConcurrentSkipListSet<>(
+            Comparator.comparingDouble((LatEntry e) -> e.lat).thenComparing(e -> e.id));
+
+    /**
+     * Moves a station from its old index entries to its new ones.
+     * Must be called while holding the station's map entry, so updates of one station are not interleaved.
+     *
+     * @param old  The previously stored data, or null for a new station.
+     * @param data The newly stored data, or null if the station was removed.
+     */
+    void update(WeatherData old, WeatherData data) {
+        if (old != null) {
+            if (data == null) {
+                ids.remove(old.id);
+            }
+            if (old.state != null && (data == null || !old.state.equals(data.state))) {
+                NavigableSet<String> stateIds = byState.get(old.state);
+                if (stateIds != null) {
+                    stateIds.remove(old.id);
+                }
+            }
+            if (data == null || old.lat != data.lat) {
+                byLat.remove(new LatEntry(old.lat, old.id));
+            }
+        }
+        if (data != null) {
+            ids.add(data.id);
+            if (data.state != null) {
+                byState.computeIfAbsent(data.state, s -> new ConcurrentSkipListSet<>()).add(data.id);
+            }
+            byLat.add(new LatEntry(data.lat, data.id));
+        }
+    }
+
+    /**
+     * Returns all station ids in sorted order.
+     *
+     * @return A live, sorted view of the ids.
+     */
+    NavigableSet<String> allIds() {
+        return ids;
+    }
+
+    /**
+     * Returns the ids of the stations in a state, in sorted order.
+     *
+     * @param state The state, e.g. SA.
+     * @return A live, sorted view of the ids, empty if the state is unknown.
+     */
+    NavigableSet<String> idsInState(String state) {
+        NavigableSet<String> stateIds = byState.get(state);
+        return stateIds != null ? stateIds : Collections.emptyNavigableSet();
+    }
+
+    /**
+     * Returns the stations whose latitude lies within a range, ordered by latitude.
+     *
+     * @param minLat The lowest latitude, inclusive.
+     * @param maxLat The highest latitude, inclusive.
+     * @return A live view of the matching entries.
+     */
+    NavigableSet<LatEntry> latitudeRange(double minLat, double maxLat) {
+        return byLat.subSet(new LatEntry(minLat, ""), true, new LatEntry(maxLat, "\uffff"), true);
+    }
+
+    // LatEntry class to hold one station's position in the latitude index
+    static class LatEntry {
+        final double lat;
+        final String id;
+
+        LatEntry(double lat, String id) {
+            this.lat = lat;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.example;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+// StationQuery class to hold the filters of a GET /weather.json?... request and run them against the indexes.
+// Supported parameters: id, ids (comma separated), state, bbox (minLat,minLon,maxLat,maxLon; minLon above maxLon
+// wraps across the antimeridian), fields (comma separated projection), limit and cursor (the last id of the
+// previous page).
+class StationQuery {
+    NavigableSet<String> ids;
+    String state;
+    double[] bbox;
+    Set<String> fields;
+    String cursor;
+    int limit = Integer.MAX_VALUE;
+
+    /**
+     * Parses the query parameters of a GET request.
+     *
+     * @param params The decoded query parameters.
+     * @return The query, or null if the request has no query parameters and wants the full snapshot.
+     * @throws IllegalArgumentException If a parameter is unknown or malformed.
+     */
+    static StationQuery parse(Map<String, String> params) {
+        if (params.isEmpty()) {
+            return null;
+        }
+        StationQuery query = new StationQuery();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            String value = param.getValue();
+            switch (param.getKey()) {
+                case "id":
+                case "ids":
+                    if (query.ids == null) {
+                        query.ids = new TreeSet<>();
+                    }
+                    query.ids.addAll(splitList(value));
+                    break;
+                case "state":
+                    query.state = value;
+                    break;
+                case "bbox":
+                    String[] parts = value.split(",");
+                    if (parts.length != 4) {
+                        throw new IllegalArgumentException("bbox needs minLat,minLon,maxLat,maxLon");
+                    }
+                    query.bbox = new double[4];
+                    for (int i = 0; i < 4; i++) {
+                        query.bbox[i] = Double.parseDouble(parts[i].trim());
+                    }
+                    if (query.bbox[0] > query.bbox[2]) {
+                        throw new IllegalArgumentException("bbox minLat is above maxLat");
+                    }
+                    break;
+                case "fields":
+                    query.fields = new LinkedHashSet<>(splitList(value));
+                    break;
+                case "cursor":
+                    query.cursor = value;
+                    break;
+                case "limit":
+                    query.limit = Integer.parseInt(value);
+                    if (query.limit <= 0) {
+                        throw new IllegalArgumentException("limit must be positive");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown query parameter " + param.getKey());
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Runs the query. Candidates come from the most selective index available (explicit ids, then state,
+     * then the latitude range of the bounding box) and are checked against the remaining filters.
+     * Results are ordered by id, so a page ends at an id that the next request passes as its cursor.
+     *
+     * @param weatherStore   The stored stations.
+     * @param index          The secondary indexes kept next to the map.
+     * @param gson           The Gson instance used to serialize stations.
+     * @return The matching stations and the cursor of the next page, if any.
+     */
+    Result execute(WeatherStore weatherStore, StationIndex index, Gson gson) {
+        NavigableSet<String> candidates;
+        if (ids != null) {
+            candidates = ids;
+        } else if (state != null) {
+            candidates = index.idsInState(state);
+        } else if (bbox != null) {
+            candidates = new TreeSet<>();
+            for (StationIndex.LatEntry entry : index.latitudeRange(bbox[0], bbox[2])) {
+                candidates.add(entry.id);
+            }
+        } else {
+            candidates = index.allIds();
+        }
+        if (cursor != null) {
+            candidates = candidates.tailSet(cursor, false);
+        }
+
+        Result result = new Result();
+        String lastId = null;
+        int count = 0;
+        for (String id : candidates) {
+            WeatherData data = weatherStore.get(id);
+            if (data == null || !matches(data)) {
+                continue;
+            }
+            if (count == limit) {
+                // Another match exists, so the client needs a further page
+                result.nextCursor = lastId;
+                break;
+            }
+            result.stations.add(id, project(gson.toJsonTree(data)));
+            lastId = id;
+            count++;
+        }
+        result.json = gson.toJson(result.stations);
+        return result;
+    }
+
+    /**
+     * Checks the filters that were not used to pick the candidates.
+     *
+     * @param data The station to check.
+     * @return true if the station matches every filter.
+     */
+    private boolean matches(WeatherData data) {
+        if (state != null && !state.equals(data.state)) {
+            return false;
+        }
+        if (bbox != null) {
+            if (data.lat < bbox[0] || data.lat > bbox[2]) {
+                return false;
+            }
+            // A box with minLon above maxLon crosses the antimeridian
+            return bbox[1] <= bbox[3]
+                    ? data.lon >= bbox[1] && data.lon <= bbox[3]
+                    : data.lon >= bbox[1] || data.lon <= bbox[3];
+        }
+        return true;
+    }
+
+    /**
+     * Keeps only the requested fields of a serialized station.
+     *
+     * @param station The station as a JSON object.
+     * @return The projected station.
+     */
+    private JsonElement project(JsonElement station) {
+        if (fields == null) {
+            return station;
+        }
+        JsonObject all = station.getAsJsonObject();
+        JsonObject projected = new JsonObject();
+        for (String field : fields) {
+            if (all.has(field)) {
+                projected.add(field, all.get(field));
+            }
+        }
+        return projected;
+    }
+
+    private static Set<String> splitList(String value) {
+        Set<String> items = new LinkedHashSet<>();
+        for (String item : Arrays.asList(value.split(","))) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    // Result class to hold the stations matched by a query
+    static class Result {
+        final JsonObject stations = new JsonObject();
+        String json;
+        String nextCursor;
+    }
+}
@@ -0,0 +1,74 @@
+package org.example;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// StationStream class to decode the stations of a GET /weather.json response one at a time as its body arrives,
+// handing each to a callback instead of building the whole map first. The client's memory then stays the same
+// however many stations the server holds, and the first station is shown while the rest are still on the wire.
+// A JSON body is read token by token with Gson's JsonReader. A body in the binary form of WeatherDataCodec is read
+// whole, since its string dictionary spans the message.
+class StationStream {
+    private static final WeatherDataAdapter ADAPTER = new WeatherDataAdapter();
+
+    /**
+     * Decodes the stations of a response body, passing those the filter accepts to the output as each is read.
+     *
+     * @param body        The body, already framed and decompressed (see {@link HttpResponse#bodyStream}).
+     * @param contentType The response's Content-Type, or null for JSON.
+     * @param filter      Which stations to pass on.
+     * @param output      Called with each station accepted, in the order the server sent them.
+     * @return The number of stations passed to the output.
+     * @throws IOException If the body cannot be read or is not a map of stations.
+     */
+    static long read(InputStream body, String contentType, Predicate<WeatherData> filter,
+                     Consumer<WeatherData> output) throws IOException {
+        long count = 0;
+        if (WeatherDataCodec.isBinary(contentType)) {
+            try {
+                for (WeatherData data : WeatherDataCodec.decode(body.readAllBytes())) {
+                    count += emit(data, filter, output);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed " + WeatherDataCodec.MEDIA_TYPE + " body: " + e.getMessage());
+            }
+            return count;
+        }
+
+        // The body is an object of stations keyed by id; only the station being read is held at a time
+        JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String id = reader.nextName();
+                WeatherData data = ADAPTER.read(reader);
+                if (data != null) {
+                    // A query may leave the id out of the fields it returns
+                    if (data.id == null) {
+                        data.id = id;
+                    }
+                    count += emit(data, filter, output);
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Malformed station map: " + e.getMessage());
+        }
+        return count;
+    }
+
+    private static int emit(WeatherData data, Predicate<WeatherData> filter, Consumer<WeatherData> output) {
+        if (!filter.test(data)) {
+            return 0;
+        }
+        output.accept(data);
+        return 1;
+    }
+}
@@ -0,0 +1,271 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Subscription class to hold one subscriber of the ChangeLog: a long poll waiting for changes, or a Server-Sent
+// Events stream. Matching changes are queued here by the ChangeLog without blocking; the connection engine takes
+// them when it can write, either by waiting on the subscription (the blocking engines) or by being called back
+// when it becomes ready (the selector engine).
+//
+// The queue is bounded. A long poll that fills it is answered with the changes queued so far, and the client asks
+// again from the last one. A stream that fills it has fallen behind: it is sent what was queued and closed instead of
+// the server buffering without limit for a slow reader. The client reconnects with Last-Event-ID and catches up from
+// the log, or is sent a reset event if the log no longer reaches back that far.
+class Subscription {
+    // How often an idle stream sends a comment line, so dead connections are noticed and proxies keep it open
+    static final long HEARTBEAT_MILLIS = 15_000;
+
+    private final ChangeLog log;
+    final boolean streaming;
+    private final Set<String> ids;
+    private final String state;
+    private final int capacity;
+
+    private final ArrayDeque<ChangeLog.Change> queue = new ArrayDeque<>();
+    // A change was dropped because the queue was full
+    private boolean full;
+    // The log no longer covers the requested time, at this clock
+    private boolean reset;
+    private long resetClock;
+    private boolean expired;
+    private boolean heartbeatDue;
+    private boolean finished;
+    // Set once the listener has been told the subscription is ready, until the ready state is consumed
+    private boolean signalled;
+    private Runnable listener;
+    private ScheduledFuture<?> timer;
+
+    Subscription(ChangeLog log, boolean streaming, Set<String> ids, String state, int capacity) {
+        this.log = log;
+        this.streaming = streaming;
+        this.ids = ids;
+        this.state = state;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queues a change if it matches the filters. Called by the ChangeLog's fan-out, in log order; never blocks.
+     *
+     * @param change The change.
+     */
+    void offer(ChangeLog.Change change) {
+        if ((ids != null && !ids.contains(change.id)) || (state != null && !state.equals(change.state))) {
+            return;
+        }
+        Runnable notify;
+        synchronized (this) {
+            if (finished || full) {
+                return;
+            }
+            if (queue.size() >= capacity) {
+                full = true;
+            } else {
+                queue.add(change);
+            }
+            notify = becameReady();
+        }
+        if (notify != null) {
+            notify.run();
+        }
+    }
+
+    /**
+     * Marks the subscription as starting from a time the log does not cover, or as having missed changes because
+     * the fan-out fell behind.
+     *
+     * @param clock The log's newest time, from which the client can continue after fetching the full data.
+     */
+    void reset(long clock) {
+        signal(() -> {
+            reset = true;
+            resetClock = clock;
+        });
+    }
+
+    /**
+     * Starts the long-poll timeout or the stream heartbeat.
+     *
+     * @param timeoutMillis How long a long poll waits for a change.
+     */
+    synchronized void start(long timeoutMillis) {
+        if (streaming) {
+            timer = ChangeLog.timer.scheduleAtFixedRate(() -> signal(() -> heartbeatDue = true),
+                    HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        } else if (timeoutMillis <= 0) {
+            expired = true;
+        } else {
+            timer = ChangeLog.timer.schedule(() -> signal(() -> expired = true), timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the callback run once each time the subscription becomes ready: a long poll that can be answered, or a
+     * stream with events to write. Runs at once if it is ready already. The callback must not block.
+     *
+     * @param listener The callback.
+     */
+    void setListener(Runnable listener) {
+        Runnable notify;
+        synchronized (this) {
+            this.listener = listener;
+            notify = becameReady();
+        }
+        if (notify != null) {
+            notify.run();
+        }
+    }
+
+    /**
+     * Waits until a long poll can be answered or a stream has events to write.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    synchronized void awaitReady() throws InterruptedException {
+        while (!isReady()) {
+            wait();
+        }
+    }
+
+    /**
+     * Ends a long poll and fills in its response: {"clock":...,"reset":false,"changes":[...]}.
+     * The clock is the time to pass as since in the next poll.
+     *
+     * @param response The response to fill in.
+     */
+    void complete(HttpResponse response) {
+        long head = cancel();
+        StringBuilder body = new StringBuilder();
+        synchronized (this) {
+            long clock = reset ? resetClock : full ? queue.getLast().clock : head;
+            body.append("{\"clock\":").append(clock).append(",\"reset\":").append(reset).append(",\"changes\":[");
+            boolean first = true;
+            for (ChangeLog.Change change : queue) {
+                body.append(first ? "" : ",").append(change.toJson());
+                first = false;
+            }
+            body.append("]}");
+            queue.clear();
+        }
+        response.headers.put("Content-Type", "application/json");
+        response.body = body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Takes the queued events of a stream, or a heartbeat if one is due. The stream ends after the events queued
+     * before it fell behind, or with a reset event if it started from a time the log does not cover.
+     *
+     * @return The bytes to write, or null if there is nothing to send yet.
+     */
+    byte[] takeEvents() {
+        StringBuilder events = new StringBuilder();
+        boolean end;
+        synchronized (this) {
+            signalled = false;
+            for (ChangeLog.Change change : queue) {
+                events.append(change.toEvent());
+            }
+            queue.clear();
+            if (heartbeatDue && events.length() == 0) {
+                events.append(": heartbeat\n\n");
+            }
+            heartbeatDue = false;
+            end = (full || reset) && !finished;
+            if (reset && !finished) {
+                events.append("event: reset\ndata: {\"clock\":").append(resetClock).append("}\n\n");
+            }
+            finished |= end;
+        }
+        if (end) {
+            cancel();
+        }
+        return events.length() == 0 ? null : events.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a stream's events until it ends, the client goes away or the thread is interrupted.
+     * Used by the blocking engines, which dedicate the connection's thread to the stream.
+     *
+     * @param output The stream connected to the client.
+     * @throws IOException If the client closed the connection.
+     */
+    void stream(OutputStream output) throws IOException {
+        try {
+            while (!isFinished()) {
+                awaitReady();
+                byte[] events = takeEvents();
+                if (events != null) {
+                    output.write(events);
+                    output.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancel();
+        }
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Stops the subscription: it is removed from the log and its timer is cancelled.
+     * Called when a long poll is answered, a stream ends, or the client goes away.
+     *
+     * @return The log's newest time when the subscription stopped receiving changes.
+     */
+    long cancel() {
+        long head = log.unsubscribe(this);
+        synchronized (this) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            finished = true;
+        }
+        return head;
+    }
+
+    private boolean isReady() {
+        if (finished) {
+            return true;
+        }
+        return !queue.isEmpty() || full || reset || expired || heartbeatDue;
+    }
+
+    /**
+     * Applies a change of state from the timer and notifies the waiting thread or the listener.
+     */
+    private void signal(Runnable update) {
+        Runnable notify;
+        synchronized (this) {
+            update.run();
+            notify = becameReady();
+        }
+        if (notify != null) {
+            notify.run();
+        }
+    }
+
+    /**
+     * Wakes a waiting thread, and returns the listener to run if it has not been told since the last time the
+     * ready state was consumed. Called while holding this subscription's lock.
+     */
+    private Runnable becameReady() {
+        if (!isReady()) {
+            return null;
+        }
+        notifyAll();
+        if (listener == null || signalled) {
+            return null;
+        }
+        signalled = true;
+        return listener;
+    }
+}
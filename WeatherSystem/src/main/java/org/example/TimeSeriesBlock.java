@@ -0,0 +1,260 @@
+package org.example;
+
+import java.util.Arrays;
+
+// TimeSeriesBlock holds a run of samples compressed the way Gorilla (Facebook's in-memory time-series database)
+// does: timestamps as delta-of-delta, and each value as the XOR with the previous value of the same field, storing
+// only its meaningful bits. Readings that repeat or change slowly take a few bits each instead of 8 bytes.
+class TimeSeriesBlock {
+    private final int fieldCount;
+    private final int capacity;
+    private long[] words = new long[16];
+    private long bitCount;
+    private int size;
+
+    // Encoder state: the previous timestamp and delta, and per field the previous bits and XOR window
+    private long firstTime;
+    private long lastTime;
+    private long lastDelta;
+    private final long[] lastBits;
+    private final int[] lastLeading;
+    private final int[] lastTrailing;
+
+    /**
+     * Constructs an empty block.
+     *
+     * @param fieldCount The number of values in each sample.
+     * @param capacity   The most samples the block holds.
+     */
+    TimeSeriesBlock(int fieldCount, int capacity) {
+        this.fieldCount = fieldCount;
+        this.capacity = capacity;
+        this.lastBits = new long[fieldCount];
+        this.lastLeading = new int[fieldCount];
+        this.lastTrailing = new int[fieldCount];
+    }
+
+    /**
+     * Appends a sample. Timestamps must not decrease.
+     *
+     * @param time   The sample time in milliseconds.
+     * @param values One value per field.
+     */
+    void append(long time, double[] values) {
+        if (size == 0) {
+            firstTime = time;
+            writeBits(time, 64);
+            for (int f = 0; f < fieldCount; f++) {
+                lastBits[f] = Double.doubleToRawLongBits(values[f]);
+                writeBits(lastBits[f], 64);
+                lastLeading[f] = Integer.MAX_VALUE;
+            }
+        } else {
+            long delta = time - lastTime;
+            writeDeltaOfDelta(delta - lastDelta);
+            lastDelta = delta;
+            for (int f = 0; f < fieldCount; f++) {
+                writeValue(f, Double.doubleToRawLongBits(values[f]));
+            }
+        }
+        lastTime = time;
+        size++;
+    }
+
+    boolean isFull() {
+        return size >= capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long firstTime() {
+        return firstTime;
+    }
+
+    long lastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Releases the unused part of the bit buffer once no more samples will be appended.
+     */
+    void seal() {
+        words = Arrays.copyOf(words, (int) ((bitCount + 63) >>> 6));
+    }
+
+    /**
+     * Returns the compressed size, for comparison with the 8 bytes per value of an uncompressed sample.
+     *
+     * @return The number of bytes used by the samples.
+     */
+    long compressedBytes() {
+        return (bitCount + 7) >>> 3;
+    }
+
+    /**
+     * Decodes the samples in order.
+     *
+     * @param visitor Called with each sample's time and values; the values array is reused between calls.
+     */
+    void forEach(SampleVisitor visitor) {
+        Reader reader = new Reader();
+        double[] values = new double[fieldCount];
+        long[] bits = new long[fieldCount];
+        int[] leading = new int[fieldCount];
+        int[] trailing = new int[fieldCount];
+        long time = 0;
+        long delta = 0;
+        for (int i = 0; i < size; i++) {
+            if (i == 0) {
+                time = reader.read(64);
+                for (int f = 0; f < fieldCount; f++) {
+                    bits[f] = reader.read(64);
+                }
+            } else {
+                delta += reader.readDeltaOfDelta();
+                time += delta;
+                for (int f = 0; f < fieldCount; f++) {
+                    if (reader.read(1) == 0) {
+                        continue;  // Same value as before
+                    }
+                    if (reader.read(1) == 1) {
+                        // A new window of meaningful bits
+                        leading[f] = (int) reader.read(5);
+                        int length = (int) reader.read(6) + 1;
+                        trailing[f] = 64 - leading[f] - length;
+                    }
+                    int length = 64 - leading[f] - trailing[f];
+                    bits[f] ^= reader.read(length) << trailing[f];
+                }
+            }
+            for (int f = 0; f < fieldCount; f++) {
+                values[f] = Double.longBitsToDouble(bits[f]);
+            }
+            visitor.visit(time, values);
+        }
+    }
+
+    /**
+     * Writes the change in the gap between samples with a variable-length prefix code.
+     * Regular sampling gives 0 and takes one bit; millisecond jitter usually fits the short forms.
+     */
+    private void writeDeltaOfDelta(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (fitsSigned(dod, 14)) {
+            writeBits(0b10, 2);
+            writeBits(dod, 14);
+        } else if (fitsSigned(dod, 20)) {
+            writeBits(0b110, 3);
+            writeBits(dod, 20);
+        } else if (fitsSigned(dod, 32)) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 32);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(dod, 64);
+        }
+    }
+
+    /**
+     * Writes a value as its XOR with the field's previous value: one 0 bit if unchanged, otherwise only the
+     * meaningful bits, reusing the previous window of leading and trailing zeros when the new bits fit inside it.
+     */
+    private void writeValue(int field, long bits) {
+        long xor = bits ^ lastBits[field];
+        lastBits[field] = bits;
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        // The leading count is stored in 5 bits
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (lastLeading[field] != Integer.MAX_VALUE && leading >= lastLeading[field] && trailing >= lastTrailing[field]) {
+            writeBits(0b10, 2);
+            int length = 64 - lastLeading[field] - lastTrailing[field];
+            writeBits(xor >>> lastTrailing[field], length);
+        } else {
+            int length = 64 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(length - 1, 6);
+            writeBits(xor >>> trailing, length);
+            lastLeading[field] = leading;
+            lastTrailing[field] = trailing;
+        }
+    }
+
+    private static boolean fitsSigned(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    /**
+     * Appends the low n bits of a value, most significant first.
+     */
+    private void writeBits(long value, int n) {
+        while (n > 0) {
+            int word = (int) (bitCount >>> 6);
+            if (word == words.length) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            int free = 64 - (int) (bitCount & 63);
+            int chunk = Math.min(free, n);
+            long bits = (value >>> (n - chunk)) & mask(chunk);
+            words[word] |= bits << (free - chunk);
+            bitCount += chunk;
+            n -= chunk;
+        }
+    }
+
+    private static long mask(int bits) {
+        return bits == 64 ? -1L : (1L << bits) - 1;
+    }
+
+    // SampleVisitor interface to receive decoded samples
+    interface SampleVisitor {
+        void visit(long time, double[] values);
+    }
+
+    // Reader class to read the bit stream back from the start
+    private class Reader {
+        private long position;
+
+        long read(int n) {
+            long value = 0;
+            while (n > 0) {
+                long word = words[(int) (position >>> 6)];
+                int available = 64 - (int) (position & 63);
+                int chunk = Math.min(available, n);
+                long bits = (word >>> (available - chunk)) & mask(chunk);
+                value = (value << chunk) | bits;
+                position += chunk;
+                n -= chunk;
+            }
+            return value;
+        }
+
+        long readDeltaOfDelta() {
+            if (read(1) == 0) {
+                return 0;
+            }
+            if (read(1) == 0) {
+                return signExtend(read(14), 14);
+            }
+            if (read(1) == 0) {
+                return signExtend(read(20), 20);
+            }
+            if (read(1) == 0) {
+                return signExtend(read(32), 32);
+            }
+            return read(64);
+        }
+
+        private long signExtend(long value, int bits) {
+            return (value << (64 - bits)) >> (64 - bits);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// TimerWheel is a hashed timer wheel: deadlines are hashed into slots by tick, and advancing the clock only visits
+// the slots that passed, so finding due keys costs O(due + ticks) instead of a scan over everything scheduled.
+class TimerWheel<K> {
+    private final long tickMillis;
+    private final ArrayDeque<Entry<K>>[] slots;
+    private long currentTick;
+
+    /**
+     * Constructs an empty wheel.
+     *
+     * @param slotCount  The number of slots; deadlines further away than slotCount ticks wait extra rounds.
+     * @param tickMillis The duration of one tick.
+     * @param now        The current time in milliseconds.
+     */
+    @SuppressWarnings("unchecked")
+    TimerWheel(int slotCount, long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayDeque[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules a key to become due at a deadline. A deadline in the past is due on the next tick.
+     *
+     * @param key      The key.
+     * @param deadline The time in milliseconds at which the key becomes due.
+     */
+    synchronized void schedule(K key, long deadline) {
+        long ticks = Math.max(1, (deadline + tickMillis - 1) / tickMillis - currentTick);
+        int slot = (int) ((currentTick + ticks) % slots.length);
+        slots[slot].add(new Entry<>(key, (ticks - 1) / slots.length));
+    }
+
+    /**
+     * Advances the wheel to the given time and removes the keys that became due.
+     *
+     * @param now The current time in milliseconds.
+     * @return The due keys, in deadline order.
+     */
+    synchronized List<K> advance(long now) {
+        List<K> due = new ArrayList<>();
+        long targetTick = now / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            Iterator<Entry<K>> entries = slots[(int) (currentTick % slots.length)].iterator();
+            while (entries.hasNext()) {
+                Entry<K> entry = entries.next();
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                } else {
+                    entries.remove();
+                    due.add(entry.key);
+                }
+            }
+        }
+        return due;
+    }
+
+    // Entry class to hold a scheduled key and the number of full turns of the wheel it still has to wait
+    private static class Entry<K> {
+        final K key;
+        long rounds;
+
+        Entry(K key, long rounds) {
+            this.key = key;
+            this.rounds = rounds;
+        }
+    }
+}
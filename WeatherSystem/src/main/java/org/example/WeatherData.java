@@ -19,4 +19,25 @@ class WeatherData {
     String wind_dir;
     int wind_spd_kmh;
     int wind_spd_kt;
+
+    // The Lamport time and origin of the write that stored this data; not part of the station's JSON
+    transient long lamport;
+    transient String origin;
+
+    /**
+     * Tells whether this write happened before another write of the same station.
+     * Writes are ordered by Lamport time, and writes at the same time by origin, so every server
+     * applying the same writes ends up with the same data whatever order they arrive in.
+     *
+     * @param other The write already stored.
+     * @return true if this write is older and must not replace the other one.
+     */
+    boolean isOlderThan(WeatherData other) {
+        if (lamport != other.lamport) {
+            return lamport < other.lamport;
+        }
+        String mine = origin == null ? "" : origin;
+        String theirs = other.origin == null ? "" : other.origin;
+        return mine.compareTo(theirs) < 0;
+    }
 }
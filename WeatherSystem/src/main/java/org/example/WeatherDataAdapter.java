@@ -0,0 +1,157 @@
+package org.example;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+// WeatherDataAdapter class to read and write a station's JSON field by field, for the short-lived clients.
+// new Gson() and its reflective adapter for WeatherData cost a few milliseconds of class loading and reflection before
+// the first station is written, which is much of a one-shot ContentServer or GETClient run; this adapter is a plain
+// object, so the clients never build a Gson. It writes exactly what Gson's reflective adapter writes: the fields in
+// declaration order, null strings left out and the transient write stamp never, and it reads the same JSON the same
+// way, skipping unknown fields and JSON nulls.
+class WeatherDataAdapter extends TypeAdapter<WeatherData> {
+
+    /**
+     * Serializes a station as new Gson().toJson would, escaping HTML characters the same way.
+     *
+     * @param data The station.
+     * @return The station as JSON.
+     */
+    String serialize(WeatherData data) {
+        StringWriter json = new StringWriter(256);
+        try {
+            JsonWriter out = new JsonWriter(json);
+            out.setHtmlSafe(true);
+            write(out, data);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return json.toString();
+    }
+
+    @Override
+    public void write(JsonWriter out, WeatherData data) throws IOException {
+        if (data == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        text(out, "id", data.id);
+        text(out, "name", data.name);
+        text(out, "state", data.state);
+        text(out, "time_zone", data.time_zone);
+        out.name("lat").value(data.lat);
+        out.name("lon").value(data.lon);
+        text(out, "local_date_time", data.local_date_time);
+        text(out, "local_date_time_full", data.local_date_time_full);
+        out.name("air_temp").value(data.air_temp);
+        out.name("apparent_t").value(data.apparent_t);
+        text(out, "cloud", data.cloud);
+        out.name("dewpt").value(data.dewpt);
+        out.name("press").value(data.press);
+        out.name("rel_hum").value(data.rel_hum);
+        text(out, "wind_dir", data.wind_dir);
+        out.name("wind_spd_kmh").value(data.wind_spd_kmh);
+        out.name("wind_spd_kt").value(data.wind_spd_kt);
+        out.endObject();
+    }
+
+    @Override
+    public WeatherData read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        WeatherData data = new WeatherData();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                // Gson leaves a field alone for a JSON null
+                in.nextNull();
+                continue;
+            }
+            try {
+                switch (name) {
+                    case "id":
+                        data.id = readText(in);
+                        break;
+                    case "name":
+                        data.name = readText(in);
+                        break;
+                    case "state":
+                        data.state = readText(in);
+                        break;
+                    case "time_zone":
+                        data.time_zone = readText(in);
+                        break;
+                    case "lat":
+                        data.lat = in.nextDouble();
+                        break;
+                    case "lon":
+                        data.lon = in.nextDouble();
+                        break;
+                    case "local_date_time":
+                        data.local_date_time = readText(in);
+                        break;
+                    case "local_date_time_full":
+                        data.local_date_time_full = readText(in);
+                        break;
+                    case "air_temp":
+                        data.air_temp = in.nextDouble();
+                        break;
+                    case "apparent_t":
+                        data.apparent_t = in.nextDouble();
+                        break;
+                    case "cloud":
+                        data.cloud = readText(in);
+                        break;
+                    case "dewpt":
+                        data.dewpt = in.nextDouble();
+                        break;
+                    case "press":
+                        data.press = in.nextDouble();
+                        break;
+                    case "rel_hum":
+                        data.rel_hum = in.nextInt();
+                        break;
+                    case "wind_dir":
+                        data.wind_dir = readText(in);
+                        break;
+                    case "wind_spd_kmh":
+                        data.wind_spd_kmh = in.nextInt();
+                        break;
+                    case "wind_spd_kt":
+                        data.wind_spd_kt = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            } catch (NumberFormatException | IllegalStateException e) {
+                throw new JsonSyntaxException("Malformed " + name + " at " + in.getPath(), e);
+            }
+        }
+        in.endObject();
+        return data;
+    }
+
+    private static void text(JsonWriter out, String name, String value) throws IOException {
+        // Left out when null, as Gson does by default; a bare JsonWriter would write null
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static String readText(JsonReader in) throws IOException {
+        // Like Gson's String adapter, a number or boolean is taken as its text
+        return in.peek() == JsonToken.BOOLEAN ? Boolean.toString(in.nextBoolean()) : in.nextString();
+    }
+}
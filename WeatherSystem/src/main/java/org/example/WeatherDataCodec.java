@@ -0,0 +1,317 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// WeatherDataCodec class to encode stations in a compact binary form, application/x-weather-binary, as an alternative
+// to JSON for PUT bodies and GET responses. JSON stays the default; the binary form is used when a PUT's Content-Type,
+// or a GET's Accept header, names it.
+// A message is the bytes 'W' 'B' and a version, the number of stations as a varint, then each station: a varint mask
+// of the fields present (in WeatherData's field order; a null string or a zero number is left out), then those fields.
+// Integers are zigzag varints. A number with at most one decimal is sent as a zigzag varint of ten times its value,
+// shifted left by one; any other number as the varint 1 followed by its 8 IEEE bytes. Strings are coded against a
+// dictionary built up through the message: 0 is a new string (a varint length and UTF-8 bytes, then added to the
+// dictionary), and k refers to the k-th string added, so repeated states, time zones and cloud descriptions cost a
+// byte or two after their first use.
+class WeatherDataCodec {
+    static final String MEDIA_TYPE = "application/x-weather-binary";
+
+    private static final byte[] MAGIC = {'W', 'B', 1};
+    // Numbers are kept as tenths when that is exact and fits in the varint's 63 bits with the tag bit
+    private static final double SCALE = 10;
+    private static final long MAX_SCALED = 1L << 52;
+
+    /**
+     * Tells whether a body is in the binary form, going by its Content-Type.
+     *
+     * @param contentType The Content-Type header, or null.
+     * @return true for application/x-weather-binary.
+     */
+    static boolean isBinary(String contentType) {
+        return contentType != null && contentType.regionMatches(true, 0, MEDIA_TYPE, 0, MEDIA_TYPE.length());
+    }
+
+    /**
+     * Tells whether a request asks for its response in the binary form.
+     *
+     * @param request The request.
+     * @return true if its Accept header lists application/x-weather-binary.
+     */
+    static boolean isAccepted(HttpRequest request) {
+        String accept = request.headers.get("Accept");
+        return accept != null && accept.toLowerCase().contains(MEDIA_TYPE);
+    }
+
+    /**
+     * Encodes stations in the binary form.
+     *
+     * @param stations The stations.
+     * @return The message bytes.
+     */
+    static byte[] encode(Collection<WeatherData> stations) {
+        Writer writer = new Writer(64 + stations.size() * 64);
+        writer.bytes(MAGIC);
+        writer.varint(stations.size());
+        for (WeatherData data : stations) {
+            int mask = bit(data.id != null, 0) | bit(data.name != null, 1) | bit(data.state != null, 2)
+                    | bit(data.time_zone != null, 3) | bit(data.lat != 0, 4) | bit(data.lon != 0, 5)
+                    | bit(data.local_date_time != null, 6) | bit(data.local_date_time_full != null, 7)
+                    | bit(data.air_temp != 0, 8) | bit(data.apparent_t != 0, 9) | bit(data.cloud != null, 10)
+                    | bit(data.dewpt != 0, 11) | bit(data.press != 0, 12) | bit(data.rel_hum != 0, 13)
+                    | bit(data.wind_dir != null, 14) | bit(data.wind_spd_kmh != 0, 15) | bit(data.wind_spd_kt != 0, 16);
+            writer.varint(mask);
+            writer.text(data.id);
+            writer.text(data.name);
+            writer.text(data.state);
+            writer.text(data.time_zone);
+            writer.number(data.lat);
+            writer.number(data.lon);
+            writer.text(data.local_date_time);
+            writer.text(data.local_date_time_full);
+            writer.number(data.air_temp);
+            writer.number(data.apparent_t);
+            writer.text(data.cloud);
+            writer.number(data.dewpt);
+            writer.number(data.press);
+            writer.integer(data.rel_hum);
+            writer.text(data.wind_dir);
+            writer.integer(data.wind_spd_kmh);
+            writer.integer(data.wind_spd_kt);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Decodes a message in the binary form.
+     *
+     * @param body The message bytes.
+     * @return The stations, in the order they were encoded.
+     * @throws IllegalArgumentException If the message is malformed or truncated.
+     */
+    static List<WeatherData> decode(byte[] body) {
+        Reader reader = new Reader(body);
+        int count = reader.header();
+        List<WeatherData> stations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            WeatherData data = new WeatherData();
+            long mask = reader.varint();
+            if ((mask >>> 17) != 0) {
+                throw new IllegalArgumentException("Unknown fields in station " + i);
+            }
+            data.id = (mask & (1 << 0)) != 0 ? reader.text() : null;
+            data.name = (mask & (1 << 1)) != 0 ? reader.text() : null;
+            data.state = (mask & (1 << 2)) != 0 ? reader.text() : null;
+            data.time_zone = (mask & (1 << 3)) != 0 ? reader.text() : null;
+            data.lat = (mask & (1 << 4)) != 0 ? reader.number() : 0;
+            data.lon = (mask & (1 << 5)) != 0 ? reader.number() : 0;
+            data.local_date_time = (mask & (1 << 6)) != 0 ? reader.text() : null;
+            data.local_date_time_full = (mask & (1 << 7)) != 0 ? reader.text() : null;
+            data.air_temp = (mask & (1 << 8)) != 0 ? reader.number() : 0;
+            data.apparent_t = (mask & (1 << 9)) != 0 ? reader.number() : 0;
+            data.cloud = (mask & (1 << 10)) != 0 ? reader.text() : null;
+            data.dewpt = (mask & (1 << 11)) != 0 ? reader.number() : 0;
+            data.press = (mask & (1 << 12)) != 0 ? reader.number() : 0;
+            data.rel_hum = (mask & (1 << 13)) != 0 ? reader.integer() : 0;
+            data.wind_dir = (mask & (1 << 14)) != 0 ? reader.text() : null;
+            data.wind_spd_kmh = (mask & (1 << 15)) != 0 ? reader.integer() : 0;
+            data.wind_spd_kt = (mask & (1 << 16)) != 0 ? reader.integer() : 0;
+            stations.add(data);
+        }
+        if (reader.pos != body.length) {
+            throw new IllegalArgumentException("Trailing bytes after " + count + " stations");
+        }
+        return stations;
+    }
+
+    /**
+     * Reads the number of stations in a message without decoding them.
+     *
+     * @param body The message bytes.
+     * @return The station count, or -1 if the message does not start like one.
+     */
+    static int count(byte[] body) {
+        try {
+            return new Reader(body).header();
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static int bit(boolean present, int index) {
+        return present ? 1 << index : 0;
+    }
+
+    // Writer class to append the encoded fields to a growing array; absent fields are skipped
+    private static class Writer {
+        private byte[] buf;
+        private int size;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void text(String value) {
+            if (value == null) {
+                return;
+            }
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                varint(index);
+                return;
+            }
+            dictionary.put(value, dictionary.size() + 1);
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(0);
+            varint(utf8.length);
+            bytes(utf8);
+        }
+
+        void number(double value) {
+            if (value == 0) {
+                return;
+            }
+            long scaled = Math.round(value * SCALE);
+            if (Math.abs(scaled) < MAX_SCALED && scaled / SCALE == value) {
+                varint(zigzag(scaled) << 1);
+            } else {
+                varint(1);
+                long bits = Double.doubleToRawLongBits(value);
+                ensure(8);
+                for (int i = 0; i < 8; i++) {
+                    buf[size++] = (byte) (bits >>> (8 * i));
+                }
+            }
+        }
+
+        void integer(int value) {
+            if (value != 0) {
+                varint(zigzag(value));
+            }
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[size++] = (byte) value;
+        }
+
+        void bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int more) {
+            if (size + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+            }
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+    }
+
+    // Reader class to decode fields from a message, checking every length against the bytes left
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final List<String> dictionary = new ArrayList<>();
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int header() {
+            if (buf.length < MAGIC.length || buf[0] != MAGIC[0] || buf[1] != MAGIC[1]) {
+                throw new IllegalArgumentException("Not a " + MEDIA_TYPE + " message");
+            }
+            if (buf[2] != MAGIC[2]) {
+                throw new IllegalArgumentException("Unsupported " + MEDIA_TYPE + " version " + buf[2]);
+            }
+            pos = MAGIC.length;
+            long count = varint();
+            // Every station takes at least its mask byte
+            if (count < 0 || count > buf.length - pos) {
+                throw new IllegalArgumentException("Station count " + count + " exceeds the message");
+            }
+            return (int) count;
+        }
+
+        String text() {
+            long reference = varint();
+            if (reference < 0) {
+                throw new IllegalArgumentException("Malformed string reference " + reference);
+            }
+            if (reference > 0) {
+                if (reference > dictionary.size()) {
+                    throw new IllegalArgumentException("Unknown string reference " + reference);
+                }
+                return dictionary.get((int) reference - 1);
+            }
+            long length = varint();
+            if (length < 0 || length > buf.length - pos) {
+                throw new IllegalArgumentException("String of " + length + " bytes exceeds the message");
+            }
+            String value = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            dictionary.add(value);
+            return value;
+        }
+
+        double number() {
+            long tagged = varint();
+            if ((tagged & 1) == 0) {
+                return unzigzag(tagged >>> 1) / SCALE;
+            }
+            if (buf.length - pos < 8) {
+                throw new IllegalArgumentException("Truncated number");
+            }
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits |= (buf[pos++] & 0xFFL) << (8 * i);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        int integer() {
+            long value = unzigzag(varint());
+            if (value != (int) value) {
+                throw new IllegalArgumentException("Integer out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos == buf.length) {
+                    throw new IllegalArgumentException("Truncated " + MEDIA_TYPE + " message");
+                }
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// WeatherDataDecoder class to decode a station's JSON straight from the request bytes into a WeatherData, in one pass
+// and without Gson's reflection, the String of the whole body or a boxed number per field. Field names are matched
+// against the bytes, numbers are parsed in place, and text values that repeat from one PUT to the next (the id, name,
+// state, cloud...) are taken from a small cache of the Strings decoded before.
+// It handles the JSON the content servers send. Anything else, like escapes in strings or numbers written as strings,
+// makes decode return false, and the caller falls back to Gson, so the accepted input is unchanged.
+// Not thread-safe: each thread uses its own decoder, from local(). The field tables and setters are shared with
+// FeedParser, which reads the same fields from key: value text.
+class WeatherDataDecoder {
+    private static final ThreadLocal<WeatherDataDecoder> LOCAL = ThreadLocal.withInitial(WeatherDataDecoder::new);
+
+    static final String[] FIELDS = {"id", "name", "state", "time_zone", "lat", "lon", "local_date_time",
+            "local_date_time_full", "air_temp", "apparent_t", "cloud", "dewpt", "press", "rel_hum", "wind_dir",
+            "wind_spd_kmh", "wind_spd_kt"};
+    static final byte[][] FIELD_BYTES = new byte[FIELDS.length][];
+    // Which of the fields above hold text, and which whole numbers; the rest are doubles
+    static final boolean[] TEXT_FIELDS = {true, true, true, true, false, false, true, true, false, false, true,
+            false, false, false, true, false, false};
+    static final boolean[] INT_FIELDS = {false, false, false, false, false, false, false, false, false, false,
+            false, false, false, true, false, true, true};
+    // Powers of ten that are exact as doubles, for parsing decimals with a single correctly rounded division
+    static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // Decimals with more digits than this may not fit a double's 53-bit mantissa exactly
+    static final int MAX_FAST_DIGITS = 15;
+    private static final int CACHE_SIZE = 256;
+    private static final int MAX_CACHED_LENGTH = 64;
+
+    static {
+        for (int i = 0; i < FIELDS.length; i++) {
+            FIELD_BYTES[i] = FIELDS[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    // The cached Strings, with their bytes for comparing without decoding
+    private final String[] cache = new String[CACHE_SIZE];
+    private final byte[][] cacheBytes = new byte[CACHE_SIZE][];
+    private byte[] buf;
+    private int pos;
+    private int end;
+    // The number most recently parsed by number()
+    private double number;
+
+    /**
+     * Returns the calling thread's decoder.
+     *
+     * @return The decoder.
+     */
+    static WeatherDataDecoder local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Decodes one JSON object into a WeatherData, overwriting every field it holds from JSON.
+     * Members that are not fields of WeatherData are skipped, as Gson does.
+     *
+     * @param buf  The bytes holding the JSON, as UTF-8.
+     * @param off  The offset of the JSON.
+     * @param len  The end of the JSON.
+     * @param into The object to decode into; may be reused from one call to the next.
+     * @return true if the bytes were decoded; false if they are not JSON this decoder handles, in which case
+     *         into is left partly written and the caller should use Gson instead.
+     */
+    boolean decode(byte[] buf, int off, int len, WeatherData into) {
+        this.buf = buf;
+        this.pos = off;
+        this.end = len;
+        try {
+            return decodeObject(into);
+        } finally {
+            this.buf = null;
+        }
+    }
+
+    private boolean decodeObject(WeatherData into) {
+        clear(into);
+        if (next() != '{') {
+            return false;
+        }
+        pos++;
+        int c = next();
+        if (c == '}') {
+            pos++;
+            return next() == -1;
+        }
+        while (true) {
+            if (c != '"') {
+                return false;
+            }
+            int field = field();
+            if (field == -2 || next() != ':') {
+                return false;
+            }
+            pos++;
+            if (!value(field, into)) {
+                return false;
+            }
+            c = next();
+            pos++;
+            if (c == '}') {
+                return next() == -1;
+            }
+            if (c != ',') {
+                return false;
+            }
+            c = next();
+        }
+    }
+
+    /**
+     * Reads a member name and finds the WeatherData field it names.
+     *
+     * @return The field's index in FIELDS, -1 for a member that is not a field, or -2 if the name is not plain text.
+     */
+    private int field() {
+        int from = ++pos;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                return -2;
+            }
+            pos++;
+        }
+        if (pos == end) {
+            return -2;
+        }
+        int length = pos++ - from;
+        for (int i = 0; i < FIELD_BYTES.length; i++) {
+            if (FIELD_BYTES[i].length == length && Arrays.equals(FIELD_BYTES[i], 0, length, buf, from, from + length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a member's value into the given field.
+     *
+     * @return false if the value is not one this decoder handles for the field.
+     */
+    private boolean value(int field, WeatherData into) {
+        int c = next();
+        if (c == 'n') {
+            // null leaves the field at its default, as Gson does
+            return literal("null");
+        }
+        if (field < 0) {
+            return skipValue();
+        }
+        if (TEXT_FIELDS[field]) {
+            String text = text();
+            if (text == null) {
+                return false;
+            }
+            setText(into, field, text);
+            return true;
+        }
+        if (!(INT_FIELDS[field] ? integer() : number())) {
+            return false;
+        }
+        setNumber(into, field, number);
+        return true;
+    }
+
+    static void setText(WeatherData data, int field, String text) {
+        switch (field) {
+            case 0:
+                data.id = text;
+                break;
+            case 1:
+                data.name = text;
+                break;
+            case 2:
+                data.state = text;
+                break;
+            case 3:
+                data.time_zone = text;
+                break;
+            case 6:
+                data.local_date_time = text;
+                break;
+            case 7:
+                data.local_date_time_full = text;
+                break;
+            case 10:
+                data.cloud = text;
+                break;
+            default:
+                data.wind_dir = text;
+                break;
+        }
+    }
+
+    static void setNumber(WeatherData data, int field, double number) {
+        switch (field) {
+            case 4:
+                data.lat = number;
+                break;
+            case 5:
+                data.lon = number;
+                break;
+            case 8:
+                data.air_temp = number;
+                break;
+            case 9:
+                data.apparent_t = number;
+                break;
+            case 11:
+                data.dewpt = number;
+                break;
+            case 12:
+                data.press = number;
+                break;
+            case 13:
+                data.rel_hum = (int) number;
+                break;
+            case 15:
+                data.wind_spd_kmh = (int) number;
+                break;
+            default:
+                data.wind_spd_kt = (int) number;
+                break;
+        }
+    }
+
+    /**
+     * Reads a string without escapes.
+     *
+     * @return The string, or null if the value is not such a string.
+     */
+    private String text() {
+        if (next() != '"') {
+            return null;
+        }
+        int from = ++pos;
+        boolean ascii = true;
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                return null;
+            }
+            ascii &= buf[pos] >= 0x20;
+            pos++;
+        }
+        if (pos == end) {
+            return null;
+        }
+        int length = pos++ - from;
+        if (!ascii || length > MAX_CACHED_LENGTH) {
+            return new String(buf, from, length, StandardCharsets.UTF_8);
+        }
+
+        // Reuse the String decoded last time these bytes were seen
+        int hash = 0x811c9dc5;
+        for (int i = from; i < from + length; i++) {
+            hash = (hash ^ buf[i]) * 0x01000193;
+        }
+        int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        byte[] cached = cacheBytes[slot];
+        if (cached != null && cached.length == length && Arrays.equals(cached, 0, length, buf, from, from + length)) {
+            return cache[slot];
+        }
+        cacheBytes[slot] = Arrays.copyOfRange(buf, from, from + length);
+        cache[slot] = new String(buf, from, length, StandardCharsets.ISO_8859_1);
+        return cache[slot];
+    }
+
+    /**
+     * Parses a JSON number into the number field.
+     *
+     * @return false if the value is not a number.
+     */
+    private boolean number() {
+        int from = pos;
+        boolean negative = pos < end && buf[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fraction = 0;
+        boolean point = false;
+        while (pos < end) {
+            int b = buf[pos];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                // Leading zeros do not count against the mantissa's precision
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (point) {
+                    fraction++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        if (pos < end && (buf[pos] | 0x20) == 'e') {
+            // Exponents are rare; let the JDK parse the whole number
+            pos++;
+            while (pos < end && (buf[pos] == '+' || buf[pos] == '-' || (buf[pos] >= '0' && buf[pos] <= '9'))) {
+                pos++;
+            }
+            digits = Integer.MAX_VALUE;
+        }
+        if (pos == from || buf[pos - 1] == '-' || buf[pos - 1] == '.' || buf[from + (negative ? 1 : 0)] == '.') {
+            return false;
+        }
+        if (digits <= MAX_FAST_DIGITS && fraction < POWERS_OF_TEN.length) {
+            // Both operands are exact, so the division rounds correctly, as Double.parseDouble would
+            double value = mantissa / POWERS_OF_TEN[fraction];
+            number = negative ? -value : value;
+            return true;
+        }
+        try {
+            number = Double.parseDouble(new String(buf, from, pos - from, StandardCharsets.ISO_8859_1));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a JSON number with no fraction or exponent that fits an int into the number field.
+     *
+     * @return false if the value is any other number, which is left to Gson's rules for int fields.
+     */
+    private boolean integer() {
+        int from = pos;
+        if (!number()) {
+            return false;
+        }
+        for (int i = from; i < pos; i++) {
+            if (buf[i] == '.' || (buf[i] | 0x20) == 'e') {
+                return false;
+            }
+        }
+        return number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Skips the value of a member that is not a field: a string, number, literal, or nested object or array.
+     *
+     * @return false if the value is malformed.
+     */
+    private boolean skipValue() {
+        int depth = 0;
+        do {
+            int c = next();
+            if (c == '"') {
+                pos++;
+                while (pos < end && buf[pos] != '"') {
+                    pos += buf[pos] == '\\' ? 2 : 1;
+                }
+                if (pos >= end) {
+                    return false;
+                }
+                pos++;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                pos++;
+            } else if (c == '}' || c == ']') {
+                if (--depth < 0) {
+                    return false;
+                }
+                pos++;
+            } else if (c == ',' || c == ':') {
+                if (depth == 0) {
+                    return false;
+                }
+                pos++;
+            } else if (c == 't') {
+                if (!literal("true")) {
+                    return false;
+                }
+            } else if (c == 'f') {
+                if (!literal("false")) {
+                    return false;
+                }
+            } else if (c == 'n') {
+                if (!literal("null")) {
+                    return false;
+                }
+            } else if (c == -1 || !number()) {
+                return false;
+            }
+        } while (depth > 0);
+        return true;
+    }
+
+    private boolean literal(String word) {
+        if (end - pos < word.length() || !spells(pos, word)) {
+            return false;
+        }
+        pos += word.length();
+        return true;
+    }
+
+    /**
+     * Skips whitespace and peeks at the next byte.
+     *
+     * @return The byte, or -1 at the end of the input.
+     */
+    private int next() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    private boolean spells(int from, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (buf[from + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void clear(WeatherData data) {
+        data.id = null;
+        data.name = null;
+        data.state = null;
+        data.time_zone = null;
+        data.lat = 0;
+        data.lon = 0;
+        data.local_date_time = null;
+        data.local_date_time_full = null;
+        data.air_temp = 0;
+        data.apparent_t = 0;
+        data.cloud = null;
+        data.dewpt = 0;
+        data.press = 0;
+        data.rel_hum = 0;
+        data.wind_dir = null;
+        data.wind_spd_kmh = 0;
+        data.wind_spd_kt = 0;
+    }
+}
@@ -0,0 +1,66 @@
+package org.example;
+
+import java.util.Set;
+import java.util.function.BiFunction;
+
+// WeatherStore interface for the ways the AggregationServer can hold its stations in memory
+interface WeatherStore {
+
+    /**
+     * Atomically replaces the data of a station. No other update of the same station runs at the same time.
+     *
+     * @param id        The station id.
+     * @param remapping Given the id and the stored data (or null), returns the data to store, the stored
+     *                  data itself to leave it unchanged, or null to remove the station.
+     * @return The data stored afterwards, or null if there is none.
+     */
+    WeatherData compute(String id, BiFunction<String, WeatherData, WeatherData> remapping);
+
+    /**
+     * Atomically replaces the data of a station that is stored, as {@link #compute} does.
+     *
+     * @param id        The station id.
+     * @param remapping Given the id and the stored data, returns the data to store, or null to remove the station.
+     * @return The data stored afterwards, or null if there is none.
+     */
+    WeatherData computeIfPresent(String id, BiFunction<String, WeatherData, WeatherData> remapping);
+
+    /**
+     * Returns the data of a station. The caller must not modify it.
+     *
+     * @param id The station id.
+     * @return The stored data, or null if the station is not stored.
+     */
+    WeatherData get(String id);
+
+    /**
+     * Returns the number of stored stations.
+     *
+     * @return The number of stations.
+     */
+    int size();
+
+    /**
+     * Returns the ids of the stored stations.
+     *
+     * @return A live view of the ids, safe to iterate while stations change.
+     */
+    Set<String> ids();
+
+    /**
+     * Creates the store selected in the configuration.
+     *
+     * @param kind "map" for WeatherData objects in a ConcurrentHashMap, or "columnar" for primitive columns.
+     * @return A new, empty store.
+     */
+    static WeatherStore create(String kind) {
+        switch (kind) {
+            case "map":
+                return new MapWeatherStore();
+            case "columnar":
+                return new ColumnarWeatherStore();
+            default:
+                throw new IllegalArgumentException("Unknown store " + kind);
+        }
+    }
+}
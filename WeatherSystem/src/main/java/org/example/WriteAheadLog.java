@@ -0,0 +1,267 @@
+package org.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// WriteAheadLog makes accepted PUTs durable in an append-only log, with periodic compacted snapshots.
+//
+// Records are appended by one writer thread using group commit: every record queued while the previous batch was
+// being written goes out in a single write and a single fsync, so concurrent PUTs share the cost of durability.
+// A checkpoint switches to a new log segment, writes a snapshot of the whole map, and then deletes the older
+// segments. Recovery loads the snapshot and replays the remaining segments in order.
+class WriteAheadLog {
+    private static final String SNAPSHOT_FILE = "weather_data.json";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Queued by close() to tell the writer thread to finish
+    private static final PendingRecord STOP = new PendingRecord("");
+
+    private final Path directory;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private FileChannel segment;
+    private long segmentNumber;
+    private long segmentBytes;
+    private Thread writer;
+    private volatile boolean running;
+
+    /**
+     * Constructs a log stored in the given directory.
+     *
+     * @param directory The data directory, created if it does not exist.
+     */
+    WriteAheadLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Replays the snapshot and every log segment, oldest first.
+     * A record cut off by a crash can only be the last one of a segment, and is skipped.
+     *
+     * @param snapshot Receives the text of the snapshot, if there is one.
+     * @param record   Receives each logged record, in the order it was written.
+     * @return The number of log records replayed.
+     * @throws IOException If the data directory cannot be read.
+     */
+    int recover(Consumer<String> snapshot, Consumer<String> record) throws IOException {
+        Files.createDirectories(directory);
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile) && Files.size(snapshotFile) > 0) {
+            snapshot.accept(Files.readString(snapshotFile));
+        }
+
+        int replayed = 0;
+        for (long number : segmentNumbers()) {
+            try (BufferedReader reader = Files.newBufferedReader(segmentPath(number), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        try {
+                            record.accept(line);
+                            replayed++;
+                        } catch (RuntimeException e) {
+                            System.out.println("Skipping damaged log record in " + segmentPath(number));
+                        }
+                    }
+                }
+            }
+            segmentNumber = Math.max(segmentNumber, number);
+        }
+        return replayed;
+    }
+
+    /**
+     * Opens a new log segment and starts the writer thread. Call after {@link #recover}.
+     *
+     * @throws IOException If the segment cannot be created.
+     */
+    void start() throws IOException {
+        openSegment(segmentNumber + 1);
+        running = true;
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record for the log.
+     *
+     * @param record One line of text without line breaks, e.g. a JSON object.
+     * @return A future completed once the record has been written and forced to disk.
+     */
+    CompletableFuture<Void> append(String record) {
+        PendingRecord pending = new PendingRecord(record);
+        if (!running) {
+            pending.done.completeExceptionally(new IOException("The write-ahead log is closed"));
+            return pending.done;
+        }
+        queue.add(pending);
+        return pending.done;
+    }
+
+    /**
+     * The writer thread: takes every queued record, writes them together and forces them to disk once.
+     */
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queue.drainTo(batch);
+            stopping = batch.remove(STOP);
+
+            StringBuilder text = new StringBuilder();
+            for (PendingRecord pending : batch) {
+                text.append(pending.record).append('\n');
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+                synchronized (this) {
+                    while (bytes.hasRemaining()) {
+                        segmentBytes += segment.write(bytes);
+                    }
+                    segment.force(false);
+                }
+                for (PendingRecord pending : batch) {
+                    pending.done.complete(null);
+                }
+            } catch (IOException e) {
+                for (PendingRecord pending : batch) {
+                    pending.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes a compacted snapshot and deletes the log segments it replaces.
+     * The log moves to a new segment first; since PUTs are applied to the map before they are logged, the
+     * snapshot taken afterwards holds every record of the older segments, which can then be deleted.
+     *
+     * @param snapshot Supplies the snapshot of all stored stations.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    void checkpoint(Supplier<byte[]> snapshot) throws IOException {
+        long retired;
+        synchronized (this) {
+            if (segmentBytes == 0 && segmentNumbers().size() <= 1) {
+                // Nothing was logged since the last checkpoint
+                return;
+            }
+            retired = segmentNumber;
+            segment.close();
+            openSegment(segmentNumber + 1);
+        }
+
+        // Write the snapshot to a temporary file and move it into place, so a crash leaves the old one intact
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.wrap(snapshot.get());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        for (long number : segmentNumbers()) {
+            if (number <= retired) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    /**
+     * Stops the writer thread after it has written the records already queued, and closes the segment.
+     */
+    void close() {
+        running = false;
+        if (writer != null) {
+            queue.add(STOP);
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                if (segment != null) {
+                    segment.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        segment = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segmentNumber = number;
+        segmentBytes = segment.size();
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Lists the numbers of the log segments in the data directory, in ascending order.
+     *
+     * @return The segment numbers.
+     * @throws IOException If the directory cannot be read.
+     */
+    private List<Long> segmentNumbers() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    numbers.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment written by this class
+                }
+            }
+        }
+        numbers.sort(null);
+        return numbers;
+    }
+
+    // PendingRecord class to hold a record waiting for the writer thread
+    private static class PendingRecord {
+        final String record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingRecord(String record) {
+            this.record = record;
+        }
+    }
+}
@@ -0,0 +1,1395 @@
+package org.example;
+
+import com.google.gson.Gson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class AggregationServerTest {
+
+    @Test
+    public void testLamportClockIncrement() {
+        LamportClock clock = new LamportClock();
+        assertEquals(0, clock.getClock()); // Initial clock value should be 0
+        clock.increment();
+        assertEquals(1, clock.getClock()); // After increment, clock should be 1
+    }
+
+    @Test
+    public void testLamportClockUpdate() {
+        LamportClock clock = new LamportClock();
+        clock.update(5);
+        assertEquals(6, clock.getClock()); // Should update to 6 (max of 0 and 5, plus 1)
+        clock.update(3);
+        assertEquals(7, clock.getClock()); // Should increment to 7 (no update since 6 > 3)
+    }
+
+    // Test for AggregationServer's displayWeather functionality
+    @Test
+    public void testDisplayWeather() {
+        Map<String, WeatherData> weatherDataMap = new ConcurrentHashMap<>();
+        WeatherData weather1 = new WeatherData();
+        weather1.name = "Sydney";
+        weather1.air_temp = 22.5;
+        weather1.cloud = "Partly Cloudy";
+        weather1.wind_spd_kmh = 15;
+
+        WeatherData weather2 = new WeatherData();
+        weather2.name = "Melbourne";
+        weather2.air_temp = 18.0;
+        weather2.cloud = "Overcast";
+        weather2.wind_spd_kmh = 10;
+
+        weatherDataMap.put("Sydney", weather1);
+        weatherDataMap.put("Melbourne", weather2);
+
+        // Normally you'd call the displayWeather method in AggregationServer here
+        // AggregationServer.displayWeather(weatherDataMap);
+
+        // For the purpose of unit testing, we simulate the output and verify correctness
+        assertEquals("Sydney", weatherDataMap.get("Sydney").name);
+        assertEquals(22.5, weatherDataMap.get("Sydney").air_temp, 0.01);
+        assertEquals("Partly Cloudy", weatherDataMap.get("Sydney").cloud);
+        assertEquals(15, weatherDataMap.get("Sydney").wind_spd_kmh);
+
+        assertEquals("Melbourne", weatherDataMap.get("Melbourne").name);
+        assertEquals(18.0, weatherDataMap.get("Melbourne").air_temp, 0.01);
+        assertEquals("Overcast", weatherDataMap.get("Melbourne").cloud);
+        assertEquals(10, weatherDataMap.get("Melbourne").wind_spd_kmh);
+    }
+    @Test
+    public void testLamportClockConcurrency() throws InterruptedException {
+        LamportClock clock = new LamportClock();
+        Thread t1 = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                clock.increment();
+            }
+        });
+        Thread t2 = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                clock.increment();
+            }
+        });
+
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+
+        assertEquals(2000, clock.getClock()); // Both threads incremented the clock 1000 times
+    }
+
+    // Test for LamportClock - every operation returns the time it produced, and overflow is refused
+    @Test
+    public void testLamportClockStampsAndOverflow() {
+        LamportClock clock = new LamportClock();
+        assertEquals(1, clock.increment());
+        assertEquals(11, clock.update(10));
+        assertEquals(12, clock.updateAndGet(3));
+
+        clock.update(Long.MAX_VALUE - 1);
+        assertEquals(Long.MAX_VALUE, clock.getClock());
+        assertThrows(ArithmeticException.class, clock::increment);
+        assertThrows(IllegalArgumentException.class, () -> clock.update(-1));
+        assertThrows(IllegalArgumentException.class, () -> clock.update(Long.MAX_VALUE));
+    }
+
+    // Test for WeatherData with extreme values
+    @Test
+    public void testWeatherDataExtremeValues() {
+        WeatherData weather = new WeatherData();
+        weather.name = "Antarctica";
+        weather.air_temp = -89.2; // Lowest recorded temperature on Earth
+        weather.cloud = "Clear";
+        weather.wind_spd_kmh = 327; // Highest wind speed recorded
+
+        assertEquals("Antarctica", weather.name);
+        assertEquals(-89.2, weather.air_temp, 0.01);
+        assertEquals("Clear", weather.cloud);
+        assertEquals(327, weather.wind_spd_kmh);
+    }
+
+    // Test for WeatherData JSON serialization/deserialization
+    @Test
+    public void testWeatherDataJsonSerialization() {
+        WeatherData weather = new WeatherData();
+        weather.name = "Sydney";
+        weather.air_temp = 25.0;
+        weather.cloud = "Partly Cloudy";
+        weather.wind_spd_kmh = 20;
+
+        Gson gson = new Gson();
+        String json = gson.toJson(weather);
+        assertNotNull(json); // Ensure that the serialization produces valid JSON
+
+        WeatherData deserializedWeather = gson.fromJson(json, WeatherData.class);
+        assertEquals(weather.name, deserializedWeather.name);
+        assertEquals(weather.air_temp, deserializedWeather.air_temp, 0.01);
+        assertEquals(weather.cloud, deserializedWeather.cloud);
+        assertEquals(weather.wind_spd_kmh, deserializedWeather.wind_spd_kmh);
+    }
+
+    // Test for AggregationServer - processing multiple weather data entries
+    @Test
+    public void testAggregationServerMultipleWeatherEntries() {
+        Map<String, WeatherData> weatherDataMap = new ConcurrentHashMap<>();
+
+        WeatherData weather1 = new WeatherData();
+        weather1.name = "City1";
+        weather1.air_temp = 20.0;
+        weather1.cloud = "Clear";
+        weather1.wind_spd_kmh = 5;
+
+        WeatherData weather2 = new WeatherData();
+        weather2.name = "City2";
+        weather2.air_temp = 15.0;
+        weather2.cloud = "Overcast";
+        weather2.wind_spd_kmh = 10;
+
+        weatherDataMap.put("City1", weather1);
+        weatherDataMap.put("City2", weather2);
+
+        // Simulating the AggregationServer's displayWeather method
+        assertEquals("City1", weatherDataMap.get("City1").name);
+        assertEquals(20.0, weatherDataMap.get("City1").air_temp, 0.01);
+        assertEquals("Clear", weatherDataMap.get("City1").cloud);
+        assertEquals(5, weatherDataMap.get("City1").wind_spd_kmh);
+
+        assertEquals("City2", weatherDataMap.get("City2").name);
+        assertEquals(15.0, weatherDataMap.get("City2").air_temp, 0.01);
+        assertEquals("Overcast", weatherDataMap.get("City2").cloud);
+        assertEquals(10, weatherDataMap.get("City2").wind_spd_kmh);
+    }
+
+    // Test for the request framing used by the nio engine
+    @Test
+    public void testRequestFraming() throws Exception {
+        byte[] get = "GET /weather.json HTTP/1.1\nLamport-Clock: 3\n\n".getBytes();
+        assertEquals(get.length, HttpRequest.frameEnd(get, 0, get.length));
+        assertEquals(-1, HttpRequest.frameEnd(get, 0, get.length - 1));
+
+        // A PUT body is exactly Content-Length bytes, so a pipelined request may follow it
+        byte[] put = ("PUT /weather.json HTTP/1.1\r\nContent-Length: 12\r\n\r\n{\"id\":\"A\"}\r\n"
+                + "GET /weather.json HTTP/1.1\r\n\r\n").getBytes();
+        int first = HttpRequest.frameEnd(put, 0, put.length);
+        assertEquals('G', put[first]);
+        assertEquals(put.length, HttpRequest.frameEnd(put, first, put.length));
+        assertEquals(-1, HttpRequest.frameEnd(put, 0, first - 1));
+
+        // The body is framed apart from the head and handed to the parser without another copy
+        long frame = HttpRequest.frame(put, 0, put.length);
+        int bodyStart = (int) (frame >>> 32);
+        assertEquals(first, (int) frame);
+        assertEquals('{', put[bodyStart]);
+        byte[] body = java.util.Arrays.copyOfRange(put, bodyStart, first);
+        HttpRequest parsed = new RequestParser().parse(java.util.Arrays.copyOfRange(put, 0, bodyStart), body);
+        assertSame(body, parsed.body);
+        try {
+            new RequestParser().parse(java.util.Arrays.copyOfRange(put, 0, bodyStart), null);
+            fail("A body shorter than its Content-Length should not parse");
+        } catch (java.io.IOException expected) {
+        }
+        byte[] padded = "PUT / HTTP/1.1\r\nContent-Length:  +2 \r\n\r\n{}".getBytes();
+        assertEquals(padded.length, HttpRequest.frameEnd(padded, 0, padded.length));
+    }
+
+    // Test for the in-place request parser and the station decoder used on the PUT path
+    @Test
+    public void testInPlaceParsingAndDecoding() throws Exception {
+        String json = "{\"id\":\"IDS1\",\"name\":\"Adelaide\",\"lat\":-34.9,\"air_temp\":13.3,\"rel_hum\":60,"
+                + "\"extra\":{\"nested\":[1,true,null]},\"cloud\":null}";
+        byte[] bytes = ("\r\nPUT /weather.json HTTP/1.1\r\ncontent-length: " + json.length() + "\r\nLAMPORT-CLOCK:  42 \r\n"
+                + "Source-Id: cs1\r\n\r\n" + json + "GET /weather.json?id=IDS1 HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+        RequestParser parser = new RequestParser();
+        java.io.InputStream input = new java.io.ByteArrayInputStream(bytes);
+
+        HttpRequest put = parser.read(input);
+        assertEquals("PUT", put.method);
+        assertEquals(42, put.lamportClock());
+        assertEquals("cs1", put.headers.get("source-id"));
+        assertEquals(json, put.bodyText());
+        assertTrue(parser.buffered() > 0);
+
+        // The decoder reads the same values as Gson, and reuses the Strings it decoded before
+        WeatherData decoded = new WeatherData();
+        assertTrue(WeatherDataDecoder.local().decode(put.body, 0, put.body.length, decoded));
+        assertEquals(new Gson().toJson(new Gson().fromJson(json, WeatherData.class)), new Gson().toJson(decoded));
+        String name = decoded.name;
+        assertTrue(WeatherDataDecoder.local().decode(put.body, 0, put.body.length, decoded));
+        assertSame(name, decoded.name);
+        // Escapes are left to Gson
+        assertFalse(WeatherDataDecoder.local().decode("{\"id\":\"a\\\"b\"}".getBytes(), 0, 11, decoded));
+
+        // The same request object is refilled for the next request, whose headers a handler may change
+        HttpRequest get = parser.read(input);
+        assertSame(put, get);
+        assertEquals("/weather.json?id=IDS1", get.path);
+        assertFalse(get.keepAlive());
+        assertEquals(0, get.body.length);
+        get.headers.put("Shard-Hop", "x");
+        assertEquals("x", get.headers.remove("shard-hop"));
+        assertTrue(get.headers.isEmpty());
+        assertNull(parser.read(input));
+        parser.release();
+    }
+
+    // Test for pipelined requests on one persistent connection, for each engine
+    @Test
+    public void testPipelinedRequestsOnEachEngine() throws Exception {
+        for (String engineName : new String[] {"virtual", "pool", "nio"}) {
+            ServerConfig config = ServerConfig.fromArgs(new String[] {"0", "--engine=" + engineName});
+            ConnectionEngine engine = ConnectionEngine.create(config);
+            engine.start();
+            try (AggregationClient client = new AggregationClient("localhost", engine.getPort(), new LamportClock(), 1)) {
+                String json = "{\"id\":\"PIPE-" + engineName + "\",\"name\":\"Pipeline\"}";
+                List<HttpRequest> requests = new ArrayList<>();
+                requests.add(new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8)));
+                requests.add(new HttpRequest("GET", "/weather.json", null));
+                List<HttpResponse> responses = client.sendAll(requests);
+
+                assertEquals(200, responses.get(0).status);
+                assertEquals(200, responses.get(1).status);
+                assertTrue(responses.get(1).bodyText().contains("PIPE-" + engineName));
+                assertTrue(responses.get(1).lamportClock() > responses.get(0).lamportClock());
+
+                // The connection was kept open and is reused for the next request
+                assertEquals(200, client.send(new HttpRequest("GET", "/weather.json", null)).status);
+            } finally {
+                engine.stop();
+            }
+        }
+
+        // With every pool worker holding a kept-alive connection, a new client is served without waiting out the
+        // idle timeout, and the idle client reconnects
+        ConnectionEngine pool = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0", "--engine=pool", "--workers=1"}));
+        pool.start();
+        try (AggregationClient first = new AggregationClient("localhost", pool.getPort(), new LamportClock(), 1);
+             AggregationClient second = new AggregationClient("localhost", pool.getPort(), new LamportClock(), 1)) {
+            assertEquals(200, first.send(new HttpRequest("GET", "/weather.json", null)).status);
+            long start = System.nanoTime();
+            assertEquals(200, second.send(new HttpRequest("GET", "/weather.json", null)).status);
+            assertTrue(System.nanoTime() - start < java.util.concurrent.TimeUnit.SECONDS.toNanos(5));
+            assertEquals(200, first.send(new HttpRequest("GET", "/weather.json", null)).status);
+        } finally {
+            pool.stop();
+        }
+    }
+
+    // Test for the cached GET snapshot and the If-None-Match / 304 path
+    @Test
+    public void testSnapshotCacheAndNotModified() {
+        SnapshotCache cache = new SnapshotCache();
+        assertEquals("{}", new String(cache.get().body, StandardCharsets.UTF_8));
+
+        WeatherData weather = new WeatherData();
+        weather.id = "SNAP1";
+        weather.name = "Snapshot";
+        cache.put(weather.id, new Gson().toJson(weather));
+        SnapshotCache.Snapshot first = cache.get();
+        Map<String, WeatherData> decoded = new Gson().fromJson(new String(first.body, StandardCharsets.UTF_8),
+                new com.google.gson.reflect.TypeToken<Map<String, WeatherData>>() {}.getType());
+        assertEquals("Snapshot", decoded.get("SNAP1").name);
+
+        // Unchanged data is served from the same snapshot; a change produces a new ETag
+        assertSame(first, cache.get());
+        cache.put(weather.id, new Gson().toJson(weather));
+        assertNotEquals(first.etag, cache.get().etag);
+
+        // A GET carrying the current ETag is answered with 304 and no body
+        HttpResponse full = AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json", null));
+        HttpRequest conditional = new HttpRequest("GET", "/weather.json", null);
+        conditional.headers.put("If-None-Match", full.headers.get("ETag"));
+        HttpResponse notModified = AggregationServer.handleRequest(conditional);
+        assertEquals(304, notModified.status);
+        assertEquals(0, notModified.body.length);
+    }
+
+    // Test for compressed bodies in both directions, and the binary form of stations in PUTs and GETs
+    @Test
+    public void testCompressionAndBinaryFormat() throws Exception {
+        List<WeatherData> stations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            WeatherData weather = new WeatherData();
+            weather.id = "BIN" + i;
+            weather.name = "Binary " + i;
+            weather.state = "SA";
+            weather.cloud = "Partly cloudy";
+            weather.lat = -34.9;
+            weather.air_temp = 13.3 + i;
+            weather.press = 1023.925;
+            weather.wind_spd_kt = -i;
+            stations.add(weather);
+        }
+        byte[] binary = WeatherDataCodec.encode(stations);
+        assertEquals(new Gson().toJson(stations), new Gson().toJson(WeatherDataCodec.decode(binary)));
+        assertTrue(binary.length < new Gson().toJson(stations).length() / 2);
+
+        // A ten-byte varint decodes to a negative string length or reference, which is refused as malformed
+        byte[] negativeLength = {'W', 'B', 1, 1, 1, 0, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+        byte[] negativeReference = {'W', 'B', 1, 1, 1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 1};
+        assertThrows(IllegalArgumentException.class, () -> WeatherDataCodec.decode(negativeLength));
+        assertThrows(IllegalArgumentException.class, () -> WeatherDataCodec.decode(negativeReference));
+        HttpRequest malformed = new HttpRequest("PUT", "/weather.json", negativeLength);
+        malformed.headers.put("Content-Length", String.valueOf(malformed.body.length));
+        malformed.headers.put("Content-Type", WeatherDataCodec.MEDIA_TYPE);
+        assertEquals(400, AggregationServer.handleRequest(malformed).status);
+
+        // A binary batch, compressed with the dictionary coding, is decoded and stored
+        HttpRequest put = new HttpRequest("PUT", "/weather.json", ContentCoding.encode(ContentCoding.WEATHER_DEFLATE, binary));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+        put.headers.put("Content-Type", WeatherDataCodec.MEDIA_TYPE);
+        put.headers.put("Content-Encoding", ContentCoding.WEATHER_DEFLATE);
+        HttpResponse stored = AggregationServer.handleRequest(put);
+        assertEquals(200, stored.status);
+        assertTrue(stored.bodyText().contains("\"accepted\":3"));
+        assertEquals(ContentCoding.SUPPORTED, stored.headers.get("Accept-Encoding"));
+
+        // An unknown coding is refused, and a corrupt body is a bad request
+        put.headers.put("Content-Encoding", "br");
+        assertEquals(415, AggregationServer.handleRequest(put).status);
+        put.headers.put("Content-Encoding", ContentCoding.GZIP);
+        assertEquals(400, AggregationServer.handleRequest(put).status);
+
+        // Each representation of the snapshot has its own ETag, and decodes to the same stations
+        HttpResponse plain = AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json", null));
+        HttpRequest get = new HttpRequest("GET", "/weather.json", null);
+        get.headers.put("Accept-Encoding", "gzip;q=0.5, x-weather-deflate;q=0");
+        HttpResponse gzipped = AggregationServer.handleRequest(get);
+        assertEquals(ContentCoding.GZIP, gzipped.headers.get("Content-Encoding"));
+        assertArrayEquals(plain.body, ContentCoding.decode(ContentCoding.GZIP, gzipped.body, HttpRequest.MAX_BODY_BYTES));
+        assertNotEquals(plain.headers.get("ETag"), gzipped.headers.get("ETag"));
+        get.headers.put("If-None-Match", gzipped.headers.get("ETag"));
+        assertEquals(304, AggregationServer.handleRequest(get).status);
+
+        HttpRequest binaryGet = new HttpRequest("GET", "/weather.json", null);
+        binaryGet.headers.put("Accept", WeatherDataCodec.MEDIA_TYPE);
+        HttpResponse binaryResponse = AggregationServer.handleRequest(binaryGet);
+        assertEquals(WeatherDataCodec.MEDIA_TYPE, binaryResponse.headers.get("Content-Type"));
+        boolean found = false;
+        for (WeatherData weather : WeatherDataCodec.decode(binaryResponse.body)) {
+            if (weather.id.equals("BIN1")) {
+                found = weather.air_temp == 14.3 && weather.press == 1023.925 && weather.wind_spd_kt == -1;
+            }
+        }
+        assertTrue(found);
+
+        // Over a connection, the client decompresses responses, and compresses its bodies once the server allows it
+        ConnectionEngine engine = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0"}));
+        engine.start();
+        try (AggregationClient client = new AggregationClient("localhost", engine.getPort(), new LamportClock(), 1)) {
+            HttpResponse response = client.send(new HttpRequest("GET", "/weather.json", null));
+            assertNull(response.headers.get("Content-Encoding"));
+            assertArrayEquals(plain.body, response.body);
+
+            StringBuilder json = new StringBuilder("[");
+            for (int i = 0; i < 20; i++) {
+                json.append(i > 0 ? "," : "").append("{\"id\":\"ZIP").append(i).append("\",\"cloud\":\"Partly cloudy\"}");
+            }
+            HttpRequest batch = new HttpRequest("PUT", "/weather.json", json.append("]").toString().getBytes(StandardCharsets.UTF_8));
+            int length = batch.body.length;
+            assertEquals(200, client.send(batch).status);
+            assertEquals(ContentCoding.WEATHER_DEFLATE, batch.headers.get("Content-Encoding"));
+            assertTrue(batch.body.length < length / 4);
+        } finally {
+            engine.stop();
+        }
+    }
+
+    // Test for GETClient's streaming decode of chunked, compressed and plain responses
+    @Test
+    public void testStreamingClient() throws Exception {
+        // A chunked x-weather-deflate body, split mid-token, followed by a second response on the same stream
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < 50; i++) {
+            json.append(i > 0 ? "," : "").append("\"STR").append(i).append("\":{\"id\":\"STR").append(i)
+                    .append("\",\"state\":\"").append(i % 2 == 0 ? "SA" : "WA").append("\",\"air_temp\":").append(i).append("}");
+        }
+        byte[] deflated = ContentCoding.encode(ContentCoding.WEATHER_DEFLATE, json.append("}").toString().getBytes(StandardCharsets.UTF_8));
+        java.io.ByteArrayOutputStream wire = new java.io.ByteArrayOutputStream();
+        wire.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\nContent-Encoding: " + ContentCoding.WEATHER_DEFLATE
+                + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        for (int off = 0; off < deflated.length; off += 37) {
+            int n = Math.min(37, deflated.length - off);
+            wire.write((Integer.toHexString(n) + ";ext=1\r\n").getBytes(StandardCharsets.UTF_8));
+            wire.write(deflated, off, n);
+            wire.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        wire.write("0\r\nTrailer: x\r\n\r\nHTTP/1.1 204 No Content\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        java.io.InputStream input = new java.io.ByteArrayInputStream(wire.toByteArray());
+        HttpResponse head = HttpResponse.readHead(input);
+        java.io.InputStream framed = HttpResponse.bodyStream(input, head.headers);
+        java.io.InputStream body = ContentCoding.decoder(head.headers.get("Content-Encoding"), framed);
+        List<WeatherData> western = new ArrayList<>();
+        assertEquals(25, StationStream.read(body, null, data -> data.state.equals("WA"), western::add));
+        assertEquals("STR1", western.get(0).id);
+        assertEquals(49.0, western.get(24).air_temp, 0.0);
+        assertEquals(-1, body.read());
+        assertEquals(-1, framed.read());
+        assertEquals(204, HttpResponse.read(input).status);
+
+        // The same stations over a connection, streamed by GETClient and filtered as they arrive
+        HttpRequest put = new HttpRequest("PUT", "/weather.json", json.toString().replace("{\"STR0\":", "[").replaceAll(",\"STR\\d+\":", ",")
+                .replaceAll("}$", "]").getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+        assertEquals(200, AggregationServer.handleRequest(put).status);
+        ConnectionEngine engine = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0"}));
+        engine.start();
+        try (AggregationClient client = new AggregationClient("localhost", engine.getPort(), new LamportClock(), 1)) {
+            List<String> ids = new ArrayList<>();
+            assertEquals(25, GETClient.fetch(client, null, data -> data.id.startsWith("STR") && data.state.equals("SA"), data -> ids.add(data.id)));
+            assertTrue(ids.contains("STR48") && !ids.contains("STR1"));
+            assertEquals(1, GETClient.fetch(client, "STR7", data -> true, data -> assertEquals(7.0, data.air_temp, 0.0)));
+            // The connection was left at the end of each body, so it still carries requests
+            assertEquals(200, client.send(new HttpRequest("GET", "/weather.json", null)).status);
+        } finally {
+            engine.stop();
+        }
+    }
+
+    // Test for the startup path of the clients: the hand-written adapter and the daemon
+    @Test
+    public void testStartupClients() throws Exception {
+        WeatherDataAdapter adapter = new WeatherDataAdapter();
+        WeatherData full = new WeatherData();
+        full.id = "IDS60901";
+        full.name = "Adelaide <West> & \"Terrace\"";
+        full.state = "SA";
+        full.time_zone = "CST";
+        full.lat = -34.9;
+        full.lon = 138.6;
+        full.local_date_time = "15/04:00pm";
+        full.local_date_time_full = "20230715160000";
+        full.air_temp = 13.3;
+        full.apparent_t = 9.5;
+        full.cloud = "Partly cloudy";
+        full.dewpt = 5.7;
+        full.press = 1023.9;
+        full.rel_hum = 60;
+        full.wind_dir = "S";
+        full.wind_spd_kmh = 15;
+        full.wind_spd_kt = 8;
+        WeatherData sparse = new WeatherData();
+        sparse.id = "IDS60902";
+        sparse.air_temp = -1.5;
+        Gson gson = new Gson();
+        // Byte for byte what the reflective adapter writes, so the server sees no difference
+        assertEquals(gson.toJson(full), adapter.serialize(full));
+        assertEquals(gson.toJson(sparse), adapter.serialize(sparse));
+        WeatherData read = adapter.fromJson(adapter.serialize(full));
+        assertEquals(gson.toJson(full), gson.toJson(read));
+        read = adapter.fromJson("{\"id\":\"X\",\"extra\":{\"a\":[1,2]},\"name\":null,\"rel_hum\":\"70\",\"cloud\":true}");
+        assertEquals("X", read.id);
+        assertNull(read.name);
+        assertEquals(70, read.rel_hum);
+        assertEquals("true", read.cloud);
+        try {
+            adapter.fromJson("{\"rel_hum\":\"humid\"}");
+            fail("A malformed number should not parse");
+        } catch (com.google.gson.JsonSyntaxException expected) {
+            assertTrue(expected.getMessage().contains("rel_hum"));
+        }
+
+        // The daemon serves get and put over its socket, keeping its connection between commands
+        ConnectionEngine engine = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0"}));
+        engine.start();
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("daemon");
+        java.nio.file.Path socket = directory.resolve("client.sock");
+        java.nio.file.Path file = directory.resolve("station.txt");
+        java.nio.file.Files.writeString(file, "id:IDS60903\nname:Glenelg\nair_temp:14.5\n");
+        Thread daemon = new Thread(() -> {
+            try {
+                new ClientDaemon("localhost:" + engine.getPort(), socket).run();
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+        daemon.start();
+        try {
+            for (int i = 0; i < 100 && !java.nio.file.Files.exists(socket); i++) {
+                Thread.sleep(20);
+            }
+            // A bad input fails that command only
+            java.nio.file.Files.writeString(file, "id:IDS60903\nair_temp:warm\n");
+            assertTrue(daemonCommand(socket, "put " + file).contains("Error: java.lang.NumberFormatException"));
+            assertEquals("rw-------", java.nio.file.attribute.PosixFilePermissions.toString(java.nio.file.Files.getPosixFilePermissions(socket)));
+            java.nio.file.Files.writeString(file, "id:IDS60903\nname:Glenelg\nair_temp:14.5\n");
+            daemonCommand(socket, "put " + file);
+            String reply = daemonCommand(socket, "get IDS60903");
+            assertTrue(reply, reply.contains("Glenelg") && reply.contains("Server response: 1 stations"));
+            assertTrue(daemonCommand(socket, "fetch").startsWith("Unknown command"));
+            assertEquals("Stopping", daemonCommand(socket, "stop").trim());
+            daemon.join(5000);
+            assertFalse(daemon.isAlive());
+            assertFalse(java.nio.file.Files.exists(socket));
+
+            // A file at the socket path is not deleted
+            java.nio.file.Files.writeString(socket, "keep");
+            try {
+                new ClientDaemon("localhost:" + engine.getPort(), socket).run();
+                fail("A regular file should not be replaced by the socket");
+            } catch (java.io.IOException expected) {
+                assertEquals("keep", java.nio.file.Files.readString(socket));
+            }
+
+            // A socket directory others can enter is refused, and the socket left alone
+            java.nio.file.Files.setPosixFilePermissions(directory, java.nio.file.attribute.PosixFilePermissions.fromString("rwxr-xr-x"));
+            try {
+                new ClientDaemon("localhost:" + engine.getPort(), directory.resolve("open.sock")).run();
+                fail("A directory other users can enter should be refused");
+            } catch (java.io.IOException expected) {
+                assertTrue(expected.getMessage().contains("rwx------"));
+                assertFalse(java.nio.file.Files.exists(directory.resolve("open.sock")));
+            }
+        } finally {
+            engine.stop();
+            java.nio.file.Files.deleteIfExists(file);
+            java.nio.file.Files.deleteIfExists(socket);
+            java.nio.file.Files.deleteIfExists(directory);
+        }
+    }
+
+    private static String daemonCommand(java.nio.file.Path socket, String line) throws java.io.IOException {
+        try (java.nio.channels.SocketChannel channel = java.nio.channels.SocketChannel.open(java.net.UnixDomainSocketAddress.of(socket))) {
+            channel.write(java.nio.ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            return new String(java.nio.channels.Channels.newInputStream(channel).readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Test for filtered and paginated GET queries
+    @Test
+    public void testFilteredAndPaginatedQueries() {
+        for (int i = 0; i < 5; i++) {
+            WeatherData weather = new WeatherData();
+            weather.id = "QRY" + i;
+            weather.name = "Query " + i;
+            weather.state = i < 3 ? "QX" : "QY";
+            weather.lat = -30 - i;
+            weather.lon = 140 + i;
+            AggregationServer.storeWeatherData(weather);
+        }
+        java.lang.reflect.Type type = new com.google.gson.reflect.TypeToken<Map<String, WeatherData>>() {}.getType();
+        Gson gson = new Gson();
+
+        // By state, two per page, following the cursor
+        HttpResponse page1 = AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?state=QX&limit=2", null));
+        Map<String, WeatherData> first = gson.fromJson(page1.bodyText(), type);
+        assertEquals(2, first.size());
+        assertEquals("QRY1", page1.headers.get("Next-Cursor"));
+        HttpResponse page2 = AggregationServer.handleRequest(new HttpRequest("GET",
+                "/weather.json?state=QX&limit=2&cursor=" + page1.headers.get("Next-Cursor"), null));
+        Map<String, WeatherData> second = gson.fromJson(page2.bodyText(), type);
+        assertEquals(1, second.size());
+        assertTrue(second.containsKey("QRY2"));
+        assertNull(page2.headers.get("Next-Cursor"));
+
+        // Bounding box and projection
+        HttpResponse box = AggregationServer.handleRequest(new HttpRequest("GET",
+                "/weather.json?bbox=-33.5,142.5,-32.5,143.5&fields=name", null));
+        Map<String, WeatherData> inBox = gson.fromJson(box.bodyText(), type);
+        assertEquals(1, inBox.size());
+        assertEquals("Query 3", inBox.get("QRY3").name);
+        assertNull(inBox.get("QRY3").state);
+        // A box across the antimeridian, from 143.5 east round to -170
+        HttpResponse wrapped = AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?bbox=-35,143.5,-30,-170", null));
+        Map<String, WeatherData> inWrapped = gson.fromJson(wrapped.bodyText(), type);
+        assertTrue(inWrapped.containsKey("QRY4") && !inWrapped.containsKey("QRY3"));
+
+        // Single ids, present and missing
+        assertEquals(200, AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?id=QRY4", null)).status);
+        assertEquals(404, AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?id=NOPE", null)).status);
+        assertEquals(400, AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?bbox=1,2", null)).status);
+        assertEquals(400, AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?bbox=-30,140,-35,145", null)).status);
+    }
+
+    // Test for write-ahead log recovery across a checkpoint
+    @Test
+    public void testWriteAheadLogRecovery() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("wal-test");
+        WriteAheadLog log = new WriteAheadLog(dir);
+        log.recover(snapshot -> fail("no snapshot expected"), record -> fail("no records expected"));
+        log.start();
+        log.append("{\"put\":{\"id\":\"A\"}}").get();
+        log.checkpoint(() -> "{\"A\":{\"id\":\"A\"}}".getBytes(StandardCharsets.UTF_8));
+        log.append("{\"put\":{\"id\":\"B\"}}").get();
+        log.close();
+
+        // The snapshot replaces the first record; the second is replayed from the new segment
+        List<String> snapshots = new ArrayList<>();
+        List<String> records = new ArrayList<>();
+        WriteAheadLog reopened = new WriteAheadLog(dir);
+        assertEquals(1, reopened.recover(snapshots::add, records::add));
+        assertEquals(1, snapshots.size());
+        assertTrue(snapshots.get(0).contains("\"A\""));
+        assertEquals("{\"put\":{\"id\":\"B\"}}", records.get(0));
+
+        // A checkpoint keeps each station's version, so an older write is still rejected after a restart
+        WeatherData stored = new WeatherData();
+        stored.id = "WALV1";
+        stored.air_temp = 20.5;
+        stored.lamport = 500;
+        stored.origin = "source-b";
+        assertNotNull(AggregationServer.storeWeatherData(stored));
+        java.nio.file.Path restarted = java.nio.file.Files.createTempDirectory("wal-test");
+        java.nio.file.Files.write(restarted.resolve("weather_data.json"), AggregationServer.checkpointSnapshot());
+        AggregationServer.removeStation("WALV1");
+        ServerConfig config = new ServerConfig();
+        config.dataDir = restarted.toString();
+        config.checkpointSeconds = Integer.MAX_VALUE;
+        AggregationServer.startPersistence(config);
+        AggregationServer.stopPersistence();
+        WeatherData delayed = new WeatherData();
+        delayed.id = "WALV1";
+        delayed.air_temp = 3.0;
+        delayed.lamport = 499;
+        delayed.origin = "source-c";
+        assertNull(AggregationServer.storeWeatherData(delayed));
+        HttpResponse get = AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?id=WALV1", null));
+        assertTrue(get.bodyText().contains("20.5"));
+        assertTrue(Long.parseLong(get.headers.get("Lamport-Clock")) > 500);
+    }
+
+    // Test for batch PUTs as a JSON array and as NDJSON, with per-record status
+    @Test
+    public void testBatchIngest() {
+        String array = "[{\"id\":\"BATCH1\",\"name\":\"One\"},{\"name\":\"No id\"},{\"id\":\"BATCH2\"}]";
+        HttpRequest arrayPut = new HttpRequest("PUT", "/weather.json", array.getBytes(StandardCharsets.UTF_8));
+        arrayPut.headers.put("Content-Length", String.valueOf(arrayPut.body.length));
+        HttpResponse arrayResponse = AggregationServer.handleRequest(arrayPut);
+        assertEquals(200, arrayResponse.status);
+        com.google.gson.JsonObject summary = com.google.gson.JsonParser.parseString(arrayResponse.bodyText()).getAsJsonObject();
+        assertEquals(2, summary.get("accepted").getAsInt());
+        assertEquals(1, summary.get("rejected").getAsInt());
+        assertEquals(400, summary.getAsJsonArray("results").get(1).getAsJsonObject().get("status").getAsInt());
+
+        String ndjson = "{\"id\":\"BATCH3\"}\n{\"id\":\"BATCH4\",\"air_temp\":\"warm\"}\n{\"id\":\"BATCH5\"}\n";
+        HttpRequest ndjsonPut = new HttpRequest("PUT", "/weather.json", ndjson.getBytes(StandardCharsets.UTF_8));
+        ndjsonPut.headers.put("Content-Length", String.valueOf(ndjsonPut.body.length));
+        ndjsonPut.headers.put("Content-Type", "application/x-ndjson");
+        summary = com.google.gson.JsonParser.parseString(AggregationServer.handleRequest(ndjsonPut).bodyText()).getAsJsonObject();
+        assertEquals(2, summary.get("accepted").getAsInt());
+        assertEquals(1, summary.get("rejected").getAsInt());
+
+        String stored = AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?ids=BATCH1,BATCH2,BATCH5", null)).bodyText();
+        assertTrue(stored.contains("BATCH1") && stored.contains("BATCH2") && stored.contains("BATCH5"));
+    }
+
+    // Test for the parallel feed parser, split into many small chunks, and for colons in station file values
+    @Test
+    public void testFeedParser() throws Exception {
+        java.nio.file.Path feed = java.nio.file.Files.createTempFile("feed", ".txt");
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 500; i++) {
+                text.append("id: FEED").append(i).append("\r\nname:Feed ").append(i).append("\nstate: SA\n")
+                        .append("local_date_time: 15/04:00pm\nair_temp: ").append(i / 10.0).append("\nrel_hum:")
+                        .append(i % 100).append("\nunknown: ignored\n\n");
+            }
+            // A record that follows another without a blank line, and one with a malformed number
+            text.append("id: FEED500\nid: FEED501\nwind_spd_kt: 8\n\nid: BROKEN\nlat: north\n");
+            java.nio.file.Files.writeString(feed, text.toString());
+
+            FeedParser parser = new FeedParser(feed, 1024, 7);
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+            Map<String, WeatherData> parsed = new ConcurrentHashMap<>();
+            try {
+                parser.start(pool);
+                List<WeatherData> batch;
+                while ((batch = parser.next()) != null) {
+                    assertTrue(batch.size() <= 7);
+                    for (WeatherData data : batch) {
+                        assertNull(parsed.put(data.id, data));
+                    }
+                }
+            } finally {
+                parser.close();
+                pool.shutdown();
+            }
+            assertTrue(parser.chunks().size() > 10);
+            assertEquals(502, parsed.size());
+            assertEquals(502, parser.records());
+            assertEquals(1, parser.malformed());
+            WeatherData station = parsed.get("FEED123");
+            assertEquals("Feed 123", station.name);
+            assertEquals("15/04:00pm", station.local_date_time);
+            assertEquals(12.3, station.air_temp, 0);
+            assertEquals(23, station.rel_hum);
+            assertEquals(8, parsed.get("FEED501").wind_spd_kt);
+
+            // A station file's value keeps the colons after the first one
+            java.nio.file.Files.writeString(feed, "id: IDS60901\nlocal_date_time: 15/04:00pm\nlat:\n");
+            assertEquals("15/04:00pm", ContentServer.readFromFile(feed.toString()).local_date_time);
+        } finally {
+            java.nio.file.Files.deleteIfExists(feed);
+        }
+    }
+
+    // Test for expiry of silent sources, and LRU eviction beyond the station cap
+    @Test
+    public void testExpiryOfSilentSources() {
+        ExpiryTracker tracker = new ExpiryTracker(30_000, 0, 3, 100, 0);
+        tracker.touch("A", "EXP1", 0);
+        tracker.touch("A", "EXP2", 0);
+        tracker.touch("B", "EXP3", 0);
+        tracker.touch("A", "EXP1", 20_000);
+
+        // A was heard from again, so only B's station expires
+        assertTrue(tracker.expire(29_000).isEmpty());
+        assertEquals(List.of("EXP3"), tracker.expire(31_000));
+        assertNull(tracker.sourceLastSeen("B"));
+        assertEquals(List.of("EXP1", "EXP2"), sortedCopy(tracker.expire(50_100)));
+
+        // The cap evicts the least recently updated station
+        tracker.touch("C", "EXP4", 60_000);
+        tracker.touch("C", "EXP5", 60_001);
+        tracker.touch("C", "EXP6", 60_002);
+        assertEquals(List.of("EXP4"), tracker.touch("C", "EXP7", 60_003));
+
+        // Without a cap, a station sent again by the same source is refreshed without the lock, and still expires
+        ExpiryTracker uncapped = new ExpiryTracker(30_000, 10_000, 0, 100, 0);
+        uncapped.touch("D", "EXP9", 0);
+        uncapped.touch("D", "EXP9", 9_000);
+        assertTrue(uncapped.expire(15_000).isEmpty());
+        assertTrue(uncapped.isTracked("EXP9"));
+        assertEquals(List.of("EXP9"), uncapped.expire(19_100));
+        assertFalse(uncapped.isTracked("EXP9"));
+        uncapped.touch("D", "EXP9", 20_000);
+        assertTrue(uncapped.isTracked("EXP9"));
+        assertEquals(List.of("EXP9"), uncapped.expire(50_100));
+        assertNull(uncapped.sourceLastSeen("D"));
+
+        // A removed station disappears from GET
+        AggregationServer.storeWeatherData(new Gson().fromJson("{\"id\":\"EXP8\"}", WeatherData.class));
+        AggregationServer.removeStation("EXP8");
+        assertEquals(404, AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?id=EXP8", null)).status);
+    }
+
+    // Stress test: under parallel PUTs in random order, the write with the latest Lamport time wins
+    @Test
+    public void testLastWriteWinsUnderConcurrentPuts() throws Exception {
+        int threads = 8;
+        int putsPerThread = 2000;
+        long[] latest = new long[1];
+        String[] latestOrigin = {""};
+        java.util.concurrent.atomic.AtomicInteger conflicts = new java.util.concurrent.atomic.AtomicInteger();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            String origin = "writer" + t;
+            writers.add(new Thread(() -> {
+                java.util.Random random = new java.util.Random(origin.hashCode());
+                for (int i = 0; i < putsPerThread; i++) {
+                    int clock = 1 + random.nextInt(1_000_000);
+                    String json = "{\"id\":\"LWW1\",\"name\":\"" + origin + "\",\"rel_hum\":" + clock + "}";
+                    HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+                    put.headers.put("Content-Length", String.valueOf(put.body.length));
+                    put.headers.put("Lamport-Clock", String.valueOf(clock));
+                    put.headers.put("Source-Id", origin);
+                    int status = AggregationServer.handleRequest(put).status;
+                    if (status == 409) {
+                        conflicts.incrementAndGet();
+                    } else {
+                        assertEquals(200, status);
+                    }
+                    synchronized (latest) {
+                        if (clock > latest[0] || (clock == latest[0] && origin.compareTo(latestOrigin[0]) > 0)) {
+                            latest[0] = clock;
+                            latestOrigin[0] = origin;
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        WeatherData stored = new Gson().fromJson(com.google.gson.JsonParser.parseString(AggregationServer.handleRequest(
+                new HttpRequest("GET", "/weather.json?id=LWW1", null)).bodyText()).getAsJsonObject().get("LWW1"), WeatherData.class);
+        assertEquals(latest[0], stored.rel_hum);
+        assertEquals(latestOrigin[0], stored.name);
+        assertTrue(conflicts.get() > 0);
+    }
+
+    // Test for the /metrics endpoint
+    @Test
+    public void testMetricsEndpoint() {
+        String json = "{\"id\":\"MET1\"}";
+        HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+        assertEquals(200, AggregationServer.handleRequest(put).status);
+        AggregationServer.handleRequest(new HttpRequest("GET", "/weather.json?id=MET1", null));
+
+        HttpResponse response = AggregationServer.handleRequest(new HttpRequest("GET", "/metrics", null));
+        assertEquals(200, response.status);
+        assertTrue(response.headers.get("Content-Type").startsWith("text/plain"));
+        String text = response.bodyText();
+        assertTrue(text.contains("weather_requests_total{type=\"PUT\",status=\"200\"}"));
+        assertTrue(text.contains("weather_request_duration_seconds_bucket{type=\"GET\",le=\"+Inf\"}"));
+        assertTrue(text.matches("(?s).*\nweather_stations [1-9][0-9]*\n.*"));
+    }
+
+    // Test for the columnar store: stations round-trip through the columns, and removed rows are reused
+    @Test
+    public void testColumnarStore() {
+        Gson gson = new Gson();
+        WeatherStore store = WeatherStore.create("columnar");
+        WeatherData adelaide = gson.fromJson("{\"id\":\"COL1\",\"name\":\"Adelaide\",\"state\":\"SA\",\"time_zone\":\"CST\","
+                + "\"lat\":-34.9,\"air_temp\":13.3,\"cloud\":\"Partly cloudy\",\"rel_hum\":60,\"wind_dir\":\"S\"}", WeatherData.class);
+        adelaide.lamport = 7;
+        store.compute("COL1", (id, old) -> adelaide);
+        store.compute("COL2", (id, old) -> gson.fromJson("{\"id\":\"COL2\",\"state\":\"SA\"}", WeatherData.class));
+
+        assertEquals(gson.toJson(adelaide), gson.toJson(store.get("COL1")));
+        assertEquals(7, store.get("COL1").lamport);
+        assertNull(store.get("COL2").cloud);
+        assertEquals(2, store.size());
+
+        // Returning the stored data leaves it unchanged, and null removes the station
+        assertEquals(7, store.compute("COL1", (id, old) -> old).lamport);
+        assertNull(store.computeIfPresent("COL2", (id, old) -> null));
+        assertNull(store.get("COL2"));
+        store.compute("COL3", (id, old) -> gson.fromJson("{\"id\":\"COL3\",\"name\":\"Reused\"}", WeatherData.class));
+        assertEquals("Reused", store.get("COL3").name);
+        assertNull(store.get("COL3").state);
+        assertEquals(new java.util.TreeSet<>(List.of("COL1", "COL3")), new java.util.TreeSet<>(store.ids()));
+
+        // Times and origins change with every reading and run, so they must not grow the dictionaries
+        ColumnarWeatherStore columnar = new ColumnarWeatherStore();
+        for (int i = 0; i < 5000; i++) {
+            WeatherData reading = gson.fromJson("{\"id\":\"COL4\",\"state\":\"SA\",\"cloud\":\"Sunny\"}", WeatherData.class);
+            reading.local_date_time = "15/" + i;
+            reading.local_date_time_full = String.valueOf(20230715000000L + i);
+            reading.origin = "host-" + i;
+            columnar.compute("COL4", (id, old) -> reading);
+        }
+        assertEquals(2, columnar.dictionaryEntries());
+        assertEquals("20230715004999", columnar.get("COL4").local_date_time_full);
+        assertEquals("host-4999", columnar.get("COL4").origin);
+        columnar.compute("COL5", (id, old) -> gson.fromJson("{\"id\":\"COL5\",\"local_date_time_full\":\"0715\"}", WeatherData.class));
+        assertEquals("0715", columnar.get("COL5").local_date_time_full);
+    }
+
+    // Test for station history: exact recent samples, rollups of older ones, and the history endpoint
+    @Test
+    public void testStationHistory() {
+        // One reading a second for 10 minutes; 240 are kept exactly and older ones are rolled up by the minute
+        HistoryStore store = new HistoryStore(240, 60_000, 10);
+        StationHistory compressed = new StationHistory(600, 60_000, 10);
+        for (int i = 0; i < 600; i++) {
+            WeatherData data = new WeatherData();
+            data.id = "HIST1";
+            data.air_temp = (i % 50) / 10.0;
+            data.press = 1013.2;
+            data.rel_hum = 60;
+            store.record(data, i * 1000L);
+            compressed.record(i * 1000L, new double[] {data.air_temp, 0, 0, data.press, data.rel_hum, 0});
+        }
+        // Unchanged fields and a regular interval take a bit or two per sample
+        assertTrue(compressed.footprintBytes() < 600 * 7 * 8 / 2);
+
+        com.google.gson.JsonArray raw = store.query("HIST1", Map.of("from", "590000"), 600_000).getAsJsonArray("points");
+        assertEquals(10, raw.size());
+        assertEquals(4.9, raw.get(9).getAsJsonObject().get("air_temp").getAsDouble(), 0);
+        assertEquals(1013.2, raw.get(9).getAsJsonObject().get("press").getAsDouble(), 0);
+
+        com.google.gson.JsonArray minutes = store.query("HIST1", Map.of("from", "0", "step", "1m"), 600_000).getAsJsonArray("points");
+        assertEquals(10, minutes.size());
+        int count = 0;
+        for (com.google.gson.JsonElement point : minutes) {
+            count += point.getAsJsonObject().get("count").getAsInt();
+        }
+        assertEquals(600, count);
+        // The first minute comes from a rollup, the seventh from raw samples
+        com.google.gson.JsonObject rolledUp = minutes.get(0).getAsJsonObject().getAsJsonObject("air_temp");
+        assertEquals(0.0, rolledUp.get("min").getAsDouble(), 0);
+        assertEquals(4.9, rolledUp.get("max").getAsDouble(), 0);
+        assertEquals(2.117, rolledUp.get("avg").getAsDouble(), 0.001);
+        assertEquals(2.283, minutes.get(6).getAsJsonObject().getAsJsonObject("air_temp").get("avg").getAsDouble(), 0.001);
+
+        // Over HTTP
+        String json = "{\"id\":\"HIST2\",\"air_temp\":21.5}";
+        HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+        assertEquals(200, AggregationServer.handleRequest(put).status);
+        HttpResponse history = AggregationServer.handleRequest(new HttpRequest("GET", "/weather/HIST2/history", null));
+        assertEquals(200, history.status);
+        assertTrue(history.bodyText().contains("\"air_temp\":21.5"));
+        assertEquals(404, AggregationServer.handleRequest(new HttpRequest("GET", "/weather/NOPE/history", null)).status);
+        assertEquals(400, AggregationServer.handleRequest(new HttpRequest("GET", "/weather/HIST2/history?step=soon", null)).status);
+
+        // Only stored writes are recorded, and a removed station keeps no history
+        WeatherData current = new Gson().fromJson("{\"id\":\"HIST3\",\"air_temp\":18.0}", WeatherData.class);
+        current.lamport = 10;
+        assertNotNull(AggregationServer.storeWeatherData(current, true));
+        WeatherData stale = new Gson().fromJson("{\"id\":\"HIST3\",\"air_temp\":99.0}", WeatherData.class);
+        stale.lamport = 5;
+        assertNull(AggregationServer.storeWeatherData(stale, true));
+        history = AggregationServer.handleRequest(new HttpRequest("GET", "/weather/HIST3/history", null));
+        assertTrue(history.bodyText().contains("\"air_temp\":18.0"));
+        assertFalse(history.bodyText().contains("99.0"));
+        AggregationServer.releaseStation(current);
+        assertEquals(404, AggregationServer.handleRequest(new HttpRequest("GET", "/weather/HIST3/history", null)).status);
+    }
+
+    // Test for aggregate queries: maintained aggregates follow replaced readings and agree with a full scan
+    @Test
+    public void testAggregates() {
+        String[] stations = {
+                "{\"id\":\"AGG1\",\"state\":\"AGGS\",\"cloud\":\"Fog\",\"air_temp\":10.5,\"wind_spd_kmh\":20}",
+                "{\"id\":\"AGG2\",\"state\":\"AGGS\",\"cloud\":\"Fog\",\"air_temp\":-2.0,\"wind_spd_kmh\":5}",
+                "{\"id\":\"AGG3\",\"state\":\"AGGS\",\"air_temp\":14.0,\"wind_spd_kmh\":35}",
+                "{\"id\":\"AGG1\",\"state\":\"AGGS\",\"cloud\":\"Fog\",\"air_temp\":12.5,\"wind_spd_kmh\":20}"};
+        for (String json : stations) {
+            HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+            put.headers.put("Content-Length", String.valueOf(put.body.length));
+            assertEquals(200, AggregationServer.handleRequest(put).status);
+        }
+
+        String path = "/aggregate?field=air_temp,wind_spd_kmh&by=state";
+        com.google.gson.JsonObject indexed = com.google.gson.JsonParser.parseString(
+                AggregationServer.handleRequest(new HttpRequest("GET", path, null)).bodyText()).getAsJsonObject();
+        assertEquals("index", indexed.get("source").getAsString());
+        com.google.gson.JsonObject group = indexed.getAsJsonObject("groups").getAsJsonObject("AGGS");
+        assertEquals(3, group.get("count").getAsInt());
+        // AGG1's first reading of 10.5 was replaced
+        assertEquals(-2.0, group.getAsJsonObject("air_temp").get("min").getAsDouble(), 0);
+        assertEquals(14.0, group.getAsJsonObject("air_temp").get("max").getAsDouble(), 0);
+        assertEquals(8.167, group.getAsJsonObject("air_temp").get("mean").getAsDouble(), 0);
+        assertEquals(35.0, group.getAsJsonObject("wind_spd_kmh").get("max").getAsDouble(), 0);
+
+        com.google.gson.JsonObject scanned = com.google.gson.JsonParser.parseString(
+                AggregationServer.handleRequest(new HttpRequest("GET", path + "&scan=true", null)).bodyText()).getAsJsonObject();
+        assertEquals("scan", scanned.get("source").getAsString());
+        assertEquals(group, scanned.getAsJsonObject("groups").getAsJsonObject("AGGS"));
+
+        // Grouping by cloud is not maintained, so it is computed by a scan
+        com.google.gson.JsonObject byCloud = com.google.gson.JsonParser.parseString(AggregationServer.handleRequest(
+                new HttpRequest("GET", "/aggregate?field=air_temp&by=cloud&state=AGGS", null)).bodyText()).getAsJsonObject();
+        assertEquals("scan", byCloud.get("source").getAsString());
+        assertEquals(2, byCloud.getAsJsonObject("groups").getAsJsonObject("Fog").get("count").getAsInt());
+        assertEquals(1, byCloud.getAsJsonObject("groups").getAsJsonObject(AggregateQuery.NO_GROUP).get("count").getAsInt());
+
+        assertEquals(400, AggregationServer.handleRequest(new HttpRequest("GET", "/aggregate?by=state", null)).status);
+    }
+
+    // Test for the spatial index and GET /weather/near
+    @Test
+    public void testNearestStations() {
+        // The grid search finds what a scan finds, including across the antimeridian and near the poles
+        SpatialIndex index = new SpatialIndex();
+        java.util.Random random = new java.util.Random(7);
+        List<WeatherData> all = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            WeatherData weather = new WeatherData();
+            weather.id = "GEO" + i;
+            weather.lat = i < 100 ? 88 + random.nextDouble() * 2 : random.nextDouble() * 180 - 90;
+            weather.lon = random.nextDouble() * 360 - 180;
+            index.update(null, weather);
+            all.add(weather);
+        }
+        // Moved and removed stations leave their old cells
+        WeatherData moved = new WeatherData();
+        moved.id = "GEO0";
+        moved.lat = -33.9;
+        moved.lon = 151.2;
+        index.update(all.get(0), moved);
+        all.set(0, moved);
+        index.update(all.remove(1), null);
+
+        double[][] points = {{-33.9, 151.2}, {10, 179.9}, {-5, -180}, {89.5, 0}, {-90, 45}, {0, 0}};
+        for (double[] point : points) {
+            List<Double> distances = new ArrayList<>();
+            for (WeatherData weather : all) {
+                distances.add(SpatialIndex.distanceKm(point[0], point[1], weather.lat, weather.lon));
+            }
+            java.util.Collections.sort(distances);
+            List<SpatialIndex.Hit> nearest = index.search(point[0], point[1], 5, Double.POSITIVE_INFINITY);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(distances.get(i), nearest.get(i).distanceKm, 1e-9);
+            }
+            long within = distances.stream().filter(d -> d <= 800).count();
+            assertEquals(within, index.search(point[0], point[1], Integer.MAX_VALUE, 800).size());
+        }
+        assertEquals("GEO0", index.search(-33.9, 151.2, 1, 1).get(0).id);
+
+        // Over HTTP: nearest first, with a radius, and k of the nearest within it
+        String[] stations = {
+                "{\"id\":\"NEAR1\",\"name\":\"Anchorage\",\"lat\":61.2,\"lon\":-149.9}",
+                "{\"id\":\"NEAR2\",\"name\":\"Palmer\",\"lat\":61.6,\"lon\":-149.1}",
+                "{\"id\":\"NEAR3\",\"name\":\"Fairbanks\",\"lat\":64.8,\"lon\":-147.7}"};
+        for (String json : stations) {
+            HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+            put.headers.put("Content-Length", String.valueOf(put.body.length));
+            assertEquals(200, AggregationServer.handleRequest(put).status);
+        }
+        com.google.gson.JsonArray found = com.google.gson.JsonParser.parseString(AggregationServer.handleRequest(
+                new HttpRequest("GET", "/weather/near?lat=61.22&lon=-149.85&k=3", null)).bodyText()).getAsJsonObject().getAsJsonArray("stations");
+        assertEquals("NEAR1", found.get(0).getAsJsonObject().get("id").getAsString());
+        assertEquals("NEAR3", found.get(2).getAsJsonObject().get("id").getAsString());
+        assertEquals("Palmer", found.get(1).getAsJsonObject().getAsJsonObject("data").get("name").getAsString());
+        assertTrue(found.get(0).getAsJsonObject().get("distance_km").getAsDouble() < 5);
+        com.google.gson.JsonArray close = com.google.gson.JsonParser.parseString(AggregationServer.handleRequest(
+                new HttpRequest("GET", "/weather/near?lat=61.22&lon=-149.85&radius=100", null)).bodyText()).getAsJsonObject().getAsJsonArray("stations");
+        assertEquals(2, close.size());
+        com.google.gson.JsonArray one = com.google.gson.JsonParser.parseString(AggregationServer.handleRequest(
+                new HttpRequest("GET", "/weather/near?lat=61.22&lon=-149.85&radius=100&k=1", null)).bodyText()).getAsJsonObject().getAsJsonArray("stations");
+        assertEquals(1, one.size());
+
+        assertEquals(400, AggregationServer.handleRequest(new HttpRequest("GET", "/weather/near?lat=61&k=3", null)).status);
+        assertEquals(400, AggregationServer.handleRequest(new HttpRequest("GET", "/weather/near?lat=61&lon=-149&radius=-1", null)).status);
+    }
+
+    // Test for long-poll and Server-Sent Events subscriptions to the change log
+    @Test
+    public void testChangeSubscriptions() throws Exception {
+        HttpResponse now = AggregationServer.handleRequest(new HttpRequest("GET", "/changes?timeout=0", null));
+        now.subscription.complete(now);
+        long since = com.google.gson.JsonParser.parseString(now.bodyText()).getAsJsonObject().get("clock").getAsLong();
+
+        // A long poll waits until a matching station changes
+        HttpResponse poll = AggregationServer.handleRequest(
+                new HttpRequest("GET", "/changes?since=" + since + "&id=SUB1&timeout=10", null));
+        assertFalse(poll.subscription.isFinished());
+        for (String id : new String[] {"SUB2", "SUB1"}) {
+            HttpRequest put = new HttpRequest("PUT", "/weather.json",
+                    ("{\"id\":\"" + id + "\",\"air_temp\":9.5}").getBytes(StandardCharsets.UTF_8));
+            put.headers.put("Content-Length", String.valueOf(put.body.length));
+            assertEquals(200, AggregationServer.handleRequest(put).status);
+        }
+        poll.subscription.awaitReady();
+        poll.subscription.complete(poll);
+        com.google.gson.JsonObject changes = com.google.gson.JsonParser.parseString(poll.bodyText()).getAsJsonObject();
+        assertFalse(changes.get("reset").getAsBoolean());
+        assertEquals(1, changes.getAsJsonArray("changes").size());
+        com.google.gson.JsonObject change = changes.getAsJsonArray("changes").get(0).getAsJsonObject();
+        assertEquals("put", change.get("op").getAsString());
+        assertEquals(9.5, change.getAsJsonObject("data").get("air_temp").getAsDouble(), 0);
+
+        // Asking from a time the log does not hold is answered with a reset at once
+        HttpResponse future = AggregationServer.handleRequest(
+                new HttpRequest("GET", "/changes?since=" + Long.MAX_VALUE / 2, null));
+        future.subscription.awaitReady();
+        future.subscription.complete(future);
+        assertTrue(future.bodyText().contains("\"reset\":true"));
+
+        // Without subscribers nothing is held; after the first, changes are held and published in order
+        ChangeLog log = new ChangeLog(new LamportClock(), 4, 8);
+        log.append("LOG1", "SA", "{}");
+        log.publish();
+        Subscription first = log.subscribe(-1, null, null, false, 10_000);
+        long start = first.cancel();
+        assertEquals(1, start);
+        log.append("LOG2", "SA", "{}");
+        log.append("LOG3", "SA", null);
+        HttpResponse caughtUp = new HttpResponse(200, "OK");
+        Subscription resumed = log.subscribe(start, null, null, false, 10_000);
+        assertFalse(resumed.isFinished());
+        log.publish();
+        resumed.complete(caughtUp);
+        com.google.gson.JsonObject held = com.google.gson.JsonParser.parseString(caughtUp.bodyText()).getAsJsonObject();
+        assertEquals(3, held.get("clock").getAsLong());
+        assertEquals(2, held.getAsJsonArray("changes").size());
+        assertEquals("delete", held.getAsJsonArray("changes").get(1).getAsJsonObject().get("op").getAsString());
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArgs(new String[] {"--change-log=0"}));
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.fromArgs(new String[] {"--subscriber-queue=0"}));
+
+        // A stream over a real connection, for a blocking engine and the selector engine
+        for (String engineName : new String[] {"virtual", "nio"}) {
+            ConnectionEngine engine = ConnectionEngine.create(
+                    ServerConfig.fromArgs(new String[] {"0", "--engine=" + engineName}));
+            engine.start();
+            try (java.net.Socket socket = new java.net.Socket("localhost", engine.getPort())) {
+                socket.setSoTimeout(10_000);
+                String id = "SSE-" + engineName;
+                socket.getOutputStream().write(("GET /events?id=" + id + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                java.io.BufferedReader reader = new java.io.BufferedReader(
+                        new java.io.InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                assertEquals("HTTP/1.1 200 OK", reader.readLine());
+                List<String> head = new ArrayList<>();
+                for (String line = reader.readLine(); !line.isEmpty(); line = reader.readLine()) {
+                    head.add(line);
+                }
+                assertTrue(head.contains("Content-Type: text/event-stream"));
+
+                HttpRequest put = new HttpRequest("PUT", "/weather.json",
+                        ("{\"id\":\"" + id + "\",\"air_temp\":3.0}").getBytes(StandardCharsets.UTF_8));
+                put.headers.put("Content-Length", String.valueOf(put.body.length));
+                assertEquals(200, AggregationServer.handleRequest(put).status);
+
+                assertTrue(reader.readLine().startsWith("id: "));
+                assertEquals("event: put", reader.readLine());
+                assertTrue(reader.readLine().contains("\"id\":\"" + id + "\""));
+            } finally {
+                engine.stop();
+            }
+        }
+    }
+
+    // Test for the per-source and per-station token buckets and the bounded ingest queue
+    @Test
+    public void testIngestLimits() throws Exception {
+        AggregationServer.startIngestLimits(ServerConfig.fromArgs(new String[] {
+                "--source-rate=0.1", "--source-burst=2", "--station-rate=0.1", "--ingest-concurrency=0"}));
+        try {
+            // A source gets its burst, then 429 with the seconds until its next token
+            assertEquals(200, AggregationServer.handleRequest(limitedPut("flood", "{\"id\":\"LIMIT1\"}")).status);
+            assertEquals(200, AggregationServer.handleRequest(limitedPut("flood", "{\"id\":\"LIMIT2\"}")).status);
+            HttpResponse throttled = AggregationServer.handleRequest(limitedPut("flood", "{\"id\":\"LIMIT3\"}"));
+            assertEquals(429, throttled.status);
+            assertTrue(Long.parseLong(throttled.headers.get("Retry-After")) >= 5);
+
+            // Other sources are unaffected, but a station is limited whoever sends it, also within a batch
+            assertEquals(429, AggregationServer.handleRequest(limitedPut("other", "{\"id\":\"LIMIT1\"}")).status);
+            HttpResponse batch = AggregationServer.handleRequest(
+                    limitedPut("other", "[{\"id\":\"LIMIT4\"},{\"id\":\"LIMIT4\"}]"));
+            assertEquals(200, batch.status);
+            assertNotNull(batch.headers.get("Retry-After"));
+            assertTrue(batch.bodyText().contains("\"status\":429"));
+            assertTrue(AggregationServer.metrics.render().contains("weather_rejected_puts_total{reason=\"station\"} "));
+        } finally {
+            AggregationServer.startIngestLimits(ServerConfig.fromArgs(new String[] {"--ingest-concurrency=0"}));
+        }
+
+        // One PUT at a time with one waiting: a third is shed at once, the waiting one when its timeout passes
+        IngestLimiter gate = IngestLimiter.create(ServerConfig.fromArgs(new String[] {
+                "--ingest-concurrency=1", "--ingest-queue=1", "--ingest-timeout=200"}));
+        assertTrue(gate.enter());
+        java.util.concurrent.Future<Boolean> waiter = java.util.concurrent.Executors.newSingleThreadExecutor().submit(gate::enter);
+        while (gate.waiting() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(gate.enter());
+        assertFalse(waiter.get());
+        gate.exit();
+        assertTrue(gate.enter());
+        assertEquals(503, IngestLimiter.overloaded().status);
+    }
+
+    private static HttpRequest limitedPut(String source, String json) {
+        HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Content-Length", String.valueOf(put.body.length));
+        put.headers.put("Source-Id", source);
+        return put;
+    }
+
+    // Integration test for a cluster of three servers, each in its own process, with client failover
+    @Test
+    public void testReplicatedClusterWithFailover() throws Exception {
+        // A malformed replicated record is answered with 400, and the connection keeps serving
+        ConnectionEngine engine = ConnectionEngine.create(ServerConfig.fromArgs(new String[] {"0", "--engine=nio"}));
+        engine.start();
+        try (AggregationClient client = new AggregationClient("localhost", engine.getPort(), new LamportClock(), 1)) {
+            for (String record : new String[] {"[1]", "{\"put\":{\"id\":\"REPX\"},\"lamport\":3}", "{\"lamport\":3,\"origin\":\"a\"}"}) {
+                HttpRequest replicate = new HttpRequest("PUT", "/replicate", record.getBytes(StandardCharsets.UTF_8));
+                assertEquals(400, client.send(replicate).status);
+            }
+            assertEquals(200, client.send(new HttpRequest("GET", "/weather.json", null)).status);
+        } finally {
+            engine.stop();
+        }
+
+        int[] ports = new int[3];
+        for (int i = 0; i < ports.length; i++) {
+            try (java.net.ServerSocket socket = new java.net.ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+        }
+        Process[] nodes = new Process[ports.length];
+        try {
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = startClusterNode(ports, i);
+            }
+            String servers = "localhost:" + ports[0] + ",localhost:" + ports[1];
+            try (AggregationClient client = AggregationClient.forAddress(servers, new LamportClock())) {
+                // With a write quorum of 2, another server stored the write before it was acknowledged
+                assertEquals(200, client.send(stationPut("{\"id\":\"REP1\",\"air_temp\":1.5}")).status);
+                assertTrue(awaitStation(ports[2], "REP1"));
+
+                // The client fails over to the second server once the first is gone
+                nodes[0].destroyForcibly().waitFor();
+                assertEquals(200, client.send(stationPut("{\"id\":\"REP2\",\"air_temp\":2.5}")).status);
+                assertEquals("localhost:" + ports[1], client.currentAddress());
+                assertTrue(awaitStation(ports[2], "REP2"));
+
+                // The restarted server lost everything, and is sent every station by the others
+                nodes[0] = startClusterNode(ports, 0);
+                assertTrue(awaitStation(ports[0], "REP1"));
+                assertTrue(awaitStation(ports[0], "REP2"));
+            }
+        } finally {
+            for (Process node : nodes) {
+                if (node != null) {
+                    node.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    // Integration test for sharding stations over server processes, with a node joining the running cluster
+    @Test
+    public void testShardedClusterRebalancesOnJoin() throws Exception {
+        // One node of four takes about a quarter of the stations from the other three
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            ids.add("IDS" + i);
+        }
+        ShardRing three = new ShardRing(1, List.of("a:1", "b:1", "c:1"));
+        ShardRing four = new ShardRing(2, List.of("a:1", "b:1", "c:1", "d:1"));
+        int moved = 0;
+        for (String id : ids) {
+            if (!three.owner(id).equals(four.owner(id))) {
+                assertEquals("d:1", four.owner(id));
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > 1500 && moved < 3500);
+
+        int[] ports = new int[3];
+        for (int i = 0; i < ports.length; i++) {
+            try (java.net.ServerSocket socket = new java.net.ServerSocket(0)) {
+                ports[i] = socket.getLocalPort();
+            }
+        }
+        String[] nodes = new String[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            nodes[i] = "localhost:" + ports[i];
+        }
+        Process[] processes = new Process[ports.length];
+        try {
+            for (int i = 0; i < 2; i++) {
+                processes[i] = startServerProcess(String.valueOf(ports[i]), "--wal=false", "--source-ttl=0",
+                        "--shards=" + nodes[0] + "," + nodes[1]);
+            }
+            LamportClock clock = new LamportClock();
+            try (ShardRouter router = new ShardRouter(AggregationClient.forAddress(nodes[0], clock), clock)) {
+                List<HttpRequest> puts = new ArrayList<>();
+                List<String> stations = new ArrayList<>();
+                for (int i = 0; i < 60; i++) {
+                    stations.add("SHARD" + i);
+                    puts.add(stationPut("{\"id\":\"SHARD" + i + "\",\"air_temp\":" + i + "}"));
+                }
+                for (HttpResponse response : router.sendAll(puts, stations)) {
+                    assertEquals(200, response.status);
+                }
+            }
+            int[] held = localStationCounts(nodes);
+            assertTrue(held[0] > 0 && held[1] > 0);
+            assertEquals(60, held[0] + held[1]);
+
+            try (AggregationClient client = AggregationClient.forAddress(nodes[1], new LamportClock())) {
+                // A GET of every station, or of a page of them, is gathered from both nodes
+                HttpResponse all = client.send(new HttpRequest("GET", "/weather.json", null));
+                assertEquals(60, com.google.gson.JsonParser.parseString(all.bodyText()).getAsJsonObject().size());
+                HttpResponse page = client.send(new HttpRequest("GET", "/weather.json?limit=25", null));
+                assertEquals(25, com.google.gson.JsonParser.parseString(page.bodyText()).getAsJsonObject().size());
+                // Pages are in id order: SHARD0, SHARD1, SHARD10 ... SHARD3, SHARD30
+                assertEquals("SHARD30", page.headers.get("Next-Cursor"));
+                // A station owned by the other node is fetched from it
+                assertEquals(200, client.send(new HttpRequest("GET", "/weather.json?id=SHARD7", null)).status);
+                // A PUT sent to the wrong node is forwarded
+                assertEquals(200, client.send(stationPut("{\"id\":\"SHARD60\"}")).status);
+            }
+
+            // A third node joins: the others adopt the new ring and hand its stations over
+            processes[2] = startServerProcess(String.valueOf(ports[2]), "--wal=false", "--source-ttl=0",
+                    "--shards=" + String.join(",", nodes));
+            long deadline = System.currentTimeMillis() + 20_000;
+            while (System.currentTimeMillis() < deadline) {
+                held = localStationCounts(nodes);
+                if (held[2] > 0 && held[0] + held[1] + held[2] == 61) {
+                    break;
+                }
+                Thread.sleep(100);
+            }
+            assertTrue(held[2] > 0);
+            assertEquals(61, held[0] + held[1] + held[2]);
+            try (AggregationClient client = AggregationClient.forAddress(nodes[0], new LamportClock())) {
+                assertTrue(client.send(new HttpRequest("GET", "/shards", null)).bodyText().contains("\"version\":2"));
+            }
+        } finally {
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    private static int[] localStationCounts(String[] nodes) throws Exception {
+        int[] counts = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            try (AggregationClient client = AggregationClient.forAddress(nodes[i], new LamportClock())) {
+                HttpRequest get = new HttpRequest("GET", "/weather.json", null);
+                get.headers.put(ShardManager.SCOPE_HEADER, "local");
+                counts[i] = com.google.gson.JsonParser.parseString(client.send(get).bodyText()).getAsJsonObject().size();
+            } catch (java.io.IOException e) {
+                // The node is not running
+            }
+        }
+        return counts;
+    }
+
+    private static Process startClusterNode(int[] ports, int node) throws Exception {
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < ports.length; i++) {
+            if (i != node) {
+                peers.add("localhost:" + ports[i]);
+            }
+        }
+        return startServerProcess(String.valueOf(ports[node]), "--wal=false", "--source-ttl=0",
+                "--peers=" + String.join(",", peers), "--write-quorum=2", "--quorum-timeout=10000");
+    }
+
+    private static Process startServerProcess(String... args) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+                java.nio.file.Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "org.example.AggregationServer"));
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        java.io.BufferedReader output = new java.io.BufferedReader(
+                new java.io.InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        for (String line = output.readLine(); !line.startsWith("Server is running"); line = output.readLine()) {
+            assertNotNull("The server exited before it started", line);
+        }
+        // Keep reading, so the server never blocks on a full pipe
+        Thread drain = new Thread(() -> output.lines().forEach(line -> { }));
+        drain.setDaemon(true);
+        drain.start();
+        return process;
+    }
+
+    private static HttpRequest stationPut(String json) {
+        HttpRequest put = new HttpRequest("PUT", "/weather.json", json.getBytes(StandardCharsets.UTF_8));
+        put.headers.put("Source-Id", "replication-test");
+        return put;
+    }
+
+    private static boolean awaitStation(int port, String id) throws Exception {
+        long deadline = System.currentTimeMillis() + 20_000;
+        try (AggregationClient client = new AggregationClient("localhost", port, new LamportClock(), 1)) {
+            while (System.currentTimeMillis() < deadline) {
+                if (client.send(new HttpRequest("GET", "/weather.json?id=" + id, null)).status == 200) {
+                    return true;
+                }
+                Thread.sleep(100);
+            }
+        }
+        return false;
+    }
+
+    private static List<String> sortedCopy(List<String> list) {
+        List<String> copy = new ArrayList<>(list);
+        copy.sort(null);
+        return copy;
+    }
+}